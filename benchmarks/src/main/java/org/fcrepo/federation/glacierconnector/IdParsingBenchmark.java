@@ -0,0 +1,94 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The id helpers called on every SPI request, over a mix of root, vault,
+ * archive and content node ids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdParsingBenchmark {
+
+	private static final int IDS = 1024;
+
+	private String[] ids;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File cacheDirectory = File.createTempFile("glacier-benchmark", "");
+		cacheDirectory.delete();
+		try {
+			String[] archiveIds = new SyntheticInventory().write(
+					cacheDirectory, "benchmark", IDS);
+
+			ids = new String[IDS];
+			for (int i = 0; i < IDS; i++) {
+				switch (i % 4) {
+				case 0:
+					ids[i] = "/";
+					break;
+				case 1:
+					ids[i] = "/benchmark";
+					break;
+				case 2:
+					ids[i] = "/benchmark/" + archiveIds[i];
+					break;
+				default:
+					ids[i] = "/benchmark/" + archiveIds[i] + "/jcr:content";
+				}
+			}
+		} finally {
+			SyntheticInventory.delete(cacheDirectory);
+		}
+	}
+
+	private String nextId() {
+		next = (next + 1) & (IDS - 1);
+		return ids[next];
+	}
+
+	@Benchmark
+	public String vaultNameInPath() {
+		return GlacierConnector.ValutNameInPath(nextId());
+	}
+
+	@Benchmark
+	public String archiveIdInPath() {
+		return GlacierConnector.ArchiveIdInPath(nextId());
+	}
+
+	@Benchmark
+	public boolean isArchivePath() {
+		return GlacierConnector.isArchivePath(nextId());
+	}
+
+	@Benchmark
+	public void allHelpers(Blackhole blackhole) {
+		String id = nextId();
+		blackhole.consume(GlacierConnector.ValutNameInPath(id));
+		blackhole.consume(GlacierConnector.ArchiveIdInPath(id));
+		blackhole.consume(GlacierConnector.isArchivePath(id));
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a vault inventory and building one page of its children, which is
+ * what every <code>getDocumentById</code> of a vault does. The 10M archive
+ * inventory needs a larger heap, e.g.
+ * <code>-p archiveCount=10000000 -jvmArgsAppend -Xmx16g</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class InventoryBenchmark {
+
+	private static final String VAULT = "benchmark";
+	private static final int PAGE_SIZE = 20;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int archiveCount;
+
+	/**
+	 * The page offset, as a fraction of the inventory size.
+	 */
+	@Param({ "0", "0.5", "0.99" })
+	public double offsetFraction;
+
+	private File cacheDirectory;
+	private GlacierVaultArchive vaultArchive;
+	private JsonNode archiveList;
+	private int offset;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		cacheDirectory = File.createTempFile("glacier-benchmark", "");
+		cacheDirectory.delete();
+		cacheDirectory.mkdirs();
+
+		new SyntheticInventory().write(cacheDirectory, VAULT, archiveCount);
+
+		vaultArchive = new GlacierVaultArchive(cacheDirectory.getPath());
+		archiveList = vaultArchive.VaultArchiveList('/' + VAULT);
+		offset = (int) (archiveCount * offsetFraction);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticInventory.delete(cacheDirectory);
+	}
+
+	@Benchmark
+	public JsonNode parseInventory() throws IOException {
+		return vaultArchive.VaultArchiveList('/' + VAULT);
+	}
+
+	@Benchmark
+	public List<String> pageParsedInventory() {
+		List<String> page = new ArrayList<String>(PAGE_SIZE);
+		GlacierConnector.archivePage(archiveList, offset, PAGE_SIZE, page);
+		return page;
+	}
+
+	/**
+	 * A vault document request: the inventory is parsed for every page.
+	 */
+	@Benchmark
+	public List<String> parseAndPageInventory() throws IOException {
+		List<String> page = new ArrayList<String>(PAGE_SIZE);
+		GlacierConnector.archivePage(
+				vaultArchive.VaultArchiveList('/' + VAULT), offset, PAGE_SIZE,
+				page);
+		return page;
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes a vault inventory shaped like the Glacier inventory retrieval job
+ * output, with generated archives. The same seed always produces the same
+ * inventory, so that results are comparable across commits.
+ */
+public class SyntheticInventory {
+
+	public static final long SEED = 20130601L;
+
+	private static final char[] ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+	private final Random random = new Random(SEED);
+
+	/**
+	 * Write the inventory of the vault where the connector expects it:
+	 * <code>&lt;cacheDirectory&gt;/&lt;vaultName&gt;/&lt;vaultName&gt;</code>.
+	 * 
+	 * @return the archive ids, in inventory order
+	 */
+	public String[] write(File cacheDirectory, String vaultName,
+			int archiveCount) throws IOException {
+
+		File vaultDirectory = new File(cacheDirectory, vaultName);
+		vaultDirectory.mkdirs();
+
+		String[] archiveIds = new String[archiveCount];
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(vaultDirectory, vaultName)),
+				"UTF-8"), 1 << 16);
+		try {
+			out.write("{\"VaultARN\":\"arn:aws:glacier:us-east-1:012345678901:vaults/");
+			out.write(vaultName);
+			out.write("\",\"InventoryDate\":\"2013-06-01T00:00:00Z\",\"ArchiveList\":[");
+
+			for (int i = 0; i < archiveCount; i++) {
+				archiveIds[i] = randomString(ID_CHARS, 138);
+				if (i > 0) {
+					out.write(',');
+				}
+				out.write("{\"ArchiveId\":\"");
+				out.write(archiveIds[i]);
+				out.write("\",\"ArchiveDescription\":\"archive-");
+				out.write(Integer.toString(i));
+				out.write("\",\"CreationDate\":\"2013-05-");
+				out.write(String.format("%02d", 1 + random.nextInt(28)));
+				out.write("T12:00:00Z\",\"Size\":");
+				out.write(Long.toString(1 + (long) (random.nextDouble() * (1L << 32))));
+				out.write(",\"SHA256TreeHash\":\"");
+				out.write(randomString(HEX_CHARS, 64));
+				out.write("\"}");
+			}
+
+			out.write("]}");
+		} finally {
+			out.close();
+		}
+
+		return archiveIds;
+	}
+
+	private String randomString(char[] chars, int length) {
+		char[] s = new char[length];
+		for (int i = 0; i < length; i++) {
+			s[i] = chars[random.nextInt(chars.length)];
+		}
+		return new String(s);
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,11 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * Informed when an archive was downloaded and verified, and can be read from
+ * the local cache.
+ */
+public interface ArchiveAvailabilityListener {
+
+	public void archiveAvailable(String vaultName, String archiveId);
+
+}
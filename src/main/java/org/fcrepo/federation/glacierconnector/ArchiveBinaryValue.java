@@ -4,6 +4,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import javax.jcr.RepositoryException;
 
@@ -26,12 +27,17 @@ public class ArchiveBinaryValue extends ExternalBinaryValue {
 	private String secretKey;
 	private String region;
 	private String SNSTopicName;
-	private String sqsQueueARN;
 	private String vaultName;
 	private String archiveId;
 
 	private String cacheRootDirectory;
 
+	private transient GlacierMetrics metrics;
+
+	private transient PrefetchManager prefetchManager;
+
+	private transient RetrievalRequester requester;
+
 	// GlacierMessageListener glacierMessageListener;
 
 	public ArchiveBinaryValue(BinaryKey key, String sourceName,
@@ -48,6 +54,7 @@ public class ArchiveBinaryValue extends ExternalBinaryValue {
 		this.secretKey = secretKey;
 		this.region = region;
 
+		this.SNSTopicName = SNSTopicName;
 		this.vaultName = vaultName;
 		this.archiveId = archiveId;
 
@@ -58,8 +65,24 @@ public class ArchiveBinaryValue extends ExternalBinaryValue {
 		return this;
 	}
 
-	public ArchiveBinaryValue withSQSQueueARN(String sqsQueueARN) {
-		this.sqsQueueARN = sqsQueueARN;
+	public ArchiveBinaryValue withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public ArchiveBinaryValue withPrefetchManager(
+			PrefetchManager prefetchManager) {
+		this.prefetchManager = prefetchManager;
+		return this;
+	}
+
+	/**
+	 * @param requester
+	 *            initiates the retrieval jobs through the endpoint of the vault,
+	 *            which notifies a single SNS topic
+	 */
+	public ArchiveBinaryValue withRequester(RetrievalRequester requester) {
+		this.requester = requester;
 		return this;
 	}
 
@@ -67,46 +90,107 @@ public class ArchiveBinaryValue extends ExternalBinaryValue {
 		return new BufferedInputStream(new FileInputStream(cacheRootDirectory + '/' + vaultName+ '/'+archiveId));
 	}
 
+	/**
+	 * @return a stream following the download of the archive, null when it is
+	 *         not downloading
+	 */
+	private InputStream getStreamFromDownload() throws IOException {
+		StagedDownload download = StagedDownload.get(vaultName, archiveId);
+		InputStream stream = download != null ? download.newStream() : null;
+		if (stream != null) {
+			if (metrics != null) {
+				metrics.streamedRead();
+			}
+			RetrievalTimeline timeline = requester.getRegistry().timeline();
+			timeline.record(vaultName, archiveId,
+					RetrievalTimeline.Stage.STREAMED_READ);
+			timeline.read(vaultName, archiveId);
+			prefetch();
+		}
+		return stream;
+	}
+
 	private String sendDownloadArchiveRequest() {
 		
 		System.out.println("Sending a download request to Glacier, archiveid : "+vaultName + '/'+archiveId);
 
-		GlacireArchive glacireArchive = new GlacireArchive(accessKey,
-				secretKey, region).withSNS(sqsQueueARN).withValultName(vaultName);
-
-		return glacireArchive.sendDownloadRequest(
-				GlacireArchive.JobType.GETARCHIVE.getJobTypeCode(), archiveId);
+		return requester.initiateJob(vaultName, archiveId);
 
 	}
 
 
+	private void prefetch() {
+		if (prefetchManager != null) {
+			prefetchManager.archiveRead(vaultName, archiveId);
+		}
+	}
+
 	@Override
 	public InputStream getStream() throws RepositoryException {
 		try {
 
-			if (archiveId != null
-					&& !GlacierMessageListener.isInWaitingList(archiveId)) {
+			if (archiveId != null) {
 
+				// looked up first: a download leaves the list only once its
+				// archive is in place
+				InputStream streamed = getStreamFromDownload();
+				if (streamed != null) {
+					return streamed;
+				}
+
+				// the archive is only in place once downloaded and verified
 				File file = new File(cacheRootDirectory + '/' + vaultName,
 						archiveId);
 
 				if (file.exists()) {
 
+					if (metrics != null) {
+						metrics.cacheHit();
+					}
+					requester.getRegistry().timeline().read(vaultName,
+							archiveId);
+					prefetch();
 					return getStreamFromCache();
-				} else synchronized(this){
+				}
+			}
 
-					
-					String jobId = sendDownloadArchiveRequest();
+			RetrievalRegistry registry = requester.getRegistry();
 
-					GlacierMessageListener.putIntoWaitingList(archiveId, jobId);
+			if (archiveId != null
+					&& !registry.isInWaitingList(archiveId)) {
+
+				// only the reader that reserves the archive initiates its job
+				if (registry.reserve(vaultName, archiveId)) {
+
+					if (metrics != null) {
+						metrics.cacheMiss();
+					}
+					registry.timeline().record(vaultName, archiveId,
+							RetrievalTimeline.Stage.REQUESTED);
+
+					String jobId;
+					try {
+						jobId = sendDownloadArchiveRequest();
+					} catch (RuntimeException e) {
+						registry.removeFromWaitingList(archiveId);
+						throw e;
+					}
+					registry.timeline().record(vaultName, archiveId,
+							RetrievalTimeline.Stage.JOB_INITIATED);
+
+					registry.putIntoWaitingList(vaultName, archiveId, jobId);
+					prefetch();
 
 					throw new DocumentStoreException(archiveId,
 							"Archive request is sent to Glacier, please try again after 24 hours.");
-					
-
 				}
-
 			}
+
+			// a reader now waits for it, if it was prefetched
+			registry.promote(archiveId);
+
+			throw new DocumentStoreException(archiveId,
+					"Archive is being retrieved from Glacier, please try again later.");
 		} 
 		catch(DocumentStoreException e){
 			throw e;
@@ -114,7 +198,5 @@ public class ArchiveBinaryValue extends ExternalBinaryValue {
 		catch (Exception e) {
 			throw new RepositoryException(e);
 		}
-
-		return null;
 	}
 }
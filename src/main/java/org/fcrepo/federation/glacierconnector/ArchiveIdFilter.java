@@ -0,0 +1,97 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of archive ids. The ids are hashed straight from their
+ * characters, within a range of a larger string such as a node id, so a
+ * lookup allocates nothing. With the default false positive rate of 1% the
+ * filter takes about 10 bits per id.
+ */
+public class ArchiveIdFilter {
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+
+	/**
+	 * @param expectedIds
+	 *            the number of ids the false positive rate is computed for
+	 * @param falsePositiveRate
+	 *            the expected rate of lookups of an absent id answering true
+	 */
+	public ArchiveIdFilter(int expectedIds, double falsePositiveRate) {
+		long n = Math.max(1, expectedIds);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate)
+				/ (Math.log(2) * Math.log(2)));
+		m = Math.max(64, (m + 63) / 64 * 64);
+		this.bits = new AtomicLongArray((int) (m / 64));
+		this.bitCount = m;
+		this.hashCount = Math.max(1,
+				(int) Math.round((double) m / n * Math.log(2)));
+	}
+
+	public void put(CharSequence id) {
+		put(id, 0, id.length());
+	}
+
+	public void put(CharSequence s, int from, int to) {
+		long hash = hash(s, from, to);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0
+					&& !bits.compareAndSet(word, current, current | mask)) {
+				// retry
+			}
+		}
+	}
+
+	public boolean mightContain(CharSequence id) {
+		return mightContain(id, 0, id.length());
+	}
+
+	/**
+	 * @return false if the characters <code>from</code> (inclusive) to
+	 *         <code>to</code> (exclusive) of <code>s</code> were never put
+	 */
+	public boolean mightContain(CharSequence s, int from, int to) {
+		long hash = hash(s, from, to);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long index(int combined) {
+		return (combined & 0x7fffffffL) % bitCount;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the characters, finished with the MurmurHash3 mix so
+	 * that both halves are usable as hashes.
+	 */
+	static long hash(CharSequence s, int from, int to) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = from; i < to; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * The inventory entry of one archive.
+ */
+public class ArchiveMetadata {
+
+	public final String archiveId;
+	public final String description;
+
+	/**
+	 * The creation date, in milliseconds since the epoch; -1 when unknown.
+	 */
+	public final long creationDate;
+
+	/**
+	 * The size in bytes; -1 when unknown.
+	 */
+	public final long size;
+
+	public final String treeHash;
+
+	/**
+	 * The position of the archive in the inventory.
+	 */
+	public final int position;
+
+	public ArchiveMetadata(String archiveId, String description,
+			long creationDate, long size, String treeHash, int position) {
+		this.archiveId = archiveId;
+		this.description = description;
+		this.creationDate = creationDate;
+		this.size = size;
+		this.treeHash = treeHash;
+		this.position = position;
+	}
+
+	@Override
+	public String toString() {
+		return archiveId + " size=" + size + " creationDate=" + creationDate
+				+ " treeHash=" + treeHash;
+	}
+
+}
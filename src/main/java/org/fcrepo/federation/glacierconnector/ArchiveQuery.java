@@ -0,0 +1,80 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * The criteria of a {@link MetadataIndex} query; every criterion is
+ * optional and the archives must match all of them.
+ */
+public class ArchiveQuery {
+
+	long minSize = 0;
+	long maxSize = Long.MAX_VALUE;
+	long createdFrom = Long.MIN_VALUE;
+	long createdTo = Long.MAX_VALUE;
+	String descriptionPrefix;
+	RetrievalState state;
+	int limit = 1000;
+
+	/**
+	 * @param minSize
+	 *            the minimum size in bytes, inclusive
+	 * @param maxSize
+	 *            the maximum size in bytes, inclusive
+	 */
+	public ArchiveQuery withSize(long minSize, long maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		return this;
+	}
+
+	/**
+	 * @param from
+	 *            the earliest creation date, inclusive, in milliseconds
+	 * @param to
+	 *            the latest creation date, exclusive, in milliseconds
+	 */
+	public ArchiveQuery withCreated(long from, long to) {
+		this.createdFrom = from;
+		this.createdTo = to;
+		return this;
+	}
+
+	public ArchiveQuery withDescriptionPrefix(String descriptionPrefix) {
+		this.descriptionPrefix = descriptionPrefix;
+		return this;
+	}
+
+	public ArchiveQuery withState(RetrievalState state) {
+		this.state = state;
+		return this;
+	}
+
+	/**
+	 * @param limit
+	 *            the maximum number of archives returned
+	 */
+	public ArchiveQuery withLimit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Whether the archive matches the inventory criteria, the retrieval state
+	 * aside.
+	 */
+	boolean matches(ArchiveMetadata archive) {
+		return archive.size >= minSize
+				&& archive.size <= maxSize
+				&& archive.creationDate >= createdFrom
+				&& archive.creationDate < createdTo
+				&& (descriptionPrefix == null || archive.description != null
+						&& archive.description.startsWith(descriptionPrefix));
+	}
+
+	@Override
+	public String toString() {
+		return "size=[" + minSize + "," + maxSize + "] created=[" + createdFrom
+				+ "," + createdTo + ") descriptionPrefix=" + descriptionPrefix
+				+ " state=" + state + " limit=" + limit;
+	}
+
+}
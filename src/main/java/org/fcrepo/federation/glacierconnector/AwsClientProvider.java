@@ -0,0 +1,24 @@
+package org.fcrepo.federation.glacierconnector;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * Creates the AWS clients of the connector. The default provider creates the
+ * real clients; tests install a provider of in-process stand-ins with
+ * {@link GlacierClientFactory#setProvider(AwsClientProvider)}.
+ */
+public interface AwsClientProvider {
+
+	public AmazonGlacierClient newGlacierClient(AWSCredentials credentials,
+			String endpoint);
+
+	public AmazonSQSClient newSQSClient(AWSCredentials credentials,
+			String endpoint);
+
+	public AmazonSNSClient newSNSClient(AWSCredentials credentials,
+			String endpoint);
+
+}
@@ -0,0 +1,256 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * The retrieval of a whole vault, or of one archive, into the local cache.
+ * The archives are planned from the vault inventory, largest first, so that
+ * the longest downloads start early and the download threads stay busy to
+ * the end. They are then requested in batches bounded both by a number of
+ * jobs and by a number of bytes, and their progress is followed until every
+ * archive is either cached or failed.
+ */
+public class BulkRestore {
+
+	public static enum State {
+		PLANNED, RUNNING, COMPLETED
+	}
+
+	private static class Item {
+		final String archiveId;
+		final long size;
+
+		Item(String archiveId, long size) {
+			this.archiveId = archiveId;
+			this.size = size;
+		}
+	}
+
+	private static final Comparator<Item> LARGEST_FIRST = new Comparator<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			return a.size < b.size ? 1 : a.size > b.size ? -1 : 0;
+		}
+	};
+
+	private final String id;
+	private final String vaultName;
+	private final long createdAt = System.currentTimeMillis();
+
+	private final List<Item> plan = new ArrayList<Item>();
+	private long totalBytes;
+	private int next;
+
+	/**
+	 * The archives requested and neither cached nor failed yet.
+	 */
+	private final Set<String> outstanding = new LinkedHashSet<String>();
+	private final List<String> restored = new ArrayList<String>();
+	private long restoredBytes;
+	private int failed;
+
+	private State state = State.PLANNED;
+	private long lastBatchAt;
+	private long completedAt;
+
+	BulkRestore(String id, String vaultName) {
+		this.id = id;
+		this.vaultName = vaultName;
+	}
+
+	/**
+	 * Plan the archives of the inventory; only the ones in
+	 * <code>archiveIds</code> when it is not null.
+	 */
+	synchronized BulkRestore plan(JsonNode archiveList, Set<String> archiveIds) {
+		if (archiveList != null) {
+			for (int i = 0; i < archiveList.size(); i++) {
+				JsonNode archive = archiveList.get(i);
+				String archiveId = archive.get("ArchiveId").getTextValue();
+				if (archiveIds == null || archiveIds.contains(archiveId)) {
+					JsonNode size = archive.get("Size");
+					add(archiveId, size != null ? size.getLongValue() : 0);
+				}
+			}
+		}
+		if (archiveIds != null) {
+			// archives uploaded since the inventory was taken
+			for (String archiveId : archiveIds) {
+				if (!contains(archiveId)) {
+					add(archiveId, 0);
+				}
+			}
+		}
+		Collections.sort(plan, LARGEST_FIRST);
+		return this;
+	}
+
+	private void add(String archiveId, long size) {
+		plan.add(new Item(archiveId, size));
+		totalBytes += size;
+	}
+
+	synchronized boolean contains(String archiveId) {
+		for (Item item : plan) {
+			if (item.archiveId.equals(archiveId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Request the next batch of archives: at most <code>maxJobs</code> of
+	 * them, and at most <code>maxBytes</code> unless the first one is larger.
+	 * 
+	 * @return the number of retrieval jobs initiated
+	 */
+	synchronized int submitBatch(RetrievalRequester requester, int maxJobs,
+			long maxBytes) {
+
+		state = State.RUNNING;
+		lastBatchAt = System.currentTimeMillis();
+
+		int jobs = 0;
+		int planned = 0;
+		long bytes = 0;
+		while (next < plan.size() && planned < maxJobs) {
+			Item item = plan.get(next);
+			if (planned > 0 && bytes + item.size > maxBytes) {
+				break;
+			}
+			next++;
+			planned++;
+			bytes += item.size;
+
+			try {
+				if (requester.request(vaultName, item.archiveId, false)) {
+					jobs++;
+				}
+				// either requested now, already cached or already requested
+				outstanding.add(item.archiveId);
+			} catch (AmazonClientException e) {
+				System.out.println("Bulk restore " + id
+						+ " is unable to request archive " + item.archiveId
+						+ ": " + e.getMessage());
+				failed++;
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Account for the archives cached or failed since the last update.
+	 * 
+	 * @return whether the restore just completed
+	 */
+	synchronized boolean update(RetrievalRequester requester) {
+
+		Iterator<String> iterator = outstanding.iterator();
+		while (iterator.hasNext()) {
+			String archiveId = iterator.next();
+			if (requester.getRegistry().isRegistered(archiveId)) {
+				// still downloading
+				continue;
+			}
+			if (requester.isCached(vaultName, archiveId)) {
+				iterator.remove();
+				restored.add(archiveId);
+				restoredBytes += sizeOf(archiveId);
+			} else if (requester.getRegistry().getPendingJob(archiveId) == null) {
+				// the job failed, expired or its download failed
+				iterator.remove();
+				failed++;
+			}
+		}
+
+		if (state != State.COMPLETED && next >= plan.size()
+				&& outstanding.isEmpty()) {
+			state = State.COMPLETED;
+			completedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	private long sizeOf(String archiveId) {
+		for (Item item : plan) {
+			if (item.archiveId.equals(archiveId)) {
+				return item.size;
+			}
+		}
+		return 0;
+	}
+
+	synchronized boolean hasNextBatch() {
+		return next < plan.size();
+	}
+
+	synchronized long getLastBatchAt() {
+		return lastBatchAt;
+	}
+
+	synchronized boolean isOutstanding(String archiveId) {
+		return outstanding.contains(archiveId);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getVaultName() {
+		return vaultName;
+	}
+
+	synchronized public State getState() {
+		return state;
+	}
+
+	synchronized public int getTotalArchives() {
+		return plan.size();
+	}
+
+	synchronized public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	synchronized public int getRequestedArchives() {
+		return next;
+	}
+
+	synchronized public int getRestoredArchives() {
+		return restored.size();
+	}
+
+	synchronized public long getRestoredBytes() {
+		return restoredBytes;
+	}
+
+	synchronized public int getFailedArchives() {
+		return failed;
+	}
+
+	synchronized public List<String> getRestored() {
+		return new ArrayList<String>(restored);
+	}
+
+	@Override
+	synchronized public String toString() {
+		return id + " vault=" + vaultName + " state=" + state + " archives="
+				+ restored.size() + "/" + plan.size() + " bytes="
+				+ restoredBytes + "/" + totalBytes + " requested=" + next
+				+ " failed=" + failed + " elapsedMillis="
+				+ ((completedAt > 0 ? completedAt : System.currentTimeMillis()) - createdAt);
+	}
+
+}
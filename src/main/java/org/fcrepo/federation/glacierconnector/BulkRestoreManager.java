@@ -0,0 +1,380 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Runs the {@link BulkRestore bulk restores} of one connector. A restore is
+ * started programmatically, through {@link #forSource(String)}, through JMX
+ * or by setting <code>glacier:restore</code> on a vault node. A single thread
+ * requests the batches every <code>batchInterval</code> and follows the
+ * progress of the restores; with an {@link EndpointRouter}, the restores of
+ * the vaults of different endpoints are checked in parallel.
+ * <p>
+ * The "archive is available" notices of the archives of a running restore
+ * are held back; a single notice listing all of them is sent once the
+ * restore completes.
+ * <p>
+ * The manager is exposed as an MXBean named
+ * <code>org.fcrepo.federation.glacierconnector:type=BulkRestore,name=&lt;sourceName&gt;</code>.
+ */
+public class BulkRestoreManager implements BulkRestoreManagerMXBean,
+		CallbackInterface, Runnable {
+
+	private static final int MAX_COMPLETED_RESTORES = 100;
+
+	private static final ConcurrentMap<String, BulkRestoreManager> managers = new ConcurrentHashMap<String, BulkRestoreManager>();
+
+	private static final AtomicLong restoreCount = new AtomicLong();
+
+	/**
+	 * The restores by id, in the order they were started.
+	 */
+	private final Map<String, BulkRestore> restores = new LinkedHashMap<String, BulkRestore>();
+
+	private final Object wakeup = new Object();
+
+	private final String cacheDirectory;
+
+	private RetrievalRequester requester;
+	private EndpointRouter router;
+	private NotificationDispatcher notifier;
+
+	private int batchJobs = 100;
+	private long batchBytes = 100L * 1024 * 1024 * 1024;
+	private long batchInterval = 60 * 60 * 1000;
+	private long checkInterval = 60 * 1000;
+
+	private String sourceName;
+	private ObjectName objectName;
+	private Thread restoreThread;
+
+	public BulkRestoreManager(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * @return the manager of the given connector source, or null when the
+	 *         source is not started
+	 */
+	public static BulkRestoreManager forSource(String sourceName) {
+		return managers.get(sourceName);
+	}
+
+	public BulkRestoreManager withRequester(RetrievalRequester requester) {
+		this.requester = requester;
+		return this;
+	}
+
+	public BulkRestoreManager withRouter(EndpointRouter router) {
+		this.router = router;
+		return this;
+	}
+
+	/**
+	 * @param notifier
+	 *            sends the notices of the archives that are not part of a
+	 *            running restore, and the completion notice of the restores
+	 */
+	public BulkRestoreManager withNotifier(NotificationDispatcher notifier) {
+		this.notifier = notifier;
+		return this;
+	}
+
+	/**
+	 * @param jobs
+	 *            the maximum number of retrieval jobs of a batch
+	 * @param bytes
+	 *            the maximum number of bytes of a batch
+	 * @param intervalMillis
+	 *            the delay between two batches of one restore
+	 */
+	public BulkRestoreManager withBatch(int jobs, long bytes,
+			long intervalMillis) {
+		this.batchJobs = Math.max(1, jobs);
+		this.batchBytes = bytes;
+		this.batchInterval = intervalMillis;
+		return this;
+	}
+
+	/**
+	 * @param checkMillis
+	 *            how often the progress of the restores is checked
+	 */
+	public BulkRestoreManager withCheckInterval(long checkMillis) {
+		this.checkInterval = Math.max(1, checkMillis);
+		return this;
+	}
+
+	synchronized public void start(String sourceName) {
+		if (restoreThread != null) {
+			return;
+		}
+		this.sourceName = sourceName;
+		managers.put(sourceName, this);
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"org.fcrepo.federation.glacierconnector:type=BulkRestore,name="
+							+ ObjectName.quote(sourceName));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (JMException e) {
+			// the restores can still be started programmatically
+			e.printStackTrace();
+		}
+
+		restoreThread = new Thread(this, "GlacierBulkRestore");
+		restoreThread.setDaemon(true);
+		restoreThread.start();
+	}
+
+	synchronized public void shutdown() {
+		if (restoreThread != null) {
+			restoreThread.interrupt();
+			restoreThread = null;
+		}
+		if (sourceName != null) {
+			managers.remove(sourceName, this);
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Plan the restore of a vault or of an archive; its first batch is
+	 * requested right away.
+	 * 
+	 * @param path
+	 *            <code>vault</code>, <code>/vault</code>,
+	 *            <code>/vault/archiveId</code> or the path of its
+	 *            <code>jcr:content</code>
+	 */
+	public BulkRestore restore(String path) throws IOException {
+
+		String[] segments = path.replaceFirst("^/+", "").split("/");
+		if (segments[0].equals("")) {
+			throw new IllegalArgumentException(
+					"A bulk restore needs a vault or an archive: " + path);
+		}
+		String vaultName = segments[0];
+
+		BulkRestore restore = new BulkRestore(vaultName + '-'
+				+ restoreCount.incrementAndGet(), vaultName).plan(
+				new GlacierVaultArchive(cacheDirectory).VaultArchiveList('/'
+						+ vaultName),
+				segments.length > 1 ? Collections.singleton(segments[1]) : null);
+
+		synchronized (restores) {
+			restores.put(restore.getId(), restore);
+		}
+
+		System.out.println("Bulk restore " + restore.getId() + " of "
+				+ restore.getTotalArchives() + " archives, "
+				+ restore.getTotalBytes() + " bytes, is planned.");
+
+		// request its first batch without waiting for the next check
+		synchronized (wakeup) {
+			wakeup.notifyAll();
+		}
+		return restore;
+	}
+
+	public BulkRestore getRestore(String restoreId) {
+		synchronized (restores) {
+			return restores.get(restoreId);
+		}
+	}
+
+	/**
+	 * @return the latest restore of the vault, or null
+	 */
+	public BulkRestore getLatestRestore(String vaultName) {
+		BulkRestore latest = null;
+		synchronized (restores) {
+			for (BulkRestore restore : restores.values()) {
+				if (restore.getVaultName().equals(vaultName)) {
+					latest = restore;
+				}
+			}
+		}
+		return latest;
+	}
+
+	@Override
+	public String startRestore(String path) throws IOException {
+		return restore(path).getId();
+	}
+
+	@Override
+	public List<String> getRestores() {
+		List<String> descriptions = new ArrayList<String>();
+		for (BulkRestore restore : restoreList()) {
+			descriptions.add(restore.toString());
+		}
+		return descriptions;
+	}
+
+	private List<BulkRestore> restoreList() {
+		synchronized (restores) {
+			return new ArrayList<BulkRestore>(restores.values());
+		}
+	}
+
+	/**
+	 * Forward the notice unless the archive belongs to a running restore.
+	 */
+	@Override
+	public void CallBack(String archiveId) {
+		for (BulkRestore restore : restoreList()) {
+			if (restore.isOutstanding(archiveId)) {
+				return;
+			}
+		}
+		if (notifier != null) {
+			notifier.CallBack(archiveId);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				check();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			try {
+				synchronized (wakeup) {
+					wakeup.wait(checkInterval);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		System.out.println("BulkRestoreManager exit.");
+	}
+
+	void check() {
+
+		final long now = System.currentTimeMillis();
+
+		// the restores by endpoint, in the order they were started
+		Map<Object, List<BulkRestore>> running = new LinkedHashMap<Object, List<BulkRestore>>();
+		for (BulkRestore restore : restoreList()) {
+			if (restore.getState() == BulkRestore.State.COMPLETED) {
+				continue;
+			}
+			Object endpoint = router != null ? router.route(restore
+					.getVaultName()) : null;
+			List<BulkRestore> restores = running.get(endpoint);
+			if (restores == null) {
+				restores = new ArrayList<BulkRestore>();
+				running.put(endpoint, restores);
+			}
+			restores.add(restore);
+		}
+
+		if (running.size() > 1) {
+			List<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+			for (final List<BulkRestore> restores : running.values()) {
+				checks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (BulkRestore restore : restores) {
+							check(restore, now);
+						}
+						return null;
+					}
+				});
+			}
+			router.fanOut(checks);
+		} else {
+			for (List<BulkRestore> restores : running.values()) {
+				for (BulkRestore restore : restores) {
+					check(restore, now);
+				}
+			}
+		}
+
+		expire();
+	}
+
+	private void check(BulkRestore restore, long now) {
+
+		if (restore.hasNextBatch()
+				&& (restore.getState() == BulkRestore.State.PLANNED || now
+						- restore.getLastBatchAt() >= batchInterval)) {
+			try {
+				int jobs = restore.submitBatch(requester, batchJobs,
+						batchBytes);
+				System.out.println("Bulk restore " + restore.getId()
+						+ " initiated " + jobs + " retrieval jobs.");
+			} catch (AmazonClientException e) {
+				System.out.println("Bulk restore " + restore.getId()
+						+ " is unable to request a batch: "
+						+ e.getMessage());
+			}
+		}
+
+		if (restore.update(requester)) {
+			completed(restore);
+		}
+	}
+
+	private void completed(BulkRestore restore) {
+
+		System.out.println("Bulk restore is completed: " + restore);
+
+		List<String> restored = restore.getRestored();
+		if (notifier != null && !restored.isEmpty()) {
+			notifier.report(restored);
+		}
+	}
+
+	private void expire() {
+		synchronized (restores) {
+			int completed = 0;
+			for (BulkRestore restore : restores.values()) {
+				if (restore.getState() == BulkRestore.State.COMPLETED) {
+					completed++;
+				}
+			}
+			Iterator<BulkRestore> iterator = restores.values().iterator();
+			while (completed > MAX_COMPLETED_RESTORES && iterator.hasNext()) {
+				if (iterator.next().getState() == BulkRestore.State.COMPLETED) {
+					iterator.remove();
+					completed--;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * JMX view of the {@link BulkRestoreManager} of one connector.
+ */
+public interface BulkRestoreManagerMXBean {
+
+	/**
+	 * Start the restore of a vault or of an archive.
+	 * 
+	 * @param path
+	 *            <code>vault</code>, <code>/vault</code> or
+	 *            <code>/vault/archiveId</code>
+	 * @return the restore id
+	 */
+	public String startRestore(String path) throws IOException;
+
+	/**
+	 * @return the progress of the running and the recently completed
+	 *         restores
+	 */
+	public List<String> getRestores();
+
+}
@@ -0,0 +1,104 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory list of the archives held in the local cache directory, so that
+ * the cache state of an archive can be reported without touching the file
+ * system. It is built by {@link #scan()} and kept up to date as archives are
+ * downloaded and deleted.
+ */
+public class CacheCatalog {
+
+	private final String cacheDirectory;
+
+	/**
+	 * The size in bytes of every cached archive.
+	 */
+	private final ConcurrentMap<String, Long> entries = new ConcurrentHashMap<String, Long>();
+
+	private final AtomicLong bytesUsed = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CacheCatalog(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Rebuild the catalog from the cache directory, where every archive is
+	 * stored as <code>vaultName/archiveId</code> next to the vault inventory
+	 * <code>vaultName/vaultName</code>.
+	 */
+	public void scan() {
+
+		entries.clear();
+		bytesUsed.set(0);
+
+		File[] vaults = new File(cacheDirectory).listFiles();
+		if (vaults == null) {
+			return;
+		}
+
+		for (File vault : vaults) {
+			if (vault.isFile() && StagedUpload.isStagingFile(vault)) {
+				// no upload runs before the scan
+				vault.delete();
+				continue;
+			}
+			File[] archives = vault.listFiles();
+			if (!vault.isDirectory() || archives == null) {
+				continue;
+			}
+			for (File archive : archives) {
+				if (StagedDownload.isLeftOver(archive)) {
+					archive.delete();
+					continue;
+				}
+				if (archive.isFile() && !archive.getName().startsWith(".")
+						&& !archive.getName().equals(vault.getName())) {
+					added(vault.getName(), archive.getName(), archive.length());
+				}
+			}
+		}
+
+		System.out.println("Cache catalog holds " + entries.size()
+				+ " archives.");
+	}
+
+	public boolean isCached(String vaultName, String archiveId) {
+		return entries.containsKey(key(vaultName, archiveId));
+	}
+
+	public void added(String vaultName, String archiveId, long size) {
+		Long previous = entries.put(key(vaultName, archiveId), size);
+		bytesUsed.addAndGet(previous == null ? size : size - previous);
+	}
+
+	public void removed(String vaultName, String archiveId) {
+		Long previous = entries.remove(key(vaultName, archiveId));
+		if (previous != null) {
+			bytesUsed.addAndGet(-previous);
+			evictions.incrementAndGet();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getBytesUsed() {
+		return bytesUsed.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private static String key(String vaultName, String archiveId) {
+		return vaultName + '/' + archiveId;
+	}
+
+}
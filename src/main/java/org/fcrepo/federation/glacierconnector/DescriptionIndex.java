@@ -0,0 +1,474 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Secondary index of the archives of each vault by name, so that an archive
+ * is resolved and listed by the name it was uploaded under instead of its
+ * opaque id. The name is the archive description, which the connector sets
+ * to the JCR id of the uploaded node, without its vault prefix and
+ * <code>jcr:content</code> suffix. When several archives have the same name
+ * the latest one wins.
+ * <p>
+ * The index is built from the {@link InventoryIndex} and rebuilt when the
+ * inventory is refreshed. The archives uploaded and deleted since the
+ * inventory was taken are recorded in an append-only log in the vault
+ * directory, <code>U&lt;TAB&gt;name&lt;TAB&gt;archiveId</code> or
+ * <code>D&lt;TAB&gt;archiveId</code>, replayed on top of the inventory.
+ * An archive shared by several names, when an upload was deduplicated, loses
+ * one of them with <code>N&lt;TAB&gt;name&lt;TAB&gt;archiveId</code>. When
+ * the index is rebuilt the log is compacted to the differences between the
+ * inventory and the index.
+ * <p>
+ * The names of a vault are listed from a sorted copy taken on the first
+ * listing after a change, so that a deep page is found by binary search.
+ */
+public class DescriptionIndex {
+
+	public static final String LOG_FILE_NAME = ".glacier-descriptions.log";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String UPLOAD = "U";
+	private static final String DELETE = "D";
+	private static final String UNLINK = "N";
+	private static final char SEPARATOR = '\t';
+	private static final String JCR_CONTENT_SUFFIX = "/jcr:content";
+
+	private static class SortedNames {
+		final long version;
+		final String[] names;
+
+		SortedNames(long version, String[] names) {
+			this.version = version;
+			this.names = names;
+		}
+	}
+
+	private static class VaultNames {
+		final long inventoryVersion;
+
+		/**
+		 * Changed whenever a name may resolve to another archive.
+		 */
+		volatile long version;
+
+		private volatile SortedNames sorted;
+
+		/**
+		 * The archive id by name, sorted by name.
+		 */
+		final ConcurrentNavigableMap<String, String> byName = new ConcurrentSkipListMap<String, String>();
+
+		/**
+		 * The names by archive id, several when an upload was deduplicated.
+		 */
+		final ConcurrentMap<String, Set<String>> byArchive = new ConcurrentHashMap<String, Set<String>>();
+
+		VaultNames(long inventoryVersion) {
+			this.inventoryVersion = inventoryVersion;
+		}
+
+		/**
+		 * @return the names in order, as of the current version
+		 */
+		String[] sorted() {
+			long current = version;
+			SortedNames names = sorted;
+			if (names == null || names.version != current) {
+				names = new SortedNames(current, byName.keySet().toArray(
+						new String[0]));
+				sorted = names;
+			}
+			return names.names;
+		}
+
+		void put(String name, String archiveId) {
+			String previous = byName.put(name, archiveId);
+			if (previous != null && !previous.equals(archiveId)) {
+				unlink(name, previous);
+			}
+			Set<String> names = byArchive.get(archiveId);
+			if (names == null) {
+				Set<String> created = Collections
+						.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				names = byArchive.putIfAbsent(archiveId, created);
+				if (names == null) {
+					names = created;
+				}
+			}
+			names.add(name);
+		}
+
+		void remove(String name, String archiveId) {
+			if (byName.remove(name, archiveId)) {
+				unlink(name, archiveId);
+			}
+		}
+
+		void remove(String archiveId) {
+			Set<String> names = byArchive.remove(archiveId);
+			if (names != null) {
+				for (String name : names) {
+					byName.remove(name, archiveId);
+				}
+			}
+		}
+
+		/**
+		 * @return the first name of the archive, or <code>null</code>
+		 */
+		String nameOf(String archiveId) {
+			Set<String> names = byArchive.get(archiveId);
+			if (names != null) {
+				for (String name : names) {
+					return name;
+				}
+			}
+			return null;
+		}
+
+		private void unlink(String name, String archiveId) {
+			Set<String> names = byArchive.get(archiveId);
+			if (names != null) {
+				names.remove(name);
+				if (names.isEmpty()) {
+					byArchive.remove(archiveId, names);
+				}
+			}
+		}
+	}
+
+	private final String cacheDirectory;
+	private final InventoryIndex inventoryIndex;
+
+	private final ConcurrentMap<String, VaultNames> vaults = new ConcurrentHashMap<String, VaultNames>();
+
+	private final AtomicLong versions = new AtomicLong();
+
+	public DescriptionIndex(String cacheDirectory,
+			InventoryIndex inventoryIndex) {
+		this.cacheDirectory = cacheDirectory;
+		this.inventoryIndex = inventoryIndex;
+	}
+
+	/**
+	 * @return the id of the latest archive of the vault with the given name,
+	 *         or null
+	 */
+	public String resolve(String vaultName, String name) {
+		return names(vaultName).byName.get(name);
+	}
+
+	/**
+	 * @return the name of the archive, or null when it has none
+	 */
+	public String nameOf(String vaultName, String archiveId) {
+		return names(vaultName).nameOf(archiveId);
+	}
+
+	/**
+	 * @return up to <code>count</code> names of the vault starting with the
+	 *         prefix, in name order, skipping the first <code>offset</code>
+	 */
+	public List<String> list(String vaultName, String prefix, int offset,
+			int count) {
+
+		List<String> names = new ArrayList<String>(Math.max(0,
+				Math.min(count, 1024)));
+		String[] sorted = names(vaultName).sorted();
+		int first = Arrays.binarySearch(sorted, prefix);
+		if (first < 0) {
+			first = -first - 1;
+		}
+		for (long i = first + (long) Math.max(0, offset); i < sorted.length
+				&& names.size() < count; i++) {
+			String name = sorted[(int) i];
+			if (!name.startsWith(prefix)) {
+				break;
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the ids of the named archives of the vault, including the ones
+	 *         uploaded since the inventory
+	 */
+	public Set<String> archiveIds(String vaultName) {
+		return Collections.unmodifiableSet(names(vaultName).byArchive
+				.keySet());
+	}
+
+	public int count(String vaultName) {
+		return names(vaultName).byName.size();
+	}
+
+	/**
+	 * @return a number that changes whenever a name of the vault may resolve
+	 *         to another archive
+	 */
+	public long getVersion(String vaultName) {
+		return names(vaultName).version;
+	}
+
+	/**
+	 * Record an archive uploaded since the last inventory.
+	 * 
+	 * @param description
+	 *            the description the archive was uploaded with
+	 */
+	synchronized public void uploaded(String vaultName, String description,
+			String archiveId) throws IOException {
+		String name = nameFromDescription(vaultName, description);
+		if (name == null || archiveId == null) {
+			return;
+		}
+		append(vaultName, UPLOAD + SEPARATOR + name + SEPARATOR + archiveId);
+		VaultNames names = names(vaultName);
+		names.put(name, archiveId);
+		names.version = versions.incrementAndGet();
+	}
+
+	/**
+	 * Record an archive deleted since the last inventory.
+	 */
+	synchronized public void deleted(String vaultName, String archiveId)
+			throws IOException {
+		append(vaultName, DELETE + SEPARATOR + archiveId);
+		VaultNames names = names(vaultName);
+		names.remove(archiveId);
+		names.version = versions.incrementAndGet();
+	}
+
+	/**
+	 * Record a name removed from an archive still linked to by other names.
+	 */
+	synchronized public void unlinked(String vaultName, String name,
+			String archiveId) throws IOException {
+		append(vaultName, UNLINK + SEPARATOR + name + SEPARATOR + archiveId);
+		VaultNames names = names(vaultName);
+		names.remove(name, archiveId);
+		names.version = versions.incrementAndGet();
+	}
+
+	private VaultNames names(String vaultName) {
+		long inventoryVersion = inventoryIndex.getVersion(vaultName);
+		VaultNames names = vaults.get(vaultName);
+		if (names == null || names.inventoryVersion != inventoryVersion) {
+			names = build(vaultName, inventoryVersion);
+		}
+		return names;
+	}
+
+	synchronized private VaultNames build(String vaultName,
+			long inventoryVersion) {
+
+		// another thread may have built it meanwhile
+		VaultNames names = vaults.get(vaultName);
+		if (names != null && names.inventoryVersion == inventoryVersion) {
+			return names;
+		}
+
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		names = fromInventory(vaultName, inventoryVersion, inventory);
+
+		try {
+			if (replay(vaultName, names)) {
+				compact(vaultName, fromInventory(vaultName, inventoryVersion,
+						inventory), names);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to read the description log of vault "
+					+ vaultName + ": " + e.getMessage());
+		}
+
+		names.version = versions.incrementAndGet();
+		vaults.put(vaultName, names);
+		return names;
+	}
+
+	/**
+	 * The names of the inventory, the latest archive of a name winning.
+	 */
+	private static VaultNames fromInventory(String vaultName,
+			long inventoryVersion, InventoryIndex.VaultInventory inventory) {
+
+		VaultNames names = new VaultNames(inventoryVersion);
+		if (inventory == null) {
+			return names;
+		}
+
+		Map<String, Long> createdAt = new HashMap<String, Long>();
+		for (ArchiveMetadata archive : inventory.archives) {
+			String name = nameFromDescription(vaultName, archive.description);
+			if (name == null) {
+				continue;
+			}
+			Long latest = createdAt.get(name);
+			if (latest == null || archive.creationDate >= latest) {
+				names.put(name, archive.archiveId);
+				createdAt.put(name, archive.creationDate);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Apply the log on top of the inventory.
+	 * 
+	 * @return whether there was a log
+	 */
+	private boolean replay(String vaultName, VaultNames names)
+			throws IOException {
+
+		File logFile = logFile(vaultName);
+		if (!logFile.exists()) {
+			return false;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(logFile), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(String.valueOf(SEPARATOR));
+				if (fields.length == 3 && UPLOAD.equals(fields[0])) {
+					names.put(fields[1], fields[2]);
+				} else if (fields.length == 3 && UNLINK.equals(fields[0])) {
+					names.remove(fields[1], fields[2]);
+				} else if (fields.length == 2 && DELETE.equals(fields[0])) {
+					names.remove(fields[1]);
+				} else {
+					System.out.println("Skipping a corrupt description record: "
+							+ line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrite the log with only the differences between the names of the
+	 * inventory and the current ones, so that replaying it on the same
+	 * inventory gives the current names again.
+	 */
+	private void compact(String vaultName, VaultNames inventoryNames,
+			VaultNames names) throws IOException {
+
+		File logFile = logFile(vaultName);
+		File compacted = new File(logFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(compacted),
+				UTF8);
+		try {
+			for (Map.Entry<String, String> entry : names.byName.entrySet()) {
+				if (!entry.getValue().equals(
+						inventoryNames.byName.get(entry.getKey()))) {
+					writer.write(UPLOAD + SEPARATOR + entry.getKey()
+							+ SEPARATOR + entry.getValue() + '\n');
+				}
+			}
+			for (Map.Entry<String, String> entry : inventoryNames.byName
+					.entrySet()) {
+				if (!names.byName.containsKey(entry.getKey())) {
+					writer.write(UNLINK + SEPARATOR + entry.getKey()
+							+ SEPARATOR + entry.getValue() + '\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(compacted.toPath(), logFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void append(String vaultName, String record) throws IOException {
+		File logFile = logFile(vaultName);
+		logFile.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(logFile,
+				true), UTF8);
+		try {
+			writer.write(record);
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+	}
+
+	private File logFile(String vaultName) {
+		return new File(cacheDirectory + '/' + vaultName, LOG_FILE_NAME);
+	}
+
+	/**
+	 * The name of an archive uploaded with the given description:
+	 * <code>/vault/dir/report.pdf/jcr:content</code> is named
+	 * <code>dir/report.pdf</code>. Other descriptions are the name as is.
+	 */
+	static String nameFromDescription(String vaultName, String description) {
+		if (description == null || description.equals("")) {
+			return null;
+		}
+		String name = description;
+		String vaultPrefix = '/' + vaultName + '/';
+		if (name.startsWith(vaultPrefix)) {
+			name = name.substring(vaultPrefix.length());
+		}
+		if (name.endsWith(JCR_CONTENT_SUFFIX)) {
+			name = name.substring(0, name.length()
+					- JCR_CONTENT_SUFFIX.length());
+		}
+		if (name.indexOf(SEPARATOR) >= 0 || name.indexOf('\n') >= 0) {
+			name = name.replace(SEPARATOR, ' ').replace('\n', ' ');
+		}
+		return name.equals("") ? description : name;
+	}
+
+	/**
+	 * Encode a name into a single JCR node name segment.
+	 */
+	static String encodeName(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String decodeName(String segment) {
+		try {
+			return URLDecoder.decode(segment, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return segment;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prefetch the archives whose <code>ArchiveDescription</code> has the same
+ * prefix as the one read, the prefix ending at the last delimiter; e.g. every
+ * <code>run-42/...</code> archive when <code>run-42/scan-001.tif</code> is
+ * read. Archives without the delimiter have no related archives.
+ */
+public class DescriptionPrefetchPolicy implements PrefetchPolicy {
+
+	private String delimiter = "/";
+	private int maxCount = 20;
+
+	public DescriptionPrefetchPolicy withDelimiter(String delimiter) {
+		this.delimiter = delimiter;
+		return this;
+	}
+
+	public DescriptionPrefetchPolicy withMaxCount(int maxCount) {
+		this.maxCount = maxCount;
+		return this;
+	}
+
+	@Override
+	public List<String> related(List<ArchiveMetadata> archives, int index) {
+
+		List<String> related = new ArrayList<String>();
+
+		String prefix = prefix(archives.get(index));
+		if (prefix == null) {
+			return related;
+		}
+
+		for (int i = 0; i < archives.size() && related.size() < maxCount; i++) {
+			if (i == index) {
+				continue;
+			}
+			ArchiveMetadata archive = archives.get(i);
+			if (prefix.equals(prefix(archive))) {
+				related.add(archive.archiveId);
+			}
+		}
+		return related;
+	}
+
+	private String prefix(ArchiveMetadata archive) {
+		String text = archive.description;
+		int end = text == null ? -1 : text.lastIndexOf(delimiter);
+		return end > 0 ? text.substring(0, end) : null;
+	}
+
+}
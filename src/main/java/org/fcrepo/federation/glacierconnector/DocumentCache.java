@@ -0,0 +1,119 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.Iterator;
+
+import org.infinispan.schematic.document.Document;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Size-bounded cache of the documents built by the connector, and of the
+ * parsed node ids, so that navigating the same folders again neither parses
+ * the inventory nor rebuilds the documents.
+ * <p>
+ * Each document is cached with the state it was built from: the inventory
+ * date of a vault, or the retrieval state of an archive. A document whose
+ * state changed since is rebuilt, so retrievals, downloads and inventory
+ * refreshes never serve a stale document. Writes and deletes invalidate the
+ * documents they touch explicitly.
+ */
+public class DocumentCache {
+
+	private static final String JCR_CONTENT_SUFFIX = "/jcr:content";
+
+	private static class Entry {
+		final String state;
+		final Document document;
+
+		Entry(String state, Document document) {
+			this.state = state;
+			this.document = document;
+		}
+	}
+
+	private final Cache<String, Entry> documents;
+	private final Cache<String, NodeId> nodeIds;
+
+	/**
+	 * @param maxDocuments
+	 *            the maximum number of documents cached, 0 disables the cache
+	 * @param maxNodeIds
+	 *            the maximum number of parsed node ids cached
+	 */
+	public DocumentCache(long maxDocuments, long maxNodeIds) {
+		this.documents = CacheBuilder.newBuilder().maximumSize(maxDocuments)
+				.build();
+		this.nodeIds = CacheBuilder.newBuilder().maximumSize(maxNodeIds)
+				.build();
+	}
+
+	NodeId nodeId(String id) {
+		NodeId nodeId = nodeIds.getIfPresent(id);
+		if (nodeId == null) {
+			nodeId = NodeId.parse(id);
+			nodeIds.put(id, nodeId);
+		}
+		return nodeId;
+	}
+
+	/**
+	 * @return the document cached for the id if it was built from the given
+	 *         state, otherwise null
+	 */
+	public Document get(String id, String state) {
+		Entry entry = documents.getIfPresent(id);
+		if (entry == null) {
+			return null;
+		}
+		if (!entry.state.equals(state)) {
+			documents.invalidate(id);
+			return null;
+		}
+		return entry.document;
+	}
+
+	public void put(String id, String state, Document document) {
+		documents.put(id, new Entry(state, document));
+	}
+
+	/**
+	 * Drop the documents of a node, of its content node and of its parent.
+	 */
+	public void invalidate(String id) {
+		NodeId nodeId = nodeId(id);
+		documents.invalidate(id);
+		if (nodeId.content) {
+			documents.invalidate(id.substring(0, id.length()
+					- JCR_CONTENT_SUFFIX.length()));
+		} else {
+			documents.invalidate(id + JCR_CONTENT_SUFFIX);
+		}
+		if (nodeId.parentId != null) {
+			documents.invalidate(nodeId.parentId);
+		}
+	}
+
+	/**
+	 * Drop the documents of a vault and of all its archives.
+	 */
+	public void invalidateVault(String vaultName) {
+		String vaultId = '/' + vaultName;
+		Iterator<String> iterator = documents.asMap().keySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().startsWith(vaultId + '/')) {
+				iterator.remove();
+			}
+		}
+		documents.invalidate(vaultId);
+	}
+
+	public void invalidateAll() {
+		documents.invalidateAll();
+	}
+
+	public long size() {
+		return documents.size();
+	}
+
+}
@@ -1,8 +1,9 @@
 package org.fcrepo.federation.glacierconnector;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -15,28 +16,49 @@ import org.modeshape.common.util.IoUtil;
  *
  */
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.TreeHashGenerator;
 import com.amazonaws.services.glacier.model.GetJobOutputRequest;
 import com.amazonaws.services.glacier.model.GetJobOutputResult;
 
 public class DownloadArchiveThread extends Thread {
 
+	private static final AtomicLong sequences = new AtomicLong();
+
+	/**
+	 * The creation order, downloads of the same priority run in that order.
+	 */
+	private final long sequence = sequences.getAndIncrement();
+
+	private volatile boolean prefetch;
+
 	private String threadName;
 
 	private CallbackInterface threadManager;
 	private CallbackInterface postProcessor;
+	private CallbackInterface failureProcessor;
 
 	private String jobId;
 	private String archiveId;
 
 	private String vaultName;
 
+	/**
+	 * The SHA256 tree hash Glacier reported for the job output, if any.
+	 */
+	private String treeHash;
+
 	private String cacheDirectory;
 
 	private AmazonGlacierClient client;
 
+	private GlacierMetrics metrics;
+
+	private RetrievalTimeline timeline;
+
 	private DownloadArchiveThread() {
 	}
 
@@ -58,8 +80,22 @@ public class DownloadArchiveThread extends Thread {
 			String secretKey, String region) {
 
 		this.client = GlacierClientFactory.newClient(accessKey, secretKey,
-				"https://glacier." + region + ".amazonaws.com");
+				"https://glacier." + region + ".amazonaws.com", metrics);
+
+		return this;
+	}
 
+	/**
+	 * Set before the client credential, so that the Glacier calls are counted
+	 * too.
+	 */
+	public DownloadArchiveThread withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public DownloadArchiveThread withTimeline(RetrievalTimeline timeline) {
+		this.timeline = timeline;
 		return this;
 	}
 
@@ -73,6 +109,40 @@ public class DownloadArchiveThread extends Thread {
 		return this;
 	}
 
+	/**
+	 * @param prefetch
+	 *            whether the archive is prefetched; the download then waits
+	 *            for the downloads requested by readers
+	 */
+	public DownloadArchiveThread withPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+		return this;
+	}
+
+	public boolean isPrefetch() {
+		return prefetch;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public DownloadArchiveThread withTreeHash(String treeHash) {
+		this.treeHash = treeHash;
+		return this;
+	}
+
+	/**
+	 * @param failureProcessor
+	 *            called instead of the post processor when the archive could
+	 *            not be downloaded or verified
+	 */
+	public DownloadArchiveThread withFailureProcessor(
+			CallbackInterface failureProcessor) {
+		this.failureProcessor = failureProcessor;
+		return this;
+	}
+
 	public DownloadArchiveThread withArchiveId(String archiveId) {
 		this.archiveId = archiveId;
 		return this;
@@ -99,31 +169,112 @@ public class DownloadArchiveThread extends Thread {
 
 	}
 
+	/**
+	 * Write the job output to the staging file; readers follow it while it is
+	 * written.
+	 */
+	private void download(StagedDownload staged) throws IOException {
+
+		InputStream istream = GetDownloadStream();
+		OutputStream ostream = new BufferedOutputStream(staged.newOutput());
+		try {
+			IoUtil.write(istream, ostream);
+		} finally {
+			istream.close();
+			ostream.close();
+		}
+	}
+
+	private void verify(File file) throws IOException {
+
+		if (treeHash == null) {
+			return;
+		}
+
+		InputStream istream = new BufferedInputStream(new FileInputStream(file));
+		try {
+			String actual = TreeHashGenerator.calculateTreeHash(istream);
+			if (!treeHash.equalsIgnoreCase(actual)) {
+				throw new IOException("Tree hash mismatch for archive "
+						+ archiveId + ": expected " + treeHash + " but was "
+						+ actual);
+			}
+		} catch (AmazonClientException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			istream.close();
+		}
+	}
+
+	private void record(RetrievalTimeline.Stage stage) {
+		if (timeline != null) {
+			timeline.record(vaultName, archiveId, stage);
+		}
+	}
+
 	public void run() {
 
+		boolean succeeded = false;
+		long start = System.currentTimeMillis();
+		File file = new File(cacheDirectory + '/' + vaultName + '/', archiveId);
+		StagedDownload staged = StagedDownload.start(cacheDirectory, vaultName,
+				archiveId);
+
+		if (metrics != null) {
+			metrics.downloadStarted();
+		}
+		record(RetrievalTimeline.Stage.DOWNLOAD_STARTED);
+
 		try {
 
 			System.out.println("enter thread  " + this.getName());
 
 			try {
 
-				File file = new File(cacheDirectory + '/' + vaultName + '/',
-						archiveId);
-				OutputStream ostream = new BufferedOutputStream(
-						new FileOutputStream(file));
-				IoUtil.write(GetDownloadStream(), ostream);
+				download(staged);
+				record(RetrievalTimeline.Stage.DOWNLOAD_FINISHED);
+				verify(staged.getStagingFile());
+				staged.publish();
+				record(RetrievalTimeline.Stage.VERIFIED);
+				succeeded = true;
 
 			} catch (IOException e) {
 
 				e.printStackTrace();
+				record(RetrievalTimeline.Stage.DOWNLOAD_FAILED);
+
+				// the archive itself is never truncated, only its staging
+				// file is dropped
+				staged.fail();
 			}
 
 		} finally {
 
 			System.out.println("thread  " + this.getName() + " end...");
 
-			threadManager.CallBack(archiveId);
-			postProcessor.CallBack(archiveId);
+			// an unexpected error must not leave the readers waiting
+			if (!succeeded) {
+				staged.fail();
+			}
+
+			if (metrics != null) {
+				metrics.downloadFinished(succeeded,
+						succeeded ? file.length() : 0,
+						System.currentTimeMillis() - start);
+			}
+
+			// the archive leaves the waiting list before the pool, so that a
+			// duplicate notification or the reconciler never sees a pending
+			// job without its download and starts a second one
+			try {
+				if (succeeded) {
+					postProcessor.CallBack(archiveId);
+				} else if (failureProcessor != null) {
+					failureProcessor.CallBack(archiveId);
+				}
+			} finally {
+				threadManager.CallBack(archiveId);
+			}
 
 			System.out.println("thread  " + this.getName() + " end");
 
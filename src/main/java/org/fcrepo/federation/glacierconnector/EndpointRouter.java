@@ -0,0 +1,254 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
+
+/**
+ * Routes the vaults of the connector to the {@link GlacierEndpoint} with the
+ * longest matching vault prefix, and runs the work spanning several endpoints
+ * in parallel, one thread per endpoint, so a slow region does not hold up the
+ * others.
+ */
+public class EndpointRouter {
+
+	private static final Comparator<GlacierEndpoint> LONGEST_PREFIX_FIRST = new Comparator<GlacierEndpoint>() {
+		@Override
+		public int compare(GlacierEndpoint e1, GlacierEndpoint e2) {
+			return e2.vaultPrefix.length() - e1.vaultPrefix.length();
+		}
+	};
+
+	/**
+	 * The result of a task run by {@link EndpointRouter#fanOutEach(List)}:
+	 * either its value or its failure.
+	 */
+	public static class Outcome<T> {
+		public final T value;
+		public final RuntimeException failure;
+
+		Outcome(T value, RuntimeException failure) {
+			this.value = value;
+			this.failure = failure;
+		}
+	}
+
+	private final List<GlacierEndpoint> endpoints;
+
+	/**
+	 * The last vaults listed by each endpoint, listed again when the endpoint
+	 * fails.
+	 */
+	private final Map<GlacierEndpoint, List<DescribeVaultOutput>> listedVaults = new ConcurrentHashMap<GlacierEndpoint, List<DescribeVaultOutput>>();
+
+	private ExecutorService executor;
+
+	public EndpointRouter(List<GlacierEndpoint> endpoints) {
+		List<GlacierEndpoint> sorted = new ArrayList<GlacierEndpoint>(
+				endpoints);
+		Collections.sort(sorted, LONGEST_PREFIX_FIRST);
+		this.endpoints = Collections.unmodifiableList(sorted);
+	}
+
+	/**
+	 * @return the endpoint of the vault, null when no endpoint serves it
+	 */
+	public GlacierEndpoint route(String vaultName) {
+		for (GlacierEndpoint endpoint : endpoints) {
+			if (endpoint.serves(vaultName)) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             when no endpoint serves the vault
+	 */
+	public GlacierEndpoint endpointOf(String vaultName) {
+		GlacierEndpoint endpoint = route(vaultName);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("No endpoint serves vault "
+					+ vaultName);
+		}
+		return endpoint;
+	}
+
+	public List<GlacierEndpoint> endpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * List the vaults of every endpoint, in parallel. A vault is only listed
+	 * by the endpoint it is routed to, so that a vault of the same name in
+	 * another account does not shadow it. An endpoint that fails is logged
+	 * and stands for the vaults it listed last, so that one unreachable
+	 * region does not hide the vaults of the others.
+	 *
+	 * @throws AmazonClientException
+	 *             when every endpoint failed
+	 */
+	public List<DescribeVaultOutput> listVaults(final int limit) {
+
+		List<Callable<List<DescribeVaultOutput>>> listings = new ArrayList<Callable<List<DescribeVaultOutput>>>();
+		for (final GlacierEndpoint endpoint : endpoints) {
+			listings.add(new Callable<List<DescribeVaultOutput>>() {
+				@Override
+				public List<DescribeVaultOutput> call() {
+					List<DescribeVaultOutput> routed = new ArrayList<DescribeVaultOutput>();
+					for (DescribeVaultOutput vault : GlacierUtil.listVaults(
+							endpoint.client(), limit)) {
+						if (route(vault.getVaultName()) == endpoint) {
+							routed.add(vault);
+						}
+					}
+					return routed;
+				}
+			});
+		}
+
+		List<DescribeVaultOutput> vaults = new ArrayList<DescribeVaultOutput>();
+		List<Outcome<List<DescribeVaultOutput>>> outcomes = fanOutEach(listings);
+		RuntimeException failure = null;
+		int failed = 0;
+		for (int i = 0; i < outcomes.size(); i++) {
+			GlacierEndpoint endpoint = endpoints.get(i);
+			Outcome<List<DescribeVaultOutput>> outcome = outcomes.get(i);
+			if (outcome.failure == null) {
+				listedVaults.put(endpoint, outcome.value);
+				vaults.addAll(outcome.value);
+				continue;
+			}
+			failed++;
+			if (failure == null) {
+				failure = outcome.failure;
+			}
+			List<DescribeVaultOutput> last = listedVaults.get(endpoint);
+			System.out.println("Unable to list the vaults of endpoint "
+					+ endpoint + ", "
+					+ (last != null ? "keeping its last " + last.size()
+							: "skipping its") + " vaults: "
+					+ outcome.failure.getMessage());
+			if (last != null) {
+				vaults.addAll(last);
+			}
+		}
+		if (failed > 0 && failed == outcomes.size()) {
+			throw failure;
+		}
+		return vaults;
+	}
+
+	/**
+	 * Run the tasks in parallel and wait for all of them. A single task runs
+	 * on the calling thread.
+	 *
+	 * @return the results, in the order of the tasks
+	 * @throws AmazonClientException
+	 *             when a task failed, after all the tasks are over
+	 */
+	public <T> List<T> fanOut(List<? extends Callable<T>> tasks) {
+
+		List<T> results = new ArrayList<T>(tasks.size());
+		for (Outcome<T> outcome : fanOutEach(tasks)) {
+			if (outcome.failure != null) {
+				throw outcome.failure;
+			}
+			results.add(outcome.value);
+		}
+		return results;
+	}
+
+	/**
+	 * Run the tasks in parallel and wait for all of them, without failing
+	 * when some of them fail. A single task runs on the calling thread.
+	 *
+	 * @return the outcome of each task, in the order of the tasks
+	 * @throws AmazonClientException
+	 *             when interrupted
+	 */
+	public <T> List<Outcome<T>> fanOutEach(List<? extends Callable<T>> tasks) {
+
+		List<Outcome<T>> outcomes = new ArrayList<Outcome<T>>(tasks.size());
+
+		if (tasks.size() == 1) {
+			try {
+				outcomes.add(new Outcome<T>(tasks.get(0).call(), null));
+			} catch (Exception e) {
+				outcomes.add(new Outcome<T>(null, failure(e)));
+			}
+			return outcomes;
+		}
+
+		try {
+			for (Future<T> future : executor().invokeAll(tasks)) {
+				try {
+					outcomes.add(new Outcome<T>(future.get(), null));
+				} catch (ExecutionException e) {
+					outcomes.add(new Outcome<T>(null, failure(e.getCause())));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted", e);
+		}
+
+		return outcomes;
+	}
+
+	private static RuntimeException failure(Throwable cause) {
+		return cause instanceof RuntimeException ? (RuntimeException) cause
+				: new AmazonClientException(cause.getMessage(), cause);
+	}
+
+	synchronized private ExecutorService executor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(
+					Math.max(1, endpoints.size()), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GlacierEndpointWorker-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Start the listeners and reconcilers of all the endpoints.
+	 */
+	public void start() {
+		for (GlacierEndpoint endpoint : endpoints) {
+			endpoint.start();
+		}
+	}
+
+	synchronized public void shutdown() {
+		for (GlacierEndpoint endpoint : endpoints) {
+			endpoint.shutdown();
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+}
@@ -0,0 +1,457 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
+
+/**
+ * Answers whether a node id exists, for
+ * {@link GlacierConnector#hasDocument(String)}. Each vault with an
+ * inventory has an {@link ArchiveIdFilter} of its archives, built with the
+ * {@link InventoryIndex} and holding as well the archives uploaded since
+ * the inventory. An id the filter rejects is answered without allocating;
+ * the few the filter accepts are checked against the exact inventory index.
+ * <p>
+ * A vault exists when it has an inventory in the local cache, when it is
+ * listed by the {@link VaultCatalog}, or when an archive was uploaded to it.
+ * The names of those vaults are kept in a filter as well, rebuilt at most once
+ * per <code>CHECK_INTERVAL</code> or when the catalog changes, so that ids
+ * under unknown vaults are rejected without allocating nor locking, and never
+ * take a slot of the vaults kept. The vaults kept are found by hashing the
+ * vault name within the id.
+ */
+public class ExistenceIndex {
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * The number of vaults kept beyond which the vaults without inventory are
+	 * looked up on every call.
+	 */
+	private static final int MAX_VAULTS = 4096;
+
+	private static final String BY_DESCRIPTION = NodeId.BY_DESCRIPTION;
+	private static final String JCR_CONTENT_SUFFIX = "/jcr:content";
+
+	private static class VaultFilter {
+		final String vaultName;
+
+		/**
+		 * Null for a vault without inventory.
+		 */
+		final InventoryIndex.VaultInventory inventory;
+
+		/**
+		 * Null for a vault that does not exist.
+		 */
+		final ArchiveIdFilter filter;
+		final boolean exists;
+		final long catalogVersion;
+		final long checkedAt;
+
+		VaultFilter(String vaultName, InventoryIndex.VaultInventory inventory,
+				ArchiveIdFilter filter, boolean exists, long catalogVersion) {
+			this.vaultName = vaultName;
+			this.inventory = inventory;
+			this.filter = filter;
+			this.exists = exists;
+			this.catalogVersion = catalogVersion;
+			this.checkedAt = System.currentTimeMillis();
+		}
+	}
+
+	private static class VaultNames {
+		final ArchiveIdFilter filter;
+		final long catalogVersion;
+		final long checkedAt;
+
+		VaultNames(ArchiveIdFilter filter, long catalogVersion) {
+			this.filter = filter;
+			this.catalogVersion = catalogVersion;
+			this.checkedAt = System.currentTimeMillis();
+		}
+	}
+
+	private final InventoryIndex inventoryIndex;
+	private final DescriptionIndex descriptionIndex;
+	private VaultCatalog vaultCatalog;
+
+	/**
+	 * The vaults an archive was uploaded to, which may be neither listed nor
+	 * inventoried yet.
+	 */
+	private final Set<String> uploadedVaults = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile VaultNames names;
+
+	/**
+	 * The archives uploaded since the inventory, and the ones deleted, by
+	 * vault and archive id.
+	 */
+	private final Set<String> added = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> removed = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * The node ids stored through the connector, which are not archive ids.
+	 */
+	private final Set<String> stored = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * An open addressing table of the vaults kept, at most half full, looked
+	 * up without allocating by {@link #exists(String)}; replaced, never
+	 * modified.
+	 */
+	private volatile VaultFilter[] vaults = new VaultFilter[16];
+
+	/**
+	 * The number of vaults in the table, guarded by the monitor.
+	 */
+	private int vaultCount;
+
+	public ExistenceIndex(InventoryIndex inventoryIndex,
+			DescriptionIndex descriptionIndex) {
+		this.inventoryIndex = inventoryIndex;
+		this.descriptionIndex = descriptionIndex;
+	}
+
+	public ExistenceIndex withVaultCatalog(VaultCatalog vaultCatalog) {
+		this.vaultCatalog = vaultCatalog;
+		return this;
+	}
+
+	/**
+	 * @param id
+	 *            a node id other than the root
+	 */
+	public boolean exists(String id) {
+
+		if (!stored.isEmpty() && stored.contains(id)) {
+			return true;
+		}
+
+		int vaultStart = id.startsWith("/") ? 1 : 0;
+		int vaultEnd = id.indexOf('/', vaultStart);
+		if (vaultEnd < 0) {
+			vaultEnd = id.length();
+		}
+		if (vaultEnd == vaultStart) {
+			return false;
+		}
+
+		VaultFilter vault = vault(id, vaultStart, vaultEnd);
+		if (vault == null || !vault.exists) {
+			return false;
+		}
+		if (vaultEnd >= id.length() - 1) {
+			return true;
+		}
+
+		int archiveStart = vaultEnd + 1;
+		int archiveEnd = id.indexOf('/', archiveStart);
+		if (archiveEnd < 0) {
+			archiveEnd = id.length();
+		}
+
+		if (archiveEnd - archiveStart == BY_DESCRIPTION.length()
+				&& id.startsWith(BY_DESCRIPTION, archiveStart)) {
+			// the folder, or an archive by name
+			return archiveEnd == id.length()
+					|| isDescription(vault, id, archiveEnd + 1);
+		}
+
+		if (archiveEnd < id.length()
+				&& !(id.length() - archiveEnd == JCR_CONTENT_SUFFIX.length() && id
+						.startsWith(JCR_CONTENT_SUFFIX, archiveEnd))) {
+			return false;
+		}
+
+		if (!vault.filter.mightContain(id, archiveStart, archiveEnd)) {
+			return false;
+		}
+
+		String archiveId = id.substring(archiveStart, archiveEnd);
+		String key = vault.vaultName + '/' + archiveId;
+		boolean listed = vault.inventory != null
+				&& vault.inventory.get(archiveId) != null;
+		return (listed || added.contains(key)) && !removed.contains(key);
+	}
+
+	private boolean isDescription(VaultFilter vault, String id, int nameStart) {
+		int nameEnd = id.indexOf('/', nameStart);
+		if (nameEnd >= 0 && !id.substring(nameEnd).equals(JCR_CONTENT_SUFFIX)) {
+			return false;
+		}
+		String name = DescriptionIndex.decodeName(id.substring(nameStart,
+				nameEnd < 0 ? id.length() : nameEnd));
+		return descriptionIndex.resolve(vault.vaultName, name) != null;
+	}
+
+	/**
+	 * A node was stored, or removed, through the connector.
+	 */
+	public void stored(String id, boolean exists) {
+		if (exists) {
+			stored.add(id);
+		} else {
+			stored.remove(id);
+		}
+	}
+
+	/**
+	 * An archive was uploaded.
+	 */
+	public void added(String vaultName, String archiveId) {
+		String key = vaultName + '/' + archiveId;
+		removed.remove(key);
+		added.add(key);
+		if (!uploadedVaults.contains(vaultName)) {
+			uploaded(vaultName);
+		}
+		VaultFilter vault = lookup(vaultName, 0, vaultName.length());
+		if (vault != null) {
+			if (!vault.exists) {
+				// the vault now exists
+				build(vaultName, true);
+			} else {
+				vault.filter.put(archiveId);
+			}
+		}
+	}
+
+	/**
+	 * An archive was deleted.
+	 */
+	public void removed(String vaultName, String archiveId) {
+		String key = vaultName + '/' + archiveId;
+		added.remove(key);
+		removed.add(key);
+	}
+
+	/**
+	 * @return the filter of the vault, null when there is no such vault
+	 */
+	private VaultFilter vault(String id, int from, int to) {
+
+		VaultFilter vault = lookup(id, from, to);
+		if (vault != null) {
+			return isCurrent(vault) ? vault : build(vault.vaultName, false);
+		}
+		if (!names().filter.mightContain(id, from, to)) {
+			return null;
+		}
+		return build(id.substring(from, to), false);
+	}
+
+	private VaultFilter lookup(String s, int from, int to) {
+		VaultFilter[] table = vaults;
+		int mask = table.length - 1;
+		int length = to - from;
+		for (int i = hash(s, from, to) & mask;; i = (i + 1) & mask) {
+			VaultFilter vault = table[i];
+			if (vault == null) {
+				return null;
+			}
+			if (vault.vaultName.length() == length
+					&& s.startsWith(vault.vaultName, from)) {
+				return vault;
+			}
+		}
+	}
+
+	/**
+	 * {@link String#hashCode()} of the characters <code>from</code> to
+	 * <code>to</code>, spread over the low bits.
+	 */
+	private static int hash(String s, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private VaultNames names() {
+		VaultNames current = names;
+		if (current != null
+				&& System.currentTimeMillis() - current.checkedAt < CHECK_INTERVAL
+				&& current.catalogVersion == catalogVersion()) {
+			return current;
+		}
+		return refreshNames();
+	}
+
+	/**
+	 * Collect the names of the vaults listed by the catalog, inventoried in
+	 * the local cache or uploaded to.
+	 */
+	synchronized private VaultNames refreshNames() {
+
+		VaultNames current = names;
+		long catalogVersion = catalogVersion();
+		if (current != null
+				&& System.currentTimeMillis() - current.checkedAt < CHECK_INTERVAL
+				&& current.catalogVersion == catalogVersion) {
+			return current;
+		}
+
+		List<String> vaultNames = new ArrayList<String>(
+				inventoryIndex.vaultNames());
+		if (vaultCatalog != null) {
+			for (DescribeVaultOutput vault : vaultCatalog.vaults()) {
+				vaultNames.add(vault.getVaultName());
+			}
+		}
+		vaultNames.addAll(uploadedVaults);
+
+		ArchiveIdFilter filter = new ArchiveIdFilter(vaultNames.size() * 2
+				+ 1024, FALSE_POSITIVE_RATE);
+		for (String vaultName : vaultNames) {
+			filter.put(vaultName);
+		}
+		names = new VaultNames(filter, catalogVersion);
+		return names;
+	}
+
+	synchronized private void uploaded(String vaultName) {
+		uploadedVaults.add(vaultName);
+		if (names != null) {
+			names.filter.put(vaultName);
+		}
+	}
+
+	/**
+	 * Whether the filter is still valid: the inventory was not refreshed, or
+	 * for a vault without inventory, none arrived and the catalog did not
+	 * change since it was checked.
+	 */
+	private boolean isCurrent(VaultFilter vault) {
+		if (vault.inventory != null) {
+			return inventoryIndex.vault(vault.vaultName) == vault.inventory;
+		}
+		return System.currentTimeMillis() - vault.checkedAt < CHECK_INTERVAL
+				&& catalogVersion() == vault.catalogVersion;
+	}
+
+	private long catalogVersion() {
+		return vaultCatalog == null ? 0 : vaultCatalog.getVersion();
+	}
+
+	/**
+	 * @param force
+	 *            rebuild the filter even if it is current
+	 */
+	synchronized private VaultFilter build(String vaultName, boolean force) {
+
+		VaultFilter kept = lookup(vaultName, 0, vaultName.length());
+		// another thread may have rebuilt it meanwhile
+		if (kept != null && !force && isCurrent(kept)) {
+			return kept;
+		}
+
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		long catalogVersion = catalogVersion();
+
+		for (String archiveId : descriptionIndex.archiveIds(vaultName)) {
+			if (inventory == null || inventory.get(archiveId) == null) {
+				added.add(vaultName + '/' + archiveId);
+			}
+		}
+		String prefix = vaultName + '/';
+		boolean exists = inventory != null;
+		for (String key : added) {
+			if (exists) {
+				break;
+			}
+			exists = key.startsWith(prefix);
+		}
+		if (!exists && vaultCatalog != null) {
+			exists = vaultCatalog.contains(vaultName);
+		}
+
+		if (!exists) {
+			// a vault that went away keeps its slot, an unknown one gets none
+			VaultFilter vault = new VaultFilter(vaultName, null, null, false,
+					catalogVersion);
+			if (kept != null) {
+				put(vault);
+			}
+			return vault;
+		}
+
+		ArchiveIdFilter filter = new ArchiveIdFilter(
+				inventory == null ? 1024 : inventory.size() + inventory.size()
+						/ 10 + 1024, FALSE_POSITIVE_RATE);
+		if (inventory != null) {
+			for (ArchiveMetadata archive : inventory.archives) {
+				filter.put(archive.archiveId);
+			}
+		}
+		for (String key : added) {
+			if (key.startsWith(prefix)) {
+				filter.put(key, prefix.length(), key.length());
+			}
+		}
+		VaultFilter vault = new VaultFilter(vaultName, inventory, filter,
+				exists, catalogVersion);
+
+		if (kept != null || vaultCount < MAX_VAULTS || inventory != null) {
+			put(vault);
+		}
+
+		return vault;
+	}
+
+	/**
+	 * Add the vault to the table, or replace the one of the same name, under
+	 * the monitor.
+	 */
+	private void put(VaultFilter vault) {
+
+		VaultFilter[] current = vaults;
+		String vaultName = vault.vaultName;
+		int mask = current.length - 1;
+		int i = hash(vaultName, 0, vaultName.length()) & mask;
+		while (current[i] != null) {
+			if (current[i].vaultName.equals(vaultName)) {
+				VaultFilter[] updated = current.clone();
+				updated[i] = vault;
+				vaults = updated;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+
+		int length = (vaultCount + 1) * 2 > current.length ? current.length * 2
+				: current.length;
+		VaultFilter[] updated = new VaultFilter[length];
+		for (VaultFilter kept : current) {
+			if (kept != null) {
+				insert(updated, kept);
+			}
+		}
+		insert(updated, vault);
+		vaultCount++;
+		vaults = updated;
+	}
+
+	private static void insert(VaultFilter[] table, VaultFilter vault) {
+		int mask = table.length - 1;
+		int i = hash(vault.vaultName, 0, vault.vaultName.length()) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = vault;
+	}
+
+}
@@ -7,18 +7,55 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.glacier.AmazonGlacier;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
 
 public class GlacierClientFactory {
 
+	private static final AwsClientProvider AWS = new AwsClientProvider() {
+		@Override
+		public AmazonGlacierClient newGlacierClient(
+				AWSCredentials credentials, String endpoint) {
+			AmazonGlacierClient client = new AmazonGlacierClient(credentials);
+			client.setEndpoint(endpoint);
+			return client;
+		}
+
+		@Override
+		public AmazonSQSClient newSQSClient(AWSCredentials credentials,
+				String endpoint) {
+			AmazonSQSClient client = new AmazonSQSClient(credentials);
+			client.setEndpoint(endpoint);
+			return client;
+		}
+
+		@Override
+		public AmazonSNSClient newSNSClient(AWSCredentials credentials,
+				String endpoint) {
+			AmazonSNSClient client = new AmazonSNSClient(credentials);
+			client.setEndpoint(endpoint);
+			return client;
+		}
+	};
+
+	private static volatile AwsClientProvider provider = AWS;
+
+	/**
+	 * Replace the AWS clients of every connector, e.g. with in-process
+	 * stand-ins for load tests; <code>null</code> restores the real clients.
+	 */
+	public static void setProvider(AwsClientProvider provider) {
+		GlacierClientFactory.provider = provider != null ? provider : AWS;
+	}
+
 	//default 
 	public static AmazonGlacierClient newClient() throws IOException {
 		AWSCredentials credentials = new PropertiesCredentials(
 				GlacierClientFactory.class
 						.getResourceAsStream("AwsCredentials.properties"));
-		AmazonGlacierClient client = new AmazonGlacierClient(credentials);
-		client.setEndpoint("https://glacier.us-east-1.amazonaws.com/");
 
-		return client;
+		return provider.newGlacierClient(credentials,
+				"https://glacier.us-east-1.amazonaws.com/");
 
 	}
 	
@@ -26,11 +63,42 @@ public class GlacierClientFactory {
 		
 		BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey,secretKey);
 		
-		AmazonGlacierClient client = new AmazonGlacierClient(credentials);
-        client.setEndpoint(endpoint);
-              
-        return client;
+		return provider.newGlacierClient(credentials, endpoint);
+
+	}
+
+	public static AmazonGlacierClient newClient(String accessKey,
+			String secretKey, String endpoint, GlacierMetrics metrics) {
 
+		AmazonGlacierClient client = newClient(accessKey, secretKey, endpoint);
+		if (metrics != null) {
+			metrics.instrument(client);
+		}
+		return client;
+	}
+
+	public static AmazonSQSClient newSQSClient(String accessKey,
+			String secretKey, String region, GlacierMetrics metrics) {
+
+		AmazonSQSClient client = provider.newSQSClient(
+				new BasicAWSCredentials(accessKey, secretKey), "https://sqs."
+						+ region + ".amazonaws.com");
+		if (metrics != null) {
+			metrics.instrument(client);
+		}
+		return client;
+	}
+
+	public static AmazonSNSClient newSNSClient(String accessKey,
+			String secretKey, String region, GlacierMetrics metrics) {
+
+		AmazonSNSClient client = provider.newSNSClient(
+				new BasicAWSCredentials(accessKey, secretKey), "https://sns."
+						+ region + ".amazonaws.com");
+		if (metrics != null) {
+			metrics.instrument(client);
+		}
+		return client;
 	}
 	
 
@@ -26,14 +26,15 @@ package org.fcrepo.federation.glacierconnector;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import javax.jcr.NamespaceRegistry;
+import javax.management.JMException;
 import javax.jcr.RepositoryException;
 
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParseException;
 import org.infinispan.schematic.document.Document;
 import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.JcrI18n;
@@ -42,6 +43,7 @@ import org.modeshape.jcr.RepositoryConfiguration;
 import org.modeshape.jcr.api.nodetype.NodeTypeManager;
 import org.modeshape.jcr.cache.DocumentStoreException;
 import org.modeshape.jcr.federation.spi.Connector;
+import org.modeshape.jcr.federation.spi.ConnectorChangeSet;
 import org.modeshape.jcr.federation.spi.DocumentChanges;
 import org.modeshape.jcr.federation.spi.DocumentReader;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
@@ -51,11 +53,13 @@ import org.modeshape.jcr.federation.spi.WritableConnector;
 import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
 import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
 import org.modeshape.jcr.value.Property;
 import org.modeshape.jcr.value.binary.ExternalBinaryValue;
 import org.modeshape.jcr.value.binary.UrlBinaryValue;
 
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
 
 /**
  * {@link Connector} implementation that exposes a single directory on the local
@@ -122,7 +126,8 @@ import com.amazonaws.services.glacier.AmazonGlacierClient;
  * </tr>
  * </table>
  */
-public class GlacierConnector extends WritableConnector implements Pageable {
+public class GlacierConnector extends WritableConnector implements Pageable,
+		ArchiveAvailabilityListener {
 
 	private static final String FILE_SEPARATOR = System
 			.getProperty("file.separator");
@@ -146,6 +151,30 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 
 	private static final String BAGIT_CLOUDFILE_TYPE = "bagit:cloudFile";
 
+	private static final String GLACIER_RETRIEVAL = "glacier:retrieval";
+	private static final String GLACIER_RETRIEVAL_STATE = "glacier:retrievalState";
+	private static final String GLACIER_JOB_ID = "glacier:jobId";
+	private static final String GLACIER_REQUESTED_AT = "glacier:requestedAt";
+	private static final String GLACIER_ESTIMATED_READY_AT = "glacier:estimatedReadyAt";
+	private static final String GLACIER_CACHED = "glacier:cached";
+	private static final String GLACIER_INVENTORY = "glacier:inventory";
+	private static final String GLACIER_SIZE = "glacier:size";
+	private static final String GLACIER_TREE_HASH = "glacier:treeHash";
+	private static final String GLACIER_DESCRIPTION = "glacier:description";
+	private static final String GLACIER_RESTORABLE = "glacier:restorable";
+	private static final String GLACIER_RESTORE = "glacier:restore";
+	private static final String GLACIER_RESTORE_ID = "glacier:restoreId";
+	private static final String GLACIER_RESTORE_STATE = "glacier:restoreState";
+	private static final String GLACIER_RESTORE_TOTAL_ARCHIVES = "glacier:restoreTotalArchives";
+	private static final String GLACIER_RESTORE_RESTORED_ARCHIVES = "glacier:restoreRestoredArchives";
+	private static final String GLACIER_RESTORE_FAILED_ARCHIVES = "glacier:restoreFailedArchives";
+	private static final String GLACIER_RESTORE_TOTAL_BYTES = "glacier:restoreTotalBytes";
+	private static final String GLACIER_RESTORE_RESTORED_BYTES = "glacier:restoreRestoredBytes";
+	private static final String GLACIER_VAULT = "glacier:vault";
+	private static final String GLACIER_NUMBER_OF_ARCHIVES = "glacier:numberOfArchives";
+	private static final String GLACIER_SIZE_IN_BYTES = "glacier:sizeInBytes";
+	private static final String GLACIER_LAST_INVENTORY_DATE = "glacier:lastInventoryDate";
+
 	private static final String EXTRA_PROPERTIES_JSON = "json";
 	private static final String EXTRA_PROPERTIES_LEGACY = "legacy";
 	private static final String EXTRA_PROPERTIES_NONE = "none";
@@ -158,6 +187,155 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 	private String region;
 	private String SQSQueueName;
 
+	/**
+	 * The other regions and accounts this connector reaches, as a comma
+	 * separated list of
+	 * <code>vaultPrefix=region:accessKey:secretKey[:sqsQueueName]</code>. A
+	 * vault is served by the endpoint with the longest prefix of its name;
+	 * the vaults matching no prefix are served by <code>accessKey</code>,
+	 * <code>secretKey</code>, <code>region</code> and
+	 * <code>SQSQueueName</code>. The endpoints share the download pool and the
+	 * local cache.
+	 */
+	private String endpoints;
+
+	/**
+	 * How long, in minutes, Glacier is expected to take to complete a
+	 * retrieval job. Pending jobs are not checked by the {@link JobReconciler}
+	 * before this window has passed.
+	 */
+	private int retrievalWindowMinutes = 240;
+
+	/**
+	 * The bounds, in minutes, of the interval between two runs of the
+	 * {@link JobReconciler}.
+	 */
+	private int reconcileMinIntervalMinutes = 15;
+	private int reconcileMaxIntervalMinutes = 120;
+
+	/**
+	 * The number of threads polling the SQS queue, and the number of threads
+	 * parsing and handling the received job notifications.
+	 */
+	private int sqsConsumerCount = 2;
+	private int sqsParserCount = 4;
+
+	/**
+	 * The visibility timeout, in seconds, renewed on a job notification while
+	 * its archive is downloaded, and the delay, in seconds, before the
+	 * notification of a failed download is delivered again.
+	 */
+	private int sqsVisibilityTimeout = 15 * 60;
+	private int sqsRetryDelay = 60;
+
+	/**
+	 * The identifier of this connector instance among the repositories and
+	 * cluster nodes sharing the SQS queue; the SNS topics of its retrieval
+	 * jobs are named after it. Defaults to the source name. A notification
+	 * owned by another instance is hidden from this one for
+	 * <code>foreignMessageVisibilityTimeout</code> seconds, and deleted after
+	 * <code>maxForeignMessageReceives</code> receives.
+	 */
+	private String nodeId;
+	private int foreignMessageVisibilityTimeout = 30;
+	private int maxForeignMessageReceives = 100;
+
+	/**
+	 * A comma separated list of the sinks the "archive is available" notices
+	 * are sent to: <code>smtp</code>, <code>jms</code>, <code>webhook</code>
+	 * and/or <code>log</code>. The notices of the archives downloaded within
+	 * <code>notificationDigestSeconds</code> are sent as one digest of at most
+	 * <code>notificationDigestSize</code> archives.
+	 */
+	private String notificationSinks = "log";
+	private int notificationQueueSize = 10000;
+	private int notificationDigestSeconds = 60;
+	private int notificationDigestSize = 1000;
+
+	private String smtpHost = "localhost";
+	private int smtpPort = 25;
+	private boolean smtpStartTls = false;
+	private String smtpUsername;
+	private String smtpPassword;
+	private String notificationFrom;
+	private String notificationTo;
+
+	private String webhookUrl;
+
+	/**
+	 * The JNDI names of the JMS connection factory and destination used by the
+	 * <code>jms</code> sink.
+	 */
+	private String jmsConnectionFactory;
+	private String jmsDestination;
+
+	/**
+	 * The class name of an optional {@link MetricsReporter} the metrics are
+	 * pushed to every <code>metricsReportSeconds</code>. The metrics are
+	 * always available through JMX.
+	 */
+	private String metricsReporter;
+	private int metricsReportSeconds = 60;
+
+	/**
+	 * The number of retrieval events kept in memory, and the optional file
+	 * they are also appended to; the file is rolled once it reaches
+	 * <code>retrievalTimelineLogMaxBytes</code>.
+	 */
+	private int retrievalTimelineCapacity = 10000;
+	private String retrievalTimelineLog;
+	private long retrievalTimelineLogMaxBytes = 10 * 1024 * 1024;
+
+	/**
+	 * The comma separated {@link PrefetchPolicy prefetch policies}:
+	 * <code>neighbours</code>, <code>description</code>, <code>groups</code>
+	 * or the class name of a custom policy. None by default.
+	 */
+	private String prefetchPolicies = "";
+	private int prefetchNeighbours = 5;
+	private String prefetchDescriptionDelimiter = "/";
+	private int prefetchDescriptionMaxCount = 20;
+	private String prefetchGroupsFile;
+
+	/**
+	 * The maximum number of prefetched retrievals pending at once, not counted
+	 * against the retrievals readers asked for.
+	 */
+	private int prefetchBudget = 20;
+	private int prefetchQueueSize = 1000;
+
+	/**
+	 * The bounds of one batch of a {@link BulkRestore}: the number of
+	 * retrieval jobs and of bytes requested at once, and the delay between
+	 * two batches of the same restore.
+	 */
+	private int bulkRestoreBatchJobs = 100;
+	private long bulkRestoreBatchBytes = 100L * 1024 * 1024 * 1024;
+	private int bulkRestoreBatchIntervalMinutes = 60;
+	private int bulkRestoreCheckSeconds = 60;
+
+	/**
+	 * The maximum number of documents, and of parsed node ids, kept by the
+	 * {@link DocumentCache}. A <code>documentCacheSize</code> of 0 disables
+	 * the document cache.
+	 */
+	private int documentCacheSize = 10000;
+	private int nodeIdCacheSize = 100000;
+
+	/**
+	 * How long, in seconds, the {@link VaultCatalog} listed by the root node
+	 * is kept, and the number of vaults asked for by each
+	 * <code>ListVaults</code> call.
+	 */
+	private int vaultCatalogTtlSeconds = 300;
+	private int vaultListLimit = 1000;
+
+	/**
+	 * Whether a stored binary whose tree hash and size match an archive of
+	 * the vault is linked to that archive instead of uploaded again.
+	 */
+	private boolean uploadDeduplication = true;
+
 	/**
 	 * The string path for a {@link File} object that represents the top-level
 	 * directory accessed by this connector. This is set via reflection and is
@@ -233,9 +411,35 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 
 	// private ExecutorService threadPool;
 
-	Thread glacierMessageListenerThread;
+	private EndpointRouter router = null;
+
+	private NotificationDispatcher notificationDispatcher = null;
+
+	private CacheCatalog cacheCatalog = null;
+
+	private GlacierMetrics metrics = null;
+
+	private PrefetchManager prefetchManager = null;
 
-	private GlacierMessageListener glacierMessageListener = null;
+	private BulkRestoreManager bulkRestoreManager = null;
+
+	private DocumentCache documentCache = null;
+
+	private InventoryIndex inventoryIndex = null;
+
+	private DescriptionIndex descriptionIndex = null;
+
+	private TreeHashIndex treeHashIndex = null;
+
+	private MetadataIndex metadataIndex = null;
+
+	private ExistenceIndex existenceIndex = null;
+
+	private VaultCatalog vaultCatalog = null;
+
+	private RetrievalRegistry retrievalRegistry = null;
+
+	private RetrievalRequester retrievalRequester = null;
 
 	@Override
 	public void initialize(NamespaceRegistry registry,
@@ -244,16 +448,247 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 
 		super.initialize(registry, nodeTypeManager);
 		this.registry = registry;
+
+		nodeTypeManager.registerNodeTypes(
+				getClass().getResourceAsStream("glacier.cnd"), true);
+
+		this.inventoryIndex = new InventoryIndex(localCacheDirectory);
+		this.descriptionIndex = new DescriptionIndex(localCacheDirectory,
+				inventoryIndex);
+		this.treeHashIndex = new TreeHashIndex(localCacheDirectory,
+				inventoryIndex);
+		this.existenceIndex = new ExistenceIndex(inventoryIndex,
+				descriptionIndex);
+
+		this.documentCache = new DocumentCache(documentCacheSize,
+				nodeIdCacheSize);
+
+		this.cacheCatalog = new CacheCatalog(localCacheDirectory);
+		cacheCatalog.scan();
+
+		this.retrievalRegistry = new RetrievalRegistry()
+				.withTimeline(new RetrievalTimeline(retrievalTimelineCapacity)
+						.withLog(retrievalTimelineLog != null
+								&& !retrievalTimelineLog.equals("") ? new File(
+								retrievalTimelineLog) : null,
+								retrievalTimelineLogMaxBytes).start());
+
+		this.metrics = newMetrics();
+
+		this.router = newEndpointRouter();
+
+		this.vaultCatalog = new VaultCatalog(router,
+				vaultCatalogTtlSeconds * 1000L).withListLimit(vaultListLimit);
+		existenceIndex.withVaultCatalog(vaultCatalog);
+		metrics.spiLatency().withVaultCatalog(vaultCatalog);
+
+		this.metadataIndex = new MetadataIndex(inventoryIndex, cacheCatalog,
+				retrievalRegistry);
+		try {
+			metadataIndex.register(getSourceName());
+		} catch (JMException e) {
+			// the index is still available through query()
+			e.printStackTrace();
+		}
+
 		this.endpoint = "https://sqs." + region + ".amazonaws.com";
 
-		this.glacierMessageListener = new GlacierMessageListener()
-				.withSQSClient(accessKey, secretKey, region)
-				.withSQS(SQSQueueName).withcacheDirectory(localCacheDirectory);
+		this.notificationDispatcher = newNotificationDispatcher();
+		notificationDispatcher.start();
+
+		this.bulkRestoreManager = new BulkRestoreManager(localCacheDirectory)
+				.withNotifier(notificationDispatcher)
+				.withBatch(bulkRestoreBatchJobs, bulkRestoreBatchBytes,
+						bulkRestoreBatchIntervalMinutes * 60 * 1000L)
+				.withCheckInterval(bulkRestoreCheckSeconds * 1000L)
+				.withRouter(router);
+
+		for (GlacierEndpoint endpoint : router.endpoints()) {
+			endpoint.withListener(newMessageListener(endpoint),
+					newJobReconciler(endpoint));
+		}
+
+		// reload the retrievals that were initiated before the last shutdown so
+		// that reading those archives does not request them again
+		retrievalRegistry.loadPendingJobs(new PendingJobStore(
+				localCacheDirectory));
+
+		router.start();
+
+		this.retrievalRequester = newRetrievalRequester();
+
+		this.prefetchManager = newPrefetchManager();
+		prefetchManager.start();
+
+		bulkRestoreManager.withRequester(retrievalRequester).start(
+				getSourceName());
+
+	}
+
+	/**
+	 * Query the inventory metadata of a vault, without going through the
+	 * repository.
+	 */
+	public List<ArchiveMetadata> query(String vaultName, ArchiveQuery query) {
+		return metadataIndex.query(vaultName, query);
+	}
+
+	/**
+	 * Start the restore of a whole vault, or of one archive, into the local
+	 * cache.
+	 * 
+	 * @param path
+	 *            the path of the vault or of the archive in this source
+	 * @see BulkRestoreManager#forSource(String)
+	 */
+	public BulkRestore restore(String path) throws IOException {
+		return bulkRestoreManager.restore(path);
+	}
+
+	private GlacierMetrics newMetrics() throws RepositoryException {
+
+		GlacierMetrics metrics = new GlacierMetrics().withCacheCatalog(
+				cacheCatalog).withRegistry(retrievalRegistry);
+
+		try {
+			metrics.register(getSourceName());
+		} catch (JMException e) {
+			// the connector works without its MBean
+			e.printStackTrace();
+		}
+
+		if (metricsReporter != null && !metricsReporter.equals("")) {
+			try {
+				MetricsReporter reporter = (MetricsReporter) Class.forName(
+						metricsReporter).newInstance();
+				metrics.startReporting(getSourceName(), reporter,
+						metricsReportSeconds);
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new RepositoryException("Invalid metrics reporter: "
+						+ metricsReporter, e);
+			}
+		}
+
+		return metrics;
+	}
+
+	private EndpointRouter newEndpointRouter() throws RepositoryException {
+
+		List<GlacierEndpoint> endpointList = new ArrayList<GlacierEndpoint>();
+		try {
+			endpointList.addAll(GlacierEndpoint.parse(endpoints, SQSQueueName));
+		} catch (IllegalArgumentException e) {
+			throw new RepositoryException(e.getMessage(), e);
+		}
+		endpointList.add(new GlacierEndpoint("", region, accessKey, secretKey,
+				SQSQueueName));
+
+		for (GlacierEndpoint endpoint : endpointList) {
+			endpoint.withMetrics(metrics);
+		}
+		return new EndpointRouter(endpointList);
+	}
+
+	private GlacierMessageListener newMessageListener(GlacierEndpoint endpoint) {
+
+		// the SNS topics of each endpoint are told apart by the node id
+		String node = nodeId != null ? nodeId : getSourceName();
+		if (!endpoint.getName().equals("")) {
+			node += '-' + endpoint.getName();
+		}
+
+		return new GlacierMessageListener().withRegistry(retrievalRegistry)
+				.withMetrics(metrics)
+				.withSQSClient(endpoint.accessKey, endpoint.secretKey,
+						endpoint.region).withSQS(endpoint.sqsQueueName)
+				.withcacheDirectory(localCacheDirectory)
+				.withConsumers(sqsConsumerCount, sqsParserCount)
+				.withVisibility(sqsVisibilityTimeout, sqsRetryDelay)
+				.withNodeId(node, foreignMessageVisibilityTimeout,
+						maxForeignMessageReceives)
+				.withNotifier(bulkRestoreManager)
+				.withAvailabilityListener(this);
+	}
+
+	private JobReconciler newJobReconciler(GlacierEndpoint endpoint) {
+		return new JobReconciler(endpoint.listener())
+				.withMetrics(metrics)
+				.withGlacierClientCredential(endpoint.accessKey,
+						endpoint.secretKey, endpoint.region)
+				.withEndpoint(router, endpoint)
+				.withcacheDirectory(localCacheDirectory)
+				.withCompletionWindow(retrievalWindowMinutes)
+				.withInterval(reconcileMinIntervalMinutes,
+						reconcileMaxIntervalMinutes);
+	}
 
-		glacierMessageListenerThread = new Thread(glacierMessageListener);
+	private RetrievalRequester newRetrievalRequester() {
+		return new RetrievalRequester(router, localCacheDirectory,
+				retrievalRegistry);
+	}
 
-		glacierMessageListenerThread.start();
+	private PrefetchManager newPrefetchManager() throws IOException,
+			RepositoryException {
+
+		PrefetchManager manager = new PrefetchManager(prefetchQueueSize)
+				.withBudget(prefetchBudget)
+				.withRequester(retrievalRequester)
+				.withInventoryIndex(inventoryIndex).withMetrics(metrics);
+
+		for (String policy : prefetchPolicies.split(",")) {
+			policy = policy.trim();
+			if (policy.equals("neighbours")) {
+				manager.withPolicy(new NeighbourPrefetchPolicy()
+						.withCount(prefetchNeighbours));
+			} else if (policy.equals("description")) {
+				manager.withPolicy(new DescriptionPrefetchPolicy()
+						.withDelimiter(prefetchDescriptionDelimiter)
+						.withMaxCount(prefetchDescriptionMaxCount));
+			} else if (policy.equals("groups")) {
+				manager.withPolicy(new GroupPrefetchPolicy()
+						.withGroups(new File(prefetchGroupsFile)));
+			} else if (!policy.equals("")) {
+				try {
+					manager.withPolicy((PrefetchPolicy) Class.forName(policy)
+							.newInstance());
+				} catch (ReflectiveOperationException | ClassCastException e) {
+					throw new RepositoryException("Invalid prefetch policy: "
+							+ policy, e);
+				}
+			}
+		}
 
+		return manager;
+	}
+
+	private NotificationDispatcher newNotificationDispatcher()
+			throws IOException, RepositoryException {
+
+		NotificationDispatcher dispatcher = new NotificationDispatcher(
+				notificationQueueSize).withDigest(
+				notificationDigestSeconds * 1000L, notificationDigestSize);
+
+		for (String sink : notificationSinks.split(",")) {
+			sink = sink.trim();
+			if (sink.equals("smtp")) {
+				dispatcher.withSink(new SmtpNotificationSink()
+						.withServer(smtpHost, smtpPort, smtpStartTls)
+						.withCredential(smtpUsername, smtpPassword)
+						.withAddresses(notificationFrom, notificationTo));
+			} else if (sink.equals("jms")) {
+				dispatcher.withSink(new JmsNotificationSink(
+						jmsConnectionFactory, jmsDestination));
+			} else if (sink.equals("webhook")) {
+				dispatcher.withSink(new WebhookNotificationSink(webhookUrl));
+			} else if (sink.equals("log")) {
+				dispatcher.withSink(new LogNotificationSink());
+			} else if (!sink.equals("")) {
+				throw new RepositoryException("Unknown notification sink: "
+						+ sink);
+			}
+		}
+
+		return dispatcher;
 	}
 
 	/**
@@ -348,14 +783,37 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 	}
 
 	protected ExternalBinaryValue binaryFor(String id) {
+		NodeId nodeId = nodeIdFor(id);
+		if (nodeId == null) {
+			throw new DocumentStoreException(id, "No archive is named "
+					+ documentCache.nodeId(id).description);
+		}
+		return binaryFor(nodeId);
+	}
+
+	/**
+	 * Parse the id, and resolve the archive of the nodes reached by name.
+	 * 
+	 * @return null when the name resolves to no archive
+	 */
+	private NodeId nodeIdFor(String id) {
+		NodeId nodeId = documentCache.nodeId(id);
+		if (nodeId.description == null) {
+			return nodeId;
+		}
+		String archiveId = descriptionIndex.resolve(nodeId.vaultName,
+				nodeId.description);
+		return archiveId == null ? null : nodeId.resolved(archiveId);
+	}
+
+	private ExternalBinaryValue binaryFor(NodeId nodeId) {
 		try {
 			// TODO byte[] sha1 = SecureHash.getHash(Algorithm.SHA_1, file);
 			// BinaryKey key = new BinaryKey(sha1);
-			String vaultName = ValutNameInPath(id);
-			id = ArchiveIdInPath(id).replace(JCR_CONTENT_SUFFIX, "");
+			String id = nodeId.archiveId;
 			BinaryKey key = new BinaryKey(id);
 
-			return createBinaryValue(key, id, vaultName, id);
+			return createBinaryValue(key, id, nodeId.vaultName, id);
 		} catch (RuntimeException e) {
 			throw e;
 		} catch (Throwable e) {
@@ -363,7 +821,7 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		}
 	}
 
-	private String ValutNameInPath(String path) {
+	static String ValutNameInPath(String path) {
 		int ind = path.indexOf('/', 1);
 
 		if (ind > 1) {
@@ -375,7 +833,7 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		return null;
 	}
 
-	private String ArchiveIdInPath(String path) {
+	static String ArchiveIdInPath(String path) {
 		int ind = path.indexOf('/', 1);
 
 		if (ind > 1) {
@@ -389,30 +847,29 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 	protected ExternalBinaryValue createBinaryValue(BinaryKey key, String id,
 			String vaultName, String archiveId) throws IOException {
 
-		return new ArchiveBinaryValue(key, getSourceName(), accessKey,
-				secretKey, region, "", vaultName, archiveId,
-				glacierMessageListener, -1, id, getMimeTypeDetector())
-				.withCacheRootDirectory(localCacheDirectory).withSQSQueueARN(
-						glacierMessageListener.GetSQSQueueARN());
-	}
-
-	@Override
-	public boolean hasDocument(String id) {
+		// the size is known without retrieving the archive
+		ArchiveMetadata metadata = inventoryIndex.get(vaultName, archiveId);
+		long size = metadata != null ? metadata.size : -1;
 
-		return true;
+		GlacierEndpoint endpoint = router.endpointOf(vaultName);
+		GlacierMessageListener listener = endpoint.listener();
 
+		return new ArchiveBinaryValue(key, getSourceName(),
+				endpoint.accessKey, endpoint.secretKey, endpoint.region,
+				listener.GetSNSTopicNamePrefix(), vaultName, archiveId,
+				listener, size, id, getMimeTypeDetector())
+				.withCacheRootDirectory(localCacheDirectory)
+				.withMetrics(metrics).withPrefetchManager(prefetchManager)
+				.withRequester(retrievalRequester);
 	}
 
-	private String getParentId(String id) {
-		int index = id.lastIndexOf(DELIMITER);
-
-		if (id.length() > 1 && index >= 0) {
-			id = id.substring(0, index);
-			return id.equalsIgnoreCase("") ? DELIMITER : id;
-
-		}
-
-		return null;
+	/**
+	 * Answered from the {@link ExistenceIndex}, so a mistyped or stale id
+	 * neither builds a document nor parses an inventory.
+	 */
+	@Override
+	public boolean hasDocument(String id) {
+		return isRoot(id) || existenceIndex.exists(id);
 	}
 
 	private String getChildName(String id) {
@@ -429,21 +886,93 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		return !isArchivePath(path);
 	}
 
-	private boolean isArchivePath(String path) {
-		return path.matches(".+/.+");
+	static boolean isArchivePath(String path) {
+		// path.matches(".+/.+") without compiling a pattern on every call
+		int ind = path.indexOf('/', 1);
+		return ind > 0 && ind < path.length() - 1;
 	}
 
 	@Override
 	public Document getDocumentById(String id) {
+		long start = System.nanoTime();
+		try {
+			return documentById(id);
+		} finally {
+			latency(SpiLatency.Method.GET_DOCUMENT_BY_ID, id, start);
+		}
+	}
+
+	private Document documentById(String id) {
+
+		NodeId nodeId = nodeIdFor(id);
+		if (nodeId == null) {
+			return null;
+		}
+		String state = documentState(nodeId);
+
+		Document document = documentCache.get(id, state);
+		if (document == null) {
+			document = newDocument(nodeId);
+			documentCache.put(id, state, document);
+		}
+		return document;
+	}
+
+	/**
+	 * The state a document is built from, besides its extra properties: the
+	 * vault listing of the root, the inventory date, listing and latest
+	 * restore of a vault, the retrieval state of an archive.
+	 */
+	private String documentState(NodeId nodeId) {
+
+		if (nodeId.descriptionFolder) {
+			return "names@" + descriptionIndex.getVersion(nodeId.vaultName);
+		}
+
+		if (nodeId.archive) {
+			PendingJob job = retrievalRegistry.getPendingJob(nodeId.archiveId);
+			return nodeId.archiveId + ':'
+					+ retrievalState(nodeId.vaultName, nodeId.archiveId, job)
+					+ (job != null ? job.requestedAt : "") + '@'
+					+ inventoryIndex.getVersion(nodeId.vaultName);
+		}
+
+		if (nodeId.root) {
+			return "vaults@" + vaultCatalog.getVersion();
+		}
 
-		boolean isRoot = isRoot(id);
+		String state = new File(localCacheDirectory + nodeId.id,
+				nodeId.vaultName).lastModified()
+				+ "@" + vaultCatalog.getVersion();
+		BulkRestore restore = bulkRestoreManager == null ? null
+				: bulkRestoreManager.getLatestRestore(nodeId.vaultName);
+		if (restore != null) {
+			state += restore.getId() + restore.getState()
+					+ restore.getRestoredArchives() + '/'
+					+ restore.getFailedArchives();
+		}
+		return state;
+	}
+
+	private Document newDocument(NodeId nodeId) {
+
+		String id = nodeId.id;
+		boolean isRoot = nodeId.root;
 		DocumentWriter writer = null;
-		boolean isResource = isContentNode(id);
+		boolean isResource = nodeId.content;
+
+		if (isRoot) {
+
+			writer = newRootWriter(0);
 
-		if (isResource) {
+		} else if (nodeId.descriptionFolder) {
+
+			writer = newDescriptionFolderWriter(id, 0);
+
+		} else if (isResource) {
 			System.out.println("isResource");
 			writer = newDocument(id);
-			BinaryValue binaryValue = binaryFor(id);
+			BinaryValue binaryValue = binaryFor(nodeId);
 			writer.setPrimaryType(NT_RESOURCE);
 			writer.addProperty(JCR_DATA, binaryValue);
 			if (addMimeTypeMixin) {
@@ -458,44 +987,39 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 				writer.addProperty(JCR_ENCODING, encoding);
 				writer.addProperty(JCR_MIME_TYPE, mimeType);
 			}
+			addRetrievalProperties(writer, nodeId);
 			writer.setNotQueryable();
 
 		} else {
 
-			if (isArchivePath(id)) {
+			if (nodeId.archive) {
 
 				getLogger().trace("getDocumentById get an archive: " + id);
 
 				writer = newDocument(id);
 				writer.setPrimaryType(NT_FILE);
 				// writer.setPrimaryType("bagit:cloudsFile");
-				writer.addProperty(JCR_CREATED, factories().getDateFactory()
-						.create());// TODO
+				ArchiveMetadata metadata = inventoryIndex.get(
+						nodeId.vaultName, nodeId.archiveId);
+				writer.addProperty(JCR_CREATED, metadata != null
+						&& metadata.creationDate >= 0 ? factories()
+						.getDateFactory().create(metadata.creationDate)
+						: factories().getDateFactory().create());
 				writer.addProperty(JCR_CREATED_BY, null); // ignored
+				addInventoryProperties(writer, metadata);
 
 				// writer.addMixinType(BAGIT_CLOUDFILE_TYPE);
 				// writer.addProperty("bagit:absoluteURI",
 				// providerUrlPrefix+DELIMITER+containerName+id);
 
-				String childId = isRoot ? JCR_CONTENT_SUFFIX : id
-						+ JCR_CONTENT_SUFFIX;
-				writer.addChild(childId, JCR_CONTENT);
+				writer.addChild(id + JCR_CONTENT_SUFFIX, JCR_CONTENT);
+
+				addRetrievalProperties(writer, nodeId);
 
 			} else {
 				getLogger().trace("getDocumentById get a vault: " + id);
 
-				try {
-					writer = newVaultArchiveWriter(id, 0);
-
-				} catch (IOException e) {
-
-					e.printStackTrace();
-
-					getLogger().trace(
-							"getDocumentById exception: " + e.getStackTrace());
-
-					throw new DocumentStoreException(id, e);
-				}
+				writer = newVaultArchiveWriter(id, 0);
 
 			}
 
@@ -504,7 +1028,7 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		if (!isRoot) {
 			// Set the reference to the parent ...
 
-			writer.setParents(getParentId(id));
+			writer.setParents(nodeId.parentId);
 		}
 
 		// Add the extra properties (if there are any), overwriting any
@@ -522,49 +1046,184 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		return writer.document();
 	}
 
-	private DocumentWriter newVaultArchiveWriter(String path, int offset)
-			throws JsonParseException, IOException {
+	/**
+	 * Add the read-only <code>glacier:retrieval</code> properties describing
+	 * the retrieval and cache state of the archive. They come from the pending
+	 * job registry and the {@link CacheCatalog}, so reading them never starts
+	 * a retrieval nor touches Glacier or the file system.
+	 */
+	private void addRetrievalProperties(DocumentWriter writer, NodeId nodeId) {
 
-		long totalChildren = 0;
-		int nextOffset = 0;
+		String vaultName = nodeId.vaultName;
+		String archiveId = nodeId.archiveId;
 
-		boolean root = isRoot(path);
+		PendingJob job = retrievalRegistry.getPendingJob(archiveId);
+		String state = retrievalState(vaultName, archiveId, job);
+		boolean cached = state.equals("CACHED");
 
-		DocumentWriter writer = newDocument(path);
+		writer.addMixinType(GLACIER_RETRIEVAL);
+		writer.addProperty(GLACIER_RETRIEVAL_STATE, state);
+		writer.addProperty(GLACIER_CACHED, cached);
+
+		if (job != null && !cached) {
+			if (job.jobId != null) {
+				writer.addProperty(GLACIER_JOB_ID, job.jobId);
+			}
+			writer.addProperty(GLACIER_REQUESTED_AT, factories()
+					.getDateFactory().create(job.requestedAt));
+			writer.addProperty(GLACIER_ESTIMATED_READY_AT, factories()
+					.getDateFactory().create(
+							job.requestedAt + retrievalWindowMinutes * 60 * 1000L));
+		}
+	}
+
+	/**
+	 * Make the vault restorable by setting <code>glacier:restore</code>, and
+	 * add the read-only progress of its latest restore.
+	 */
+	private void addRestoreProperties(DocumentWriter writer, String vaultName) {
+
+		writer.addMixinType(GLACIER_RESTORABLE);
+
+		BulkRestore restore = bulkRestoreManager == null ? null
+				: bulkRestoreManager.getLatestRestore(vaultName);
+		if (restore == null) {
+			return;
+		}
+
+		writer.addProperty(GLACIER_RESTORE_ID, restore.getId());
+		writer.addProperty(GLACIER_RESTORE_STATE, restore.getState().name());
+		writer.addProperty(GLACIER_RESTORE_TOTAL_ARCHIVES,
+				restore.getTotalArchives());
+		writer.addProperty(GLACIER_RESTORE_RESTORED_ARCHIVES,
+				restore.getRestoredArchives());
+		writer.addProperty(GLACIER_RESTORE_FAILED_ARCHIVES,
+				restore.getFailedArchives());
+		writer.addProperty(GLACIER_RESTORE_TOTAL_BYTES, restore.getTotalBytes());
+		writer.addProperty(GLACIER_RESTORE_RESTORED_BYTES,
+				restore.getRestoredBytes());
+	}
+
+	/**
+	 * Add the read-only <code>glacier:vault</code> properties of the vault, as
+	 * listed by the {@link VaultCatalog}.
+	 */
+	private void addVaultProperties(DocumentWriter writer,
+			DescribeVaultOutput listing) {
+
+		if (listing == null) {
+			return;
+		}
+
+		writer.addMixinType(GLACIER_VAULT);
+		if (listing.getNumberOfArchives() != null) {
+			writer.addProperty(GLACIER_NUMBER_OF_ARCHIVES,
+					listing.getNumberOfArchives());
+		}
+		if (listing.getSizeInBytes() != null) {
+			writer.addProperty(GLACIER_SIZE_IN_BYTES, listing.getSizeInBytes());
+		}
+		long lastInventoryDate = listing.getLastInventoryDate() != null ? InventoryIndex
+				.parseDate(listing.getLastInventoryDate()) : -1;
+		if (lastInventoryDate >= 0) {
+			writer.addProperty(GLACIER_LAST_INVENTORY_DATE, factories()
+					.getDateFactory().create(lastInventoryDate));
+		}
+	}
+
+	/**
+	 * Add the read-only <code>glacier:inventory</code> properties of the
+	 * archive, as listed by the last inventory of its vault.
+	 */
+	private void addInventoryProperties(DocumentWriter writer,
+			ArchiveMetadata metadata) {
+
+		if (metadata == null) {
+			return;
+		}
+
+		writer.addMixinType(GLACIER_INVENTORY);
+		if (metadata.size >= 0) {
+			writer.addProperty(GLACIER_SIZE, metadata.size);
+		}
+		if (metadata.treeHash != null) {
+			writer.addProperty(GLACIER_TREE_HASH, metadata.treeHash);
+		}
+		if (metadata.description != null) {
+			writer.addProperty(GLACIER_DESCRIPTION, metadata.description);
+		}
+	}
+
+	private String retrievalState(String vaultName, String archiveId,
+			PendingJob job) {
+		return RetrievalState.of(cacheCatalog, retrievalRegistry, vaultName,
+				archiveId, job).name();
+	}
+
+	/**
+	 * The root node, listing the vaults of the {@link VaultCatalog} in name
+	 * order.
+	 */
+	private DocumentWriter newRootWriter(int offset) {
+
+		DocumentWriter writer = newDocument(DELIMITER);
 		writer.setPrimaryType(NT_FOLDER);
-		writer.addProperty(JCR_CREATED, factories().getDateFactory().create());// TODO
+		writer.addProperty(JCR_CREATED, factories().getDateFactory().create());
 		writer.addProperty(JCR_CREATED_BY, null); // ignored
 
-		GlacierVaultArchive gva = new GlacierVaultArchive(localCacheDirectory);
+		List<String> page = vaultCatalog.names(offset, pageSize);
+		for (String vaultName : page) {
+			writer.addChild(DELIMITER + vaultName, vaultName);
+		}
 
-		JsonNode archiveList = gva.VaultArchiveList(path);
+		int totalChildren = vaultCatalog.size();
+		int nextOffset = offset + page.size();
+		if (!page.isEmpty() && nextOffset < totalChildren) {
+			writer.addPage(DELIMITER, nextOffset, pageSize, totalChildren);
+		}
+		writer.setNotQueryable();
 
-		if (archiveList.size() > 0) {
-			java.util.Iterator<JsonNode> iterator = archiveList.getElements();
-			int i = 0;
+		return writer;
+	}
 
-			while (iterator.hasNext()) {
-				JsonNode jn = iterator.next();
-				String archiveId = jn.get("ArchiveId").getTextValue();
+	private DocumentWriter newVaultArchiveWriter(String path, int offset) {
 
-				System.out.println("Vault " + path + " has ArciveId "
-						+ archiveId);
+		String vaultName = ValutNameInPath(path + '/');
+		DescribeVaultOutput listing = vaultCatalog.get(vaultName);
+		long created = listing != null && listing.getCreationDate() != null ? InventoryIndex
+				.parseDate(listing.getCreationDate()) : -1;
 
-				totalChildren++;
-				// only add a child if it's in the current page
-				if (i >= offset && i < offset + pageSize) {
-					// We use identifiers that contain the file/directory name
-					writer.addChild(path + '/' + archiveId, archiveId);
-					nextOffset = i + 1;
+		DocumentWriter writer = newDocument(path);
+		writer.setPrimaryType(NT_FOLDER);
+		writer.addProperty(JCR_CREATED, created >= 0 ? factories()
+				.getDateFactory().create(created) : factories()
+				.getDateFactory().create());
+		writer.addProperty(JCR_CREATED_BY, null); // ignored
 
-				}
+		addVaultProperties(writer, listing);
+		addRestoreProperties(writer, vaultName);
+		if (offset == 0) {
+			writer.addChild(path + '/' + NodeId.BY_DESCRIPTION,
+					NodeId.BY_DESCRIPTION);
+		}
 
-				i++;
-			}
+		// a vault listed by the catalog may have no inventory yet
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		List<ArchiveMetadata> archives = inventory == null ? Collections
+				.<ArchiveMetadata> emptyList() : inventory.archives;
+
+		List<String> page = new ArrayList<String>(pageSize);
+		long totalChildren = archivePage(archives, offset, pageSize, page);
+
+		for (String archiveId : page) {
+			// We use identifiers that contain the file/directory name
+			writer.addChild(path + '/' + archiveId, archiveId);
 		}
 
 		// if there are still accessible children add the next page
-		if (nextOffset < totalChildren) {
+		int nextOffset = offset + page.size();
+		if (!page.isEmpty() && nextOffset < totalChildren) {
 			writer.addPage(path, nextOffset, pageSize, totalChildren);
 		}
 		writer.setNotQueryable();
@@ -572,6 +1231,52 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		return writer;
 	}
 
+	/**
+	 * The <code>/vault/by-description</code> folder, listing the archives of
+	 * the vault by name, in name order.
+	 */
+	private DocumentWriter newDescriptionFolderWriter(String path, int offset) {
+
+		String vaultName = ValutNameInPath(path);
+
+		DocumentWriter writer = newDocument(path);
+		writer.setPrimaryType(NT_FOLDER);
+		writer.addProperty(JCR_CREATED, factories().getDateFactory().create());
+		writer.addProperty(JCR_CREATED_BY, null); // ignored
+
+		List<String> page = descriptionIndex.list(vaultName, "", offset,
+				pageSize);
+		for (String name : page) {
+			String segment = DescriptionIndex.encodeName(name);
+			writer.addChild(path + '/' + segment, segment);
+		}
+
+		int totalChildren = descriptionIndex.count(vaultName);
+		int nextOffset = offset + page.size();
+		if (!page.isEmpty() && nextOffset < totalChildren) {
+			writer.addPage(path, nextOffset, pageSize, totalChildren);
+		}
+		writer.setNotQueryable();
+
+		return writer;
+	}
+
+	/**
+	 * Collect the ids of the archives of one page of a vault inventory.
+	 * 
+	 * @return the number of archives in the inventory
+	 */
+	static long archivePage(List<ArchiveMetadata> archives, int offset,
+			int pageSize, List<String> page) {
+
+		int end = offset + pageSize;
+		for (int i = Math.max(0, offset); i < end && i < archives.size(); i++) {
+			page.add(archives.get(i).archiveId);
+		}
+
+		return archives.size();
+	}
+
 	@Override
 	public String getDocumentId(String path) {
 		return path;
@@ -585,30 +1290,118 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 
 	@Override
 	public ExternalBinaryValue getBinaryValue(String id) {
+		long start = System.nanoTime();
+		try {
+			return binaryFor(id);
+		} finally {
+			latency(SpiLatency.Method.GET_BINARY_VALUE, id, start);
+		}
+	}
+
+	/**
+	 * Upload the binary, unless an archive of the vault already holds the
+	 * same content, in which case the node is linked to that archive. The
+	 * node leaves the archive it was linked to before, if shared.
+	 */
+	private void uploadArchive(AmazonGlacierClient client, String vaultName,
+			String id, BinaryValue binary) throws Exception {
 
-		return binaryFor(id);
+		long start = System.currentTimeMillis();
+		StagedUpload staged = StagedUpload.stage(binary.getStream(),
+				localCacheDirectory);
+		try {
+			// saving the same content under the same name again adds no link
+			String previous = descriptionIndex.resolve(vaultName,
+					DescriptionIndex.nameFromDescription(vaultName, id));
+			String archiveId = uploadDeduplication ? treeHashIndex.link(
+					vaultName, staged.getTreeHash(), staged.getSize(),
+					previous) : null;
+
+			if (archiveId != null) {
+				metrics.deduplicated(staged.getSize());
+				getLogger().debug(
+						"Linked " + id + " to archive " + archiveId
+								+ " holding the same content");
+			} else {
+				archiveId = GlacierUtil.upload(client, vaultName, id, staged);
+				try {
+					treeHashIndex.uploaded(vaultName, staged.getTreeHash(),
+							staged.getSize(), archiveId);
+				} catch (IOException e) {
+					// deduplicated against after the next inventory
+					e.printStackTrace();
+				}
+				if (uploadDeduplication) {
+					metrics.notDeduplicated();
+				}
+				metrics.uploaded(staged.getSize(), System.currentTimeMillis()
+						- start);
+			}
+
+			if (previous != null && !previous.equals(archiveId)) {
+				try {
+					treeHashIndex.replaced(vaultName, previous);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			existenceIndex.added(vaultName, archiveId);
+			try {
+				descriptionIndex.uploaded(vaultName, id, archiveId);
+			} catch (IOException e) {
+				// the archive is still listed by name after the next
+				// inventory
+				e.printStackTrace();
+			}
+		} finally {
+			staged.discard();
+		}
 	}
 
 	@Override
 	public boolean removeDocument(String id) {
-		boolean isContentNode = isContentNode(id);
-		String vaultName = ValutNameInPath(id);
-		String archiveId = ArchiveIdInPath(id);
+		long start = System.nanoTime();
+		try {
+			return removeArchive(id);
+		} finally {
+			existenceIndex.stored(id, false);
+			documentCache.invalidate(id);
+			latency(SpiLatency.Method.REMOVE_DOCUMENT, id, start);
+		}
+	}
+
+	private boolean removeArchive(String id) {
+		NodeId nodeId = nodeIdFor(id);
+
+		if (nodeId != null && nodeId.archive && nodeId.content) {
+			String vaultName = nodeId.vaultName;
+			String archiveId = nodeId.archiveId;
 
-		if (isContentNode) {
 			getLogger().trace(
 					"Archive " + archiveId + " is deleted from Glacier vault "
 							+ vaultName);
 
-			archiveId = archiveId.substring(0, archiveId.length()
-					- JCR_CONTENT_SUFFIX.length());
-
-			AmazonGlacierClient client = GlacierClientFactory.newClient(
-					accessKey, secretKey, "https://glacier." + region
-							+ ".amazonaws.com/");
+			AmazonGlacierClient client = router.endpointOf(vaultName).client();
 
 			try {
+				// other nodes deduplicated to the archive keep it
+				if (treeHashIndex.release(vaultName, archiveId)) {
+					if (nodeId.description != null) {
+						descriptionIndex.unlinked(vaultName,
+								nodeId.description, archiveId);
+					}
+					return true;
+				}
+				// recorded as deleted, no node is linked to it from now on
 				GlacierUtil.delete(client, vaultName, archiveId);
+				cacheCatalog.removed(vaultName, archiveId);
+				existenceIndex.removed(vaultName, archiveId);
+				try {
+					descriptionIndex.deleted(vaultName, archiveId);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			} catch (Exception e) {
 				e.printStackTrace();
 				throw new DocumentStoreException(id, e.getMessage());
@@ -624,12 +1417,22 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		// Create a new directory or file described by the document ...
 		DocumentReader reader = readDocument(document);
 		String id = reader.getDocumentId();
+		long start = System.nanoTime();
+		try {
+			storeArchive(reader, id);
+			existenceIndex.stored(id, true);
+		} finally {
+			documentCache.invalidate(id);
+			latency(SpiLatency.Method.STORE_DOCUMENT, id, start);
+		}
+	}
+
+	private void storeArchive(DocumentReader reader, String id) {
 
 		String vaultName = ValutNameInPath(id);
 		String archiveId = ArchiveIdInPath(id);
 
-		AmazonGlacierClient client = GlacierClientFactory.newClient(accessKey,
-				secretKey, "https://glacier." + region + ".amazonaws.com/");
+		AmazonGlacierClient client = router.endpointOf(vaultName).client();
 
 		boolean vaultExists = GlacierUtil.isVaultExists(client, vaultName);
 
@@ -642,7 +1445,16 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		Map<Name, Property> properties = reader.getProperties();
 		ExtraProperties extraProperties = extraPropertiesFor(id, false);
 		extraProperties.addAll(properties).except(JCR_PRIMARY_TYPE,
-				JCR_CREATED, JCR_LAST_MODIFIED, JCR_DATA);
+				JCR_CREATED, JCR_LAST_MODIFIED, JCR_DATA,
+				GLACIER_RETRIEVAL_STATE, GLACIER_JOB_ID, GLACIER_REQUESTED_AT,
+				GLACIER_ESTIMATED_READY_AT, GLACIER_CACHED, GLACIER_SIZE,
+				GLACIER_TREE_HASH, GLACIER_DESCRIPTION, GLACIER_RESTORE,
+				GLACIER_RESTORE_ID, GLACIER_RESTORE_STATE,
+				GLACIER_RESTORE_TOTAL_ARCHIVES,
+				GLACIER_RESTORE_RESTORED_ARCHIVES,
+				GLACIER_RESTORE_FAILED_ARCHIVES, GLACIER_RESTORE_TOTAL_BYTES,
+				GLACIER_RESTORE_RESTORED_BYTES, GLACIER_NUMBER_OF_ARCHIVES,
+				GLACIER_SIZE_IN_BYTES, GLACIER_LAST_INVENTORY_DATE);
 		try {
 			if (NT_FILE.equals(primaryType)) {
 				// TODO file.createNewFile();
@@ -652,8 +1464,7 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 				Property content = properties.get(JcrLexicon.DATA);
 				BinaryValue binary = factories().getBinaryFactory().create(
 						content.getFirstValue());
-				GlacierUtil.upload(client, vaultName, id, binary.getStream(),
-						binary.getSize());
+				uploadArchive(client, vaultName, id, binary);
 
 				if (!NT_RESOURCE.equals(primaryType)) {
 					// This is the "jcr:content" child, but the primary type is
@@ -705,14 +1516,101 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 		return id.toString();
 	}
 
+	/**
+	 * Setting <code>glacier:restore</code> to true on a vault node starts its
+	 * {@link BulkRestore}; the property itself is not stored.
+	 */
 	@Override
 	public void updateDocument(DocumentChanges documentChanges) {
+
+		String id = documentChanges.getDocumentId();
+		documentCache.invalidate(id);
+
+		DocumentChanges.PropertyChanges changes = documentChanges
+				.getPropertyChanges();
+		Name restoreName = factories().getNameFactory().create(GLACIER_RESTORE);
+
+		if (!changes.getAdded().contains(restoreName)
+				&& !changes.getChanged().contains(restoreName)) {
+			return;
+		}
+
+		Property restore = readDocument(documentChanges.getDocument())
+				.getProperties().get(restoreName);
+		if (restore == null
+				|| !Boolean.TRUE.equals(factories().getBooleanFactory()
+						.create(restore.getFirstValue()))) {
+			return;
+		}
+
+		try {
+			bulkRestoreManager.restore(id);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new DocumentStoreException(id, e);
+		}
+	}
+
+	/**
+	 * Publish a change of the <code>jcr:data</code> property of the archive's
+	 * <code>jcr:content</code> node once the archive is in the local cache, so
+	 * that applications can react to a JCR event instead of polling the
+	 * repository.
+	 */
+	@Override
+	public void archiveAvailable(String vaultName, String archiveId) {
+
+		cacheCatalog.added(vaultName, archiveId, new File(localCacheDirectory
+				+ '/' + vaultName, archiveId).length());
+
+		String contentId = DELIMITER + vaultName + DELIMITER + archiveId
+				+ JCR_CONTENT_SUFFIX;
+		documentCache.invalidate(contentId);
+
+		getLogger().trace(
+				"Publishing the availability of archive " + contentId);
+
+		Path contentPath = factories().getPathFactory().create(contentId);
+		Property data = getContext().getPropertyFactory().create(
+				JcrLexicon.DATA, binaryFor(contentId));
+
+		ConnectorChangeSet changes = newConnectorChangedSet();
+		changes.propertyChanged(contentId, contentPath, data, data);
+		changes.publish(null);
 	}
 
 	@Override
 	public Document getChildren(PageKey pageKey) {
-		// TODO
-		return null;
+		long start = System.nanoTime();
+		try {
+			return childrenPage(pageKey);
+		} finally {
+			latency(SpiLatency.Method.GET_CHILDREN, pageKey.getParentId(),
+					start);
+		}
+	}
+
+	private Document childrenPage(PageKey pageKey) {
+		String parentId = pageKey.getParentId();
+		int offset = pageKey.getOffsetInt();
+
+		if (isRoot(parentId)) {
+			return newRootWriter(offset).document();
+		}
+		if (documentCache.nodeId(parentId).descriptionFolder) {
+			return newDescriptionFolderWriter(parentId, offset).document();
+		}
+		return newVaultArchiveWriter(parentId, offset).document();
+	}
+
+	/**
+	 * Record the latency of an SPI call, per method and per vault.
+	 */
+	private void latency(SpiLatency.Method method, String id, long start) {
+		long nanos = System.nanoTime() - start;
+		if (metrics == null || id == null) {
+			return;
+		}
+		metrics.spiLatency().recordNode(method, id, nanos);
 	}
 
 	/**
@@ -723,10 +1621,20 @@ public class GlacierConnector extends WritableConnector implements Pageable {
 	public void shutdown() {
 		getLogger().debug("shutdown is invoked. ");
 
-		if (glacierMessageListenerThread != null
-				&& glacierMessageListenerThread.isAlive())
-			glacierMessageListenerThread.interrupt();
-		GlacierMessageListener.clear();
+		if (router != null)
+			router.shutdown();
+		if (prefetchManager != null)
+			prefetchManager.shutdown();
+		if (bulkRestoreManager != null)
+			bulkRestoreManager.shutdown();
+		if (metadataIndex != null)
+			metadataIndex.shutdown();
+		if (retrievalRegistry != null)
+			retrievalRegistry.clear();
+		if (notificationDispatcher != null)
+			notificationDispatcher.shutdown();
+		if (metrics != null)
+			metrics.shutdown();
 
 		getLogger().trace("glacierMessageListenerThread is shutdown.");
 
@@ -0,0 +1,177 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+
+/**
+ * One region and account reached by the connector: its credentials, its SQS
+ * queue, and the vaults routed to it, those whose name starts with its
+ * <code>vaultPrefix</code>. Every endpoint has its own
+ * {@link GlacierMessageListener} and {@link JobReconciler}; the downloads of
+ * all the endpoints share the {@link RetrievalRegistry} and the local cache
+ * of the connector.
+ */
+public class GlacierEndpoint {
+
+	public final String vaultPrefix;
+	public final String region;
+	public final String accessKey;
+	public final String secretKey;
+	public final String sqsQueueName;
+
+	private GlacierMetrics metrics;
+
+	private AmazonGlacierClient client;
+	private volatile GlacireArchive glacireArchive;
+
+	private GlacierMessageListener listener;
+	private Thread listenerThread;
+	private JobReconciler reconciler;
+
+	public GlacierEndpoint(String vaultPrefix, String region,
+			String accessKey, String secretKey, String sqsQueueName) {
+		this.vaultPrefix = vaultPrefix != null ? vaultPrefix : "";
+		this.region = region;
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		this.sqsQueueName = sqsQueueName;
+	}
+
+	/**
+	 * Parse a comma separated list of endpoints, each written
+	 * <code>vaultPrefix=region:accessKey:secretKey[:sqsQueueName]</code>.
+	 *
+	 * @param defaultQueueName
+	 *            the SQS queue of the endpoints that do not name one
+	 */
+	public static List<GlacierEndpoint> parse(String endpoints,
+			String defaultQueueName) {
+
+		List<GlacierEndpoint> parsed = new ArrayList<GlacierEndpoint>();
+		if (endpoints == null) {
+			return parsed;
+		}
+
+		for (String endpoint : endpoints.split(",")) {
+			endpoint = endpoint.trim();
+			if (endpoint.equals("")) {
+				continue;
+			}
+			int equals = endpoint.indexOf('=');
+			String[] fields = endpoint.substring(equals + 1).split(":");
+			if (equals <= 0 || fields.length < 3 || fields.length > 4) {
+				throw new IllegalArgumentException("Invalid endpoint: "
+						+ endpoint
+						+ ", expected vaultPrefix=region:accessKey:secretKey[:sqsQueueName]");
+			}
+			parsed.add(new GlacierEndpoint(endpoint.substring(0, equals)
+					.trim(), fields[0].trim(), fields[1].trim(), fields[2]
+					.trim(), fields.length > 3 ? fields[3].trim()
+					: defaultQueueName));
+		}
+
+		return parsed;
+	}
+
+	/**
+	 * Set before the first call, so that the Glacier calls are counted.
+	 */
+	public GlacierEndpoint withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public GlacierEndpoint withListener(GlacierMessageListener listener,
+			JobReconciler reconciler) {
+		this.listener = listener;
+		this.reconciler = reconciler;
+		return this;
+	}
+
+	/**
+	 * The name of the endpoint in the thread names and the SNS topics, empty
+	 * for the endpoint of the vaults not routed elsewhere.
+	 */
+	public String getName() {
+		return vaultPrefix.equals("") ? "" : region + '-' + vaultPrefix;
+	}
+
+	public boolean serves(String vaultName) {
+		return vaultName.startsWith(vaultPrefix);
+	}
+
+	public String getGlacierEndpoint() {
+		return "https://glacier." + region + ".amazonaws.com/";
+	}
+
+	synchronized public AmazonGlacierClient client() {
+		if (client == null) {
+			client = GlacierClientFactory.newClient(accessKey, secretKey,
+					getGlacierEndpoint(), metrics);
+		}
+		return client;
+	}
+
+	public GlacierMessageListener listener() {
+		return listener;
+	}
+
+	/**
+	 * Initiate the retrieval job of an archive; the jobs of one endpoint
+	 * share a single SNS topic. Only the creation of the topic is serialized,
+	 * the jobs are initiated concurrently.
+	 *
+	 * @return the job id
+	 */
+	public String initiateRetrieval(String vaultName, String archiveId) {
+		return glacireArchive().sendDownloadRequest(vaultName,
+				GlacireArchive.JobType.GETARCHIVE.getJobTypeCode(), archiveId);
+	}
+
+	private GlacireArchive glacireArchive() {
+		GlacireArchive archive = glacireArchive;
+		if (archive == null) {
+			synchronized (this) {
+				archive = glacireArchive;
+				if (archive == null) {
+					archive = new GlacireArchive(accessKey, secretKey, region,
+							metrics).withSNSTopicNamePrefix(
+							listener.GetSNSTopicNamePrefix()).withSNS(
+							listener.GetSQSQueueARN());
+					glacireArchive = archive;
+				}
+			}
+		}
+		return archive;
+	}
+
+	synchronized public void start() {
+		if (listenerThread == null) {
+			String name = getName();
+			listenerThread = new Thread(listener,
+					name.equals("") ? "GlacierMessageListener"
+							: "GlacierMessageListener-" + name);
+			listenerThread.start();
+			reconciler.start();
+		}
+	}
+
+	synchronized public void shutdown() {
+		if (listenerThread != null && listenerThread.isAlive()) {
+			listenerThread.interrupt();
+		}
+		listenerThread = null;
+		if (reconciler != null) {
+			reconciler.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (vaultPrefix.equals("") ? "*" : vaultPrefix + '*') + " -> "
+				+ region;
+	}
+
+}
@@ -1,17 +1,20 @@
 package org.fcrepo.federation.glacierconnector;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
 
-import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.policy.Policy;
 import com.amazonaws.auth.policy.Principal;
 import com.amazonaws.auth.policy.Resource;
@@ -19,9 +22,9 @@ import com.amazonaws.auth.policy.Statement;
 import com.amazonaws.auth.policy.Statement.Effect;
 import com.amazonaws.auth.policy.actions.SQSActions;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.Message;
@@ -34,18 +37,67 @@ public class GlacierMessageListener implements Runnable {
 	private String sqsQueueARN;
 	private String sqsQueueURL;
 	private static long sleepTime = 10;
-	private static int poolSize = 10;
+	private static long minSleepTime = 500;
+
+	/**
+	 * The maximum number of messages SQS returns for one receive request.
+	 */
+	private static final int MAX_MESSAGES = 10;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Glacier keeps the output of a job for 24 hours, a notification older
+	 * than that is useless to everyone.
+	 */
+	private static final long ORPHAN_AGE = 24 * 60 * 60 * 1000L;
+
+	private int consumerCount = 2;
+	private int parserCount = 4;
+	private long deleteDelay = 1000;
+
+	private int visibilityTimeout = 15 * 60;
+	private int retryDelay = 60;
+	private int foreignVisibilityTimeout = 30;
+	private int maxForeignReceives = 100;
+
+	private String topicNamePrefix;
+
+	private CallbackInterface notifier;
+
+	private ArchiveAvailabilityListener availabilityListener;
+
+	private GlacierMetrics metrics;
+
+	/**
+	 * The approximate number of messages in the queue is sampled at most once
+	 * per interval.
+	 */
+	private static final long BACKLOG_SAMPLE_INTERVAL = 60 * 1000L;
+	private volatile long lastBacklogSample;
+
+	private ExecutorService parserPool;
+	private MessageDeleteBatcher deleteBatcher;
+	private InFlightMessages inFlightMessages;
+	private final Object wakeUp = new Object();
 	private String accessKey;
 	private String secretKey;
 	private String region;
 	private String cacheDirectory;
 
-	private static Pool jobPool;
-	private static Map<String, String> waitingList;
+	private RetrievalRegistry registry;
+
+	/**
+	 * The listeners of all the endpoints of a connector share the registry
+	 * of its retrievals.
+	 */
+	public GlacierMessageListener withRegistry(RetrievalRegistry registry) {
+		this.registry = registry;
+		return this;
+	}
 
-	public GlacierMessageListener() {
-		jobPool = new Pool(poolSize);
-		waitingList = new HashMap<String, String>();
+	public RetrievalRegistry getRegistry() {
+		return registry;
 	}
 
 	public GlacierMessageListener withcacheDirectory(String cacheDirectory) {
@@ -53,6 +105,84 @@ public class GlacierMessageListener implements Runnable {
 		return this;
 	}
 
+	/**
+	 * @param consumerCount
+	 *            the number of threads polling the queue
+	 * @param parserCount
+	 *            the number of threads parsing and handling the messages
+	 */
+	public GlacierMessageListener withConsumers(int consumerCount,
+			int parserCount) {
+		this.consumerCount = Math.max(1, consumerCount);
+		this.parserCount = Math.max(1, parserCount);
+		return this;
+	}
+
+	/**
+	 * @param visibilityTimeout
+	 *            the visibility timeout, in seconds, kept on a job
+	 *            notification while its archive is downloaded
+	 * @param retryDelay
+	 *            the delay, in seconds, before the notification of a failed
+	 *            download is delivered again
+	 */
+	public GlacierMessageListener withVisibility(int visibilityTimeout,
+			int retryDelay) {
+		this.visibilityTimeout = visibilityTimeout;
+		this.retryDelay = retryDelay;
+		return this;
+	}
+
+	/**
+	 * Register this listener as the owner of the job notifications sent to
+	 * the SNS topics of the given node.
+	 *
+	 * @param foreignVisibilityTimeout
+	 *            the time, in seconds, a notification owned by another node is
+	 *            hidden from this node
+	 * @param maxForeignReceives
+	 *            the number of receives after which a notification nobody
+	 *            handles is deleted
+	 */
+	public GlacierMessageListener withNodeId(String nodeId,
+			int foreignVisibilityTimeout, int maxForeignReceives) {
+		if (topicNamePrefix != null) {
+			JobMessageRouter.unregister(topicNamePrefix);
+		}
+		this.topicNamePrefix = JobMessageRouter.topicNamePrefix(nodeId);
+		this.foreignVisibilityTimeout = foreignVisibilityTimeout;
+		this.maxForeignReceives = maxForeignReceives;
+		JobMessageRouter.register(topicNamePrefix, this);
+		return this;
+	}
+
+	public String GetSNSTopicNamePrefix() {
+		return topicNamePrefix;
+	}
+
+	/**
+	 * @param notifier
+	 *            called with the id of every archive that was downloaded
+	 */
+	public GlacierMessageListener withNotifier(CallbackInterface notifier) {
+		this.notifier = notifier;
+		return this;
+	}
+
+	public GlacierMessageListener withAvailabilityListener(
+			ArchiveAvailabilityListener availabilityListener) {
+		this.availabilityListener = availabilityListener;
+		return this;
+	}
+
+	/**
+	 * Set before the SQS client, so that the SQS calls are counted too.
+	 */
+	public GlacierMessageListener withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
 	public GlacierMessageListener withSQSClient(String accessKey,
 			String secretKey, String region) {
 
@@ -60,11 +190,8 @@ public class GlacierMessageListener implements Runnable {
 		this.secretKey = secretKey;
 		this.region = region;
 
-		BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey,
-				secretKey);
-
-		this.sqsClient = new AmazonSQSClient(credentials);
-		this.sqsClient.setEndpoint("https://sqs." + region + ".amazonaws.com");
+		this.sqsClient = GlacierClientFactory.newSQSClient(accessKey,
+				secretKey, region, metrics);
 
 		return this;
 	}
@@ -95,6 +222,11 @@ public class GlacierMessageListener implements Runnable {
 		sqsClient.setQueueAttributes(new SetQueueAttributesRequest(sqsQueueURL,
 				queueAttributes));
 
+		deleteBatcher = new MessageDeleteBatcher(sqsClient, sqsQueueURL,
+				deleteDelay).withMetrics(metrics);
+		inFlightMessages = new InFlightMessages(sqsClient, sqsQueueURL,
+				deleteBatcher).withMetrics(metrics);
+
 		return this;
 	}
 
@@ -104,91 +236,66 @@ public class GlacierMessageListener implements Runnable {
 
 	private void deleteJobMessage(Message msg) {
 
-		System.out.println("Deleting a message.\n");
-		String messageReceiptHandle = msg.getReceiptHandle();
-		sqsClient.deleteMessage(new DeleteMessageRequest().withQueueUrl(
-				sqsQueueURL).withReceiptHandle(messageReceiptHandle));
+		deleteBatcher.delete(msg.getReceiptHandle());
 
 	}
 
-	private void receiveJobMessage() throws InterruptedException,
-			JsonParseException, IOException {
+	/**
+	 * Poll the queue until the thread is interrupted. A consumer polls again
+	 * right away while it receives full batches; once the queue is empty it
+	 * backs off, from {@link #minSleepTime} milliseconds doubling up to
+	 * {@link #sleepTime} seconds. A consumer that receives a full batch wakes
+	 * up the idle ones so that a burst of notifications is drained by all of
+	 * them.
+	 */
+	private void receiveJobMessage() {
 
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-			JsonFactory factory = mapper.getJsonFactory();
+		long idleSleep = 0;
 
-			System.out.println("receiveJobMessage job is invoked...");
+		System.out.println("receiveJobMessage job is invoked...");
+		try {
 			while (!Thread.currentThread().isInterrupted()) {
 
-				List<Message> msgs = sqsClient.receiveMessage(
-						new ReceiveMessageRequest(sqsQueueURL)
-								.withMaxNumberOfMessages(10)).getMessages();
-
-				if (msgs.size() > 0) {
-					for (Message m : msgs) {
-						JsonParser jpMessage = factory.createJsonParser(m
-								.getBody());
-						JsonNode jobMessageNode = mapper.readTree(jpMessage);
-						String jobMessage = jobMessageNode.get("Message")
-								.getTextValue();
-
-						JsonParser jpDesc = factory
-								.createJsonParser(jobMessage);
-						JsonNode jobDescNode = mapper.readTree(jpDesc);
-
-						final String retrievedJobId = jobDescNode.get("JobId")
-								.getTextValue();
-						final String statusCode = jobDescNode.get("StatusCode")
-								.getTextValue();
-						final String archiveId = jobDescNode.get("ArchiveId")
-								.getTextValue();
-						String vaultNameTmp = jobDescNode.get("VaultARN")
-								.getTextValue();
-
-						if (vaultNameTmp != null && !vaultNameTmp.equals("")) {
-							int ind = vaultNameTmp.lastIndexOf('/');
-							if (ind > 0) {
-								vaultNameTmp = vaultNameTmp.substring(ind + 1);
-							}
-						}
-						final String vaultName = vaultNameTmp;
-
-						if (isInWaitingList(archiveId)
-								&& statusCode.equals("Succeeded")
-								&& !isRegistered(archiveId)) {
-							// Download file to local cache
-
-							DownloadArchiveCallback downloadPostProcessor = new DownloadArchiveCallback(
-									"sender", "password", "to");
-
-							DownloadArchiveThread downloadArchiveThread = new DownloadArchiveThread(
-									null, jobPool, downloadPostProcessor)
-									.withArchiveId(archiveId)
-									.withcacheDirectory(cacheDirectory)
-									.withVaultName(vaultName)
-									.withGlacierClientCredential(accessKey,
-											secretKey, region)
-									.withJobId(retrievedJobId);
-
-							System.out
-									.println("before downloadArchiveThread.start() ");
-
-							downloadArchiveThread.start();
-
-							register(archiveId, new DownloadArchiveThreadInfo(
-									retrievedJobId, archiveId,
-									downloadArchiveThread));
-
-							System.out
-									.println("after downloadArchiveThread.start() ");
-							
-							deleteJobMessage(m);
+				List<Message> msgs;
+				try {
+					msgs = sqsClient.receiveMessage(
+							new ReceiveMessageRequest(sqsQueueURL)
+									.withMaxNumberOfMessages(MAX_MESSAGES)
+									.withAttributeNames("SentTimestamp",
+											"ApproximateReceiveCount"))
+							.getMessages();
+				} catch (AmazonClientException e) {
+					e.printStackTrace();
+					Thread.sleep(sleepTime * 1000);
+					continue;
+				}
+
+				for (final Message m : msgs) {
+					parserPool.execute(new Runnable() {
+						@Override
+						public void run() {
+							handleJobMessage(m);
 						}
-					}
+					});
+				}
 
+				if (msgs.size() == MAX_MESSAGES) {
+					idleSleep = 0;
+					synchronized (wakeUp) {
+						wakeUp.notifyAll();
+					}
+				} else if (msgs.isEmpty()) {
+					deleteBatcher.flush();
+					sampleBacklog();
+
+					idleSleep = idleSleep == 0 ? minSleepTime : Math.min(
+							idleSleep * 2, sleepTime * 1000);
+					synchronized (wakeUp) {
+						wakeUp.wait(idleSleep);
+					}
 				} else {
-					Thread.sleep(sleepTime * 1000);
+					idleSleep = 0;
+					deleteBatcher.flushIfDue();
 				}
 			}
 		} catch (InterruptedException e) {
@@ -198,55 +305,298 @@ public class GlacierMessageListener implements Runnable {
 		System.out.println("receiveJobMessage is over!");
 	}
 
-	synchronized public static boolean isRegistered(String archiveId) {
-		return jobPool.itemExists(archiveId);
-	}
+	private void sampleBacklog() {
 
-	synchronized public static DownloadArchiveThreadInfo register(
-			String archiveId, DownloadArchiveThreadInfo ti) {
-		return jobPool.putItem(archiveId, ti);
+		long now = System.currentTimeMillis();
+		if (metrics == null || now - lastBacklogSample < BACKLOG_SAMPLE_INTERVAL) {
+			return;
+		}
+		lastBacklogSample = now;
+
+		try {
+			String backlog = sqsClient
+					.getQueueAttributes(
+							new GetQueueAttributesRequest().withQueueUrl(
+									sqsQueueURL).withAttributeNames(
+									"ApproximateNumberOfMessages"))
+					.getAttributes().get("ApproximateNumberOfMessages");
+			metrics.sqsBacklog(parseLong(backlog, -1));
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+		}
 	}
 
-	synchronized public static boolean isInWaitingList(String archiveId) {
-		return waitingList.containsKey(archiveId);
+	private void handleJobMessage(Message m) {
+
+		if (metrics != null) {
+			metrics.messageReceived(System.currentTimeMillis()
+					- parseLong(m.getAttributes().get("SentTimestamp"),
+							System.currentTimeMillis()));
+		}
+
+		String topicArn = null;
+		String retrievedJobId = null;
+		String statusCode = null;
+		String archiveId = null;
+		String vaultNameTmp = null;
+		String treeHash = null;
+		try {
+			JsonFactory factory = mapper.getJsonFactory();
+
+			JsonNode jobMessageNode = mapper.readTree(factory
+					.createJsonParser(m.getBody()));
+			String jobMessage = textOf(jobMessageNode, "Message");
+			topicArn = textOf(jobMessageNode, "TopicArn");
+
+			JsonNode jobDescNode = jobMessage == null ? null : mapper
+					.readTree(factory.createJsonParser(jobMessage));
+
+			retrievedJobId = textOf(jobDescNode, "JobId");
+			statusCode = textOf(jobDescNode, "StatusCode");
+			archiveId = textOf(jobDescNode, "ArchiveId");
+			vaultNameTmp = textOf(jobDescNode, "VaultARN");
+			treeHash = textOf(jobDescNode, "SHA256TreeHash");
+		} catch (IOException e) {
+			// unreadable, deleted below
+			retrievedJobId = null;
+		}
+
+		if (retrievedJobId == null || statusCode == null || archiveId == null
+				|| vaultNameTmp == null) {
+			// not a Glacier job notification, it would never be handled
+			System.out.println("Deleting an unreadable message: "
+					+ m.getMessageId());
+			deleteJobMessage(m);
+			return;
+		}
+
+		if (!vaultNameTmp.equals("")) {
+			int ind = vaultNameTmp.lastIndexOf('/');
+			if (ind > 0) {
+				vaultNameTmp = vaultNameTmp.substring(ind + 1);
+			}
+		}
+		final String vaultName = vaultNameTmp;
+
+		GlacierMessageListener owner = JobMessageRouter.route(topicArn);
+		if (owner == null && registry.isInWaitingList(archiveId)) {
+			// a job requested before the topics were named after the node
+			owner = this;
+		}
+
+		if (owner != null) {
+			owner.handleJobNotification(m, vaultName, archiveId,
+					retrievedJobId, statusCode, treeHash);
+		} else {
+			handleForeignMessage(m, topicArn);
+		}
 	}
 
-	synchronized public static void removeFromWaitingList(String archiveId) {
-		waitingList.remove(archiveId);
+	/**
+	 * @return the text of the field, null when the node or the field is
+	 *         missing
+	 */
+	private static String textOf(JsonNode node, String field) {
+		JsonNode value = node == null ? null : node.get(field);
+		return value == null ? null : value.getTextValue();
 	}
 
-	synchronized public static boolean putIntoWaitingList(String archiveId,
-			String jobId) {
-		if (!isInWaitingList(archiveId)) {
-			waitingList.put(archiveId, jobId);
-			return true;
+	private void handleJobNotification(Message m, String vaultName,
+			String archiveId, String jobId, String statusCode, String treeHash) {
+
+		PendingJob job = registry.getPendingJob(archiveId);
+
+		if (job != null) {
+			registry.timeline().record(vaultName, archiveId,
+					RetrievalTimeline.Stage.NOTIFICATION_RECEIVED);
 		}
 
-		return false;
+		if (job != null && statusCode.equals("Succeeded")) {
+
+			// the message stays in flight until the archive is cached and
+			// verified
+			if (inFlightMessages.hold(archiveId, m.getReceiptHandle())) {
+				// Download file to local cache
+				startDownload(vaultName, archiveId, jobId, treeHash);
+			} else {
+				// a duplicate of the notification being handled
+				deleteJobMessage(m);
+			}
+		} else if (job != null && statusCode.equals("Failed")) {
+			System.out.println("Retrieval job " + jobId
+					+ " failed for archive " + archiveId);
+			registry.removeFromWaitingList(archiveId);
+			deleteJobMessage(m);
+		} else {
+			// the archive was already downloaded, e.g. after the reconciler
+			// found the job completed
+			System.out.println("Deleting a stale notification for job " + jobId);
+			deleteJobMessage(m);
+		}
 	}
 
-	synchronized public static void unregister(String archiveId) {
+	/**
+	 * A message that no connector in this JVM owns. It is hidden for
+	 * {@link #foreignVisibilityTimeout} seconds, giving the consumers of the
+	 * owning node a chance to receive it, and deleted once it is older than a
+	 * job output stays available or was received too often. A node that was
+	 * down while its notifications were dropped finds its completed jobs with
+	 * the {@link JobReconciler}.
+	 */
+	private void handleForeignMessage(Message m, String topicArn) {
+
+		Map<String, String> attributes = m.getAttributes();
+		long sentTimestamp = parseLong(attributes.get("SentTimestamp"),
+				System.currentTimeMillis());
+		long receiveCount = parseLong(
+				attributes.get("ApproximateReceiveCount"), 1);
+
+		if (System.currentTimeMillis() - sentTimestamp > ORPHAN_AGE
+				|| receiveCount > maxForeignReceives) {
+			System.out.println("Deleting an orphaned message from " + topicArn
+					+ " received " + receiveCount + " times.");
+			deleteJobMessage(m);
+			return;
+		}
+
+		try {
+			sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest(
+					sqsQueueURL, m.getReceiptHandle(), foreignVisibilityTimeout));
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+		}
+	}
 
-		removeFromWaitingList(archiveId);
-		jobPool.removeItem(archiveId);
+	private static long parseLong(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
 	}
 
-	synchronized public static void clear() {
+	/**
+	 * Start downloading the output of a completed retrieval job into the local
+	 * cache, unless the archive is already being downloaded. The held job
+	 * notification, if any, is deleted once the download is verified against
+	 * the tree hash and released for redelivery if the download fails.
+	 */
+	void startDownload(final String vaultName, String archiveId, String jobId,
+			String treeHash) {
+
+		final DownloadArchiveCallback downloadNotifier = new DownloadArchiveCallback(
+				notifier, registry);
+
+		CallbackInterface downloadPostProcessor = new CallbackInterface() {
+			@Override
+			public void CallBack(String archiveId) {
+				inFlightMessages.acknowledge(archiveId);
+				PendingJob job = registry.getPendingJob(archiveId);
+				if (metrics != null && job != null) {
+					metrics.jobCompleted(System.currentTimeMillis()
+							- job.requestedAt);
+				}
+				if (availabilityListener != null) {
+					try {
+						availabilityListener.archiveAvailable(vaultName,
+								archiveId);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+				downloadNotifier.CallBack(archiveId);
+			}
+		};
+
+		CallbackInterface downloadFailureProcessor = new CallbackInterface() {
+			@Override
+			public void CallBack(String archiveId) {
+				System.out.println("Download of archive " + archiveId
+						+ " failed, it will be retried.");
+				inFlightMessages.release(archiveId);
+			}
+		};
+
+		DownloadArchiveThread downloadArchiveThread = new DownloadArchiveThread(
+				null, registry.pool(), downloadPostProcessor).withArchiveId(archiveId)
+				.withcacheDirectory(cacheDirectory).withVaultName(vaultName)
+				.withMetrics(metrics).withTimeline(registry.timeline())
+				.withGlacierClientCredential(accessKey, secretKey, region)
+				.withJobId(jobId).withTreeHash(treeHash)
+				.withFailureProcessor(downloadFailureProcessor);
+
+		PendingJob job = registry.getPendingJob(archiveId);
+		downloadArchiveThread.withPrefetch(job != null && job.prefetch);
+
+		DownloadArchiveThreadInfo info = new DownloadArchiveThreadInfo(jobId,
+				archiveId, downloadArchiveThread);
+
+		synchronized (registry) {
+			if (registry.isRegistered(archiveId)) {
+				// a duplicate notification held while the download it
+				// duplicates is finishing
+				inFlightMessages.acknowledge(archiveId);
+				return;
+			}
+
+			if (!registry.register(archiveId, info)) {
+				System.out.println("Too many downloads, archive " + archiveId
+						+ " is downloaded later.");
+				inFlightMessages.release(archiveId);
+				return;
+			}
+		}
 
-		waitingList.clear();
-		jobPool.clear();
+		registry.timeline().record(vaultName, archiveId,
+				RetrievalTimeline.Stage.DOWNLOAD_QUEUED);
 
+		registry.pool().execute(info);
 	}
 
 	@Override
 	public void run() {
 
-		try {
-
-			receiveJobMessage();
+		inFlightMessages.withVisibility(visibilityTimeout, retryDelay).start();
+		parserPool = new ThreadPoolExecutor(parserCount, parserCount, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						MAX_MESSAGES * consumerCount * 10),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		List<Thread> consumers = new ArrayList<Thread>();
+		for (int i = 0; i < consumerCount; i++) {
+			Thread consumer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receiveJobMessage();
+				}
+			}, "GlacierMessageConsumer-" + i);
+			consumer.start();
+			consumers.add(consumer);
+		}
 
-		} catch (InterruptedException | IOException e) {
-			e.printStackTrace();
+		try {
+			for (Thread consumer : consumers) {
+				consumer.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread consumer : consumers) {
+				consumer.interrupt();
+			}
+		} finally {
+			parserPool.shutdown();
+			try {
+				parserPool.awaitTermination(sleepTime, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			inFlightMessages.shutdown();
+			deleteBatcher.flush();
+			if (topicNamePrefix != null) {
+				JobMessageRouter.unregister(topicNamePrefix);
+			}
 		}
 
 	}
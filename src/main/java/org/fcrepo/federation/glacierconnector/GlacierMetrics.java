@@ -0,0 +1,528 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * Counters and gauges of the whole retrieval pipeline of one connector:
+ * pending jobs, SQS notifications, downloads, local cache, uploads and AWS
+ * calls, plus the latency histograms of the connector SPI entry points.
+ * Recording only updates atomic counters, so it is cheap enough for the hot
+ * paths; averages, rates and percentiles are computed when the metrics are
+ * read.
+ * <p>
+ * The metrics are exposed as an MXBean named
+ * <code>org.fcrepo.federation.glacierconnector:type=GlacierMetrics,name=&lt;sourceName&gt;</code>
+ * and can be pushed to a {@link MetricsReporter}.
+ */
+public class GlacierMetrics implements GlacierMetricsMXBean {
+
+	private final AtomicLong completedJobs = new AtomicLong();
+	private final AtomicLong jobCompletionMillis = new AtomicLong();
+	private final AtomicLong maxJobCompletionMillis = new AtomicLong();
+
+	private final AtomicLong sqsMessages = new AtomicLong();
+	private final AtomicLong sqsReceiveLagMillis = new AtomicLong();
+	private volatile long sqsBacklog = -1;
+	private final AtomicLong deletedMessages = new AtomicLong();
+	private final AtomicLong failedMessageDeletes = new AtomicLong();
+	private final AtomicLong expiredHeldMessages = new AtomicLong();
+
+	private final AtomicLong jobReconciliations = new AtomicLong();
+	private volatile long nextJobReconciliationMillis = -1;
+
+	private final AtomicLong activeDownloads = new AtomicLong();
+	private final AtomicLong completedDownloads = new AtomicLong();
+	private final AtomicLong failedDownloads = new AtomicLong();
+	private final AtomicLong downloadedBytes = new AtomicLong();
+	private final AtomicLong downloadMillis = new AtomicLong();
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong streamedReads = new AtomicLong();
+
+	private final AtomicLong prefetches = new AtomicLong();
+
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong uploadedBytes = new AtomicLong();
+	private final AtomicLong uploadMillis = new AtomicLong();
+	private final AtomicLong dedupHits = new AtomicLong();
+	private final AtomicLong dedupMisses = new AtomicLong();
+	private final AtomicLong dedupBytes = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicLong> awsCalls = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> awsErrors = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final SpiLatency spiLatency = new SpiLatency();
+
+	private CacheCatalog cacheCatalog;
+	private RetrievalRegistry registry;
+
+	private ObjectName objectName;
+	private ScheduledExecutorService reporterScheduler;
+
+	private final RequestHandler requestHandler = new RequestHandler() {
+		@Override
+		public void beforeRequest(Request<?> request) {
+			increment(awsCalls, apiName(request));
+		}
+
+		@Override
+		public void afterResponse(Request<?> request, Object response,
+				TimingInfo timingInfo) {
+		}
+
+		@Override
+		public void afterError(Request<?> request, Exception e) {
+			increment(awsErrors, apiName(request));
+		}
+	};
+
+	public GlacierMetrics withCacheCatalog(CacheCatalog cacheCatalog) {
+		this.cacheCatalog = cacheCatalog;
+		return this;
+	}
+
+	public GlacierMetrics withRegistry(RetrievalRegistry registry) {
+		this.registry = registry;
+		return this;
+	}
+
+	/**
+	 * Count the calls and errors of the given AWS client per API.
+	 */
+	public <T extends AmazonWebServiceClient> T instrument(T client) {
+		client.addRequestHandler(requestHandler);
+		return client;
+	}
+
+	synchronized public void register(String sourceName) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.fcrepo.federation.glacierconnector:type=GlacierMetrics,name="
+						+ ObjectName.quote(sourceName));
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+		objectName = name;
+	}
+
+	synchronized public void startReporting(final String sourceName,
+			final MetricsReporter reporter, long intervalSeconds) {
+		if (reporterScheduler == null && intervalSeconds > 0) {
+			reporterScheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GlacierMetricsReporter");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			reporterScheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reporter.report(sourceName, GlacierMetrics.this);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	synchronized public void shutdown() {
+		if (reporterScheduler != null) {
+			reporterScheduler.shutdownNow();
+			reporterScheduler = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+	}
+
+	public SpiLatency spiLatency() {
+		return spiLatency;
+	}
+
+	// recording
+
+	public void jobCompleted(long millis) {
+		completedJobs.incrementAndGet();
+		jobCompletionMillis.addAndGet(millis);
+		max(maxJobCompletionMillis, millis);
+	}
+
+	public void messageReceived(long lagMillis) {
+		sqsMessages.incrementAndGet();
+		sqsReceiveLagMillis.addAndGet(Math.max(0, lagMillis));
+	}
+
+	public void sqsBacklog(long messages) {
+		sqsBacklog = messages;
+	}
+
+	public void messagesDeleted(int deleted, int failed) {
+		deletedMessages.addAndGet(deleted);
+		failedMessageDeletes.addAndGet(failed);
+	}
+
+	/**
+	 * A notification released because SQS would not keep it invisible any
+	 * longer.
+	 */
+	public void heldMessageExpired() {
+		expiredHeldMessages.incrementAndGet();
+	}
+
+	public void jobsReconciled(long nextDelayMillis) {
+		jobReconciliations.incrementAndGet();
+		nextJobReconciliationMillis = nextDelayMillis;
+	}
+
+	public void downloadStarted() {
+		activeDownloads.incrementAndGet();
+	}
+
+	public void downloadFinished(boolean succeeded, long bytes, long millis) {
+		activeDownloads.decrementAndGet();
+		if (succeeded) {
+			completedDownloads.incrementAndGet();
+		} else {
+			failedDownloads.incrementAndGet();
+		}
+		downloadedBytes.addAndGet(bytes);
+		downloadMillis.addAndGet(millis);
+	}
+
+	public void cacheHit() {
+		cacheHits.incrementAndGet();
+	}
+
+	public void cacheMiss() {
+		cacheMisses.incrementAndGet();
+	}
+
+	public void streamedRead() {
+		streamedReads.incrementAndGet();
+	}
+
+	public void prefetched() {
+		prefetches.incrementAndGet();
+	}
+
+	public void uploaded(long bytes, long millis) {
+		uploads.incrementAndGet();
+		uploadedBytes.addAndGet(bytes);
+		uploadMillis.addAndGet(millis);
+	}
+
+	/**
+	 * A stored binary linked to an archive already holding its content.
+	 */
+	public void deduplicated(long bytes) {
+		dedupHits.incrementAndGet();
+		dedupBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * A stored binary whose content no archive held.
+	 */
+	public void notDeduplicated() {
+		dedupMisses.incrementAndGet();
+	}
+
+	// reading
+
+	@Override
+	public int getPendingRetrievalJobs() {
+		return registry == null ? 0 : registry.getPendingJobCount();
+	}
+
+	@Override
+	public long getCompletedRetrievalJobs() {
+		return completedJobs.get();
+	}
+
+	@Override
+	public long getAverageJobCompletionMillis() {
+		return average(jobCompletionMillis.get(), completedJobs.get());
+	}
+
+	@Override
+	public long getMaxJobCompletionMillis() {
+		return maxJobCompletionMillis.get();
+	}
+
+	@Override
+	public long getSqsMessagesReceived() {
+		return sqsMessages.get();
+	}
+
+	@Override
+	public long getAverageSqsReceiveLagMillis() {
+		return average(sqsReceiveLagMillis.get(), sqsMessages.get());
+	}
+
+	@Override
+	public long getSqsBacklog() {
+		return sqsBacklog;
+	}
+
+	@Override
+	public long getDeletedSqsMessages() {
+		return deletedMessages.get();
+	}
+
+	@Override
+	public long getFailedSqsMessageDeletes() {
+		return failedMessageDeletes.get();
+	}
+
+	@Override
+	public long getExpiredHeldSqsMessages() {
+		return expiredHeldMessages.get();
+	}
+
+	@Override
+	public long getJobReconciliations() {
+		return jobReconciliations.get();
+	}
+
+	@Override
+	public long getNextJobReconciliationMillis() {
+		return nextJobReconciliationMillis;
+	}
+
+	@Override
+	public long getActiveDownloads() {
+		return activeDownloads.get();
+	}
+
+	@Override
+	public long getQueuedDownloads() {
+		return registry == null ? 0 : Math.max(0,
+				registry.getRegisteredCount() - activeDownloads.get());
+	}
+
+	@Override
+	public long getCompletedDownloads() {
+		return completedDownloads.get();
+	}
+
+	@Override
+	public long getFailedDownloads() {
+		return failedDownloads.get();
+	}
+
+	@Override
+	public long getDownloadedBytes() {
+		return downloadedBytes.get();
+	}
+
+	@Override
+	public long getDownloadBytesPerSecond() {
+		return average(downloadedBytes.get() * 1000, downloadMillis.get());
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public long getStreamedReads() {
+		return streamedReads.get();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.get();
+		long total = hits + cacheMisses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getPrefetchRequests() {
+		return prefetches.get();
+	}
+
+	@Override
+	public int getPendingPrefetches() {
+		return registry == null ? 0 : registry.getPendingPrefetchCount();
+	}
+
+	@Override
+	public long getCachedArchives() {
+		return cacheCatalog == null ? 0 : cacheCatalog.size();
+	}
+
+	@Override
+	public long getCacheBytesUsed() {
+		return cacheCatalog == null ? 0 : cacheCatalog.getBytesUsed();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		return cacheCatalog == null ? 0 : cacheCatalog.getEvictions();
+	}
+
+	@Override
+	public long getUploads() {
+		return uploads.get();
+	}
+
+	@Override
+	public long getUploadedBytes() {
+		return uploadedBytes.get();
+	}
+
+	@Override
+	public long getUploadBytesPerSecond() {
+		return average(uploadedBytes.get() * 1000, uploadMillis.get());
+	}
+
+	@Override
+	public long getDedupHits() {
+		return dedupHits.get();
+	}
+
+	@Override
+	public long getDedupMisses() {
+		return dedupMisses.get();
+	}
+
+	@Override
+	public double getDedupHitRatio() {
+		long hits = dedupHits.get();
+		long total = hits + dedupMisses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getDedupBytesSaved() {
+		return dedupBytes.get();
+	}
+
+	@Override
+	public Map<String, Long> getAwsCalls() {
+		return snapshot(awsCalls);
+	}
+
+	@Override
+	public Map<String, Long> getAwsErrors() {
+		return snapshot(awsErrors);
+	}
+
+	@Override
+	public Map<String, LatencySnapshot> getSpiLatencies() {
+		return spiLatency.snapshot();
+	}
+
+	@Override
+	public Map<String, LatencySnapshot> resetSpiLatencies() {
+		return spiLatency.snapshotAndReset();
+	}
+
+	@Override
+	public List<String> getRetrievalTimeline(String archiveId) {
+		return registry == null ? Collections.<String> emptyList() : registry
+				.timeline().describe(archiveId);
+	}
+
+	@Override
+	public String toString() {
+		return "pendingJobs=" + getPendingRetrievalJobs() + ", completedJobs="
+				+ getCompletedRetrievalJobs() + ", avgJobCompletionMillis="
+				+ getAverageJobCompletionMillis() + ", sqsMessages="
+				+ getSqsMessagesReceived() + ", avgSqsLagMillis="
+				+ getAverageSqsReceiveLagMillis() + ", sqsBacklog="
+				+ getSqsBacklog() + ", deletedSqsMessages="
+				+ getDeletedSqsMessages() + ", jobReconciliations="
+				+ getJobReconciliations() + ", activeDownloads="
+				+ getActiveDownloads() + ", queuedDownloads="
+				+ getQueuedDownloads() + ", downloadBytesPerSecond="
+				+ getDownloadBytesPerSecond() + ", cacheHitRatio="
+				+ getCacheHitRatio() + ", prefetchRequests="
+				+ getPrefetchRequests() + ", cacheBytesUsed="
+				+ getCacheBytesUsed() + ", cacheEvictions="
+				+ getCacheEvictions() + ", uploadBytesPerSecond="
+				+ getUploadBytesPerSecond() + ", dedupHitRatio="
+				+ getDedupHitRatio() + ", awsCalls=" + getAwsCalls()
+				+ ", awsErrors=" + getAwsErrors();
+	}
+
+	private static String apiName(Request<?> request) {
+		String name = request.getOriginalRequest().getClass().getSimpleName();
+		return name.endsWith("Request") ? name.substring(0, name.length()
+				- "Request".length()) : name;
+	}
+
+	private static void increment(ConcurrentMap<String, AtomicLong> counters,
+			String key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	private static Map<String, Long> snapshot(
+			ConcurrentMap<String, AtomicLong> counters) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current;
+		while ((current = max.get()) < value) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	private static long average(long total, long count) {
+		return count == 0 ? 0 : total / count;
+	}
+
+}
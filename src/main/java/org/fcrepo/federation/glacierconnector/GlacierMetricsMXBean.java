@@ -0,0 +1,114 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the {@link GlacierMetrics} of one connector.
+ */
+public interface GlacierMetricsMXBean {
+
+	public int getPendingRetrievalJobs();
+
+	public long getCompletedRetrievalJobs();
+
+	public long getAverageJobCompletionMillis();
+
+	public long getMaxJobCompletionMillis();
+
+	public long getSqsMessagesReceived();
+
+	public long getAverageSqsReceiveLagMillis();
+
+	public long getSqsBacklog();
+
+	public long getDeletedSqsMessages();
+
+	public long getFailedSqsMessageDeletes();
+
+	/**
+	 * @return the notifications released because their download outlasted
+	 *         the longest time SQS keeps a message invisible
+	 */
+	public long getExpiredHeldSqsMessages();
+
+	public long getJobReconciliations();
+
+	/**
+	 * @return the delay before the next job reconciliation, as scheduled by
+	 *         the last one, or -1 before the first one
+	 */
+	public long getNextJobReconciliationMillis();
+
+	public long getActiveDownloads();
+
+	public long getQueuedDownloads();
+
+	public long getCompletedDownloads();
+
+	public long getFailedDownloads();
+
+	public long getDownloadedBytes();
+
+	public long getDownloadBytesPerSecond();
+
+	public long getCacheHits();
+
+	public long getCacheMisses();
+
+	public long getStreamedReads();
+
+	public double getCacheHitRatio();
+
+	public long getPrefetchRequests();
+
+	public int getPendingPrefetches();
+
+	public long getCachedArchives();
+
+	public long getCacheBytesUsed();
+
+	public long getCacheEvictions();
+
+	public long getUploads();
+
+	public long getUploadedBytes();
+
+	public long getUploadBytesPerSecond();
+
+	public long getDedupHits();
+
+	public long getDedupMisses();
+
+	public double getDedupHitRatio();
+
+	/**
+	 * @return the bytes not uploaded because an archive of the vault already
+	 *         held them
+	 */
+	public long getDedupBytesSaved();
+
+	public Map<String, Long> getAwsCalls();
+
+	public Map<String, Long> getAwsErrors();
+
+	/**
+	 * @return the latency percentiles of the SPI entry points since the last
+	 *         reset, per method and per method and vault
+	 */
+	public Map<String, LatencySnapshot> getSpiLatencies();
+
+	/**
+	 * End the current latency interval.
+	 * 
+	 * @return the latency percentiles of the interval just ended
+	 */
+	public Map<String, LatencySnapshot> resetSpiLatencies();
+
+	/**
+	 * @return the retrieval stages of the archive still in memory, with the
+	 *         time spent between them
+	 */
+	public List<String> getRetrievalTimeline(String archiveId);
+
+}
@@ -3,7 +3,7 @@ package org.fcrepo.federation.glacierconnector;
 import java.io.InputStream;
 import com.amazonaws.services.cloudsearch.model.ResourceNotFoundException;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
-import com.amazonaws.services.glacier.TreeHashGenerator;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.amazonaws.services.glacier.model.CreateVaultRequest;
@@ -68,21 +68,23 @@ public class GlacierUtil {
 		return vaultExists;
 	}
 
-	private static void listVaults(AmazonGlacierClient client) {
-		ListVaultsRequest listVaultsRequest = new ListVaultsRequest();
-		ListVaultsResult listVaultsResult = client
-				.listVaults(listVaultsRequest);
-
-		List<DescribeVaultOutput> vaultList = listVaultsResult.getVaultList();
-		System.out.println("\nDescribing all vaults (vault list):");
-		for (DescribeVaultOutput vault : vaultList) {
-			System.out.println("\nCreationDate: " + vault.getCreationDate()
-					+ "\nLastInventoryDate: " + vault.getLastInventoryDate()
-					+ "\nNumberOfArchives: " + vault.getNumberOfArchives()
-					+ "\nSizeInBytes: " + vault.getSizeInBytes()
-					+ "\nVaultARN: " + vault.getVaultARN() + "\nVaultName: "
-					+ vault.getVaultName());
-		}
+	/**
+	 * List all the vaults of the account, <code>limit</code> vaults per call.
+	 */
+	public static List<DescribeVaultOutput> listVaults(
+			AmazonGlacierClient client, int limit) {
+
+		List<DescribeVaultOutput> vaultList = new ArrayList<DescribeVaultOutput>();
+		String marker = null;
+		do {
+			ListVaultsResult listVaultsResult = client
+					.listVaults(new ListVaultsRequest().withLimit(
+							String.valueOf(limit)).withMarker(marker));
+			vaultList.addAll(listVaultsResult.getVaultList());
+			marker = listVaultsResult.getMarker();
+		} while (marker != null);
+
+		return vaultList;
 	}
 
 	private static void deleteVault(AmazonGlacierClient client, String vaultName) {
@@ -92,19 +94,31 @@ public class GlacierUtil {
 		System.out.println("Deleted vault: " + vaultName);
 	}
 
-	public static void upload(AmazonGlacierClient client, String vaultName,
-			String id, InputStream is, long streamLength) throws Exception {
-		UploadArchiveRequest request = new UploadArchiveRequest()
-				.withVaultName(vaultName)
-				.withChecksum(TreeHashGenerator.calculateTreeHash(is))
-				.withBody(is).withContentLength(streamLength);
+	/**
+	 * Upload a staged binary, with the tree hash computed while staging it.
+	 * 
+	 * @return the id of the uploaded archive
+	 */
+	public static String upload(AmazonGlacierClient client, String vaultName,
+			String id, StagedUpload staged) throws Exception {
+		InputStream is = staged.newStream();
+		UploadArchiveResult uploadArchiveResult;
+		try {
+			UploadArchiveRequest request = new UploadArchiveRequest()
+					.withVaultName(vaultName)
+					.withChecksum(staged.getTreeHash()).withBody(is)
+					.withContentLength(staged.getSize());
 
-		request.setArchiveDescription(id);
+			request.setArchiveDescription(id);
 
-		UploadArchiveResult uploadArchiveResult = client.uploadArchive(request);
+			uploadArchiveResult = client.uploadArchive(request);
+		} finally {
+			is.close();
+		}
 
 		System.out.println("ArchiveID: " + uploadArchiveResult.getArchiveId());
 
+		return uploadArchiveResult.getArchiveId();
 	}
 
 	public static void delete(AmazonGlacierClient client, String vaultName,
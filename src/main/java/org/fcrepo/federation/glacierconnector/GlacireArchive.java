@@ -4,7 +4,6 @@ package org.fcrepo.federation.glacierconnector;
 import org.apache.avro.reflect.Nullable;
 import org.jgroups.util.UUID;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
 import com.amazonaws.services.glacier.model.InitiateJobRequest;
 import com.amazonaws.services.glacier.model.InitiateJobResult;
@@ -50,14 +49,17 @@ public class GlacireArchive {
 	}
 
 	public GlacireArchive(String accessKey, String secretKey, String region) {
-		BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey,
-				secretKey);
+		this(accessKey, secretKey, region, null);
+	}
+
+	public GlacireArchive(String accessKey, String secretKey, String region,
+			GlacierMetrics metrics) {
+
+		this.client = GlacierClientFactory.newClient(accessKey, secretKey,
+				"https://glacier." + region + ".amazonaws.com", metrics);
+		this.snsClient = GlacierClientFactory.newSNSClient(accessKey,
+				secretKey, region, metrics);
 
-		this.client = new AmazonGlacierClient(credentials);
-		this.client.setEndpoint("https://glacier." + region + ".amazonaws.com");
-		this.snsClient = new AmazonSNSClient(credentials);
-		this.snsClient.setEndpoint("https://sns." + region + ".amazonaws.com");
-		
 		this.accessKey = accessKey;
 		this.secretKey = secretKey;
 		this.region = region;
@@ -69,6 +71,13 @@ public class GlacireArchive {
 		return this;
 	}
 	
+	public GlacireArchive withSNSTopicNamePrefix(String snsTopicNamePrefix) {
+		if (snsTopicNamePrefix != null && !snsTopicNamePrefix.equals("")) {
+			this.snsTopicNamePrefix = snsTopicNamePrefix;
+		}
+		return this;
+	}
+
 	public GlacireArchive withSNS(String sqsQueueARN) {
 		this.sqsQueueARN = sqsQueueARN;
 		
@@ -100,6 +109,18 @@ public class GlacireArchive {
 		
 		this.archiveId = archiveId;
 
+		return sendDownloadRequest(vaultName, type, archiveId);
+	}
+
+	/**
+	 * send the download request to Glacier, for the given vault; the topic is
+	 * the only state used, so concurrent requests can share this archive
+	 * 
+	 * @return jobId
+	 */
+	public String sendDownloadRequest(String vaultName, String type,
+			@Nullable String archiveId) {
+
 		boolean isDownloadArcive = archiveId != null && !archiveId.equals("") ? true
 				: false;
 
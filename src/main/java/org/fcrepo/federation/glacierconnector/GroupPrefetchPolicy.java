@@ -0,0 +1,61 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Prefetch the other archives of the explicit groups the archive read belongs
+ * to. The groups are read from a JSON file holding arrays of archive ids:
+ * <code>{"groups" : [ ["id1", "id2"], ["id3", "id4", "id5"] ]}</code>.
+ */
+public class GroupPrefetchPolicy implements PrefetchPolicy {
+
+	private Map<String, List<String>> groups = Collections.emptyMap();
+
+	public GroupPrefetchPolicy withGroups(File groupsFile) throws IOException {
+
+		Map<String, List<String>> groups = new HashMap<String, List<String>>();
+
+		JsonNode root = new ObjectMapper().readTree(groupsFile);
+		JsonNode groupList = root.get("groups");
+		if (groupList != null) {
+			for (JsonNode group : groupList) {
+				List<String> archiveIds = new ArrayList<String>();
+				for (JsonNode archiveId : group) {
+					archiveIds.add(archiveId.getTextValue());
+				}
+				for (String archiveId : archiveIds) {
+					List<String> members = groups.get(archiveId);
+					if (members == null) {
+						members = new ArrayList<String>();
+						groups.put(archiveId, members);
+					}
+					for (String member : archiveIds) {
+						if (!member.equals(archiveId)
+								&& !members.contains(member)) {
+							members.add(member);
+						}
+					}
+				}
+			}
+		}
+
+		this.groups = groups;
+		return this;
+	}
+
+	@Override
+	public List<String> related(List<ArchiveMetadata> archives, int index) {
+		List<String> related = groups.get(archives.get(index).archiveId);
+		return related != null ? related : Collections.<String> emptyList();
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+
+/**
+ * The job notifications whose archive is being downloaded. A message is kept
+ * invisible to the other consumers by a periodic
+ * <code>ChangeMessageVisibility</code> heartbeat while the download runs, and
+ * is only deleted by {@link #acknowledge(String)} once the cached file is
+ * complete and verified. A failed download {@link #release(String) releases}
+ * its message, which SQS then delivers again so that the download is retried.
+ * <p>
+ * SQS does not keep a message invisible for more than 12 hours after it was
+ * received, a message held for longer is released.
+ */
+public class InFlightMessages implements Runnable {
+
+	private static final long MAX_HOLD_TIME = 12 * 60 * 60 * 1000L;
+
+	private static class HeldMessage {
+		final String receiptHandle;
+		final long receivedAt = System.currentTimeMillis();
+
+		HeldMessage(String receiptHandle) {
+			this.receiptHandle = receiptHandle;
+		}
+	}
+
+	private final AmazonSQS sqsClient;
+	private final String sqsQueueURL;
+	private final MessageDeleteBatcher deleteBatcher;
+	private GlacierMetrics metrics;
+
+	private int visibilityTimeout = 15 * 60;
+	private int retryDelay = 60;
+
+	private final Map<String, HeldMessage> messages = new HashMap<String, HeldMessage>();
+
+	private ScheduledExecutorService scheduler;
+
+	public InFlightMessages(AmazonSQS sqsClient, String sqsQueueURL,
+			MessageDeleteBatcher deleteBatcher) {
+		this.sqsClient = sqsClient;
+		this.sqsQueueURL = sqsQueueURL;
+		this.deleteBatcher = deleteBatcher;
+	}
+
+	/**
+	 * @param visibilityTimeout
+	 *            the visibility timeout, in seconds, set by every heartbeat;
+	 *            the heartbeat runs three times per timeout
+	 * @param retryDelay
+	 *            the delay, in seconds, before a released message is
+	 *            delivered again
+	 */
+	public InFlightMessages withVisibility(int visibilityTimeout, int retryDelay) {
+		this.visibilityTimeout = Math.max(30, visibilityTimeout);
+		this.retryDelay = Math.max(0, retryDelay);
+		return this;
+	}
+
+	public InFlightMessages withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	synchronized public void start() {
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GlacierMessageHeartbeat");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			long period = visibilityTimeout / 3;
+			scheduler.scheduleWithFixedDelay(this, period, period,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stop the heartbeat and make every held message visible again, so the
+	 * next start picks the downloads up where they were.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+
+		List<String> archiveIds;
+		synchronized (messages) {
+			archiveIds = new ArrayList<String>(messages.keySet());
+		}
+		for (String archiveId : archiveIds) {
+			release(archiveId, 0);
+		}
+	}
+
+	/**
+	 * Hold the notification for the download of the given archive.
+	 *
+	 * @return false if a notification is already held for this archive
+	 */
+	public boolean hold(String archiveId, String receiptHandle) {
+		synchronized (messages) {
+			if (messages.containsKey(archiveId)) {
+				return false;
+			}
+			messages.put(archiveId, new HeldMessage(receiptHandle));
+			return true;
+		}
+	}
+
+	public boolean isHeld(String archiveId) {
+		synchronized (messages) {
+			return messages.containsKey(archiveId);
+		}
+	}
+
+	/**
+	 * The archive is cached and verified, delete its notification.
+	 */
+	public void acknowledge(String archiveId) {
+		HeldMessage message;
+		synchronized (messages) {
+			message = messages.remove(archiveId);
+		}
+		if (message != null) {
+			deleteBatcher.delete(message.receiptHandle);
+		}
+	}
+
+	/**
+	 * The download failed, let SQS deliver the notification again after the
+	 * retry delay.
+	 */
+	public void release(String archiveId) {
+		release(archiveId, retryDelay);
+	}
+
+	private void release(String archiveId, int delay) {
+		HeldMessage message;
+		synchronized (messages) {
+			message = messages.remove(archiveId);
+		}
+		if (message != null) {
+			try {
+				sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest(
+						sqsQueueURL, message.receiptHandle, delay));
+			} catch (AmazonClientException e) {
+				// the message becomes visible when its timeout expires
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		long now = System.currentTimeMillis();
+		List<String> expired = new ArrayList<String>();
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+
+		synchronized (messages) {
+			Iterator<Map.Entry<String, HeldMessage>> iterator = messages
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, HeldMessage> entry = iterator.next();
+				if (now - entry.getValue().receivedAt + visibilityTimeout
+						* 1000L > MAX_HOLD_TIME) {
+					expired.add(entry.getKey());
+				} else {
+					entries.add(new ChangeMessageVisibilityBatchRequestEntry(
+							String.valueOf(entries.size()), entry.getValue().receiptHandle)
+							.withVisibilityTimeout(visibilityTimeout));
+				}
+			}
+		}
+
+		for (String archiveId : expired) {
+			if (metrics != null) {
+				metrics.heldMessageExpired();
+			}
+			release(archiveId, 0);
+		}
+
+		for (int i = 0; i < entries.size(); i += MessageDeleteBatcher.MAX_BATCH_SIZE) {
+			try {
+				sqsClient.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(
+						sqsQueueURL, entries.subList(i, Math.min(entries.size(),
+								i + MessageDeleteBatcher.MAX_BATCH_SIZE))));
+			} catch (AmazonClientException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
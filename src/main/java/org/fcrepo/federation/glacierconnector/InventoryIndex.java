@@ -0,0 +1,245 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * The vault inventories of the local cache, indexed by archive id, so that
+ * the size, creation date and tree hash of an archive are read without
+ * parsing the inventory nor touching Glacier. An inventory is parsed once,
+ * with a streaming parser, and parsed again only when its file changed; the
+ * file date is checked at most once per <code>CHECK_INTERVAL</code>.
+ */
+public class InventoryIndex {
+
+	private static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * The parsed inventory of one vault.
+	 */
+	public static class VaultInventory {
+
+		public final String vaultName;
+		public final long lastModified;
+
+		/**
+		 * The archives in inventory order.
+		 */
+		public final List<ArchiveMetadata> archives;
+
+		private final Map<String, ArchiveMetadata> byId;
+
+		private volatile long checkedAt;
+
+		VaultInventory(String vaultName, long lastModified,
+				List<ArchiveMetadata> archives) {
+			this.vaultName = vaultName;
+			this.lastModified = lastModified;
+			this.archives = Collections.unmodifiableList(archives);
+			this.byId = new HashMap<String, ArchiveMetadata>(
+					archives.size() * 4 / 3 + 1);
+			for (ArchiveMetadata archive : archives) {
+				byId.put(archive.archiveId, archive);
+			}
+			this.checkedAt = System.currentTimeMillis();
+		}
+
+		public ArchiveMetadata get(String archiveId) {
+			return byId.get(archiveId);
+		}
+
+		public int size() {
+			return archives.size();
+		}
+	}
+
+	private final String cacheDirectory;
+
+	private final ConcurrentMap<String, VaultInventory> inventories = new ConcurrentHashMap<String, VaultInventory>();
+
+	public InventoryIndex(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * @return the metadata of the archive, or null when the vault has no
+	 *         inventory or the archive is not in it
+	 */
+	public ArchiveMetadata get(String vaultName, String archiveId) {
+		if (vaultName == null || archiveId == null) {
+			return null;
+		}
+		VaultInventory inventory = vault(vaultName);
+		return inventory == null ? null : inventory.get(archiveId);
+	}
+
+	/**
+	 * @return the current inventory of the vault, or null when it has none
+	 */
+	public VaultInventory vault(String vaultName) {
+
+		VaultInventory inventory = inventories.get(vaultName);
+		long now = System.currentTimeMillis();
+		if (inventory != null && now - inventory.checkedAt < CHECK_INTERVAL) {
+			return inventory;
+		}
+
+		File file = inventoryFile(vaultName);
+		long lastModified = file.lastModified();
+		if (inventory != null && inventory.lastModified == lastModified) {
+			inventory.checkedAt = now;
+			return inventory;
+		}
+		if (lastModified == 0) {
+			inventories.remove(vaultName);
+			return null;
+		}
+
+		return load(vaultName);
+	}
+
+	/**
+	 * @return the date of the inventory file indexed for the vault, 0 when it
+	 *         has none
+	 */
+	public long getVersion(String vaultName) {
+		VaultInventory inventory = vault(vaultName);
+		return inventory == null ? 0 : inventory.lastModified;
+	}
+
+	/**
+	 * @return the names of the vaults with an inventory in the local cache,
+	 *         whether indexed yet or not
+	 */
+	public List<String> vaultNames() {
+		List<String> vaultNames = new ArrayList<String>();
+		File[] directories = new File(cacheDirectory).listFiles();
+		if (directories != null) {
+			for (File directory : directories) {
+				if (new File(directory, directory.getName()).isFile()) {
+					vaultNames.add(directory.getName());
+				}
+			}
+		}
+		return vaultNames;
+	}
+
+	/**
+	 * Parse the inventory of the vault again on the next lookup.
+	 */
+	public void invalidate(String vaultName) {
+		inventories.remove(vaultName);
+	}
+
+	synchronized private VaultInventory load(String vaultName) {
+
+		File file = inventoryFile(vaultName);
+		long lastModified = file.lastModified();
+
+		// another thread may have loaded it meanwhile
+		VaultInventory inventory = inventories.get(vaultName);
+		if (inventory != null && inventory.lastModified == lastModified) {
+			return inventory;
+		}
+
+		try {
+			inventory = new VaultInventory(vaultName, lastModified,
+					parse(file));
+		} catch (IOException e) {
+			System.out.println("Unable to index the inventory of vault "
+					+ vaultName + ": " + e.getMessage());
+			return inventory;
+		}
+		inventories.put(vaultName, inventory);
+		return inventory;
+	}
+
+	private File inventoryFile(String vaultName) {
+		return new File(cacheDirectory + '/' + vaultName, vaultName);
+	}
+
+	/**
+	 * Read the <code>ArchiveList</code> of an inventory without building its
+	 * tree.
+	 */
+	static List<ArchiveMetadata> parse(File file) throws IOException {
+
+		List<ArchiveMetadata> archives = new ArrayList<ArchiveMetadata>();
+
+		JsonParser jp = new JsonFactory().createJsonParser(file);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Not an inventory: " + file);
+			}
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				jp.nextToken();
+				if (field.equals("ArchiveList")
+						&& jp.getCurrentToken() == JsonToken.START_ARRAY) {
+					while (jp.nextToken() == JsonToken.START_OBJECT) {
+						archives.add(parseArchive(jp, archives.size()));
+					}
+				} else {
+					jp.skipChildren();
+				}
+			}
+		} finally {
+			jp.close();
+		}
+
+		return archives;
+	}
+
+	private static ArchiveMetadata parseArchive(JsonParser jp, int position)
+			throws IOException {
+
+		String archiveId = null;
+		String description = null;
+		long creationDate = -1;
+		long size = -1;
+		String treeHash = null;
+
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jp.getCurrentName();
+			jp.nextToken();
+			if (field.equals("ArchiveId")) {
+				archiveId = jp.getText();
+			} else if (field.equals("ArchiveDescription")) {
+				description = jp.getText();
+			} else if (field.equals("CreationDate")) {
+				creationDate = parseDate(jp.getText());
+			} else if (field.equals("Size")) {
+				size = jp.getLongValue();
+			} else if (field.equals("SHA256TreeHash")) {
+				treeHash = jp.getText();
+			} else {
+				jp.skipChildren();
+			}
+		}
+
+		return new ArchiveMetadata(archiveId, description, creationDate, size,
+				treeHash, position);
+	}
+
+	static long parseDate(String date) {
+		try {
+			return DatatypeConverter.parseDateTime(date).getTimeInMillis();
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+}
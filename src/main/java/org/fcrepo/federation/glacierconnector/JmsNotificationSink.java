@@ -0,0 +1,71 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Publishes the digest as one JMS text message, one archive id per line. The
+ * connection factory and the destination are looked up in JNDI.
+ */
+public class JmsNotificationSink implements NotificationSink {
+
+	private final String connectionFactoryName;
+	private final String destinationName;
+
+	private ConnectionFactory connectionFactory;
+	private Destination destination;
+
+	public JmsNotificationSink(String connectionFactoryName,
+			String destinationName) {
+		this.connectionFactoryName = connectionFactoryName;
+		this.destinationName = destinationName;
+	}
+
+	private void lookup() throws NamingException {
+		if (connectionFactory == null) {
+			InitialContext context = new InitialContext();
+			try {
+				connectionFactory = (ConnectionFactory) context
+						.lookup(connectionFactoryName);
+				destination = (Destination) context.lookup(destinationName);
+			} finally {
+				context.close();
+			}
+		}
+	}
+
+	@Override
+	public void send(List<String> archiveIds) throws NamingException,
+			JMSException {
+
+		lookup();
+
+		StringBuilder text = new StringBuilder();
+		for (String archiveId : archiveIds) {
+			text.append(archiveId).append('\n');
+		}
+
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false,
+					Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(destination);
+
+			TextMessage message = session.createTextMessage(text.toString());
+			message.setIntProperty("count", archiveIds.size());
+			producer.send(message);
+		} finally {
+			connection.close();
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes the job notifications received from a shared SQS queue to the
+ * listener of the connector that requested the job.
+ * <p>
+ * Every connector instance sends its retrieval jobs to SNS topics whose name
+ * starts with its own prefix, <code>GlacierConnector-&lt;nodeId&gt;-</code>,
+ * so the <code>TopicArn</code> of a notification tells which connector owns
+ * it. The listeners running in this JVM register their prefix here; a
+ * notification for a prefix that is not registered belongs to another node or
+ * repository sharing the queue.
+ */
+public class JobMessageRouter {
+
+	public static final String TOPIC_NAME_PREFIX = "GlacierConnector";
+
+	private static Map<String, GlacierMessageListener> listeners = new LinkedHashMap<String, GlacierMessageListener>();
+
+	/**
+	 * The prefix of the SNS topics created for the given connector node. SNS
+	 * topic names only allow letters, digits, hyphens and underscores.
+	 */
+	public static String topicNamePrefix(String nodeId) {
+		return TOPIC_NAME_PREFIX + '-'
+				+ nodeId.replaceAll("[^A-Za-z0-9_]", "_") + '-';
+	}
+
+	synchronized public static void register(String topicNamePrefix,
+			GlacierMessageListener listener) {
+		listeners.put(topicNamePrefix, listener);
+	}
+
+	synchronized public static void unregister(String topicNamePrefix) {
+		listeners.remove(topicNamePrefix);
+	}
+
+	/**
+	 * @return the listener owning the notifications of the given topic, or
+	 *         null if no connector in this JVM owns it
+	 */
+	synchronized public static GlacierMessageListener route(String topicArn) {
+
+		String topicName = topicName(topicArn);
+		if (topicName == null) {
+			return null;
+		}
+
+		GlacierMessageListener owner = null;
+		int longest = 0;
+		for (Map.Entry<String, GlacierMessageListener> entry : listeners
+				.entrySet()) {
+			if (topicName.startsWith(entry.getKey())
+					&& entry.getKey().length() > longest) {
+				owner = entry.getValue();
+				longest = entry.getKey().length();
+			}
+		}
+
+		return owner;
+	}
+
+	private static String topicName(String topicArn) {
+		if (topicArn == null) {
+			return null;
+		}
+		return topicArn.substring(topicArn.lastIndexOf(':') + 1);
+	}
+
+}
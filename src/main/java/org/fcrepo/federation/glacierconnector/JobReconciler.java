@@ -0,0 +1,345 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+import com.amazonaws.services.glacier.model.GlacierJobDescription;
+import com.amazonaws.services.glacier.model.ListJobsRequest;
+import com.amazonaws.services.glacier.model.ListJobsResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Low frequency safety net for the SNS/SQS job notifications. It asks Glacier
+ * directly for the state of the pending retrieval jobs and drives the
+ * completed ones into the download pipeline, so an archive does not stay in
+ * the waiting list forever when its notification was lost, expired or arrived
+ * while the repository was down.
+ * <p>
+ * A job is only checked once it is older than the expected completion window
+ * (Glacier needs 3-5 hours for a retrieval), and overdue jobs are re-checked
+ * at most every {@link #minInterval}. The next run is scheduled for the moment
+ * the next job becomes due, bounded by {@link #minInterval} and
+ * {@link #maxInterval}. Vaults with many jobs to check are queried with a
+ * paged <code>ListJobs</code> call instead of a <code>DescribeJob</code> per
+ * job.
+ * <p>
+ * Only the jobs this connector owns are reconciled: a job whose notification
+ * topic was created by another connector or node sharing the vault is left to
+ * its owner, and a job is only considered expired when its vault is known.
+ */
+public class JobReconciler implements Runnable {
+
+	private static final long MINUTE = 60 * 1000L;
+
+	private GlacierMessageListener glacierMessageListener;
+	private AmazonGlacierClient client;
+	private String cacheDirectory;
+	private GlacierMetrics metrics;
+
+	private EndpointRouter router;
+	private GlacierEndpoint endpoint;
+
+	private long completionWindow = 240 * MINUTE;
+	private long minInterval = 15 * MINUTE;
+	private long maxInterval = 120 * MINUTE;
+	private int listJobsThreshold = 10;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The first run checks every pending job, whatever its age, to pick up the
+	 * jobs that completed while the repository was down.
+	 */
+	private boolean firstRun = true;
+
+	private Map<String, Long> lastChecked = new HashMap<String, Long>();
+
+	public JobReconciler(GlacierMessageListener glacierMessageListener) {
+		this.glacierMessageListener = glacierMessageListener;
+	}
+
+	public JobReconciler withGlacierClientCredential(String accessKey,
+			String secretKey, String region) {
+		this.client = GlacierClientFactory.newClient(accessKey, secretKey,
+				"https://glacier." + region + ".amazonaws.com", metrics);
+		return this;
+	}
+
+	/**
+	 * Only reconcile the jobs of the vaults the router sends to the given
+	 * endpoint; the other jobs are reconciled by the reconcilers of their
+	 * endpoints.
+	 */
+	public JobReconciler withEndpoint(EndpointRouter router,
+			GlacierEndpoint endpoint) {
+		this.router = router;
+		this.endpoint = endpoint;
+		return this;
+	}
+
+	/**
+	 * Set before the client credential, so that the Glacier calls are counted.
+	 */
+	public JobReconciler withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public JobReconciler withcacheDirectory(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+		return this;
+	}
+
+	public JobReconciler withCompletionWindow(long minutes) {
+		this.completionWindow = minutes * MINUTE;
+		return this;
+	}
+
+	public JobReconciler withInterval(long minMinutes, long maxMinutes) {
+		this.minInterval = minMinutes * MINUTE;
+		this.maxInterval = Math.max(minMinutes, maxMinutes) * MINUTE;
+		return this;
+	}
+
+	public long getCompletionWindow() {
+		return completionWindow;
+	}
+
+	synchronized public void start() {
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GlacierJobReconciler");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	@Override
+	public void run() {
+
+		long delay = maxInterval;
+
+		try {
+			delay = reconcile();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				if (scheduler != null && !scheduler.isShutdown()) {
+					if (metrics != null) {
+						metrics.jobsReconciled(delay);
+					}
+					scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the pending jobs that are due.
+	 *
+	 * @return the delay in milliseconds until the next run
+	 */
+	long reconcile() {
+
+		long now = System.currentTimeMillis();
+		long nextDue = now + maxInterval;
+
+		Map<String, List<PendingJob>> dueJobs = new LinkedHashMap<String, List<PendingJob>>();
+
+		RetrievalRegistry registry = glacierMessageListener.getRegistry();
+
+		for (PendingJob job : registry.getPendingJobs()) {
+
+			if (router != null && router.route(job.vaultName) != endpoint) {
+				continue;
+			}
+
+			if (job.jobId == null
+					|| registry.isRegistered(job.archiveId)) {
+				// the job is being initiated, or the notification arrived
+				// and the download is running
+				continue;
+			}
+
+			if (new File(cacheDirectory + '/' + job.vaultName, job.archiveId)
+					.exists()) {
+				registry.removeFromWaitingList(job.archiveId);
+				continue;
+			}
+
+			long due = job.requestedAt + completionWindow;
+			Long checked = lastChecked.get(job.jobId);
+			if (checked != null) {
+				due = Math.max(due, checked + minInterval);
+			}
+
+			if (firstRun || due <= now) {
+				List<PendingJob> jobs = dueJobs.get(job.vaultName);
+				if (jobs == null) {
+					jobs = new ArrayList<PendingJob>();
+					dueJobs.put(job.vaultName, jobs);
+				}
+				jobs.add(job);
+				nextDue = Math.min(nextDue, now + minInterval);
+			} else {
+				nextDue = Math.min(nextDue, due);
+			}
+		}
+
+		firstRun = false;
+
+		for (Map.Entry<String, List<PendingJob>> entry : dueJobs.entrySet()) {
+
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+
+			try {
+				if (entry.getValue().size() > listJobsThreshold) {
+					reconcileByListJobs(entry.getKey(), entry.getValue());
+				} else {
+					for (PendingJob job : entry.getValue()) {
+						reconcileByDescribeJob(job);
+					}
+				}
+			} catch (AmazonClientException e) {
+				e.printStackTrace();
+			}
+
+			for (PendingJob job : entry.getValue()) {
+				lastChecked.put(job.jobId, now);
+			}
+		}
+
+		lastChecked.keySet().retainAll(registry.getPendingJobIds());
+
+		return Math.max(minInterval, nextDue - now);
+	}
+
+	private void reconcileByDescribeJob(PendingJob job) {
+		DescribeJobResult result;
+		try {
+			result = client.describeJob(new DescribeJobRequest()
+					.withVaultName(job.vaultName).withJobId(job.jobId));
+		} catch (ResourceNotFoundException e) {
+			if (vaultExists(job.vaultName)) {
+				jobStatus(job, "Expired", e.getMessage(), null);
+			}
+			return;
+		}
+
+		if (owns(result.getSNSTopic())) {
+			jobStatus(job, result.getStatusCode(), result.getStatusMessage(),
+					result.getSHA256TreeHash());
+		}
+	}
+
+	/**
+	 * Whether the vault is known to the endpoint: a job of a vault that is
+	 * not, or not any more, is not found either, which does not mean it
+	 * expired.
+	 */
+	private boolean vaultExists(String vaultName) {
+		try {
+			client.describeVault(new DescribeVaultRequest()
+					.withVaultName(vaultName));
+			return true;
+		} catch (ResourceNotFoundException e) {
+			System.out.println("Not reconciling the jobs of unknown vault "
+					+ vaultName);
+			return false;
+		}
+	}
+
+	/**
+	 * Whether the job notifying the given SNS topic was initiated by this
+	 * connector; the topic names start with the prefix of its node.
+	 */
+	private boolean owns(String topicArn) {
+		String prefix = glacierMessageListener.GetSNSTopicNamePrefix();
+		if (topicArn == null || prefix == null) {
+			return true;
+		}
+		return topicArn.substring(topicArn.lastIndexOf(':') + 1).startsWith(
+				prefix);
+	}
+
+	private void reconcileByListJobs(String vaultName, List<PendingJob> jobs) {
+
+		Map<String, PendingJob> byJobId = new HashMap<String, PendingJob>();
+		for (PendingJob job : jobs) {
+			byJobId.put(job.jobId, job);
+		}
+
+		String marker = null;
+		do {
+			ListJobsResult result = client.listJobs(new ListJobsRequest()
+					.withVaultName(vaultName).withMarker(marker));
+
+			for (GlacierJobDescription description : result.getJobList()) {
+				PendingJob job = byJobId.remove(description.getJobId());
+				if (job != null && owns(description.getSNSTopic())) {
+					jobStatus(job, description.getStatusCode(),
+							description.getStatusMessage(),
+							description.getSHA256TreeHash());
+				}
+			}
+
+			marker = result.getMarker();
+		} while (marker != null && !byJobId.isEmpty());
+
+		// completed jobs are listed for a day, a job that is not listed any
+		// more has expired
+		for (PendingJob job : byJobId.values()) {
+			jobStatus(job, "Expired", "not listed in vault " + vaultName, null);
+		}
+	}
+
+	private void jobStatus(PendingJob job, String statusCode,
+			String statusMessage, String treeHash) {
+
+		if ("Succeeded".equals(statusCode)) {
+			glacierMessageListener.getRegistry().timeline().record(
+					job.vaultName, job.archiveId,
+					RetrievalTimeline.Stage.RECONCILED);
+			System.out.println("Reconciled completed retrieval job "
+					+ job.jobId + " for archive " + job.archiveId);
+			glacierMessageListener.startDownload(job.vaultName, job.archiveId,
+					job.jobId, treeHash);
+		} else if ("Failed".equals(statusCode) || "Expired".equals(statusCode)) {
+			System.out.println("Retrieval job " + job.jobId + " for archive "
+					+ job.archiveId + " is " + statusCode + ": "
+					+ statusMessage);
+			glacierMessageListener.getRegistry().removeFromWaitingList(
+					job.archiveId);
+		}
+	}
+
+}
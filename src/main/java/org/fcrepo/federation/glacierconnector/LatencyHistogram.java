@@ -0,0 +1,115 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, allocation-free histogram of latencies in nanoseconds with a
+ * fixed memory footprint. Values are counted in log-linear buckets: every
+ * power of two is split in 16 sub-buckets, so a percentile is reported within
+ * about 6% of the recorded value. Values above 2^42 ns (about 73 minutes) are
+ * counted in the last bucket.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 42;
+	private static final int BUCKETS = SUB_BUCKETS
+			+ (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while ((current = max.get()) < nanos) {
+			if (max.compareAndSet(current, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	public LatencySnapshot snapshot() {
+
+		long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = counts.get(i);
+			total += buckets[i];
+		}
+
+		long mean = total == 0 ? 0 : sum.get() / total;
+
+		return new LatencySnapshot(total, micros(mean), micros(percentile(
+				buckets, total, 0.5)), micros(percentile(buckets, total,
+				0.99)), micros(percentile(buckets, total, 0.999)),
+				micros(max.get()));
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * SUB_BUCKETS
+				+ subBucket;
+	}
+
+	/**
+	 * @return the middle of the range of values counted in the bucket
+	 */
+	static long value(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (magnitude - SUB_BUCKET_BITS);
+		return (1L << magnitude) + subBucket * width + (width - 1) / 2;
+	}
+
+	private static long percentile(long[] buckets, long total,
+			double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return value(i);
+			}
+		}
+		return value(buckets.length - 1);
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+}
@@ -0,0 +1,60 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The percentiles of a {@link LatencyHistogram}, in microseconds.
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final long meanMicros;
+	private final long p50Micros;
+	private final long p99Micros;
+	private final long p999Micros;
+	private final long maxMicros;
+
+	@ConstructorProperties({ "count", "meanMicros", "p50Micros", "p99Micros",
+			"p999Micros", "maxMicros" })
+	public LatencySnapshot(long count, long meanMicros, long p50Micros,
+			long p99Micros, long p999Micros, long maxMicros) {
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p99Micros = p99Micros;
+		this.p999Micros = p999Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getP999Micros() {
+		return p999Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + meanMicros + "us p50="
+				+ p50Micros + "us p99=" + p99Micros + "us p999=" + p999Micros
+				+ "us max=" + maxMicros + "us";
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.Map;
+
+/**
+ * Writes the metrics to the standard output, with the SPI latencies of the
+ * reporting interval.
+ */
+public class LogMetricsReporter implements MetricsReporter {
+
+	@Override
+	public void report(String sourceName, GlacierMetrics metrics) {
+		System.out.println("Glacier connector " + sourceName + " metrics: "
+				+ metrics);
+		for (Map.Entry<String, LatencySnapshot> latency : metrics
+				.resetSpiLatencies().entrySet()) {
+			if (latency.getValue().getCount() > 0) {
+				System.out.println("Glacier connector " + sourceName + " "
+						+ latency.getKey() + ": " + latency.getValue());
+			}
+		}
+	}
+
+}
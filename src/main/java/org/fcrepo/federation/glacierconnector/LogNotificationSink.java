@@ -0,0 +1,16 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+
+/**
+ * Writes the notices to the standard output.
+ */
+public class LogNotificationSink implements NotificationSink {
+
+	@Override
+	public void send(List<String> archiveIds) {
+		System.out.println(archiveIds.size()
+				+ " glacier archives are downloaded: " + archiveIds);
+	}
+
+}
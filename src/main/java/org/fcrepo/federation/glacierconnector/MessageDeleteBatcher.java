@@ -0,0 +1,128 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+
+/**
+ * Collects the receipt handles of the SQS messages that were handled and
+ * deletes them with <code>DeleteMessageBatch</code>, ten at a time. A partial
+ * batch is sent by {@link #flush()}, which the listener calls whenever a
+ * consumer finds the queue empty and every {@link #maxDelay} milliseconds.
+ */
+public class MessageDeleteBatcher {
+
+	/**
+	 * The maximum number of entries SQS accepts in a batch request.
+	 */
+	public static final int MAX_BATCH_SIZE = 10;
+
+	private final AmazonSQS sqsClient;
+	private final String sqsQueueURL;
+	private final long maxDelay;
+
+	private GlacierMetrics metrics;
+
+	private List<String> receiptHandles = new ArrayList<String>();
+	private long oldest;
+
+	public MessageDeleteBatcher(AmazonSQS sqsClient, String sqsQueueURL,
+			long maxDelay) {
+		this.sqsClient = sqsClient;
+		this.sqsQueueURL = sqsQueueURL;
+		this.maxDelay = maxDelay;
+	}
+
+	public MessageDeleteBatcher withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public void delete(String receiptHandle) {
+		List<String> batch = null;
+
+		synchronized (this) {
+			if (receiptHandles.isEmpty()) {
+				oldest = System.currentTimeMillis();
+			}
+			receiptHandles.add(receiptHandle);
+
+			if (receiptHandles.size() >= MAX_BATCH_SIZE) {
+				batch = receiptHandles;
+				receiptHandles = new ArrayList<String>();
+			}
+		}
+
+		if (batch != null) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Send the pending deletes if the oldest one has waited longer than the
+	 * maximum delay.
+	 */
+	public void flushIfDue() {
+		boolean due;
+		synchronized (this) {
+			due = !receiptHandles.isEmpty()
+					&& System.currentTimeMillis() - oldest >= maxDelay;
+		}
+		if (due) {
+			flush();
+		}
+	}
+
+	public void flush() {
+		List<String> batch;
+
+		synchronized (this) {
+			if (receiptHandles.isEmpty()) {
+				return;
+			}
+			batch = receiptHandles;
+			receiptHandles = new ArrayList<String>();
+		}
+
+		for (int i = 0; i < batch.size(); i += MAX_BATCH_SIZE) {
+			send(batch.subList(i, Math.min(batch.size(), i + MAX_BATCH_SIZE)));
+		}
+	}
+
+	private void send(List<String> batch) {
+
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(
+				batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i),
+					batch.get(i)));
+		}
+
+		try {
+			DeleteMessageBatchResult result = sqsClient
+					.deleteMessageBatch(new DeleteMessageBatchRequest(
+							sqsQueueURL, entries));
+
+			if (metrics != null) {
+				metrics.messagesDeleted(result.getSuccessful().size(), result
+						.getFailed().size());
+			}
+
+			for (BatchResultErrorEntry error : result.getFailed()) {
+				System.out.println("Unable to delete a message: "
+						+ error.getCode() + " " + error.getMessage());
+			}
+		} catch (AmazonClientException e) {
+			// the messages become visible again and are handled twice, which
+			// is harmless for job notifications
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,303 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Sorted views of the vault inventories by size, creation date and
+ * description, answering {@link ArchiveQuery range and prefix queries}
+ * without going through the repository: the JCR documents of the archives
+ * stay out of the ModeShape indexes. A query walks the range of the most
+ * selective criterion, found by binary search, and filters it with the
+ * others, including the current retrieval state. The views are rebuilt when
+ * the inventory is refreshed; archives uploaded since are not listed.
+ * <p>
+ * The index is exposed as an MXBean named
+ * <code>org.fcrepo.federation.glacierconnector:type=MetadataIndex,name=&lt;sourceName&gt;</code>.
+ */
+public class MetadataIndex implements MetadataIndexMXBean {
+
+	private static final Comparator<ArchiveMetadata> BY_SIZE = new Comparator<ArchiveMetadata>() {
+		@Override
+		public int compare(ArchiveMetadata a, ArchiveMetadata b) {
+			return a.size < b.size ? -1 : a.size > b.size ? 1 : 0;
+		}
+	};
+
+	private static final Comparator<ArchiveMetadata> BY_DATE = new Comparator<ArchiveMetadata>() {
+		@Override
+		public int compare(ArchiveMetadata a, ArchiveMetadata b) {
+			return a.creationDate < b.creationDate ? -1
+					: a.creationDate > b.creationDate ? 1 : 0;
+		}
+	};
+
+	private static final Comparator<ArchiveMetadata> BY_DESCRIPTION = new Comparator<ArchiveMetadata>() {
+		@Override
+		public int compare(ArchiveMetadata a, ArchiveMetadata b) {
+			return description(a).compareTo(description(b));
+		}
+	};
+
+	/**
+	 * The sorted views of one inventory, with their keys.
+	 */
+	private static class VaultMetadata {
+		final long version;
+
+		final ArchiveMetadata[] bySize;
+		final long[] sizes;
+
+		final ArchiveMetadata[] byDate;
+		final long[] dates;
+
+		final ArchiveMetadata[] byDescription;
+		final String[] descriptions;
+
+		VaultMetadata(long version, List<ArchiveMetadata> archives) {
+			this.version = version;
+
+			bySize = sorted(archives, BY_SIZE);
+			sizes = new long[bySize.length];
+			for (int i = 0; i < bySize.length; i++) {
+				sizes[i] = bySize[i].size;
+			}
+
+			byDate = sorted(archives, BY_DATE);
+			dates = new long[byDate.length];
+			for (int i = 0; i < byDate.length; i++) {
+				dates[i] = byDate[i].creationDate;
+			}
+
+			byDescription = sorted(archives, BY_DESCRIPTION);
+			descriptions = new String[byDescription.length];
+			for (int i = 0; i < byDescription.length; i++) {
+				descriptions[i] = description(byDescription[i]);
+			}
+		}
+
+		private static ArchiveMetadata[] sorted(List<ArchiveMetadata> archives,
+				Comparator<ArchiveMetadata> order) {
+			ArchiveMetadata[] sorted = archives
+					.toArray(new ArchiveMetadata[archives.size()]);
+			Arrays.sort(sorted, order);
+			return sorted;
+		}
+	}
+
+	private final InventoryIndex inventoryIndex;
+	private final CacheCatalog cacheCatalog;
+	private final RetrievalRegistry registry;
+
+	private final ConcurrentMap<String, VaultMetadata> vaults = new ConcurrentHashMap<String, VaultMetadata>();
+
+	private ObjectName objectName;
+
+	public MetadataIndex(InventoryIndex inventoryIndex,
+			CacheCatalog cacheCatalog, RetrievalRegistry registry) {
+		this.inventoryIndex = inventoryIndex;
+		this.cacheCatalog = cacheCatalog;
+		this.registry = registry;
+	}
+
+	synchronized public void register(String sourceName) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.fcrepo.federation.glacierconnector:type=MetadataIndex,name="
+						+ ObjectName.quote(sourceName));
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+		objectName = name;
+	}
+
+	synchronized public void shutdown() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+		vaults.clear();
+	}
+
+	/**
+	 * @return the archives of the vault matching the query, in the order of
+	 *         its most selective criterion
+	 */
+	public List<ArchiveMetadata> query(String vaultName, ArchiveQuery query) {
+
+		List<ArchiveMetadata> result = new ArrayList<ArchiveMetadata>();
+		VaultMetadata metadata = metadata(vaultName);
+		if (metadata == null || query.limit <= 0) {
+			return result;
+		}
+
+		// the range of each criterion
+		int sizeFrom = lowerBound(metadata.sizes, query.minSize);
+		int sizeTo = query.maxSize == Long.MAX_VALUE ? metadata.sizes.length
+				: lowerBound(metadata.sizes, query.maxSize + 1);
+
+		int dateFrom = lowerBound(metadata.dates, query.createdFrom);
+		int dateTo = lowerBound(metadata.dates, query.createdTo);
+
+		int descriptionFrom = 0;
+		int descriptionTo = metadata.descriptions.length;
+		if (query.descriptionPrefix != null) {
+			descriptionFrom = lowerBound(metadata.descriptions,
+					query.descriptionPrefix);
+			descriptionTo = lowerBound(metadata.descriptions,
+					query.descriptionPrefix + Character.MAX_VALUE);
+		}
+
+		ArchiveMetadata[] range = metadata.bySize;
+		int from = sizeFrom;
+		int to = sizeTo;
+		if (dateTo - dateFrom < to - from) {
+			range = metadata.byDate;
+			from = dateFrom;
+			to = dateTo;
+		}
+		if (descriptionTo - descriptionFrom < to - from) {
+			range = metadata.byDescription;
+			from = descriptionFrom;
+			to = descriptionTo;
+		}
+
+		for (int i = from; i < to && result.size() < query.limit; i++) {
+			ArchiveMetadata archive = range[i];
+			if (query.matches(archive)
+					&& (query.state == null || query.state == state(vaultName,
+							archive))) {
+				result.add(archive);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<String> query(String vaultName, long minSize, long maxSize,
+			String createdFrom, String createdTo, String descriptionPrefix,
+			String state, int limit) {
+
+		ArchiveQuery query = new ArchiveQuery()
+				.withSize(minSize, maxSize <= 0 ? Long.MAX_VALUE : maxSize)
+				.withCreated(
+						isEmpty(createdFrom) ? Long.MIN_VALUE
+								: parseDate(createdFrom),
+						isEmpty(createdTo) ? Long.MAX_VALUE
+								: parseDate(createdTo))
+				.withDescriptionPrefix(
+						isEmpty(descriptionPrefix) ? null : descriptionPrefix)
+				.withState(
+						isEmpty(state) ? null : RetrievalState.valueOf(state
+								.trim().toUpperCase()))
+				.withLimit(limit <= 0 ? 1000 : limit);
+
+		List<String> lines = new ArrayList<String>();
+		for (ArchiveMetadata archive : query(vaultName, query)) {
+			lines.add(archive.archiveId + '\t' + archive.size + '\t'
+					+ formatDate(archive.creationDate) + '\t'
+					+ state(vaultName, archive) + '\t'
+					+ description(archive));
+		}
+		return lines;
+	}
+
+	private RetrievalState state(String vaultName, ArchiveMetadata archive) {
+		return RetrievalState.of(cacheCatalog, registry, vaultName,
+				archive.archiveId, registry.getPendingJob(archive.archiveId));
+	}
+
+	private VaultMetadata metadata(String vaultName) {
+
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		if (inventory == null) {
+			vaults.remove(vaultName);
+			return null;
+		}
+
+		VaultMetadata metadata = vaults.get(vaultName);
+		if (metadata == null || metadata.version != inventory.lastModified) {
+			metadata = new VaultMetadata(inventory.lastModified,
+					inventory.archives);
+			vaults.put(vaultName, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * @return the index of the first key not less than the value
+	 */
+	static int lowerBound(long[] keys, long value) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	static int lowerBound(String[] keys, String value) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle].compareTo(value) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static String description(ArchiveMetadata archive) {
+		return archive.description != null ? archive.description : "";
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.trim().equals("");
+	}
+
+	static long parseDate(String date) {
+		date = date.trim();
+		if (date.indexOf('T') < 0) {
+			// a date alone is the start of that day, in UTC
+			date += "T00:00:00Z";
+		}
+		return DatatypeConverter.parseDateTime(date).getTimeInMillis();
+	}
+
+	private static String formatDate(long date) {
+		if (date < 0) {
+			return "";
+		}
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(date);
+		return DatatypeConverter.printDateTime(calendar);
+	}
+
+}
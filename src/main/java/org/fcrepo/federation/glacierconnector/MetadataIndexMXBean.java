@@ -0,0 +1,26 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link MetadataIndex} of one connector.
+ */
+public interface MetadataIndexMXBean {
+
+	/**
+	 * Query the inventory of a vault; empty criteria are ignored.
+	 * 
+	 * @param createdFrom
+	 *            an ISO 8601 date or date and time, inclusive
+	 * @param createdTo
+	 *            an ISO 8601 date or date and time, exclusive
+	 * @param state
+	 *            NONE, REQUESTED, DOWNLOADING or CACHED
+	 * @return one line per archive: id, size, creation date, state and
+	 *         description, separated by tabs
+	 */
+	public List<String> query(String vaultName, long minSize, long maxSize,
+			String createdFrom, String createdTo, String descriptionPrefix,
+			String state, int limit);
+
+}
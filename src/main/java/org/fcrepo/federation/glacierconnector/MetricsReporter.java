@@ -0,0 +1,14 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * Periodically handed the {@link GlacierMetrics} of a connector, to push them
+ * to a monitoring system. Implementations need a public no-argument
+ * constructor to be configured by class name. A reporter that publishes the
+ * SPI latencies per interval ends the interval with
+ * {@link GlacierMetrics#resetSpiLatencies()}.
+ */
+public interface MetricsReporter {
+
+	public void report(String sourceName, GlacierMetrics metrics);
+
+}
@@ -0,0 +1,28 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prefetch the archives following the one read in inventory order, for users
+ * working through a vault.
+ */
+public class NeighbourPrefetchPolicy implements PrefetchPolicy {
+
+	private int count = 5;
+
+	public NeighbourPrefetchPolicy withCount(int count) {
+		this.count = count;
+		return this;
+	}
+
+	@Override
+	public List<String> related(List<ArchiveMetadata> archives, int index) {
+		List<String> related = new ArrayList<String>();
+		for (int i = index + 1; i <= index + count && i < archives.size(); i++) {
+			related.add(archives.get(i).archiveId);
+		}
+		return related;
+	}
+
+}
@@ -0,0 +1,118 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * A connector node id parsed once: <code>/</code>, <code>/vault</code>,
+ * <code>/vault/archiveId</code> or <code>/vault/archiveId/jcr:content</code>.
+ * The archives are also reachable by name, through the
+ * {@link DescriptionIndex}, as <code>/vault/by-description/name</code>; the
+ * archive id of those nodes is only known once {@link #resolved(String)
+ * resolved}.
+ */
+final class NodeId {
+
+	private static final String DELIMITER = "/";
+	private static final String JCR_CONTENT_SUFFIX = "/jcr:content";
+
+	static final String BY_DESCRIPTION = "by-description";
+
+	final String id;
+	final boolean root;
+	final boolean content;
+	final boolean archive;
+
+	/**
+	 * Whether the node is the <code>/vault/by-description</code> folder.
+	 */
+	final boolean descriptionFolder;
+
+	/**
+	 * The name of an archive reached through the description folder, null
+	 * for the other nodes.
+	 */
+	final String description;
+
+	/**
+	 * The vault of the node, null for the root.
+	 */
+	final String vaultName;
+
+	/**
+	 * The archive of the node as it appears in the inventory, null for the
+	 * root and the vaults.
+	 */
+	final String archiveId;
+
+	/**
+	 * Null for the root.
+	 */
+	final String parentId;
+
+	private NodeId(String id) {
+		this.id = id;
+		this.root = DELIMITER.equals(id);
+		this.content = id.endsWith(JCR_CONTENT_SUFFIX);
+		String archivePath = GlacierConnector.isArchivePath(id) ? GlacierConnector
+				.ArchiveIdInPath(id) : null;
+		if (content && archivePath != null) {
+			archivePath = archivePath.substring(0, archivePath.length()
+					- JCR_CONTENT_SUFFIX.length());
+		}
+
+		this.descriptionFolder = BY_DESCRIPTION.equals(archivePath);
+		this.archive = archivePath != null && !descriptionFolder;
+
+		if (archivePath != null) {
+			vaultName = GlacierConnector.ValutNameInPath(id);
+		} else {
+			vaultName = root ? null : id.substring(id.startsWith(DELIMITER) ? 1
+					: 0);
+		}
+
+		if (archive && archivePath.startsWith(BY_DESCRIPTION + DELIMITER)) {
+			description = DescriptionIndex.decodeName(archivePath
+					.substring(BY_DESCRIPTION.length() + 1));
+			archiveId = null;
+		} else {
+			description = null;
+			archiveId = archive ? archivePath : null;
+		}
+
+		int index = id.lastIndexOf(DELIMITER);
+		if (id.length() > 1 && index >= 0) {
+			String parent = id.substring(0, index);
+			parentId = parent.equals("") ? DELIMITER : parent;
+		} else {
+			parentId = null;
+		}
+	}
+
+	private NodeId(NodeId alias, String archiveId) {
+		this.id = alias.id;
+		this.root = alias.root;
+		this.content = alias.content;
+		this.archive = alias.archive;
+		this.descriptionFolder = alias.descriptionFolder;
+		this.description = alias.description;
+		this.vaultName = alias.vaultName;
+		this.archiveId = archiveId;
+		this.parentId = alias.parentId;
+	}
+
+	static NodeId parse(String id) {
+		return new NodeId(id);
+	}
+
+	/**
+	 * @return this node, reached by name, bound to the archive the name
+	 *         resolves to
+	 */
+	NodeId resolved(String archiveId) {
+		return new NodeId(this, archiveId);
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the "archive is available" notices off the download threads. The
+ * {@link #CallBack(String)} only puts the archive id into a bounded queue; a
+ * single dispatcher thread collects the ids arriving within a digest window
+ * and hands them to every {@link NotificationSink} at once, so a bulk restore
+ * produces one summary instead of one notice per archive. A failing sink is
+ * logged and does not affect the others, nor the downloads. On shutdown the
+ * notices still queued are sent within <code>FLUSH_TIMEOUT</code>; a sink
+ * still hanging then is interrupted.
+ */
+public class NotificationDispatcher implements CallbackInterface, Runnable {
+
+	private static final long FLUSH_TIMEOUT = 5000;
+
+	private final List<NotificationSink> sinks = new ArrayList<NotificationSink>();
+
+	private BlockingQueue<String> queue;
+	private long digestDelay = 60 * 1000;
+	private int digestSize = 1000;
+
+	private Thread dispatcherThread;
+	private volatile boolean running;
+
+	/**
+	 * Set, under the monitor, once the thread sends the last digest, which
+	 * the shutdown then no longer interrupts.
+	 */
+	private boolean flushing;
+
+	/**
+	 * Set while the queue is full, so that a burst of dropped notices is
+	 * logged once.
+	 */
+	private volatile boolean full;
+
+	public NotificationDispatcher(int queueSize) {
+		this.queue = new ArrayBlockingQueue<String>(queueSize);
+	}
+
+	public NotificationDispatcher withSink(NotificationSink sink) {
+		sinks.add(sink);
+		return this;
+	}
+
+	/**
+	 * @param digestDelay
+	 *            how long, in milliseconds, to wait for more archives after
+	 *            the first one of a digest
+	 * @param digestSize
+	 *            the maximum number of archives in one digest
+	 */
+	public NotificationDispatcher withDigest(long digestDelay, int digestSize) {
+		this.digestDelay = digestDelay;
+		this.digestSize = Math.max(1, digestSize);
+		return this;
+	}
+
+	synchronized public void start() {
+		if (dispatcherThread == null) {
+			running = true;
+			flushing = false;
+			dispatcherThread = new Thread(this, "GlacierNotificationDispatcher");
+			dispatcherThread.setDaemon(true);
+			dispatcherThread.start();
+		}
+	}
+
+	/**
+	 * Stop the dispatcher thread after it sent the notices still queued, or
+	 * after <code>FLUSH_TIMEOUT</code>.
+	 */
+	public void shutdown() {
+		Thread thread;
+		synchronized (this) {
+			thread = dispatcherThread;
+			dispatcherThread = null;
+			running = false;
+			if (thread != null && !flushing) {
+				// wake up the digest window, the queued notices are still sent
+				thread.interrupt();
+			}
+		}
+		if (thread != null) {
+			try {
+				thread.join(FLUSH_TIMEOUT);
+				if (thread.isAlive()) {
+					System.out.println("Notification sinks still busy after "
+							+ FLUSH_TIMEOUT + " ms, interrupting them.");
+					thread.interrupt();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void CallBack(String archiveId) {
+		if (queue.offer(archiveId)) {
+			full = false;
+			return;
+		}
+		if (!full) {
+			full = true;
+			System.out.println("Notification queue is full, dropping the notices from archive "
+					+ archiveId);
+		}
+	}
+
+	/**
+	 * Send the given archives as one notice, right away and outside of any
+	 * digest; used to report the completion of a bulk restore.
+	 */
+	public void report(List<String> archiveIds) {
+		dispatch(archiveIds);
+	}
+
+	@Override
+	public void run() {
+
+		List<String> digest = new ArrayList<String>();
+
+		try {
+			while (running) {
+
+				digest.add(queue.take());
+
+				long deadline = System.currentTimeMillis() + digestDelay;
+				while (running && digest.size() < digestSize) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						break;
+					}
+					String archiveId = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (archiveId == null) {
+						break;
+					}
+					digest.add(archiveId);
+					queue.drainTo(digest, digestSize - digest.size());
+				}
+
+				dispatch(digest);
+				digest = new ArrayList<String>();
+			}
+		} catch (InterruptedException e) {
+			// the shutdown woke the thread up
+		}
+
+		synchronized (this) {
+			flushing = true;
+		}
+		// the interrupt that woke the thread up must not abort the last digest
+		Thread.interrupted();
+		queue.drainTo(digest);
+		if (!digest.isEmpty()) {
+			dispatch(digest);
+		}
+		System.out.println("NotificationDispatcher exit.");
+	}
+
+	private void dispatch(List<String> digest) {
+		// the sinks are called by one thread at a time
+		synchronized (sinks) {
+			send(digest);
+		}
+	}
+
+	private void send(List<String> digest) {
+		for (NotificationSink sink : sinks) {
+			try {
+				sink.send(digest);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				System.out.println("Unable to send the notice of "
+						+ digest.size() + " archives to "
+						+ sink.getClass().getSimpleName());
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+
+/**
+ * A destination for the "archive is available" notices sent by the
+ * {@link NotificationDispatcher}. A sink receives the archives downloaded
+ * during one digest window at once.
+ */
+public interface NotificationSink {
+
+	public void send(List<String> archiveIds) throws Exception;
+
+}
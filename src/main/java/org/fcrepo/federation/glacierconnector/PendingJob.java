@@ -0,0 +1,38 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * An archive retrieval job that was initiated in Glacier and whose output has
+ * not been downloaded into the local cache yet.
+ */
+public class PendingJob {
+
+	public final String vaultName;
+	public final String archiveId;
+	public final String jobId;
+	public final long requestedAt;
+
+	/**
+	 * Whether the job was initiated by the {@link PrefetchManager} rather than
+	 * by a reader; its download has a lower priority. It is not persisted.
+	 */
+	public final boolean prefetch;
+
+	public PendingJob(String vaultName, String archiveId, String jobId,
+			long requestedAt, boolean prefetch) {
+		this.vaultName = vaultName;
+		this.archiveId = archiveId;
+		this.jobId = jobId;
+		this.requestedAt = requestedAt;
+		this.prefetch = prefetch;
+	}
+
+	public PendingJob(String vaultName, String archiveId, String jobId,
+			long requestedAt) {
+		this(vaultName, archiveId, jobId, requestedAt, false);
+	}
+
+	public PendingJob(String vaultName, String archiveId, String jobId) {
+		this(vaultName, archiveId, jobId, System.currentTimeMillis());
+	}
+
+}
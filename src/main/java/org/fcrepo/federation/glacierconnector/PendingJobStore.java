@@ -0,0 +1,164 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of the pending archive retrieval jobs, kept in the local
+ * cache directory so that a job that was already initiated (and paid for) in
+ * Glacier survives a restart of the repository.
+ * <p>
+ * Every line is either a put record
+ * <code>P&lt;TAB&gt;vaultName&lt;TAB&gt;archiveId&lt;TAB&gt;jobId&lt;TAB&gt;requestedAt</code>
+ * or a remove record <code>R&lt;TAB&gt;archiveId</code>. The log is replayed
+ * and compacted by {@link #load()}; a torn last line left by a crash is
+ * ignored.
+ */
+public class PendingJobStore {
+
+	public static final String DEFAULT_FILE_NAME = ".glacier-pending-jobs.log";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PUT = "P";
+	private static final String REMOVE = "R";
+	private static final char SEPARATOR = '\t';
+
+	private final File logFile;
+	private Writer writer;
+
+	public PendingJobStore(String cacheDirectory) {
+		this(new File(cacheDirectory, DEFAULT_FILE_NAME));
+	}
+
+	public PendingJobStore(File logFile) {
+		this.logFile = logFile;
+	}
+
+	/**
+	 * Replay the log, rewrite it with only the live entries and open it for
+	 * appending.
+	 *
+	 * @return the pending jobs keyed by archive id, in request order
+	 * @throws IOException
+	 */
+	synchronized public Map<String, PendingJob> load() throws IOException {
+
+		Map<String, PendingJob> jobs = new LinkedHashMap<String, PendingJob>();
+
+		if (logFile.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(logFile), UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split(String.valueOf(SEPARATOR));
+
+					if (fields.length == 5 && PUT.equals(fields[0])) {
+						try {
+							jobs.put(fields[2], new PendingJob(fields[1],
+									fields[2], fields[3], Long
+											.parseLong(fields[4])));
+						} catch (NumberFormatException e) {
+							System.out.println("Skipping a corrupt pending job record: "
+									+ line);
+						}
+					} else if (fields.length == 2 && REMOVE.equals(fields[0])) {
+						jobs.remove(fields[1]);
+					} else {
+						System.out.println("Skipping a corrupt pending job record: "
+								+ line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		compact(jobs);
+
+		return jobs;
+	}
+
+	synchronized public void put(PendingJob job) throws IOException {
+		write(PUT + SEPARATOR + job.vaultName + SEPARATOR + job.archiveId
+				+ SEPARATOR + job.jobId + SEPARATOR + job.requestedAt);
+	}
+
+	synchronized public void remove(String archiveId) throws IOException {
+		write(REMOVE + SEPARATOR + archiveId);
+	}
+
+	synchronized public void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			writer = null;
+		}
+	}
+
+	private void write(String record) throws IOException {
+		if (writer == null) {
+			writer = openForAppend();
+		}
+		writer.write(record);
+		writer.write('\n');
+		writer.flush();
+	}
+
+	private Writer openForAppend() throws IOException {
+		File parent = logFile.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				logFile, true), UTF8));
+	}
+
+	private void compact(Map<String, PendingJob> jobs) throws IOException {
+
+		close();
+
+		File parent = logFile.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		File tmp = new File(logFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		Writer out = new BufferedWriter(new OutputStreamWriter(fos, UTF8));
+		try {
+			for (PendingJob job : jobs.values()) {
+				out.write(PUT + SEPARATOR + job.vaultName + SEPARATOR
+						+ job.archiveId + SEPARATOR + job.jobId + SEPARATOR
+						+ job.requestedAt + '\n');
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		// the log is replaced in one step, a crash leaves either log whole
+		Files.move(tmp.toPath(), logFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		writer = openForAppend();
+	}
+
+}
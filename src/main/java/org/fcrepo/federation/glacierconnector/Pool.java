@@ -1,16 +1,40 @@
 package org.fcrepo.federation.glacierconnector;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Comparator;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The downloads registered by archive id. At most <code>poolSize</code>
+ * downloads run at once on the pool threads, the others wait in the executor
+ * queue, where prefetched archives come after the archives requested by
+ * readers; at most <code>maxItems</code> are registered.
+ */
 public class Pool implements CallbackInterface {
 
 	public static final int DEFAULT_MAX_AVAILABLE = 10;
 
+	private static final Comparator<Runnable> PRIORITY = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable r1, Runnable r2) {
+			if (!(r1 instanceof DownloadArchiveThread)
+					|| !(r2 instanceof DownloadArchiveThread)) {
+				return 0;
+			}
+			DownloadArchiveThread d1 = (DownloadArchiveThread) r1;
+			DownloadArchiveThread d2 = (DownloadArchiveThread) r2;
+			if (d1.isPrefetch() != d2.isPrefetch()) {
+				return d1.isPrefetch() ? 1 : -1;
+			}
+			return Long.compare(d1.getSequence(), d2.getSequence());
+		}
+	};
+
 	private SizeFixedMap<String, DownloadArchiveThreadInfo> ThreadIdMap;
 
 	private Lock lock = new ReentrantLock();
@@ -21,90 +45,136 @@ public class Pool implements CallbackInterface {
 	}
 
 	Pool(int poolSize) {
+		this(poolSize, poolSize);
+	}
+
+	Pool(int poolSize, int maxItems) {
 		ThreadIdMap = new SizeFixedMap<String, DownloadArchiveThreadInfo>(
-				poolSize);
+				maxItems);
 
-		executorService = Executors.newFixedThreadPool(poolSize);
+		executorService = new ThreadPoolExecutor(poolSize, poolSize, 0L,
+				TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(
+						11, PRIORITY));
 
 	}
 
-	synchronized public boolean itemExists(String key) {
+	public boolean itemExists(String key) {
 
-		return ThreadIdMap.containsKey(key);
+		lock.lock();
+		try {
+			return ThreadIdMap.containsKey(key);
+		} finally {
+			lock.unlock();
+		}
 
 	}
 
-	// synchronized
-	public DownloadArchiveThreadInfo putItem(String key,
-			DownloadArchiveThreadInfo ti) {
-		DownloadArchiveThreadInfo returnValue = null;
+	public int size() {
 
 		lock.lock();
+		try {
+			return ThreadIdMap.size();
+		} finally {
+			lock.unlock();
+		}
 
-		if (!ThreadIdMap.containsKey(key)) {
+	}
 
-			returnValue = ThreadIdMap.put(key, ti);
+	/**
+	 * @return whether the item was registered; <code>false</code> if the key
+	 *         is already registered or the pool is full
+	 */
+	public boolean putItem(String key, DownloadArchiveThreadInfo ti) {
 
+		lock.lock();
+		try {
+			if (ThreadIdMap.containsKey(key) || ThreadIdMap.isFull()) {
+				return false;
+			}
+
+			ThreadIdMap.put(key, ti);
+			return true;
+		} finally {
+			lock.unlock();
 		}
-
-		lock.unlock();
-		return returnValue;
 	}
 
-	void removeItem(String key) {
+	/**
+	 * Run the download of a registered item on the pool threads.
+	 */
+	public void execute(DownloadArchiveThreadInfo ti) {
+		executorService.execute(ti.threadId);
+	}
 
-		System.out.println("Enter removeItem ...");
+	/**
+	 * Give a prefetched download still waiting in the queue the priority of
+	 * a regular one.
+	 * 
+	 * @return whether the download was moved ahead of the prefetches
+	 */
+	public boolean promote(String key) {
 
+		DownloadArchiveThreadInfo ti;
 		lock.lock();
-		System.out.println("thread " + Thread.currentThread().getName()
-				+ " enter removeItem ..., get lock");
+		try {
+			ti = ThreadIdMap.get(key);
+		} finally {
+			lock.unlock();
+		}
+		if (ti == null || ti.threadId == null || !ti.threadId.isPrefetch()) {
+			return false;
+		}
 
-		ThreadIdMap.remove(key);
+		// a download already running keeps its pool thread
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) executorService;
+		if (!executor.remove(ti.threadId)) {
+			return false;
+		}
+		ti.threadId.withPrefetch(false);
+		try {
+			executor.execute(ti.threadId);
+		} catch (RejectedExecutionException e) {
+			// the pool was cleared meanwhile
+			return false;
+		}
+		return true;
+	}
 
-		lock.unlock();
+	void removeItem(String key) {
 
-		System.out.println("thread " + Thread.currentThread().getName()
-				+ " enter removeItem ..., releae lock");
+		lock.lock();
+		try {
+			ThreadIdMap.remove(key);
+		} finally {
+			lock.unlock();
+		}
 
 	}
 
+	/**
+	 * Called by the download itself once it is over; the archive may already
+	 * be unregistered.
+	 */
 	@Override
-	synchronized public void CallBack(String archiveId) {
-		System.out.println("Enter returnResult ...");
-
-		DownloadArchiveThreadInfo downloadArchiveThreadInfo = ThreadIdMap
-				.get(archiveId);
-		if (null != downloadArchiveThreadInfo.threadId
-				&& downloadArchiveThreadInfo.threadId.isAlive())
-			downloadArchiveThreadInfo.threadId.interrupt();
+	public void CallBack(String archiveId) {
 
 		removeItem(archiveId);
 
-		System.out.println("leave returnResult ");
-
 	}
 
-	synchronized public void clear() {
+	/**
+	 * Interrupt the running downloads and drop the queued ones.
+	 */
+	public void clear() {
 
 		lock.lock();
-
-		Iterator<Map.Entry<String, DownloadArchiveThreadInfo>> iterator = ThreadIdMap
-				.entrySet().iterator();
-
-		while (iterator.hasNext()) {
-			Map.Entry<String, DownloadArchiveThreadInfo> mapEntry = (Map.Entry<String, DownloadArchiveThreadInfo>) iterator
-					.next();
-			DownloadArchiveThreadInfo downloadArchiveThreadInfo = mapEntry
-					.getValue();
-			if (null != downloadArchiveThreadInfo.threadId
-					&& downloadArchiveThreadInfo.threadId.isAlive())
-				downloadArchiveThreadInfo.threadId.interrupt();
+		try {
+			ThreadIdMap.clear();
+		} finally {
+			lock.unlock();
 		}
 
-		ThreadIdMap.clear();
-
-		lock.unlock();
-		executorService.shutdown();
+		executorService.shutdownNow();
 
 	}
 
@@ -0,0 +1,146 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Retrieves the archives related to the ones read, ahead of time, according
+ * to the configured {@link PrefetchPolicy policies}. Reads only queue a
+ * trigger; a single low priority thread evaluates the policies and initiates
+ * the retrieval jobs through the regular pipeline, marked as prefetches so
+ * that their downloads wait for the ones readers asked for. At most
+ * <code>budget</code> prefetched jobs are pending at once, on top of the
+ * regular ones. The archive read is located through the {@link InventoryIndex}
+ * of the connector, which holds the parsed inventories.
+ */
+public class PrefetchManager implements Runnable {
+
+	private final List<PrefetchPolicy> policies = new ArrayList<PrefetchPolicy>();
+
+	private final BlockingQueue<String[]> triggers;
+
+	private int budget = 20;
+
+	private RetrievalRequester requester;
+	private InventoryIndex inventoryIndex;
+	private GlacierMetrics metrics;
+
+	private Thread prefetchThread;
+
+	public PrefetchManager(int queueSize) {
+		this.triggers = new ArrayBlockingQueue<String[]>(queueSize);
+	}
+
+	public PrefetchManager withPolicy(PrefetchPolicy policy) {
+		policies.add(policy);
+		return this;
+	}
+
+	/**
+	 * @param budget
+	 *            the maximum number of prefetched retrievals pending at once
+	 */
+	public PrefetchManager withBudget(int budget) {
+		this.budget = budget;
+		return this;
+	}
+
+	public PrefetchManager withRequester(RetrievalRequester requester) {
+		this.requester = requester;
+		return this;
+	}
+
+	public PrefetchManager withInventoryIndex(InventoryIndex inventoryIndex) {
+		this.inventoryIndex = inventoryIndex;
+		return this;
+	}
+
+	public PrefetchManager withMetrics(GlacierMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public boolean hasPolicies() {
+		return !policies.isEmpty();
+	}
+
+	synchronized public void start() {
+		if (prefetchThread == null && hasPolicies()) {
+			prefetchThread = new Thread(this, "GlacierPrefetch");
+			prefetchThread.setDaemon(true);
+			prefetchThread.setPriority(Thread.MIN_PRIORITY);
+			prefetchThread.start();
+		}
+	}
+
+	synchronized public void shutdown() {
+		if (prefetchThread != null) {
+			prefetchThread.interrupt();
+			prefetchThread = null;
+		}
+	}
+
+	/**
+	 * An archive is read; never blocks, the trigger is dropped when the queue
+	 * is full.
+	 */
+	public void archiveRead(String vaultName, String archiveId) {
+		if (hasPolicies()) {
+			triggers.offer(new String[] { vaultName, archiveId });
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				String[] trigger = triggers.take();
+				try {
+					prefetch(trigger[0], trigger[1]);
+				} catch (RuntimeException e) {
+					// a faulty policy must not stop the prefetches
+					System.out.println("Unable to prefetch the archives related to "
+							+ trigger[1] + ": " + e);
+				}
+			}
+		} catch (InterruptedException e) {
+			System.out.println("PrefetchManager exit.");
+		}
+	}
+
+	void prefetch(String vaultName, String archiveId) {
+
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		ArchiveMetadata archive = inventory != null ? inventory.get(archiveId)
+				: null;
+		if (archive == null) {
+			return;
+		}
+
+		Set<String> related = new LinkedHashSet<String>();
+		for (PrefetchPolicy policy : policies) {
+			related.addAll(policy.related(inventory.archives, archive.position));
+		}
+
+		for (String candidate : related) {
+			if (Thread.currentThread().isInterrupted()
+					|| requester.getRegistry().getPendingPrefetchCount() >= budget) {
+				return;
+			}
+			if (!requester.request(vaultName, candidate, true)) {
+				continue;
+			}
+			requester.getRegistry().timeline().record(vaultName, candidate,
+					RetrievalTimeline.Stage.PREFETCHED);
+			if (metrics != null) {
+				metrics.prefetched();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+
+/**
+ * Decides which archives are worth retrieving ahead of time when an archive
+ * is read, e.g. because users work through them together. Implementations
+ * need a public no-argument constructor to be configured by class name.
+ */
+public interface PrefetchPolicy {
+
+	/**
+	 * @param archives
+	 *            the archives of the vault inventory, in inventory order
+	 * @param index
+	 *            the position of the archive read in the inventory
+	 * @return the ids of the archives to prefetch, most wanted first
+	 */
+	public List<String> related(List<ArchiveMetadata> archives, int index);
+
+}
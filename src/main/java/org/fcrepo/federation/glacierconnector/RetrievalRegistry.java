@@ -0,0 +1,216 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The retrievals of one connector: the waiting list of its pending retrieval
+ * jobs, persisted in a {@link PendingJobStore} of its cache directory, the
+ * pool of its downloads and the {@link RetrievalTimeline} of their stages.
+ * The listeners of all the endpoints of the
+ * connector share it; another connector of the same JVM has its own.
+ */
+public class RetrievalRegistry {
+
+	public static final int DEFAULT_POOL_SIZE = 10;
+
+	/**
+	 * The maximum number of downloads running or queued; a notification
+	 * arriving while the pool is full is delivered again later.
+	 */
+	private static final int MAX_REGISTERED_DOWNLOADS = 10000;
+
+	private final Pool jobPool;
+	private final Map<String, PendingJob> waitingList = new HashMap<String, PendingJob>();
+	private PendingJobStore pendingJobStore;
+	private RetrievalTimeline timeline = new RetrievalTimeline();
+
+	public RetrievalRegistry() {
+		this(DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param poolSize
+	 *            the number of downloads running at once
+	 */
+	public RetrievalRegistry(int poolSize) {
+		this.jobPool = new Pool(poolSize, MAX_REGISTERED_DOWNLOADS);
+	}
+
+	Pool pool() {
+		return jobPool;
+	}
+
+	public RetrievalRegistry withTimeline(RetrievalTimeline timeline) {
+		this.timeline = timeline;
+		return this;
+	}
+
+	public RetrievalTimeline timeline() {
+		return timeline;
+	}
+
+	synchronized public boolean isRegistered(String archiveId) {
+		return jobPool.itemExists(archiveId);
+	}
+
+	/**
+	 * @return whether the download was registered; <code>false</code> if it
+	 *         already is or too many downloads are registered
+	 */
+	synchronized public boolean register(String archiveId,
+			DownloadArchiveThreadInfo ti) {
+		return jobPool.putItem(archiveId, ti);
+	}
+
+	synchronized public boolean isInWaitingList(String archiveId) {
+		return waitingList.containsKey(archiveId);
+	}
+
+	synchronized public int getRegisteredCount() {
+		return jobPool.size();
+	}
+
+	synchronized public int getPendingJobCount() {
+		return waitingList.size();
+	}
+
+	synchronized public PendingJob getPendingJob(String archiveId) {
+		return waitingList.get(archiveId);
+	}
+
+	synchronized public List<PendingJob> getPendingJobs() {
+		return new ArrayList<PendingJob>(waitingList.values());
+	}
+
+	synchronized public int getPendingPrefetchCount() {
+		int count = 0;
+		for (PendingJob job : waitingList.values()) {
+			if (job.prefetch) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * A reader is waiting for a prefetched archive: its download gets the
+	 * priority of a regular retrieval, whether it is still to start or already
+	 * queued.
+	 */
+	synchronized public void promote(String archiveId) {
+		PendingJob job = waitingList.get(archiveId);
+		if (job != null && job.prefetch) {
+			waitingList.put(archiveId, new PendingJob(job.vaultName,
+					job.archiveId, job.jobId, job.requestedAt));
+		}
+		jobPool.promote(archiveId);
+	}
+
+	synchronized public Set<String> getPendingJobIds() {
+		Set<String> jobIds = new HashSet<String>();
+		for (PendingJob job : waitingList.values()) {
+			if (job.jobId != null) {
+				jobIds.add(job.jobId);
+			}
+		}
+		return jobIds;
+	}
+
+	synchronized public void removeFromWaitingList(String archiveId) {
+		if (waitingList.remove(archiveId) != null && pendingJobStore != null) {
+			try {
+				pendingJobStore.remove(archiveId);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reserve the retrieval of an archive before its job is initiated, so that
+	 * concurrent readers initiate a single job. The reservation is completed
+	 * by {@link #putIntoWaitingList(String, String, String)} or cancelled by
+	 * {@link #removeFromWaitingList(String)}.
+	 *
+	 * @return <code>false</code> if the archive is already being retrieved
+	 */
+	synchronized public boolean reserve(String vaultName, String archiveId) {
+		if (isInWaitingList(archiveId)) {
+			return false;
+		}
+		waitingList.put(archiveId, new PendingJob(vaultName, archiveId, null));
+		return true;
+	}
+
+	synchronized public boolean putIntoWaitingList(String vaultName,
+			String archiveId, String jobId) {
+		return putIntoWaitingList(vaultName, archiveId, jobId, false);
+	}
+
+	/**
+	 * @param prefetch
+	 *            whether the job was initiated by a prefetch, its download
+	 *            then waits for the downloads requested by readers
+	 */
+	synchronized public boolean putIntoWaitingList(String vaultName,
+			String archiveId, String jobId, boolean prefetch) {
+		PendingJob pending = waitingList.get(archiveId);
+		if (pending == null || pending.jobId == null) {
+			PendingJob job = new PendingJob(vaultName, archiveId, jobId,
+					System.currentTimeMillis(), prefetch);
+			waitingList.put(archiveId, job);
+
+			if (pendingJobStore != null) {
+				try {
+					pendingJobStore.put(job);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reload the pending retrieval jobs persisted by a previous run into the
+	 * waiting list, and record every further change in the given store.
+	 */
+	synchronized public void loadPendingJobs(PendingJobStore store)
+			throws IOException {
+		pendingJobStore = store;
+		waitingList.putAll(store.load());
+	}
+
+	synchronized public void unregister(String archiveId) {
+
+		removeFromWaitingList(archiveId);
+		jobPool.removeItem(archiveId);
+	}
+
+	/**
+	 * Stop the downloads and close the store and the timeline; the registry
+	 * is not used afterwards.
+	 */
+	synchronized public void clear() {
+
+		// the pending jobs stay in the store to be resumed on the next start
+		waitingList.clear();
+		jobPool.clear();
+		timeline.close();
+
+		if (pendingJobStore != null) {
+			pendingJobStore.close();
+			pendingJobStore = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+
+/**
+ * Initiates archive retrieval jobs on behalf of the connector rather than of
+ * a reader, registering them in the waiting list like the reads do. The jobs
+ * are initiated by the {@link GlacierEndpoint} of the vault, with a single
+ * SNS topic per endpoint.
+ */
+public class RetrievalRequester {
+
+	private final EndpointRouter router;
+	private final String cacheDirectory;
+	private final RetrievalRegistry registry;
+
+	public RetrievalRequester(EndpointRouter router, String cacheDirectory,
+			RetrievalRegistry registry) {
+		this.router = router;
+		this.cacheDirectory = cacheDirectory;
+		this.registry = registry;
+	}
+
+	public RetrievalRegistry getRegistry() {
+		return registry;
+	}
+
+	public boolean isCached(String vaultName, String archiveId) {
+		return new File(cacheDirectory + '/' + vaultName, archiveId).exists();
+	}
+
+	/**
+	 * Initiate the retrieval of the archive, unless it is cached or already
+	 * being retrieved.
+	 * 
+	 * @param prefetch
+	 *            whether the download waits for the ones readers asked for
+	 * @return whether a job was initiated
+	 */
+	public boolean request(String vaultName, String archiveId,
+			boolean prefetch) {
+
+		if (isCached(vaultName, archiveId)
+				|| !registry.reserve(vaultName, archiveId)) {
+			return false;
+		}
+
+		String jobId;
+		try {
+			jobId = initiateJob(vaultName, archiveId);
+		} catch (RuntimeException e) {
+			registry.removeFromWaitingList(archiveId);
+			throw e;
+		}
+
+		registry.putIntoWaitingList(vaultName, archiveId, jobId, prefetch);
+		return true;
+	}
+
+	/**
+	 * Initiate the retrieval job of an archive the caller reserved in the
+	 * waiting list.
+	 * 
+	 * @return the job id
+	 */
+	public String initiateJob(String vaultName, String archiveId) {
+		return router.endpointOf(vaultName).initiateRetrieval(vaultName,
+				archiveId);
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.fcrepo.federation.glacierconnector;
+
+/**
+ * The retrieval and cache state of an archive, as reported by the
+ * <code>glacier:retrievalState</code> property.
+ */
+public enum RetrievalState {
+
+	NONE, REQUESTED, DOWNLOADING, CACHED;
+
+	/**
+	 * @param job
+	 *            the pending job of the archive, or null
+	 */
+	public static RetrievalState of(CacheCatalog cacheCatalog,
+			RetrievalRegistry registry, String vaultName, String archiveId,
+			PendingJob job) {
+		if (cacheCatalog.isCached(vaultName, archiveId)) {
+			return CACHED;
+		} else if (job != null && registry.isRegistered(archiveId)) {
+			return DOWNLOADING;
+		} else if (job != null) {
+			return REQUESTED;
+		} else {
+			return NONE;
+		}
+	}
+
+}
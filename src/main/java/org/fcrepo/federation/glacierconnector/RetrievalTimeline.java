@@ -0,0 +1,301 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The timestamped stages of every archive retrieval of a connector, to tell
+ * where the time of a slow retrieval went: Glacier job execution, SNS/SQS
+ * delivery, download queueing or the download itself. The most recent events
+ * are kept in a bounded ring buffer and can be queried by archive id; they
+ * can also be appended to a rolling log file for offline analysis, by a
+ * writer thread of its own so that recording an event never waits for the
+ * disk.
+ */
+public class RetrievalTimeline implements Runnable {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * The number of events waiting for the log writer, beyond which they are
+	 * not logged.
+	 */
+	private static final int LOG_QUEUE_SIZE = 10000;
+
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	public enum Stage {
+		REQUESTED, PREFETCHED, JOB_INITIATED, NOTIFICATION_RECEIVED, RECONCILED, DOWNLOAD_QUEUED, DOWNLOAD_STARTED, DOWNLOAD_FINISHED, VERIFIED, DOWNLOAD_FAILED, FIRST_READ, STREAMED_READ
+	}
+
+	public static class Event {
+		public final long timestamp;
+		public final String vaultName;
+		public final String archiveId;
+		public final Stage stage;
+
+		Event(long timestamp, String vaultName, String archiveId, Stage stage) {
+			this.timestamp = timestamp;
+			this.vaultName = vaultName;
+			this.archiveId = archiveId;
+			this.stage = stage;
+		}
+
+		@Override
+		public String toString() {
+			return timestamp + "\t" + vaultName + "\t" + archiveId + "\t"
+					+ stage;
+		}
+	}
+
+	private final AtomicReferenceArray<Event> events;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * The archives downloaded but not read yet, to record their first read;
+	 * the least recently downloaded are forgotten first.
+	 */
+	private final Map<String, Long> awaitingFirstRead;
+
+	private File logFile;
+	private long logMaxBytes;
+	private BlockingQueue<Event> logQueue;
+	private Thread logWriter;
+	private volatile boolean running;
+
+	/**
+	 * Set while the log queue is full, so that the events dropped are
+	 * reported once.
+	 */
+	private volatile boolean logQueueFull;
+
+	public RetrievalTimeline() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of events kept in memory
+	 */
+	public RetrievalTimeline(final int capacity) {
+		this.events = new AtomicReferenceArray<Event>(Math.max(1, capacity));
+		this.awaitingFirstRead = new LinkedHashMap<String, Long>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > Math.max(1, capacity);
+			}
+		};
+	}
+
+	/**
+	 * @param logFile
+	 *            the file the events are appended to, or <code>null</code>
+	 * @param logMaxBytes
+	 *            the size at which the log file is rolled to
+	 *            <code>&lt;logFile&gt;.1</code>
+	 */
+	public RetrievalTimeline withLog(File logFile, long logMaxBytes) {
+		this.logFile = logFile;
+		this.logMaxBytes = logMaxBytes;
+		return this;
+	}
+
+	/**
+	 * Start the log writer, if there is a log file.
+	 */
+	synchronized public RetrievalTimeline start() {
+		if (logFile != null && logWriter == null) {
+			logQueue = new ArrayBlockingQueue<Event>(LOG_QUEUE_SIZE);
+			running = true;
+			logWriter = new Thread(this, "RetrievalTimelineWriter");
+			logWriter.setDaemon(true);
+			logWriter.start();
+		}
+		return this;
+	}
+
+	public void record(String vaultName, String archiveId, Stage stage) {
+
+		Event event = new Event(System.currentTimeMillis(), vaultName,
+				archiveId, stage);
+
+		events.set((int) (sequence.getAndIncrement() % events.length()),
+				event);
+
+		if (stage == Stage.VERIFIED) {
+			synchronized (awaitingFirstRead) {
+				awaitingFirstRead.put(archiveId, event.timestamp);
+			}
+		} else if (stage == Stage.REQUESTED) {
+			synchronized (awaitingFirstRead) {
+				awaitingFirstRead.remove(archiveId);
+			}
+		}
+
+		BlockingQueue<Event> queue = logQueue;
+		if (running && queue != null) {
+			if (queue.offer(event)) {
+				logQueueFull = false;
+			} else if (!logQueueFull) {
+				logQueueFull = true;
+				System.out.println("The retrieval timeline log is behind, "
+						+ "dropping its events from archive " + archiveId);
+			}
+		}
+	}
+
+	/**
+	 * Record the first read of an archive from the local cache after its
+	 * retrieval; later reads are not recorded.
+	 */
+	public void read(String vaultName, String archiveId) {
+		Long downloaded;
+		synchronized (awaitingFirstRead) {
+			downloaded = awaitingFirstRead.isEmpty() ? null
+					: awaitingFirstRead.remove(archiveId);
+		}
+		if (downloaded != null) {
+			record(vaultName, archiveId, Stage.FIRST_READ);
+		}
+	}
+
+	/**
+	 * @return the events of the archive still in the ring buffer, oldest
+	 *         first
+	 */
+	public List<Event> get(String archiveId) {
+		long last = sequence.get();
+		long first = Math.max(0, last - events.length());
+
+		List<Event> timeline = new ArrayList<Event>();
+		for (long i = first; i < last; i++) {
+			Event event = events.get((int) (i % events.length()));
+			if (event != null && event.archiveId.equals(archiveId)) {
+				timeline.add(event);
+			}
+		}
+		return timeline;
+	}
+
+	/**
+	 * @return the events of the archive, with the time elapsed since the
+	 *         previous stage
+	 */
+	public List<String> describe(String archiveId) {
+		List<String> lines = new ArrayList<String>();
+		Event previous = null;
+		for (Event event : get(archiveId)) {
+			lines.add(event.stage
+					+ " at "
+					+ new Date(event.timestamp)
+					+ (previous == null ? "" : " (+"
+							+ (event.timestamp - previous.timestamp) + " ms)"));
+			previous = event;
+		}
+		return lines;
+	}
+
+	/**
+	 * Stop the log writer after it wrote the events still queued, or after
+	 * <code>CLOSE_TIMEOUT</code>.
+	 */
+	public void close() {
+		Thread writer;
+		synchronized (this) {
+			writer = logWriter;
+			logWriter = null;
+			running = false;
+		}
+		if (writer != null) {
+			writer.interrupt();
+			try {
+				writer.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (awaitingFirstRead) {
+			awaitingFirstRead.clear();
+		}
+	}
+
+	/**
+	 * Append the queued events to the log file, flushing once the queue is
+	 * empty.
+	 */
+	@Override
+	public void run() {
+
+		Writer log = null;
+		List<Event> batch = new ArrayList<Event>();
+
+		try {
+			while (running || !logQueue.isEmpty()) {
+				try {
+					batch.add(logQueue.take());
+				} catch (InterruptedException e) {
+					// the close woke the writer up, write what is left
+					if (logQueue.isEmpty()) {
+						break;
+					}
+				}
+				logQueue.drainTo(batch);
+				log = write(log, batch);
+				batch.clear();
+			}
+		} finally {
+			if (log != null) {
+				try {
+					log.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the writer to append the next events to
+	 */
+	private Writer write(Writer log, List<Event> batch) {
+		try {
+			if (log != null && logFile.length() >= logMaxBytes) {
+				log.close();
+				log = null;
+				File rolled = new File(logFile.getPath() + ".1");
+				rolled.delete();
+				logFile.renameTo(rolled);
+			}
+			if (log == null) {
+				log = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(logFile, true), "UTF-8"));
+			}
+			for (Event event : batch) {
+				log.write(event.toString());
+				log.write('\n');
+			}
+			log.flush();
+		} catch (IOException e) {
+			System.out.println("Unable to write the retrieval timeline to "
+					+ logFile + ": " + e.getMessage());
+		}
+		return log;
+	}
+
+}
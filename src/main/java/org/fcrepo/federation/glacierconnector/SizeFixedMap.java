@@ -10,9 +10,16 @@ public class SizeFixedMap<K,E> extends LinkedHashMap<K,E>{
 		this.maxsize = maxsize;		
 	}
 
+	/**
+	 * @return whether the map is full, a new key would not be put
+	 */
+	public boolean isFull(){
+		return this.size() >= maxsize;
+	}
+
 	@Override
 	public E put(K key, E e){
-		if(this.size() <= maxsize){
+		if(containsKey(key) || !isFull()){
 			return super.put(key,e);			
 		}
 		else{
@@ -0,0 +1,102 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends one email per digest. Authentication is only used when a username is
+ * set, so a local SMTP stand-in can be used for tests.
+ */
+public class SmtpNotificationSink implements NotificationSink {
+
+	private String host = "localhost";
+	private int port = 25;
+	private boolean startTls = false;
+	private String username;
+	private String password;
+	private String from = "noreply@localhost";
+	private String to;
+
+	public SmtpNotificationSink withServer(String host, int port,
+			boolean startTls) {
+		this.host = host;
+		this.port = port;
+		this.startTls = startTls;
+		return this;
+	}
+
+	public SmtpNotificationSink withCredential(String username,
+			String password) {
+		this.username = username;
+		this.password = password;
+		return this;
+	}
+
+	public SmtpNotificationSink withAddresses(String from, String to) {
+		if (from != null) {
+			this.from = from;
+		}
+		this.to = to;
+		return this;
+	}
+
+	private String buildSubject(List<String> archiveIds) {
+		if (archiveIds.size() == 1) {
+			return "A glacier archive is downloaded.";
+		}
+		return archiveIds.size() + " glacier archives are downloaded.";
+	}
+
+	private String buildText(List<String> archiveIds) {
+		StringBuilder text = new StringBuilder();
+		for (String archiveId : archiveIds) {
+			text.append("ArchiveId: ").append(archiveId).append('\n');
+		}
+		text.append("This notice comes from the callback interface.");
+		return text.toString();
+	}
+
+	@Override
+	public void send(List<String> archiveIds) throws MessagingException {
+
+		System.out.println("Sending an email...");
+
+		Properties props = new Properties();
+		props.put("mail.smtp.host", host);
+		props.put("mail.smtp.port", String.valueOf(port));
+		props.put("mail.smtp.starttls.enable", String.valueOf(startTls));
+
+		Session session;
+		if (username != null && !username.equals("")) {
+			props.put("mail.smtp.auth", "true");
+			session = Session.getInstance(props,
+					new javax.mail.Authenticator() {
+						protected PasswordAuthentication getPasswordAuthentication() {
+							return new PasswordAuthentication(username,
+									password);
+						}
+					});
+		} else {
+			session = Session.getInstance(props);
+		}
+
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress(from));
+		message.setRecipients(MimeMessage.RecipientType.TO,
+				InternetAddress.parse(to));
+		message.setSubject(buildSubject(archiveIds));
+		message.setText(buildText(archiveIds));
+
+		Transport.send(message);
+
+		System.out.println("Email is sent.");
+	}
+
+}
@@ -0,0 +1,209 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latency histograms of the connector SPI entry points, per method and per
+ * method and vault. Every histogram is double buffered: a reporting interval
+ * swaps the active histogram with the idle one, so recording never waits and
+ * the memory stays constant. Only the vaults listed by the
+ * {@link VaultCatalog} are tracked, so that mistyped ids do not take the
+ * slots, and their number is bounded; the calls to the other vaults are only
+ * counted per method.
+ */
+public class SpiLatency {
+
+	public enum Method {
+		GET_DOCUMENT_BY_ID("getDocumentById"), GET_CHILDREN("getChildren"), GET_BINARY_VALUE(
+				"getBinaryValue"), STORE_DOCUMENT("storeDocument"), REMOVE_DOCUMENT(
+				"removeDocument");
+
+		private final String spiName;
+
+		private Method(String spiName) {
+			this.spiName = spiName;
+		}
+
+		public String getSpiName() {
+			return spiName;
+		}
+	}
+
+	private static final int MAX_VAULTS = 64;
+
+	private static class VaultRecorders {
+		final String vaultName;
+		final Recorder[] recorders = newRecorders();
+
+		VaultRecorders(String vaultName) {
+			this.vaultName = vaultName;
+		}
+	}
+
+	private final Recorder[] methods = newRecorders();
+
+	/**
+	 * The vaults tracked, copied on write; a lookup is a scan of at most
+	 * <code>MAX_VAULTS</code> names, without allocating.
+	 */
+	private volatile VaultRecorders[] vaults = new VaultRecorders[0];
+
+	/**
+	 * Set once <code>MAX_VAULTS</code> vaults are tracked, so that the calls
+	 * to the others neither allocate nor lock.
+	 */
+	private volatile boolean full;
+
+	private VaultCatalog vaultCatalog;
+
+	public SpiLatency withVaultCatalog(VaultCatalog vaultCatalog) {
+		this.vaultCatalog = vaultCatalog;
+		return this;
+	}
+
+	public void record(Method method, String vaultName, long nanos) {
+		if (vaultName == null) {
+			methods[method.ordinal()].record(nanos);
+		} else {
+			record(method, vaultName, 0, vaultName.length(), nanos);
+		}
+	}
+
+	/**
+	 * Record a call on a node, per method and per vault of the node id, the
+	 * first segment of the id.
+	 */
+	public void recordNode(Method method, String id, long nanos) {
+		if (id == null) {
+			methods[method.ordinal()].record(nanos);
+			return;
+		}
+		int start = id.startsWith("/") ? 1 : 0;
+		int end = id.indexOf('/', start);
+		record(method, id, start, end < 0 ? id.length() : end, nanos);
+	}
+
+	private void record(Method method, String path, int start, int end,
+			long nanos) {
+		methods[method.ordinal()].record(nanos);
+
+		int length = end - start;
+		if (length <= 0) {
+			return;
+		}
+		for (VaultRecorders vault : vaults) {
+			if (vault.vaultName.length() == length
+					&& path.regionMatches(start, vault.vaultName, 0, length)) {
+				vault.recorders[method.ordinal()].record(nanos);
+				return;
+			}
+		}
+
+		if (full) {
+			return;
+		}
+		String vaultName = path.substring(start, end);
+		if (vaultCatalog != null && !vaultCatalog.contains(vaultName)) {
+			return;
+		}
+		VaultRecorders vault = add(vaultName);
+		if (vault != null) {
+			vault.recorders[method.ordinal()].record(nanos);
+		}
+	}
+
+	/**
+	 * @return the recorders of the vault, null when too many vaults are
+	 *         tracked
+	 */
+	synchronized private VaultRecorders add(String vaultName) {
+		VaultRecorders[] current = vaults;
+		for (VaultRecorders vault : current) {
+			if (vault.vaultName.equals(vaultName)) {
+				return vault;
+			}
+		}
+		if (current.length >= MAX_VAULTS) {
+			return null;
+		}
+		VaultRecorders[] added = Arrays.copyOf(current, current.length + 1);
+		added[current.length] = new VaultRecorders(vaultName);
+		vaults = added;
+		full = added.length >= MAX_VAULTS;
+		return added[current.length];
+	}
+
+	/**
+	 * @return the latencies of the current interval, keyed by SPI method, and
+	 *         by SPI method and vault as <code>method@vault</code>
+	 */
+	public Map<String, LatencySnapshot> snapshot() {
+		return snapshot(false);
+	}
+
+	/**
+	 * @return the latencies of the interval just ended, which are then
+	 *         cleared
+	 */
+	public Map<String, LatencySnapshot> snapshotAndReset() {
+		return snapshot(true);
+	}
+
+	private Map<String, LatencySnapshot> snapshot(boolean reset) {
+		Map<String, LatencySnapshot> snapshot = new TreeMap<String, LatencySnapshot>();
+		for (Method method : Method.values()) {
+			snapshot.put(method.getSpiName(),
+					methods[method.ordinal()].snapshot(reset));
+		}
+		for (VaultRecorders vault : vaults) {
+			for (Method method : Method.values()) {
+				LatencySnapshot latency = vault.recorders[method.ordinal()]
+						.snapshot(reset);
+				if (latency.getCount() > 0) {
+					snapshot.put(method.getSpiName() + "@" + vault.vaultName,
+							latency);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	private static Recorder[] newRecorders() {
+		Recorder[] recorders = new Recorder[Method.values().length];
+		for (int i = 0; i < recorders.length; i++) {
+			recorders[i] = new Recorder();
+		}
+		return recorders;
+	}
+
+	private static class Recorder {
+
+		private final AtomicReference<LatencyHistogram> active = new AtomicReference<LatencyHistogram>(
+				new LatencyHistogram());
+		private LatencyHistogram idle = new LatencyHistogram();
+
+		void record(long nanos) {
+			active.get().record(nanos);
+		}
+
+		/**
+		 * A writer that read the active histogram just before the swap may
+		 * still record into it while it is cleared; that value is lost, which
+		 * is acceptable for reporting.
+		 */
+		synchronized LatencySnapshot snapshot(boolean reset) {
+			if (!reset) {
+				return active.get().snapshot();
+			}
+			LatencyHistogram ended = active.getAndSet(idle);
+			LatencySnapshot snapshot = ended.snapshot();
+			ended.reset();
+			idle = ended;
+			return snapshot;
+		}
+	}
+
+}
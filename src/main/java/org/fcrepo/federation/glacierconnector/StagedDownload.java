@@ -0,0 +1,258 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An archive being written into the local cache. The download goes to a
+ * staging file, <code>vaultName/.archiveId.part</code>, which is renamed to
+ * the archive once complete and verified, so the cache never holds a
+ * truncated archive.
+ * <p>
+ * Readers arriving meanwhile get a {@link #newStream() tail-following
+ * stream} of the staging file: it returns the bytes already written and
+ * blocks only until the next ones are. It ends once the archive is
+ * published, and fails if the download fails or does not verify, so a
+ * reader never takes a truncated archive for a complete one.
+ */
+public class StagedDownload {
+
+	private static final String STAGING_SUFFIX = ".part";
+
+	private static final ConcurrentMap<String, StagedDownload> downloads = new ConcurrentHashMap<String, StagedDownload>();
+
+	private enum State {
+		WRITING, PUBLISHED, FAILED
+	}
+
+	private final String key;
+	private final File file;
+	private final File stagingFile;
+
+	private long written;
+	private State state = State.WRITING;
+
+	private StagedDownload(String key, File file, File stagingFile) {
+		this.key = key;
+		this.file = file;
+		this.stagingFile = stagingFile;
+	}
+
+	/**
+	 * Start staging the download of an archive; a download of the same
+	 * archive still staged is failed first.
+	 */
+	public static StagedDownload start(String cacheDirectory,
+			String vaultName, String archiveId) {
+		File vault = new File(cacheDirectory, vaultName);
+		StagedDownload download = new StagedDownload(key(vaultName,
+				archiveId), new File(vault, archiveId), stagingFile(vault,
+				archiveId));
+		StagedDownload previous = downloads.put(download.key, download);
+		if (previous != null) {
+			previous.fail();
+		}
+		return download;
+	}
+
+	/**
+	 * @return the download of the archive being staged, or null
+	 */
+	public static StagedDownload get(String vaultName, String archiveId) {
+		return downloads.get(key(vaultName, archiveId));
+	}
+
+	public static boolean isStagingFile(File file) {
+		String name = file.getName();
+		return name.startsWith(".") && name.endsWith(STAGING_SUFFIX)
+				&& name.length() > 1 + STAGING_SUFFIX.length();
+	}
+
+	/**
+	 * Whether the file is the staging file of a download no longer running,
+	 * left over by a failure or a shutdown.
+	 */
+	public static boolean isLeftOver(File file) {
+		if (!isStagingFile(file)) {
+			return false;
+		}
+		String name = file.getName();
+		StagedDownload download = get(file.getParentFile().getName(),
+				name.substring(1, name.length() - STAGING_SUFFIX.length()));
+		return download == null || !download.stagingFile.equals(file);
+	}
+
+	static File stagingFile(File vault, String archiveId) {
+		return new File(vault, '.' + archiveId + STAGING_SUFFIX);
+	}
+
+	private static String key(String vaultName, String archiveId) {
+		return vaultName + '/' + archiveId;
+	}
+
+	public File getStagingFile() {
+		return stagingFile;
+	}
+
+	synchronized public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * The staging file, truncated; the bytes written are available to the
+	 * readers as soon as they reach the file.
+	 */
+	public OutputStream newOutput() throws IOException {
+		stagingFile.getParentFile().mkdirs();
+		return new FilterOutputStream(new FileOutputStream(stagingFile)) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				written(1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				written(len);
+			}
+		};
+	}
+
+	synchronized private void written(long bytes) {
+		written += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Move the complete and verified staging file in place of the archive.
+	 */
+	synchronized public void publish() throws IOException {
+		if (state != State.WRITING) {
+			throw new IOException("The download of " + key + " is over");
+		}
+		if (!stagingFile.renameTo(file)) {
+			// renaming onto an existing file fails on some platforms
+			file.delete();
+			if (!stagingFile.renameTo(file)) {
+				throw new IOException("Unable to move " + stagingFile
+						+ " to " + file);
+			}
+		}
+		state = State.PUBLISHED;
+		notifyAll();
+		downloads.remove(key, this);
+	}
+
+	/**
+	 * Drop the staging file; the readers following it fail.
+	 */
+	synchronized public void fail() {
+		if (state == State.WRITING) {
+			state = State.FAILED;
+			stagingFile.delete();
+			notifyAll();
+		}
+		downloads.remove(key, this);
+	}
+
+	/**
+	 * @return a stream of the whole archive, following the download; null if
+	 *         the download failed
+	 */
+	synchronized public InputStream newStream() throws IOException {
+		switch (state) {
+		case PUBLISHED:
+			return new BufferedInputStream(new FileInputStream(file));
+		case WRITING:
+			return new BufferedInputStream(new TailInputStream(
+					new FileInputStream(stagingFile)));
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the staging file up to the bytes written, and keeps reading the
+	 * same file once it is renamed to the archive.
+	 */
+	private class TailInputStream extends InputStream {
+
+		private final InputStream in;
+		private long position;
+
+		TailInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			long available = awaitBytes(position);
+			if (available <= 0) {
+				return -1;
+			}
+
+			int n = in.read(b, off, (int) Math.min(len, available));
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized (StagedDownload.this) {
+				return (int) Math.min(Integer.MAX_VALUE, written - position);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Wait until bytes after the given position are written.
+	 *
+	 * @return the number of bytes after the position, 0 at the end of the
+	 *         published archive
+	 */
+	synchronized private long awaitBytes(long position) throws IOException {
+		try {
+			while (position >= written && state == State.WRITING) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for "
+					+ key);
+		}
+		if (state == State.FAILED) {
+			throw new IOException("The download of " + key + " failed");
+		}
+		return written - position;
+	}
+
+}
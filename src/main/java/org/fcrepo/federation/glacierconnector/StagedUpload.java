@@ -0,0 +1,138 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+/**
+ * A binary copied to a temporary file before it is uploaded, its SHA-256
+ * tree hash computed as it is copied. The content is read once, so the
+ * upload neither reads the binary twice nor needs it to be resettable, and
+ * the tree hash is known before deciding whether to upload at all.
+ * <p>
+ * The temporary file is a dot-file at the top of the local cache directory,
+ * which the {@link CacheCatalog} does not count and deletes when left over.
+ */
+public class StagedUpload {
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final String PREFIX = ".glacier-upload-";
+	private static final String SUFFIX = ".tmp";
+
+	private final File file;
+	private final String treeHash;
+	private final long size;
+
+	private StagedUpload(File file, String treeHash, long size) {
+		this.file = file;
+		this.treeHash = treeHash;
+		this.size = size;
+	}
+
+	/**
+	 * Copy the stream to a temporary file of the cache directory and close
+	 * it.
+	 */
+	public static StagedUpload stage(InputStream in, String cacheDirectory)
+			throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		File directory = new File(cacheDirectory);
+		directory.mkdirs();
+		File file;
+		try {
+			file = File.createTempFile(PREFIX, SUFFIX, directory);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		List<byte[]> checksums = new ArrayList<byte[]>();
+		long size = 0;
+		boolean staged = false;
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			byte[] buffer = new byte[8192];
+			int chunk = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				int off = 0;
+				while (off < n) {
+					// the tree hash is made of the hashes of 1 MB chunks
+					int len = Math.min(n - off, CHUNK_SIZE - chunk);
+					digest.update(buffer, off, len);
+					chunk += len;
+					off += len;
+					if (chunk == CHUNK_SIZE) {
+						checksums.add(digest.digest());
+						chunk = 0;
+					}
+				}
+				out.write(buffer, 0, n);
+				size += n;
+			}
+			if (chunk > 0 || checksums.isEmpty()) {
+				checksums.add(digest.digest());
+			}
+			staged = true;
+		} finally {
+			try {
+				out.close();
+				in.close();
+			} finally {
+				if (!staged) {
+					file.delete();
+				}
+			}
+		}
+
+		return new StagedUpload(file,
+				TreeHashGenerator.calculateTreeHash(checksums), size);
+	}
+
+	/**
+	 * Whether the file is the temporary file of an upload; found when the
+	 * connector starts, it was left over by a failure or a shutdown.
+	 */
+	public static boolean isStagingFile(File file) {
+		String name = file.getName();
+		return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+	}
+
+	public String getTreeHash() {
+		return treeHash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public InputStream newStream() throws IOException {
+		return new BufferedInputStream(new FileInputStream(file));
+	}
+
+	/**
+	 * Delete the temporary file.
+	 */
+	public void discard() {
+		file.delete();
+	}
+
+}
@@ -0,0 +1,359 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the archives of each vault by SHA-256 tree hash and size, so that
+ * content already in a vault is linked to instead of uploaded again.
+ * <p>
+ * The index is built from the {@link InventoryIndex} and rebuilt when the
+ * inventory is refreshed. Since an archive may then be shared by several
+ * nodes, the index also counts the nodes linked to an archive besides the
+ * one that uploaded it; removing a node only deletes the archive once no
+ * other node links to it. The uploads, links and deletions since the
+ * inventory was taken are recorded in an append-only log in the vault
+ * directory, <code>U&lt;TAB&gt;treeHash&lt;TAB&gt;size&lt;TAB&gt;archiveId</code>,
+ * <code>L&lt;TAB&gt;archiveId</code>, <code>R&lt;TAB&gt;archiveId</code> for
+ * a link removed, or <code>D&lt;TAB&gt;archiveId</code>, replayed on top of
+ * the inventory and compacted whenever the index is rebuilt.
+ * <p>
+ * Each vault has its own lock, held by {@link #link} from the lookup to the
+ * recorded link. {@link #release} records the deletion of the last node of
+ * an archive before the connector deletes the archive, without the lock:
+ * that record is a tombstone keeping {@link #link} from picking the
+ * archive, also once the index is rebuilt from an inventory that still
+ * lists it.
+ */
+public class TreeHashIndex {
+
+	public static final String LOG_FILE_NAME = ".glacier-treehashes.log";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String UPLOAD = "U";
+	private static final String LINK = "L";
+	private static final String RELEASE = "R";
+	private static final String DELETE = "D";
+	private static final char SEPARATOR = '\t';
+
+	private static class VaultHashes {
+		final long inventoryVersion;
+
+		/**
+		 * The archive id by tree hash and size.
+		 */
+		final Map<String, String> byContent = new HashMap<String, String>();
+
+		/**
+		 * The tree hash and size by archive id.
+		 */
+		final Map<String, String> contentOf = new HashMap<String, String>();
+
+		/**
+		 * The number of nodes linked to an archive, besides its uploader.
+		 */
+		final Map<String, Integer> links = new HashMap<String, Integer>();
+
+		VaultHashes(long inventoryVersion) {
+			this.inventoryVersion = inventoryVersion;
+		}
+
+		void put(String content, String archiveId) {
+			byContent.put(content, archiveId);
+			contentOf.put(archiveId, content);
+		}
+
+		void remove(String archiveId) {
+			String content = contentOf.remove(archiveId);
+			if (content != null && archiveId.equals(byContent.get(content))) {
+				byContent.remove(content);
+			}
+			links.remove(archiveId);
+		}
+
+		int links(String archiveId) {
+			Integer count = links.get(archiveId);
+			return count == null ? 0 : count;
+		}
+
+		void link(String archiveId, int delta) {
+			int count = links(archiveId) + delta;
+			if (count > 0) {
+				links.put(archiveId, count);
+			} else {
+				links.remove(archiveId);
+			}
+		}
+	}
+
+	private final String cacheDirectory;
+	private final InventoryIndex inventoryIndex;
+
+	private final ConcurrentMap<String, VaultHashes> vaults = new ConcurrentHashMap<String, VaultHashes>();
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	public TreeHashIndex(String cacheDirectory, InventoryIndex inventoryIndex) {
+		this.cacheDirectory = cacheDirectory;
+		this.inventoryIndex = inventoryIndex;
+	}
+
+	/**
+	 * Find an archive of the vault with the given tree hash and size and
+	 * record one more node linked to it, at once.
+	 *
+	 * @param current
+	 *            the archive the node is already linked to, if any: saving the
+	 *            same content again adds no link
+	 * @return the id of the archive, or null when the content must be
+	 *         uploaded
+	 */
+	public String link(String vaultName, String treeHash, long size,
+			String current) throws IOException {
+		synchronized (lock(vaultName)) {
+			VaultHashes hashes = hashes(vaultName);
+			String archiveId = hashes.byContent.get(content(treeHash, size));
+			if (archiveId != null && !archiveId.equals(current)) {
+				append(vaultName, LINK + SEPARATOR + archiveId);
+				hashes.link(archiveId, 1);
+			}
+			return archiveId;
+		}
+	}
+
+	/**
+	 * @return the number of nodes linked to the archive besides the one that
+	 *         uploaded it
+	 */
+	public int links(String vaultName, String archiveId) {
+		synchronized (lock(vaultName)) {
+			return hashes(vaultName).links(archiveId);
+		}
+	}
+
+	/**
+	 * Record an archive uploaded since the last inventory.
+	 */
+	public void uploaded(String vaultName, String treeHash, long size,
+			String archiveId) throws IOException {
+		if (treeHash == null || archiveId == null) {
+			return;
+		}
+		synchronized (lock(vaultName)) {
+			append(vaultName, UPLOAD + SEPARATOR + treeHash + SEPARATOR + size
+					+ SEPARATOR + archiveId);
+			hashes(vaultName).put(content(treeHash, size), archiveId);
+		}
+	}
+
+	/**
+	 * Record a node of the archive removed.
+	 *
+	 * @return true when other nodes still link to the archive, which must
+	 *         then be kept; false when the archive is recorded as deleted,
+	 *         and is to be deleted
+	 */
+	public boolean release(String vaultName, String archiveId)
+			throws IOException {
+		synchronized (lock(vaultName)) {
+			VaultHashes hashes = hashes(vaultName);
+			if (hashes.links(archiveId) > 0) {
+				append(vaultName, RELEASE + SEPARATOR + archiveId);
+				hashes.link(archiveId, -1);
+				return true;
+			}
+			append(vaultName, DELETE + SEPARATOR + archiveId);
+			hashes.remove(archiveId);
+			return false;
+		}
+	}
+
+	/**
+	 * A node linked to the archive was saved with other content: its link is
+	 * removed if the archive is shared; otherwise the archive is kept, as
+	 * the previous version of the node.
+	 *
+	 * @return true when a link was removed
+	 */
+	public boolean replaced(String vaultName, String archiveId)
+			throws IOException {
+		synchronized (lock(vaultName)) {
+			VaultHashes hashes = hashes(vaultName);
+			if (hashes.links(archiveId) == 0) {
+				return false;
+			}
+			append(vaultName, RELEASE + SEPARATOR + archiveId);
+			hashes.link(archiveId, -1);
+			return true;
+		}
+	}
+
+	private Object lock(String vaultName) {
+		Object lock = locks.get(vaultName);
+		if (lock == null) {
+			Object created = new Object();
+			lock = locks.putIfAbsent(vaultName, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+
+	private VaultHashes hashes(String vaultName) {
+		long inventoryVersion = inventoryIndex.getVersion(vaultName);
+		VaultHashes hashes = vaults.get(vaultName);
+		if (hashes == null || hashes.inventoryVersion != inventoryVersion) {
+			hashes = build(vaultName, inventoryVersion);
+		}
+		return hashes;
+	}
+
+	private VaultHashes build(String vaultName, long inventoryVersion) {
+
+		InventoryIndex.VaultInventory inventory = inventoryIndex
+				.vault(vaultName);
+		VaultHashes hashes = fromInventory(inventoryVersion, inventory);
+
+		try {
+			if (replay(vaultName, hashes)) {
+				compact(vaultName, fromInventory(inventoryVersion, inventory),
+						hashes);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to read the tree hash log of vault "
+					+ vaultName + ": " + e.getMessage());
+		}
+
+		vaults.put(vaultName, hashes);
+		return hashes;
+	}
+
+	private static VaultHashes fromInventory(long inventoryVersion,
+			InventoryIndex.VaultInventory inventory) {
+		VaultHashes hashes = new VaultHashes(inventoryVersion);
+		if (inventory != null) {
+			for (ArchiveMetadata archive : inventory.archives) {
+				if (archive.treeHash != null) {
+					hashes.put(content(archive.treeHash, archive.size),
+							archive.archiveId);
+				}
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Apply the whole log on top of the inventory.
+	 *
+	 * @return whether the vault has a log
+	 */
+	private boolean replay(String vaultName, VaultHashes hashes)
+			throws IOException {
+
+		File logFile = logFile(vaultName);
+		if (!logFile.exists()) {
+			return false;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(logFile), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(String.valueOf(SEPARATOR));
+				if (fields.length == 4 && UPLOAD.equals(fields[0])) {
+					hashes.put(fields[1] + SEPARATOR + fields[2], fields[3]);
+				} else if (fields.length == 2 && LINK.equals(fields[0])) {
+					hashes.link(fields[1], 1);
+				} else if (fields.length == 2 && RELEASE.equals(fields[0])) {
+					hashes.link(fields[1], -1);
+				} else if (fields.length == 2 && DELETE.equals(fields[0])) {
+					hashes.remove(fields[1]);
+				} else {
+					System.out.println("Skipping a corrupt tree hash record: "
+							+ line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrite the log as the difference between the inventory and the
+	 * replayed index: the archives found by another id than in the
+	 * inventory, the archives of the inventory deleted since, and the links.
+	 */
+	private void compact(String vaultName, VaultHashes inventoryHashes,
+			VaultHashes hashes) throws IOException {
+
+		File logFile = logFile(vaultName);
+		File compacted = new File(logFile.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(compacted),
+				UTF8);
+		try {
+			for (Map.Entry<String, String> archive : hashes.byContent
+					.entrySet()) {
+				if (!archive.getValue().equals(
+						inventoryHashes.byContent.get(archive.getKey()))) {
+					writer.write(UPLOAD + SEPARATOR + archive.getKey()
+							+ SEPARATOR + archive.getValue());
+					writer.write('\n');
+				}
+			}
+			for (String archiveId : inventoryHashes.contentOf.keySet()) {
+				if (!hashes.contentOf.containsKey(archiveId)) {
+					writer.write(DELETE + SEPARATOR + archiveId);
+					writer.write('\n');
+				}
+			}
+			for (Map.Entry<String, Integer> links : hashes.links.entrySet()) {
+				for (int i = 0; i < links.getValue(); i++) {
+					writer.write(LINK + SEPARATOR + links.getKey());
+					writer.write('\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(compacted.toPath(), logFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void append(String vaultName, String record) throws IOException {
+		File logFile = logFile(vaultName);
+		logFile.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(logFile,
+				true), UTF8);
+		try {
+			writer.write(record);
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+	}
+
+	private File logFile(String vaultName) {
+		return new File(cacheDirectory + '/' + vaultName, LOG_FILE_NAME);
+	}
+
+	private static String content(String treeHash, long size) {
+		return treeHash + SEPARATOR + size;
+	}
+
+}
@@ -0,0 +1,206 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
+
+/**
+ * The vaults of the account, as listed by <code>ListVaults</code>, with the
+ * archive count and size of each vault. The list is fetched page by page and
+ * kept for a time to live, so browsing the root node costs one listing per
+ * TTL whatever the number of vaults and of readers. While the list is
+ * refreshed by one thread the others keep reading the previous one; when the
+ * listing fails the previous list is kept and the listing is retried after
+ * a short delay rather than the whole TTL.
+ * <p>
+ * With an {@link EndpointRouter}, the vaults of all the endpoints are listed
+ * in parallel and merged.
+ */
+public class VaultCatalog {
+
+	private static final Comparator<DescribeVaultOutput> BY_NAME = new Comparator<DescribeVaultOutput>() {
+		@Override
+		public int compare(DescribeVaultOutput v1, DescribeVaultOutput v2) {
+			return v1.getVaultName().compareTo(v2.getVaultName());
+		}
+	};
+
+	private static class Snapshot {
+		final List<DescribeVaultOutput> vaults;
+		final Map<String, DescribeVaultOutput> byName;
+		final long fetchedAt;
+		final long version;
+
+		Snapshot(List<DescribeVaultOutput> vaults, long fetchedAt, long version) {
+			this.vaults = Collections.unmodifiableList(vaults);
+			this.byName = new HashMap<String, DescribeVaultOutput>();
+			for (DescribeVaultOutput vault : vaults) {
+				byName.put(vault.getVaultName(), vault);
+			}
+			this.fetchedAt = fetchedAt;
+			this.version = version;
+		}
+	}
+
+	private final AmazonGlacierClient client;
+	private final EndpointRouter router;
+	private final long ttl;
+	private int listLimit = 1000;
+	private long retryDelay = 10000;
+
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	private volatile Snapshot snapshot;
+
+	/**
+	 * @param ttl
+	 *            how long, in milliseconds, the list of vaults is kept
+	 */
+	public VaultCatalog(AmazonGlacierClient client, long ttl) {
+		this.client = client;
+		this.router = null;
+		this.ttl = ttl;
+	}
+
+	public VaultCatalog(EndpointRouter router, long ttl) {
+		this.client = null;
+		this.router = router;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @param listLimit
+	 *            the number of vaults asked for by each <code>ListVaults</code>
+	 *            call, at most 1000
+	 */
+	public VaultCatalog withListLimit(int listLimit) {
+		this.listLimit = Math.max(1, Math.min(1000, listLimit));
+		return this;
+	}
+
+	/**
+	 * @param retryDelay
+	 *            how long, in milliseconds, a failed listing waits to be
+	 *            retried, at most the TTL
+	 */
+	public VaultCatalog withRetryDelay(long retryDelay) {
+		this.retryDelay = Math.max(0, retryDelay);
+		return this;
+	}
+
+	/**
+	 * @return the vaults, in name order
+	 */
+	public List<DescribeVaultOutput> vaults() {
+		return snapshot().vaults;
+	}
+
+	/**
+	 * @return the listing of the vault, null when the account has no such
+	 *         vault
+	 */
+	public DescribeVaultOutput get(String vaultName) {
+		return snapshot().byName.get(vaultName);
+	}
+
+	public boolean contains(String vaultName) {
+		return get(vaultName) != null;
+	}
+
+	/**
+	 * @return the names of the vaults of one page, in name order
+	 */
+	public List<String> names(int offset, int count) {
+		List<DescribeVaultOutput> vaults = vaults();
+		List<String> names = new ArrayList<String>(Math.max(0, count));
+		int end = offset + count;
+		for (int i = Math.max(0, offset); i < end && i < vaults.size(); i++) {
+			names.add(vaults.get(i).getVaultName());
+		}
+		return names;
+	}
+
+	public int size() {
+		return vaults().size();
+	}
+
+	/**
+	 * @return a number that changes whenever a refresh changed the listing
+	 */
+	public long getVersion() {
+		return snapshot().version;
+	}
+
+	/**
+	 * Fetch the list again on the next read.
+	 */
+	public void invalidate() {
+		Snapshot current = snapshot;
+		if (current != null) {
+			snapshot = new Snapshot(new ArrayList<DescribeVaultOutput>(
+					current.vaults), 0, current.version);
+		}
+	}
+
+	private Snapshot snapshot() {
+
+		Snapshot current = snapshot;
+		if (current != null
+				&& System.currentTimeMillis() - current.fetchedAt < ttl) {
+			return current;
+		}
+
+		// the first read waits for the list, the others keep the previous one
+		if (current != null) {
+			if (!refreshLock.tryLock()) {
+				return current;
+			}
+		} else {
+			refreshLock.lock();
+		}
+		try {
+			current = snapshot;
+			if (current != null
+					&& System.currentTimeMillis() - current.fetchedAt < ttl) {
+				return current;
+			}
+			snapshot = refresh(current);
+			return snapshot;
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	private Snapshot refresh(Snapshot current) {
+
+		long now = System.currentTimeMillis();
+		long version = current != null ? current.version : 0;
+
+		List<DescribeVaultOutput> vaults;
+		try {
+			vaults = router != null ? router.listVaults(listLimit)
+					: GlacierUtil.listVaults(client, listLimit);
+		} catch (AmazonClientException e) {
+			System.out.println("Unable to list the vaults: " + e.getMessage());
+			return new Snapshot(
+					current != null ? new ArrayList<DescribeVaultOutput>(
+							current.vaults)
+							: new ArrayList<DescribeVaultOutput>(), now - ttl
+							+ Math.min(ttl, retryDelay), version);
+		}
+
+		Collections.sort(vaults, BY_NAME);
+		if (current == null || !current.vaults.equals(vaults)) {
+			version++;
+		}
+		return new Snapshot(vaults, now, version);
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * POSTs the digest as a JSON document
+ * <code>{"count": n, "archiveIds": [...]}</code> to a URL.
+ */
+public class WebhookNotificationSink implements NotificationSink {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final int TIMEOUT = 30 * 1000;
+
+	private final URL url;
+
+	public WebhookNotificationSink(String url) throws IOException {
+		this.url = new URL(url);
+	}
+
+	@Override
+	public void send(List<String> archiveIds) throws IOException {
+
+		ObjectNode document = mapper.createObjectNode();
+		document.put("count", archiveIds.size());
+		ArrayNode ids = document.putArray("archiveIds");
+		for (String archiveId : archiveIds) {
+			ids.add(archiveId);
+		}
+		byte[] body = mapper.writeValueAsBytes(document);
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			if (status < 200 || status >= 300) {
+				throw new IOException("Webhook " + url + " answered " + status);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+}
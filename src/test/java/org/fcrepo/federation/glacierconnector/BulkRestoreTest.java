@@ -0,0 +1,123 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.After;
+import org.junit.Test;
+
+public class BulkRestoreTest {
+
+	/**
+	 * Records the requests instead of initiating jobs; the archives in
+	 * <code>cached</code> are considered in the local cache.
+	 */
+	private class RecordingRequester extends RetrievalRequester {
+
+		final List<String> requested = new ArrayList<String>();
+		final Set<String> cached = new HashSet<String>();
+
+		RecordingRequester() {
+			super(null, null, registry);
+		}
+
+		@Override
+		public boolean isCached(String vaultName, String archiveId) {
+			return cached.contains(archiveId);
+		}
+
+		@Override
+		public boolean request(String vaultName, String archiveId,
+				boolean prefetch) {
+			requested.add(archiveId);
+			registry.putIntoWaitingList(vaultName, archiveId, "job-"
+					+ archiveId, prefetch);
+			return true;
+		}
+	}
+
+	private final RetrievalRegistry registry = new RetrievalRegistry();
+
+	@After
+	public void after() {
+		registry.clear();
+	}
+
+	private static JsonNode inventory(long... sizes) {
+		ArrayNode archiveList = new ObjectMapper().createArrayNode();
+		for (int i = 0; i < sizes.length; i++) {
+			ObjectNode archive = archiveList.addObject();
+			archive.put("ArchiveId", "archive" + i);
+			archive.put("Size", sizes[i]);
+		}
+		return archiveList;
+	}
+
+	@Test
+	public void shouldRequestTheLargestArchivesFirstInBoundedBatches() {
+
+		RecordingRequester requester = new RecordingRequester();
+		BulkRestore restore = new BulkRestore("vault-1", "vault").plan(
+				inventory(10, 40, 20, 30, 50), null);
+
+		assertEquals(5, restore.getTotalArchives());
+		assertEquals(150, restore.getTotalBytes());
+
+		assertEquals(2, restore.submitBatch(requester, 10, 90));
+		assertEquals(2, restore.submitBatch(requester, 10, 50));
+		assertEquals(1, restore.submitBatch(requester, 10, 50));
+		assertFalse(restore.hasNextBatch());
+
+		assertEquals("[archive4, archive1, archive3, archive2, archive0]",
+				requester.requested.toString());
+	}
+
+	@Test
+	public void shouldCompleteOnceEveryArchiveIsCachedOrFailed() {
+
+		RecordingRequester requester = new RecordingRequester();
+		BulkRestore restore = new BulkRestore("vault-2", "vault").plan(
+				inventory(1, 2, 3), null);
+		restore.submitBatch(requester, 10, Long.MAX_VALUE);
+
+		requester.cached.add("archive0");
+		requester.cached.add("archive2");
+		registry.removeFromWaitingList("archive0");
+		registry.removeFromWaitingList("archive2");
+		assertFalse(restore.update(requester));
+		assertTrue(restore.isOutstanding("archive1"));
+
+		// the job of archive1 expired
+		registry.removeFromWaitingList("archive1");
+		assertTrue(restore.update(requester));
+		assertFalse(restore.update(requester));
+
+		assertEquals(BulkRestore.State.COMPLETED, restore.getState());
+		assertEquals(2, restore.getRestoredArchives());
+		assertEquals(4, restore.getRestoredBytes());
+		assertEquals(1, restore.getFailedArchives());
+	}
+
+	@Test
+	public void shouldRestoreOneArchiveOfAVault() {
+
+		BulkRestore restore = new BulkRestore("vault-3", "vault").plan(
+				inventory(1, 2, 3), Collections.singleton("archive1"));
+
+		assertEquals(1, restore.getTotalArchives());
+		assertEquals(2, restore.getTotalBytes());
+		assertTrue(restore.contains("archive1"));
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DescriptionIndexTest {
+
+	private final File cacheDirectory = new File("target/description-index");
+
+	private final InventoryFixture inventory = new InventoryFixture("vault")
+			.withArchive("a1", "/vault/docs/report.pdf/jcr:content",
+					"2013-01-01T00:00:00Z", 1)
+			.withArchive("a2", "/vault/docs/report.pdf/jcr:content",
+					"2013-06-01T00:00:00Z", 2)
+			.withArchive("a3", "/vault/docs/notes.txt/jcr:content",
+					"2013-01-01T00:00:00Z", 3)
+			.withArchive("a4", "my archive", "2013-01-01T00:00:00Z", 4);
+
+	private DescriptionIndex index;
+
+	@Before
+	public void before() throws IOException {
+		inventory.writeTo(cacheDirectory);
+		index = newIndex();
+	}
+
+	@After
+	public void after() {
+		inventory.deleteFrom(cacheDirectory);
+	}
+
+	private DescriptionIndex newIndex() {
+		return new DescriptionIndex(cacheDirectory.getPath(),
+				new InventoryIndex(cacheDirectory.getPath()));
+	}
+
+	@Test
+	public void shouldResolveTheLatestArchiveOfAName() {
+		assertEquals("a2", index.resolve("vault", "docs/report.pdf"));
+		assertEquals("a4", index.resolve("vault", "my archive"));
+		assertNull(index.resolve("vault", "docs/missing.pdf"));
+		assertEquals("docs/notes.txt", index.nameOf("vault", "a3"));
+	}
+
+	@Test
+	public void shouldListNamesByPrefix() {
+		assertEquals(Arrays.asList("docs/notes.txt", "docs/report.pdf"),
+				index.list("vault", "docs/", 0, 10));
+		assertEquals(Arrays.asList("docs/report.pdf"),
+				index.list("vault", "docs/", 1, 10));
+		assertEquals(3, index.count("vault"));
+	}
+
+	@Test
+	public void shouldListADeepPage() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			index.uploaded("vault", "/vault/docs/n" + (1000 + i)
+					+ "/jcr:content", "n" + i);
+		}
+
+		assertEquals(Arrays.asList("docs/n1098", "docs/n1099",
+				"docs/notes.txt"), index.list("vault", "docs/n", 98, 10));
+		assertEquals(Arrays.asList("docs/notes.txt"),
+				index.list("vault", "docs/n", 100, 10));
+		assertEquals(0, index.list("vault", "docs/n", 101, 10).size());
+		assertEquals(Arrays.asList("docs/report.pdf", "my archive"),
+				index.list("vault", "", 101, 10));
+	}
+
+	@Test
+	public void shouldVersionEachVaultApart() throws IOException {
+		long vaultVersion = index.getVersion("vault");
+		long otherVersion = index.getVersion("other");
+
+		index.uploaded("vault", "/vault/docs/new.pdf/jcr:content", "a5");
+
+		assertEquals(otherVersion, index.getVersion("other"));
+		assertFalse(vaultVersion == index.getVersion("vault"));
+	}
+
+	@Test
+	public void shouldKeepTheUploadsAndDeletesAcrossRestarts()
+			throws IOException {
+
+		index.uploaded("vault", "/vault/docs/new.pdf/jcr:content", "a5");
+		index.deleted("vault", "a3");
+
+		DescriptionIndex reopened = newIndex();
+		assertEquals("a5", reopened.resolve("vault", "docs/new.pdf"));
+		assertNull(reopened.resolve("vault", "docs/notes.txt"));
+	}
+
+	@Test
+	public void shouldNotResurrectAnArchiveDeletedBeforeTheInventory()
+			throws IOException {
+
+		index.uploaded("vault", "/vault/docs/new.pdf/jcr:content", "a5");
+		index.uploaded("vault", "/vault/docs/copy.pdf/jcr:content", "a5");
+		index.unlinked("vault", "docs/copy.pdf", "a5");
+		index.deleted("vault", "a5");
+
+		// every reopening compacts the log
+		for (int i = 0; i < 2; i++) {
+			DescriptionIndex reopened = newIndex();
+			assertNull(reopened.resolve("vault", "docs/new.pdf"));
+			assertNull(reopened.resolve("vault", "docs/copy.pdf"));
+			assertEquals("a3", reopened.resolve("vault", "docs/notes.txt"));
+		}
+	}
+
+	@Test
+	public void shouldKeepTheNamesOfADeduplicatedArchive() throws IOException {
+
+		// a3 is already in the inventory under another name
+		index.uploaded("vault", "/vault/docs/copy.txt/jcr:content", "a3");
+		index.uploaded("vault", "/vault/docs/other.txt/jcr:content", "a3");
+		index.unlinked("vault", "docs/other.txt", "a3");
+
+		DescriptionIndex reopened = newIndex();
+		assertEquals("a3", reopened.resolve("vault", "docs/copy.txt"));
+		assertEquals("a3", reopened.resolve("vault", "docs/notes.txt"));
+		assertNull(reopened.resolve("vault", "docs/other.txt"));
+	}
+
+	@Test
+	public void shouldEncodeNamesIntoOneSegment() {
+		String segment = DescriptionIndex.encodeName("docs/a b*.pdf");
+		assertEquals(-1, segment.indexOf('/'));
+		assertEquals(-1, segment.indexOf('*'));
+		assertEquals("docs/a b*.pdf", DescriptionIndex.decodeName(segment));
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.infinispan.schematic.Schematic;
+import org.infinispan.schematic.document.Document;
+import org.junit.Test;
+
+public class DocumentCacheTest {
+
+	private final DocumentCache cache = new DocumentCache(100, 100);
+
+	@Test
+	public void shouldParseNodeIds() {
+
+		NodeId content = cache.nodeId("/vault/archive/jcr:content");
+		assertTrue(content.archive);
+		assertTrue(content.content);
+		assertEquals("vault", content.vaultName);
+		assertEquals("archive", content.archiveId);
+		assertEquals("/vault/archive", content.parentId);
+
+		NodeId vault = cache.nodeId("/vault");
+		assertFalse(vault.archive);
+		assertEquals("vault", vault.vaultName);
+		assertNull(vault.archiveId);
+		assertEquals("/", vault.parentId);
+
+		NodeId root = cache.nodeId("/");
+		assertTrue(root.root);
+		assertNull(root.parentId);
+
+		assertSame(content, cache.nodeId("/vault/archive/jcr:content"));
+	}
+
+	@Test
+	public void shouldRebuildADocumentWhoseStateChanged() {
+
+		Document document = Schematic.newDocument();
+		cache.put("/vault/archive", "NONE", document);
+
+		assertSame(document, cache.get("/vault/archive", "NONE"));
+		assertNull(cache.get("/vault/archive", "REQUESTED"));
+		assertNull(cache.get("/vault/archive", "NONE"));
+	}
+
+	@Test
+	public void shouldInvalidateTheNodeItsContentAndItsParent() {
+
+		cache.put("/vault", "1", Schematic.newDocument());
+		cache.put("/vault/archive", "NONE", Schematic.newDocument());
+		cache.put("/vault/archive/jcr:content", "NONE",
+				Schematic.newDocument());
+		cache.put("/other", "1", Schematic.newDocument());
+
+		cache.invalidate("/vault/archive");
+
+		assertEquals(1, cache.size());
+		assertTrue(cache.get("/other", "1") != null);
+
+		cache.put("/vault/archive", "NONE", Schematic.newDocument());
+		cache.invalidateVault("vault");
+		assertEquals(1, cache.size());
+	}
+
+}
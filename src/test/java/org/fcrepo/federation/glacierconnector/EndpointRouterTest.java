@@ -0,0 +1,161 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
+
+public class EndpointRouterTest {
+
+	private FakeAws aws;
+	private EndpointRouter router;
+
+	@Before
+	public void before() {
+		aws = new FakeAws().install();
+		aws.createVault("eu-photos");
+		aws.createVault("eu-archive-2013");
+		aws.createVault("scans");
+
+		List<GlacierEndpoint> endpoints = GlacierEndpoint.parse(
+				"eu-=eu-west-1:key1:secret1, eu-archive-=eu-west-1:key2:secret2:archiveQueue",
+				"queue");
+		endpoints.add(new GlacierEndpoint("", FakeAws.REGION, "key0",
+				"secret0", "queue"));
+		router = new EndpointRouter(endpoints);
+	}
+
+	@After
+	public void after() {
+		router.shutdown();
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldRouteByTheLongestVaultPrefix() {
+		assertEquals("key2", router.route("eu-archive-2013").accessKey);
+		assertEquals("archiveQueue",
+				router.route("eu-archive-2013").sqsQueueName);
+		assertEquals("key1", router.route("eu-photos").accessKey);
+		assertEquals("queue", router.route("eu-photos").sqsQueueName);
+		assertEquals("key0", router.route("scans").accessKey);
+
+		assertNull(new EndpointRouter(GlacierEndpoint.parse(
+				"eu-=eu-west-1:key1:secret1", "queue")).route("scans"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectAnInvalidEndpoint() {
+		GlacierEndpoint.parse("eu-west-1:key1:secret1", "queue");
+	}
+
+	@Test
+	public void shouldListEachVaultOnceByItsEndpoint() {
+		// every endpoint lists the same fake account
+		List<String> names = new ArrayList<String>();
+		for (DescribeVaultOutput vault : router.listVaults(1000)) {
+			names.add(vault.getVaultName());
+		}
+		Collections.sort(names);
+
+		assertEquals(Arrays.asList("eu-archive-2013", "eu-photos", "scans"),
+				names);
+	}
+
+	@Test
+	public void shouldListTheVaultsOfTheEndpointsThatDidNotFail() {
+		final boolean[] unreachable = new boolean[1];
+		GlacierEndpoint failing = new GlacierEndpoint("eu-", FakeAws.REGION,
+				"key1", "secret1", "queue") {
+			@Override
+			synchronized public AmazonGlacierClient client() {
+				if (unreachable[0]) {
+					throw new AmazonClientException("unreachable region");
+				}
+				return super.client();
+			}
+		};
+		router = new EndpointRouter(Arrays.<GlacierEndpoint> asList(failing,
+				new GlacierEndpoint("", FakeAws.REGION, "key0", "secret0",
+						"queue")));
+
+		assertEquals(3, router.listVaults(1000).size());
+		aws.createVault("eu-new");
+		unreachable[0] = true;
+
+		// the failed endpoint keeps the vaults it listed last
+		List<String> names = new ArrayList<String>();
+		for (DescribeVaultOutput vault : router.listVaults(1000)) {
+			names.add(vault.getVaultName());
+		}
+		Collections.sort(names);
+
+		assertEquals(Arrays.asList("eu-archive-2013", "eu-photos", "scans"),
+				names);
+	}
+
+	@Test(expected = AmazonClientException.class)
+	public void shouldFailTheListingWhenEveryEndpointFails() {
+		GlacierEndpoint failing = new GlacierEndpoint("", FakeAws.REGION,
+				"key0", "secret0", "queue") {
+			@Override
+			synchronized public AmazonGlacierClient client() {
+				throw new AmazonClientException("unreachable region");
+			}
+		};
+		router = new EndpointRouter(Collections.singletonList(failing));
+
+		router.listVaults(1000);
+	}
+
+	@Test
+	public void shouldRunTheEndpointsInParallel() {
+		// every task waits for all the others, so only concurrent tasks pass
+		final CountDownLatch started = new CountDownLatch(router.endpoints()
+				.size());
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int i = 0; i < router.endpoints().size(); i++) {
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws InterruptedException {
+					started.countDown();
+					return started.await(5, TimeUnit.SECONDS);
+				}
+			});
+		}
+
+		List<Boolean> reached = router.fanOut(tasks);
+
+		assertEquals(Arrays.asList(true, true, true), reached);
+	}
+
+	@Test(expected = AmazonClientException.class)
+	public void shouldReportAFailedTaskOnceAllAreOver() {
+		router.fanOut(Arrays.<Callable<Void>> asList(new Callable<Void>() {
+			@Override
+			public Void call() {
+				return null;
+			}
+		}, new Callable<Void>() {
+			@Override
+			public Void call() {
+				throw new AmazonClientException("unreachable region");
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExistenceIndexTest {
+
+	private final File cacheDirectory = new File("target/existence-index");
+
+	private final InventoryFixture inventory = new InventoryFixture("vault")
+			.withArchive("a1", "/vault/report.pdf/jcr:content", null, 1)
+			.withArchive("a2", null, null, 2);
+
+	private ExistenceIndex index;
+
+	@Before
+	public void before() throws IOException {
+		inventory.writeTo(cacheDirectory);
+		InventoryIndex inventoryIndex = new InventoryIndex(
+				cacheDirectory.getPath());
+		index = new ExistenceIndex(inventoryIndex, new DescriptionIndex(
+				cacheDirectory.getPath(), inventoryIndex));
+	}
+
+	@After
+	public void after() {
+		inventory.deleteFrom(cacheDirectory);
+	}
+
+	@Test
+	public void shouldFindTheArchivesOfTheInventory() {
+		assertTrue(index.exists("/vault"));
+		assertTrue(index.exists("/vault/a1"));
+		assertTrue(index.exists("/vault/a2/jcr:content"));
+		assertTrue(index.exists("/vault/by-description"));
+		assertTrue(index.exists("/vault/by-description/report.pdf"));
+		assertTrue(index.exists("/vault/by-description/report.pdf/jcr:content"));
+	}
+
+	@Test
+	public void shouldRejectUnknownIds() {
+		assertFalse(index.exists("/missing"));
+		assertFalse(index.exists("/missing/a1"));
+		assertFalse(index.exists("/vault/a3"));
+		assertFalse(index.exists("/vault/a1/other"));
+		assertFalse(index.exists("/vault/by-description/missing.pdf"));
+	}
+
+	@Test
+	public void shouldFollowUploadsAndDeletes() {
+		index.added("vault", "a3");
+		index.removed("vault", "a1");
+		assertTrue(index.exists("/vault/a3"));
+		assertFalse(index.exists("/vault/a1"));
+	}
+
+	@Test
+	public void shouldFindTheUploadsToAVaultWithoutInventory() {
+		// looked up, and remembered as unknown, before the upload
+		assertFalse(index.exists("/fresh/a9"));
+
+		index.added("fresh", "a9");
+		assertTrue(index.exists("/fresh"));
+		assertTrue(index.exists("/fresh/a9"));
+		assertTrue(index.exists("/fresh/a9/jcr:content"));
+		assertFalse(index.exists("/fresh/a8"));
+		assertFalse(index.exists("/missing/a9"));
+	}
+
+	@Test
+	public void shouldFindEveryVaultOfAGrowingTable() {
+		for (int i = 0; i < 100; i++) {
+			assertFalse(index.exists("/typo" + i + "/a" + i));
+			index.added("vault" + i, "a" + i);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(index.exists("/vault" + i + "/a" + i));
+			assertFalse(index.exists("/vault" + i + "/b" + i));
+			assertFalse(index.exists("/typo" + i));
+		}
+		assertTrue(index.exists("/vault/a1"));
+	}
+
+	@Test
+	public void shouldRejectMostAbsentIdsWithTheFilter() {
+		ArchiveIdFilter filter = new ArchiveIdFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put("archive" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("archive" + i));
+			if (filter.mightContain("/vault/absent" + i + "/jcr:content", 7,
+					13 + String.valueOf(i).length())) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+}
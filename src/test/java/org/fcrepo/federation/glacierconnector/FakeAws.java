@@ -0,0 +1,632 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * An in-process stand-in for the Glacier vaults and jobs, SNS topics and SQS
+ * queues the connector uses. Jobs complete after {@link #withJobDelay(long)}
+ * milliseconds and notify their SNS topic; failures can be injected in the
+ * jobs, the API calls and the downloaded data, and the job output can be
+ * throttled to a bandwidth. Install it with {@link #install()} before the
+ * connector starts.
+ */
+public class FakeAws implements AwsClientProvider {
+
+	static final String ACCOUNT = "012345678901";
+	static final String REGION = "us-east-1";
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final Random random = new Random(20130601L);
+
+	private final ConcurrentMap<String, Map<String, Archive>> vaults = new ConcurrentHashMap<String, Map<String, Archive>>();
+	private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+	private final ConcurrentMap<String, List<String>> topics = new ConcurrentHashMap<String, List<String>>();
+	private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<String, Queue>();
+
+	private final AtomicLong initiatedJobs = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong uploads = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newScheduledThreadPool(2);
+
+	private long jobDelay = 1000;
+	private double jobFailureRate = 0;
+	private double apiFailureRate = 0;
+	private double corruptionRate = 0;
+	private long bytesPerSecond = 0;
+	private int notificationCopies = 1;
+
+	static class Archive {
+		final String archiveId;
+		final String description;
+		final byte[] data;
+		final String treeHash;
+		final Date creationDate = new Date();
+
+		Archive(String archiveId, String description, byte[] data) {
+			this.archiveId = archiveId;
+			this.description = description;
+			this.data = data;
+			this.treeHash = TreeHashGenerator
+					.calculateTreeHash(new ByteArrayInputStream(data));
+		}
+	}
+
+	static class Job {
+		final String jobId;
+		final String vaultName;
+		final String archiveId;
+		final String action;
+		final String topicArn;
+		final Date creationDate = new Date();
+		volatile String statusCode = "InProgress";
+		volatile Date completionDate;
+
+		Job(String jobId, String vaultName, String archiveId, String action,
+				String topicArn) {
+			this.jobId = jobId;
+			this.vaultName = vaultName;
+			this.archiveId = archiveId;
+			this.action = action;
+			this.topicArn = topicArn;
+		}
+	}
+
+	static class QueuedMessage {
+		final String messageId = UUID.randomUUID().toString();
+		final String body;
+		final long sentTimestamp = System.currentTimeMillis();
+		long visibleAt;
+		int receiveCount;
+		String receiptHandle;
+
+		QueuedMessage(String body) {
+			this.body = body;
+		}
+	}
+
+	static class Queue {
+		final String name;
+		final String url;
+		final String arn;
+		final Map<String, String> attributes = new HashMap<String, String>();
+		final List<QueuedMessage> messages = new ArrayList<QueuedMessage>();
+
+		Queue(String name) {
+			this.name = name;
+			this.url = "https://sqs." + REGION + ".amazonaws.com/" + ACCOUNT
+					+ "/" + name;
+			this.arn = "arn:aws:sqs:" + REGION + ":" + ACCOUNT + ":" + name;
+			attributes.put("QueueArn", arn);
+			attributes.put("VisibilityTimeout", "30");
+		}
+	}
+
+	public FakeAws withJobDelay(long jobDelay) {
+		this.jobDelay = jobDelay;
+		return this;
+	}
+
+	/**
+	 * @param jobFailureRate
+	 *            the fraction of the jobs that complete as Failed
+	 * @param apiFailureRate
+	 *            the fraction of the data plane calls that throw an
+	 *            {@link AmazonServiceException}
+	 * @param corruptionRate
+	 *            the fraction of the job outputs that do not match their tree
+	 *            hash
+	 */
+	public FakeAws withFailures(double jobFailureRate, double apiFailureRate,
+			double corruptionRate) {
+		this.jobFailureRate = jobFailureRate;
+		this.apiFailureRate = apiFailureRate;
+		this.corruptionRate = corruptionRate;
+		return this;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the bandwidth of every job output stream, 0 for unlimited
+	 */
+	public FakeAws withBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param notificationCopies
+	 *            how many times every job notification is delivered, as SNS
+	 *            and SQS may deliver a message more than once
+	 */
+	public FakeAws withDuplicateNotifications(int notificationCopies) {
+		this.notificationCopies = Math.max(1, notificationCopies);
+		return this;
+	}
+
+	public FakeAws install() {
+		GlacierClientFactory.setProvider(this);
+		return this;
+	}
+
+	public void uninstall() {
+		GlacierClientFactory.setProvider(null);
+		scheduler.shutdownNow();
+	}
+
+	public long getInitiatedJobs() {
+		return initiatedJobs.get();
+	}
+
+	public long getDownloads() {
+		return downloads.get();
+	}
+
+	public long getUploads() {
+		return uploads.get();
+	}
+
+	/**
+	 * @return the calls of the given API, such as <code>ListJobs</code>
+	 */
+	public long getCalls(String operation) {
+		AtomicLong count = calls.get(operation);
+		return count == null ? 0 : count.get();
+	}
+
+	@Override
+	public AmazonGlacierClient newGlacierClient(AWSCredentials credentials,
+			String endpoint) {
+		return new FakeGlacierClient(this, credentials);
+	}
+
+	@Override
+	public AmazonSQSClient newSQSClient(AWSCredentials credentials,
+			String endpoint) {
+		return new FakeSQSClient(this, credentials);
+	}
+
+	@Override
+	public AmazonSNSClient newSNSClient(AWSCredentials credentials,
+			String endpoint) {
+		return new FakeSNSClient(this, credentials);
+	}
+
+	// vaults
+
+	public void createVault(String vaultName) {
+		vaults.putIfAbsent(vaultName, Collections
+				.synchronizedMap(new LinkedHashMap<String, Archive>()));
+	}
+
+	Map<String, Archive> vault(String vaultName) {
+		Map<String, Archive> vault = vaults.get(vaultName);
+		if (vault == null) {
+			throw new ResourceNotFoundException(
+					"Vault not found: " + vaultName);
+		}
+		return vault;
+	}
+
+	Map<String, Map<String, Archive>> vaults() {
+		return vaults;
+	}
+
+	/**
+	 * Add archives of random content to the vault.
+	 * 
+	 * @return the archive ids
+	 */
+	public List<String> addArchives(String vaultName, int count, int size) {
+		List<String> archiveIds = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[size];
+			synchronized (random) {
+				random.nextBytes(data);
+			}
+			archiveIds.add(upload(vaultName, "archive-" + i, data).archiveId);
+		}
+		return archiveIds;
+	}
+
+	Archive upload(String vaultName, String description, byte[] data) {
+		Archive archive = new Archive(newId(138), description, data);
+		vault(vaultName).put(archive.archiveId, archive);
+		uploads.incrementAndGet();
+		return archive;
+	}
+
+	public byte[] getArchiveData(String vaultName, String archiveId) {
+		Archive archive = vault(vaultName).get(archiveId);
+		return archive == null ? null : archive.data;
+	}
+
+	/**
+	 * Write the inventory of the vault where the connector reads it:
+	 * <code>&lt;cacheDirectory&gt;/&lt;vaultName&gt;/&lt;vaultName&gt;</code>.
+	 */
+	public void writeInventory(File cacheDirectory, String vaultName)
+			throws IOException {
+		inventory(vaultName).writeTo(cacheDirectory);
+	}
+
+	InventoryFixture inventory(String vaultName) {
+		InventoryFixture inventory = new InventoryFixture(vaultName)
+				.withInventoryDate(new Date().toString());
+		Map<String, Archive> vault = vault(vaultName);
+		synchronized (vault) {
+			for (Archive archive : vault.values()) {
+				inventory.withArchive(archive.archiveId, archive.description,
+						archive.creationDate.toString(), archive.data.length,
+						archive.treeHash);
+			}
+		}
+		return inventory;
+	}
+
+	static String vaultArn(String vaultName) {
+		return "arn:aws:glacier:" + REGION + ":" + ACCOUNT + ":vaults/"
+				+ vaultName;
+	}
+
+	// jobs
+
+	Job initiateJob(String vaultName, String archiveId, String action,
+			String topicArn) {
+		vault(vaultName);
+		maybeFail("InitiateJob");
+
+		final Job job = new Job(newId(92), vaultName, archiveId, action,
+				topicArn);
+		jobs.put(job.jobId, job);
+		initiatedJobs.incrementAndGet();
+
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				complete(job);
+			}
+		}, jobDelay, TimeUnit.MILLISECONDS);
+
+		return job;
+	}
+
+	Job job(String jobId) {
+		Job job = jobs.get(jobId);
+		if (job == null) {
+			throw new ResourceNotFoundException(
+					"Job not found: " + jobId);
+		}
+		return job;
+	}
+
+	List<Job> jobs(String vaultName) {
+		List<Job> vaultJobs = new ArrayList<Job>();
+		for (Job job : jobs.values()) {
+			if (job.vaultName.equals(vaultName)) {
+				vaultJobs.add(job);
+			}
+		}
+		return vaultJobs;
+	}
+
+	private void complete(Job job) {
+		job.statusCode = chance(jobFailureRate) ? "Failed" : "Succeeded";
+		job.completionDate = new Date();
+
+		if (job.topicArn != null) {
+			ObjectNode envelope = mapper.createObjectNode();
+			envelope.put("Type", "Notification");
+			envelope.put("MessageId", UUID.randomUUID().toString());
+			envelope.put("TopicArn", job.topicArn);
+			envelope.put("Message", describe(job).toString());
+			publish(job.topicArn, envelope.toString());
+		}
+	}
+
+	ObjectNode describe(Job job) {
+		ObjectNode node = mapper.createObjectNode();
+		node.put("JobId", job.jobId);
+		node.put("Action", job.action);
+		node.put("ArchiveId", job.archiveId);
+		node.put("VaultARN", vaultArn(job.vaultName));
+		node.put("StatusCode", job.statusCode);
+		node.put("Completed", job.completionDate != null);
+		node.put("SNSTopic", job.topicArn);
+		Archive archive = job.archiveId == null ? null : vault(job.vaultName)
+				.get(job.archiveId);
+		if (archive != null) {
+			node.put("SHA256TreeHash", archive.treeHash);
+			node.put("ArchiveSizeInBytes", archive.data.length);
+		}
+		return node;
+	}
+
+	InputStream jobOutput(String jobId) {
+		Job job = job(jobId);
+		maybeFail("GetJobOutput");
+		if (!"Succeeded".equals(job.statusCode)) {
+			throw serviceException("GetJobOutput", "Job " + jobId + " is "
+					+ job.statusCode, 400);
+		}
+
+		byte[] data;
+		if (job.archiveId == null) {
+			data = inventory(job.vaultName).toJson().toString().getBytes();
+		} else {
+			data = vault(job.vaultName).get(job.archiveId).data;
+			if (chance(corruptionRate)) {
+				data = data.clone();
+				data[0] ^= 0xff;
+			}
+		}
+		downloads.incrementAndGet();
+
+		InputStream body = new ByteArrayInputStream(data);
+		return bytesPerSecond > 0 ? new ThrottledInputStream(body,
+				bytesPerSecond) : body;
+	}
+
+	// topics
+
+	String createTopic(String name) {
+		String topicArn = "arn:aws:sns:" + REGION + ":" + ACCOUNT + ":" + name;
+		topics.putIfAbsent(topicArn, new ArrayList<String>());
+		return topicArn;
+	}
+
+	String subscribe(String topicArn, String queueArn) {
+		List<String> subscribers = topics.get(topicArn);
+		synchronized (subscribers) {
+			subscribers.add(queueArn);
+		}
+		return topicArn + ":" + UUID.randomUUID();
+	}
+
+	void unsubscribe(String subscriptionArn) {
+		String topicArn = subscriptionArn.substring(0,
+				subscriptionArn.lastIndexOf(':'));
+		topics.remove(topicArn);
+	}
+
+	void deleteTopic(String topicArn) {
+		topics.remove(topicArn);
+	}
+
+	private void publish(String topicArn, String body) {
+		List<String> subscribers = topics.get(topicArn);
+		if (subscribers == null) {
+			return;
+		}
+		synchronized (subscribers) {
+			for (String queueArn : subscribers) {
+				for (Queue queue : queues.values()) {
+					if (queue.arn.equals(queueArn)) {
+						synchronized (queue) {
+							for (int i = 0; i < notificationCopies; i++) {
+								queue.messages.add(new QueuedMessage(body));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// queues
+
+	Queue createQueue(String name) {
+		Queue queue = new Queue(name);
+		Queue existing = queues.putIfAbsent(queue.url, queue);
+		return existing != null ? existing : queue;
+	}
+
+	Queue queue(String url) {
+		Queue queue = queues.get(url);
+		if (queue == null) {
+			throw serviceException("GetQueue", "Queue not found: " + url, 400);
+		}
+		return queue;
+	}
+
+	List<Message> receive(String url, int maxMessages) {
+		maybeFail("ReceiveMessage");
+		Queue queue = queue(url);
+		long now = System.currentTimeMillis();
+		long visibilityTimeout = Long.parseLong(queue.attributes
+				.get("VisibilityTimeout")) * 1000;
+
+		List<Message> received = new ArrayList<Message>();
+		synchronized (queue) {
+			for (QueuedMessage m : queue.messages) {
+				if (received.size() >= maxMessages) {
+					break;
+				}
+				if (m.visibleAt > now) {
+					continue;
+				}
+				m.visibleAt = now + visibilityTimeout;
+				m.receiveCount++;
+				m.receiptHandle = UUID.randomUUID().toString();
+
+				Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put("SentTimestamp", Long.toString(m.sentTimestamp));
+				attributes.put("ApproximateReceiveCount",
+						Integer.toString(m.receiveCount));
+				received.add(new Message().withMessageId(m.messageId)
+						.withReceiptHandle(m.receiptHandle).withBody(m.body)
+						.withAttributes(attributes));
+			}
+		}
+		return received;
+	}
+
+	boolean delete(String url, String receiptHandle) {
+		Queue queue = queue(url);
+		synchronized (queue) {
+			for (int i = 0; i < queue.messages.size(); i++) {
+				if (receiptHandle.equals(queue.messages.get(i).receiptHandle)) {
+					queue.messages.remove(i);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	boolean changeVisibility(String url, String receiptHandle, int seconds) {
+		Queue queue = queue(url);
+		synchronized (queue) {
+			for (QueuedMessage m : queue.messages) {
+				if (receiptHandle.equals(m.receiptHandle)) {
+					m.visibleAt = System.currentTimeMillis() + seconds * 1000L;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	int queueSize(String url) {
+		Queue queue = queue(url);
+		synchronized (queue) {
+			return queue.messages.size();
+		}
+	}
+
+	// failures
+
+	void maybeFail(String operation) {
+		called(operation);
+		if (chance(apiFailureRate)) {
+			throw serviceException(operation, "Injected failure", 500);
+		}
+	}
+
+	void called(String operation) {
+		AtomicLong count = calls.get(operation);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = calls.putIfAbsent(operation, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private static AmazonServiceException serviceException(String operation,
+			String message, int statusCode) {
+		AmazonServiceException e = new AmazonServiceException(operation + ": "
+				+ message);
+		e.setStatusCode(statusCode);
+		e.setServiceName("FakeAws");
+		return e;
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private String newId(int length) {
+		char[] chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+				.toCharArray();
+		char[] id = new char[length];
+		synchronized (random) {
+			for (int i = 0; i < length; i++) {
+				id[i] = chars[random.nextInt(chars.length)];
+			}
+		}
+		return new String(id);
+	}
+
+	/**
+	 * Reads at most the given number of bytes per second.
+	 */
+	static class ThrottledInputStream extends FilterInputStream {
+
+		private final long bytesPerSecond;
+		private final long start = System.nanoTime();
+		private long read;
+
+		ThrottledInputStream(InputStream in, long bytesPerSecond) {
+			super(in);
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		@Override
+		public int read() throws IOException {
+			throttle(1);
+			int b = super.read();
+			if (b >= 0) {
+				read++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			len = (int) Math.min(len, Math.max(1, bytesPerSecond / 10));
+			throttle(len);
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				read += n;
+			}
+			return n;
+		}
+
+		private void throttle(int len) throws IOException {
+			long due = (read + len) * 1000000000L / bytesPerSecond;
+			long wait = due - (System.nanoTime() - start);
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+}
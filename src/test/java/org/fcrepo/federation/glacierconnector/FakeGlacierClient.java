@@ -0,0 +1,182 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultOutput;
+import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.GlacierJobDescription;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.InitiateJobResult;
+import com.amazonaws.services.glacier.model.ListJobsRequest;
+import com.amazonaws.services.glacier.model.ListJobsResult;
+import com.amazonaws.services.glacier.model.ListVaultsRequest;
+import com.amazonaws.services.glacier.model.ListVaultsResult;
+import com.amazonaws.services.glacier.model.UploadArchiveRequest;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
+
+/**
+ * The Glacier operations of the connector, served by a {@link FakeAws}.
+ */
+public class FakeGlacierClient extends AmazonGlacierClient {
+
+	private static final int PAGE_SIZE = 50;
+
+	private final FakeAws aws;
+
+	public FakeGlacierClient(FakeAws aws, AWSCredentials credentials) {
+		super(credentials);
+		this.aws = aws;
+	}
+
+	@Override
+	public DescribeVaultResult describeVault(DescribeVaultRequest request) {
+		Map<String, FakeAws.Archive> vault = aws.vault(request.getVaultName());
+		return new DescribeVaultResult()
+				.withVaultName(request.getVaultName())
+				.withVaultARN(FakeAws.vaultArn(request.getVaultName()))
+				.withNumberOfArchives((long) vault.size());
+	}
+
+	@Override
+	public ListVaultsResult listVaults(ListVaultsRequest request) {
+		aws.maybeFail("ListVaults");
+		List<String> vaultNames = new ArrayList<String>(aws.vaults().keySet());
+		Collections.sort(vaultNames);
+
+		int start = request.getMarker() == null ? 0 : Integer.parseInt(request
+				.getMarker());
+		int limit = request.getLimit() == null ? PAGE_SIZE : Integer
+				.parseInt(request.getLimit());
+		int end = Math.min(vaultNames.size(), start + limit);
+
+		List<DescribeVaultOutput> vaultList = new ArrayList<DescribeVaultOutput>();
+		for (String vaultName : vaultNames.subList(start, end)) {
+			Map<String, FakeAws.Archive> vault = aws.vault(vaultName);
+			long size = 0;
+			synchronized (vault) {
+				for (FakeAws.Archive archive : vault.values()) {
+					size += archive.data.length;
+				}
+			}
+			vaultList.add(new DescribeVaultOutput().withVaultName(vaultName)
+					.withVaultARN(FakeAws.vaultArn(vaultName))
+					.withNumberOfArchives((long) vault.size())
+					.withSizeInBytes(size));
+		}
+
+		return new ListVaultsResult().withVaultList(vaultList).withMarker(
+				end < vaultNames.size() ? Integer.toString(end) : null);
+	}
+
+	@Override
+	public InitiateJobResult initiateJob(InitiateJobRequest request) {
+		FakeAws.Job job = aws.initiateJob(request.getVaultName(), request
+				.getJobParameters().getArchiveId(), request.getJobParameters()
+				.getArchiveId() == null ? "InventoryRetrieval"
+				: "ArchiveRetrieval", request.getJobParameters().getSNSTopic());
+		return new InitiateJobResult().withJobId(job.jobId);
+	}
+
+	@Override
+	public DescribeJobResult describeJob(DescribeJobRequest request) {
+		aws.maybeFail("DescribeJob");
+		FakeAws.Job job = aws.job(request.getJobId());
+		DescribeJobResult result = new DescribeJobResult()
+				.withJobId(job.jobId).withAction(job.action)
+				.withArchiveId(job.archiveId)
+				.withVaultARN(FakeAws.vaultArn(job.vaultName))
+				.withStatusCode(job.statusCode)
+				.withCompleted(job.completionDate != null)
+				.withSNSTopic(job.topicArn);
+		FakeAws.Archive archive = archive(job);
+		if (archive != null) {
+			result.setSHA256TreeHash(archive.treeHash);
+			result.setArchiveSizeInBytes((long) archive.data.length);
+		}
+		return result;
+	}
+
+	@Override
+	public ListJobsResult listJobs(ListJobsRequest request) {
+		aws.maybeFail("ListJobs");
+		List<FakeAws.Job> jobs = aws.jobs(request.getVaultName());
+
+		int start = request.getMarker() == null ? 0 : Integer.parseInt(request
+				.getMarker());
+		int end = Math.min(jobs.size(), start + PAGE_SIZE);
+
+		List<GlacierJobDescription> jobList = new ArrayList<GlacierJobDescription>();
+		for (FakeAws.Job job : jobs.subList(start, end)) {
+			GlacierJobDescription description = new GlacierJobDescription()
+					.withJobId(job.jobId).withAction(job.action)
+					.withArchiveId(job.archiveId)
+					.withVaultARN(FakeAws.vaultArn(job.vaultName))
+					.withStatusCode(job.statusCode)
+					.withCompleted(job.completionDate != null)
+					.withSNSTopic(job.topicArn);
+			FakeAws.Archive archive = archive(job);
+			if (archive != null) {
+				description.setSHA256TreeHash(archive.treeHash);
+			}
+			jobList.add(description);
+		}
+
+		return new ListJobsResult().withJobList(jobList).withMarker(
+				end < jobs.size() ? Integer.toString(end) : null);
+	}
+
+	@Override
+	public GetJobOutputResult getJobOutput(GetJobOutputRequest request) {
+		return new GetJobOutputResult().withBody(aws.jobOutput(request
+				.getJobId()));
+	}
+
+	@Override
+	public UploadArchiveResult uploadArchive(UploadArchiveRequest request) {
+		aws.maybeFail("UploadArchive");
+		FakeAws.Archive archive = aws.upload(request.getVaultName(),
+				request.getArchiveDescription(), read(request.getBody()));
+		return new UploadArchiveResult().withArchiveId(archive.archiveId)
+				.withChecksum(archive.treeHash);
+	}
+
+	@Override
+	public void deleteArchive(DeleteArchiveRequest request) {
+		aws.vault(request.getVaultName()).remove(request.getArchiveId());
+	}
+
+	private FakeAws.Archive archive(FakeAws.Job job) {
+		return job.archiveId == null ? null : aws.vault(job.vaultName).get(
+				job.archiveId);
+	}
+
+	private static byte[] read(InputStream in) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new AmazonClientException("Unable to read the archive", e);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.fcrepo.federation.glacierconnector;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.DeleteTopicRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+
+/**
+ * The SNS operations of the connector, served by a {@link FakeAws}. Only
+ * <code>sqs</code> subscriptions are delivered.
+ */
+public class FakeSNSClient extends AmazonSNSClient {
+
+	private final FakeAws aws;
+
+	public FakeSNSClient(FakeAws aws, AWSCredentials credentials) {
+		super(credentials);
+		this.aws = aws;
+	}
+
+	@Override
+	public CreateTopicResult createTopic(CreateTopicRequest request) {
+		return new CreateTopicResult().withTopicArn(aws.createTopic(request
+				.getName()));
+	}
+
+	@Override
+	public SubscribeResult subscribe(SubscribeRequest request) {
+		return new SubscribeResult().withSubscriptionArn(aws.subscribe(
+				request.getTopicArn(), request.getEndpoint()));
+	}
+
+	@Override
+	public void unsubscribe(UnsubscribeRequest request) {
+		aws.unsubscribe(request.getSubscriptionArn());
+	}
+
+	@Override
+	public void deleteTopic(DeleteTopicRequest request) {
+		aws.deleteTopic(request.getTopicArn());
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * The SQS operations of the connector, served by a {@link FakeAws}.
+ */
+public class FakeSQSClient extends AmazonSQSClient {
+
+	private final FakeAws aws;
+
+	public FakeSQSClient(FakeAws aws, AWSCredentials credentials) {
+		super(credentials);
+		this.aws = aws;
+	}
+
+	@Override
+	public CreateQueueResult createQueue(CreateQueueRequest request) {
+		return new CreateQueueResult().withQueueUrl(aws.createQueue(request
+				.getQueueName()).url);
+	}
+
+	@Override
+	public GetQueueAttributesResult getQueueAttributes(
+			GetQueueAttributesRequest request) {
+		FakeAws.Queue queue = aws.queue(request.getQueueUrl());
+		Map<String, String> attributes = new HashMap<String, String>();
+		synchronized (queue) {
+			attributes.putAll(queue.attributes);
+		}
+		attributes.put("ApproximateNumberOfMessages",
+				Integer.toString(aws.queueSize(request.getQueueUrl())));
+		return new GetQueueAttributesResult().withAttributes(attributes);
+	}
+
+	@Override
+	public void setQueueAttributes(SetQueueAttributesRequest request) {
+		FakeAws.Queue queue = aws.queue(request.getQueueUrl());
+		synchronized (queue) {
+			queue.attributes.putAll(request.getAttributes());
+		}
+	}
+
+	@Override
+	public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		int maxMessages = request.getMaxNumberOfMessages() == null ? 1
+				: request.getMaxNumberOfMessages();
+		return new ReceiveMessageResult().withMessages(aws.receive(
+				request.getQueueUrl(), maxMessages));
+	}
+
+	@Override
+	public void deleteMessage(DeleteMessageRequest request) {
+		aws.delete(request.getQueueUrl(), request.getReceiptHandle());
+	}
+
+	@Override
+	public DeleteMessageBatchResult deleteMessageBatch(
+			DeleteMessageBatchRequest request) {
+		aws.called("DeleteMessageBatch");
+		List<DeleteMessageBatchResultEntry> successful = new ArrayList<DeleteMessageBatchResultEntry>();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+			if (aws.delete(request.getQueueUrl(), entry.getReceiptHandle())) {
+				successful.add(new DeleteMessageBatchResultEntry().withId(entry
+						.getId()));
+			} else {
+				failed.add(new BatchResultErrorEntry().withId(entry.getId())
+						.withCode("ReceiptHandleIsInvalid").withSenderFault(true));
+			}
+		}
+		return new DeleteMessageBatchResult().withSuccessful(successful)
+				.withFailed(failed);
+	}
+
+	@Override
+	public void changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+		aws.changeVisibility(request.getQueueUrl(),
+				request.getReceiptHandle(), request.getVisibilityTimeout());
+	}
+
+	@Override
+	public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+			ChangeMessageVisibilityBatchRequest request) {
+		aws.called("ChangeMessageVisibilityBatch");
+		List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<ChangeMessageVisibilityBatchResultEntry>();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		for (ChangeMessageVisibilityBatchRequestEntry entry : request
+				.getEntries()) {
+			if (aws.changeVisibility(request.getQueueUrl(),
+					entry.getReceiptHandle(), entry.getVisibilityTimeout())) {
+				successful.add(new ChangeMessageVisibilityBatchResultEntry()
+						.withId(entry.getId()));
+			} else {
+				failed.add(new BatchResultErrorEntry().withId(entry.getId())
+						.withCode("ReceiptHandleIsInvalid").withSenderFault(true));
+			}
+		}
+		return new ChangeMessageVisibilityBatchResult().withSuccessful(
+				successful).withFailed(failed);
+	}
+
+}
@@ -0,0 +1,258 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.SingleUseAbstractTest;
+import org.modeshape.jcr.api.JcrTools;
+
+/**
+ * Drives concurrent JCR reads and writes through the connector against the
+ * {@link FakeAws} stand-in and reports the throughput and latency. The load
+ * is set with system properties:
+ * <ul>
+ * <li><code>glacier.load.threads</code> - concurrent clients (64)</li>
+ * <li><code>glacier.load.operations</code> - operations of all clients (5000)</li>
+ * <li><code>glacier.load.archives</code> - archives in the vault (200)</li>
+ * <li><code>glacier.load.archiveSize</code> - bytes per archive (65536)</li>
+ * <li><code>glacier.load.writeRatio</code> - fraction of writes (0.1)</li>
+ * <li><code>glacier.load.jobDelay</code> - job completion, in ms (500)</li>
+ * <li><code>glacier.load.jobFailureRate</code>,
+ * <code>glacier.load.apiFailureRate</code>,
+ * <code>glacier.load.corruptionRate</code> - injected failures (0)</li>
+ * <li><code>glacier.load.bandwidth</code> - job output bytes per second, 0
+ * for unlimited (0)</li>
+ * </ul>
+ */
+public class GlacierConnectorLoadIT extends SingleUseAbstractTest {
+
+	private static final String VAULT = "loadVault";
+	private static final File CACHE_DIRECTORY = new File("target/load-archives");
+
+	private final int threads = Integer.getInteger("glacier.load.threads", 64);
+	private final int operations = Integer.getInteger(
+			"glacier.load.operations", 5000);
+	private final int archives = Integer.getInteger("glacier.load.archives",
+			200);
+	private final int archiveSize = Integer.getInteger(
+			"glacier.load.archiveSize", 65536);
+	private final double writeRatio = Double.parseDouble(System.getProperty(
+			"glacier.load.writeRatio", "0.1"));
+
+	private FakeAws aws;
+	private List<String> archiveIds;
+
+	@Before
+	public void before() throws Exception {
+
+		delete(CACHE_DIRECTORY);
+
+		aws = new FakeAws()
+				.withJobDelay(Long.getLong("glacier.load.jobDelay", 500))
+				.withFailures(
+						Double.parseDouble(System.getProperty(
+								"glacier.load.jobFailureRate", "0")),
+						Double.parseDouble(System.getProperty(
+								"glacier.load.apiFailureRate", "0")),
+						Double.parseDouble(System.getProperty(
+								"glacier.load.corruptionRate", "0")))
+				.withBandwidth(Long.getLong("glacier.load.bandwidth", 0))
+				.install();
+
+		aws.createVault(VAULT);
+		archiveIds = aws.addArchives(VAULT, archives, archiveSize);
+		aws.writeInventory(CACHE_DIRECTORY, VAULT);
+
+		startRepositoryWithConfiguration(getClass().getClassLoader()
+				.getResourceAsStream("repo-config-fake-aws.json"));
+	}
+
+	@After
+	public void after() throws Exception {
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldServeConcurrentReadsAndWrites() throws Exception {
+
+		final LatencyHistogram readLatency = new LatencyHistogram();
+		final LatencyHistogram writeLatency = new LatencyHistogram();
+		final AtomicLong served = new AtomicLong();
+		final AtomicLong requested = new AtomicLong();
+		final AtomicLong written = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final ConcurrentMap<String, Boolean> readable = new ConcurrentHashMap<String, Boolean>();
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+
+		for (int t = 0; t < threads; t++) {
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Session session = repository.login();
+						try {
+							int i;
+							while ((i = next.getAndIncrement()) < operations) {
+								long opStart = System.nanoTime();
+								if ((i * 7919 % 1000) < writeRatio * 1000) {
+									write(session, i);
+									writeLatency.record(System.nanoTime()
+											- opStart);
+									written.incrementAndGet();
+								} else {
+									String archiveId = archiveIds.get(i
+											% archiveIds.size());
+									if (read(session, archiveId)) {
+										served.incrementAndGet();
+										readable.put(archiveId, true);
+									} else {
+										requested.incrementAndGet();
+									}
+									readLatency.record(System.nanoTime()
+											- opStart);
+								}
+							}
+						} finally {
+							session.logout();
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		assertTrue("The load did not complete",
+				done.await(30, TimeUnit.MINUTES));
+		long elapsed = System.nanoTime() - start;
+		clients.shutdown();
+
+		System.out.println("Load: " + operations + " operations by "
+				+ threads + " clients in "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+				+ (operations * 1000000000L / elapsed) + " ops/s");
+		System.out.println("Reads served: " + served + ", retrievals pending: "
+				+ requested + ", " + readLatency.snapshot());
+		System.out.println("Writes: " + written + ", "
+				+ writeLatency.snapshot());
+		System.out.println("Glacier jobs: " + aws.getInitiatedJobs()
+				+ ", downloads: " + aws.getDownloads() + ", errors: "
+				+ errors);
+
+		assertEquals(0, errors.get());
+
+		// every archive eventually becomes readable with its content
+		Session session = repository.login();
+		try {
+			long deadline = System.currentTimeMillis() + 120000;
+			for (String archiveId : archiveIds) {
+				while (!read(session, archiveId)) {
+					assertTrue("Archive " + archiveId + " never arrived",
+							System.currentTimeMillis() < deadline);
+					Thread.sleep(200);
+				}
+			}
+			String archiveId = archiveIds.get(0);
+			assertArrayEquals(aws.getArchiveData(VAULT, archiveId),
+					content(session, archiveId));
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * @return whether the archive was served from the cache, rather than
+	 *         requested from Glacier
+	 */
+	private boolean read(Session session, String archiveId) throws Exception {
+		try {
+			InputStream in = binary(session, archiveId).getStream();
+			if (in == null) {
+				return false;
+			}
+			try {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) > 0) {
+				}
+			} finally {
+				in.close();
+			}
+			return true;
+		} catch (RuntimeException e) {
+			// the retrieval was requested
+			return false;
+		}
+	}
+
+	private byte[] content(Session session, String archiveId)
+			throws Exception {
+		InputStream in = binary(session, archiveId).getStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private Binary binary(Session session, String archiveId) throws Exception {
+		Node content = session.getNode("/" + VAULT + "/" + archiveId
+				+ "/jcr:content");
+		return content.getProperty("jcr:data").getBinary();
+	}
+
+	private void write(Session session, int i) throws Exception {
+		byte[] data = new byte[1024];
+		for (int b = 0; b < data.length; b++) {
+			data[b] = (byte) (i + b);
+		}
+		new JcrTools().uploadFile(session, "/" + VAULT + "/load-" + i + ".bin",
+				new ByteArrayInputStream(data));
+		session.save();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
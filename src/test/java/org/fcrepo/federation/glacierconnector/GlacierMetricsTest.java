@@ -0,0 +1,111 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.ListJobsRequest;
+
+public class GlacierMetricsTest {
+
+	private final GlacierMetrics metrics = new GlacierMetrics();
+
+	@After
+	public void after() {
+		metrics.shutdown();
+	}
+
+	@Test
+	public void shouldAverageTheJobsAndDownloads() {
+		metrics.jobCompleted(100);
+		metrics.jobCompleted(300);
+		metrics.downloadStarted();
+		metrics.downloadStarted();
+		metrics.downloadFinished(true, 2000, 1500);
+		metrics.downloadFinished(false, 0, 500);
+
+		assertEquals(2, metrics.getCompletedRetrievalJobs());
+		assertEquals(200, metrics.getAverageJobCompletionMillis());
+		assertEquals(300, metrics.getMaxJobCompletionMillis());
+		assertEquals(0, metrics.getActiveDownloads());
+		assertEquals(1, metrics.getCompletedDownloads());
+		assertEquals(1, metrics.getFailedDownloads());
+		assertEquals(1000, metrics.getDownloadBytesPerSecond());
+	}
+
+	@Test
+	public void shouldComputeTheHitRatios() {
+		assertEquals(0, metrics.getCacheHitRatio(), 0);
+
+		metrics.cacheHit();
+		metrics.cacheHit();
+		metrics.cacheHit();
+		metrics.cacheMiss();
+		metrics.deduplicated(1024);
+		metrics.notDeduplicated();
+
+		assertEquals(0.75, metrics.getCacheHitRatio(), 0);
+		assertEquals(0.5, metrics.getDedupHitRatio(), 0);
+		assertEquals(1024, metrics.getDedupBytesSaved());
+	}
+
+	@Test
+	public void shouldCountTheAwsCallsAndErrorsPerApi() {
+		final RequestHandler[] handler = new RequestHandler[1];
+		metrics.instrument(new AmazonGlacierClient(new BasicAWSCredentials(
+				"fake", "fake")) {
+			@Override
+			public void addRequestHandler(RequestHandler requestHandler) {
+				handler[0] = requestHandler;
+			}
+		});
+
+		handler[0].beforeRequest(new DefaultRequest<DescribeJobRequest>(
+				new DescribeJobRequest(), "AmazonGlacier"));
+		handler[0].beforeRequest(new DefaultRequest<DescribeJobRequest>(
+				new DescribeJobRequest(), "AmazonGlacier"));
+		handler[0].beforeRequest(new DefaultRequest<ListJobsRequest>(
+				new ListJobsRequest(), "AmazonGlacier"));
+		handler[0].afterError(new DefaultRequest<ListJobsRequest>(
+				new ListJobsRequest(), "AmazonGlacier"), new RuntimeException());
+
+		assertEquals(Long.valueOf(2), metrics.getAwsCalls().get("DescribeJob"));
+		assertEquals(Long.valueOf(1), metrics.getAwsCalls().get("ListJobs"));
+		assertEquals(Collections.singletonMap("ListJobs", 1L),
+				metrics.getAwsErrors());
+	}
+
+	@Test
+	public void shouldExposeTheMetricsOverJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.fcrepo.federation.glacierconnector:type=GlacierMetrics,name="
+						+ ObjectName.quote("metrics test"));
+
+		metrics.register("metrics test");
+		metrics.jobCompleted(100);
+		metrics.spiLatency().record(SpiLatency.Method.GET_CHILDREN, null,
+				1000000);
+
+		assertEquals(1L, server.getAttribute(name, "CompletedRetrievalJobs"));
+		server.getAttribute(name, "SpiLatencies");
+
+		metrics.shutdown();
+
+		assertFalse(server.isRegistered(name));
+	}
+
+}
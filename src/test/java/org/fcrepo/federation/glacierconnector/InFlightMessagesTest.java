@@ -0,0 +1,121 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.model.Message;
+
+public class InFlightMessagesTest {
+
+	private FakeAws aws;
+	private String queueURL;
+	private MessageDeleteBatcher deleteBatcher;
+	private InFlightMessages inFlightMessages;
+
+	@Before
+	public void before() {
+		aws = new FakeAws();
+		FakeSQSClient sqsClient = new FakeSQSClient(aws,
+				new BasicAWSCredentials("fake", "fake"));
+		FakeAws.Queue queue = aws.createQueue("InFlightQueue");
+		// a received message is visible again at once, unless held
+		queue.attributes.put("VisibilityTimeout", "0");
+		queueURL = queue.url;
+		deleteBatcher = new MessageDeleteBatcher(sqsClient, queueURL, 60000);
+		inFlightMessages = new InFlightMessages(sqsClient, queueURL,
+				deleteBatcher).withVisibility(60, 1);
+	}
+
+	@After
+	public void after() {
+		inFlightMessages.shutdown();
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldHoldOneMessagePerArchive() {
+		List<String> receiptHandles = receive(2);
+
+		assertTrue(inFlightMessages.hold("a1", receiptHandles.get(0)));
+		assertFalse(inFlightMessages.hold("a1", receiptHandles.get(1)));
+		assertTrue(inFlightMessages.isHeld("a1"));
+		assertFalse(inFlightMessages.isHeld("a2"));
+	}
+
+	@Test
+	public void shouldKeepTheHeldMessagesInvisible() {
+		List<String> receiptHandles = receive(12);
+		for (int i = 0; i < receiptHandles.size(); i++) {
+			inFlightMessages.hold("a" + i, receiptHandles.get(i));
+		}
+
+		inFlightMessages.run();
+
+		assertEquals(2, aws.getCalls("ChangeMessageVisibilityBatch"));
+		assertEquals(0, aws.receive(queueURL, 12).size());
+	}
+
+	@Test
+	public void shouldDeleteAnAcknowledgedMessage() {
+		inFlightMessages.hold("a1", receive(1).get(0));
+		inFlightMessages.run();
+
+		inFlightMessages.acknowledge("a1");
+		deleteBatcher.flush();
+
+		assertFalse(inFlightMessages.isHeld("a1"));
+		assertEquals(0, aws.queueSize(queueURL));
+	}
+
+	@Test
+	public void shouldDeliverAReleasedMessageAgainAfterTheRetryDelay()
+			throws Exception {
+		inFlightMessages.hold("a1", receive(1).get(0));
+		inFlightMessages.run();
+
+		inFlightMessages.release("a1");
+
+		assertFalse(inFlightMessages.isHeld("a1"));
+		assertEquals(0, aws.receive(queueURL, 1).size());
+		Thread.sleep(1100);
+		assertEquals(1, aws.receive(queueURL, 1).size());
+	}
+
+	@Test
+	public void shouldReleaseTheHeldMessagesOnShutdown() {
+		inFlightMessages.hold("a1", receive(1).get(0));
+		inFlightMessages.run();
+
+		inFlightMessages.shutdown();
+
+		assertFalse(inFlightMessages.isHeld("a1"));
+		assertEquals(1, aws.receive(queueURL, 1).size());
+	}
+
+	/**
+	 * @return the receipt handles of the given number of new messages
+	 */
+	private List<String> receive(int count) {
+		FakeAws.Queue queue = aws.queue(queueURL);
+		synchronized (queue) {
+			for (int i = 0; i < count; i++) {
+				queue.messages.add(new FakeAws.QueuedMessage("message " + i));
+			}
+		}
+		List<String> receiptHandles = new ArrayList<String>();
+		for (Message message : aws.receive(queueURL, count)) {
+			receiptHandles.add(message.getReceiptHandle());
+		}
+		return receiptHandles;
+	}
+
+}
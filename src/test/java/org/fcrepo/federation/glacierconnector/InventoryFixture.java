@@ -0,0 +1,91 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * The Glacier inventory of a vault, written where the connector reads it:
+ * <code>&lt;cacheDirectory&gt;/&lt;vaultName&gt;/&lt;vaultName&gt;</code>.
+ * The optional fields of an archive are left out when <code>null</code>.
+ */
+public class InventoryFixture {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String vaultName;
+	private final ObjectNode inventory = mapper.createObjectNode();
+	private final ArrayNode archiveList;
+
+	public InventoryFixture(String vaultName) {
+		this.vaultName = vaultName;
+		inventory.put("VaultARN", FakeAws.vaultArn(vaultName));
+		archiveList = inventory.putArray("ArchiveList");
+	}
+
+	public InventoryFixture withInventoryDate(String inventoryDate) {
+		inventory.put("InventoryDate", inventoryDate);
+		return this;
+	}
+
+	public InventoryFixture withArchive(String archiveId, String description,
+			String creationDate, long size) {
+		return withArchive(archiveId, description, creationDate, size, null);
+	}
+
+	public InventoryFixture withArchive(String archiveId, String description,
+			String creationDate, long size, String treeHash) {
+		ObjectNode archive = archiveList.addObject();
+		archive.put("ArchiveId", archiveId);
+		if (description != null) {
+			archive.put("ArchiveDescription", description);
+		}
+		if (creationDate != null) {
+			archive.put("CreationDate", creationDate);
+		}
+		archive.put("Size", size);
+		if (treeHash != null) {
+			archive.put("SHA256TreeHash", treeHash);
+		}
+		return this;
+	}
+
+	public ObjectNode toJson() {
+		return inventory;
+	}
+
+	/**
+	 * @return the inventory file
+	 */
+	public File writeTo(File cacheDirectory) throws IOException {
+		File vaultDirectory = new File(cacheDirectory, vaultName);
+		vaultDirectory.mkdirs();
+		File file = new File(vaultDirectory, vaultName);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			mapper.writeValue(out, inventory);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Delete the inventory and every other file of the vault directory, such
+	 * as the logs of the indexes.
+	 */
+	public void deleteFrom(File cacheDirectory) {
+		File[] files = new File(cacheDirectory, vaultName).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+}
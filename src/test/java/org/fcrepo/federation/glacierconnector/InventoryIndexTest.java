@@ -0,0 +1,67 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InventoryIndexTest {
+
+	private final File cacheDirectory = new File("target/inventory-index");
+
+	private InventoryIndex index;
+
+	@Before
+	public void before() throws IOException {
+		new InventoryFixture("vault")
+				.withInventoryDate("2014-03-25T04:35:51Z")
+				.withArchive("a1", "first", "2014-03-07T16:44:02Z", 3742,
+						"2754").withArchive("a2", null, null, 5000000000L)
+				.writeTo(cacheDirectory);
+		index = new InventoryIndex(cacheDirectory.getPath());
+	}
+
+	@After
+	public void after() {
+		new InventoryFixture("vault").deleteFrom(cacheDirectory);
+	}
+
+	@Test
+	public void shouldIndexTheInventoryEntries() {
+
+		ArchiveMetadata first = index.get("vault", "a1");
+		assertEquals(3742, first.size);
+		assertEquals("first", first.description);
+		assertEquals("2754", first.treeHash);
+		assertEquals(1394210642000L, first.creationDate);
+		assertEquals(0, first.position);
+
+		ArchiveMetadata second = index.get("vault", "a2");
+		assertEquals(5000000000L, second.size);
+		assertEquals(-1, second.creationDate);
+		assertEquals(1, second.position);
+
+		assertNull(index.get("vault", "a3"));
+		assertNull(index.get("missing", "a1"));
+	}
+
+	@Test
+	public void shouldReindexARefreshedInventory() throws IOException {
+
+		assertEquals(2, index.vault("vault").size());
+
+		new InventoryFixture("vault").withArchive("a3", null, null, 1)
+				.writeTo(cacheDirectory)
+				.setLastModified(System.currentTimeMillis() + 10000);
+		index.invalidate("vault");
+
+		assertNull(index.get("vault", "a1"));
+		assertEquals(1, index.get("vault", "a3").size);
+	}
+
+}
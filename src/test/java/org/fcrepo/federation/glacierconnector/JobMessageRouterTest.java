@@ -0,0 +1,76 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobMessageRouterTest {
+
+	private static final String TOPIC_ARN = "arn:aws:sns:" + FakeAws.REGION
+			+ ":" + FakeAws.ACCOUNT + ":";
+
+	private final String firstPrefix = JobMessageRouter
+			.topicNamePrefix("first");
+	private final String secondPrefix = JobMessageRouter
+			.topicNamePrefix("second");
+
+	private GlacierMessageListener first;
+	private GlacierMessageListener second;
+
+	@Before
+	public void before() {
+		first = new GlacierMessageListener();
+		second = new GlacierMessageListener();
+		JobMessageRouter.register(firstPrefix, first);
+		JobMessageRouter.register(secondPrefix, second);
+	}
+
+	@After
+	public void after() {
+		JobMessageRouter.unregister(firstPrefix);
+		JobMessageRouter.unregister(secondPrefix);
+		JobMessageRouter.unregister(JobMessageRouter.TOPIC_NAME_PREFIX);
+	}
+
+	@Test
+	public void shouldRouteANotificationToTheListenerOfItsTopic() {
+		assertSame(first, JobMessageRouter.route(TOPIC_ARN + firstPrefix
+				+ "vault-archive"));
+		assertSame(second, JobMessageRouter.route(TOPIC_ARN + secondPrefix
+				+ "vault-archive"));
+	}
+
+	@Test
+	public void shouldNotRouteTheNotificationsOfAnotherNode() {
+		assertNull(JobMessageRouter.route(TOPIC_ARN
+				+ JobMessageRouter.topicNamePrefix("other") + "vault-archive"));
+		assertNull(JobMessageRouter.route(null));
+
+		JobMessageRouter.unregister(secondPrefix);
+
+		assertNull(JobMessageRouter.route(TOPIC_ARN + secondPrefix
+				+ "vault-archive"));
+	}
+
+	@Test
+	public void shouldRouteToTheLongestPrefix() {
+		GlacierMessageListener any = new GlacierMessageListener();
+		JobMessageRouter.register(JobMessageRouter.TOPIC_NAME_PREFIX, any);
+
+		assertSame(first, JobMessageRouter.route(TOPIC_ARN + firstPrefix
+				+ "vault-archive"));
+		assertSame(any, JobMessageRouter.route(TOPIC_ARN
+				+ JobMessageRouter.topicNamePrefix("other") + "vault-archive"));
+	}
+
+	@Test
+	public void shouldOnlyUseTheCharactersSnsAllowsInTheTopicNames() {
+		assertEquals("GlacierConnector-node_1_example_org-",
+				JobMessageRouter.topicNamePrefix("node-1.example.org"));
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobReconcilerTest {
+
+	private static final String VAULT = "reconcilerVault";
+	private static final String TOPIC_ARN = "arn:aws:sns:" + FakeAws.REGION
+			+ ":" + FakeAws.ACCOUNT + ":";
+
+	private final File cacheDirectory = new File("target/job-reconciler");
+
+	private FakeAws aws;
+	private RetrievalRegistry registry;
+	private GlacierMessageListener listener;
+	private JobReconciler reconciler;
+
+	@Before
+	public void before() {
+		new File(cacheDirectory, VAULT).mkdirs();
+
+		// every job fails, so that reconciling one does not download it
+		aws = new FakeAws().withJobDelay(0).withFailures(1, 0, 0).install();
+		aws.createVault(VAULT);
+
+		registry = new RetrievalRegistry();
+		listener = new GlacierMessageListener().withRegistry(registry)
+				.withNodeId("reconciler", 30, 100);
+		reconciler = new JobReconciler(listener).withGlacierClientCredential(
+				"fake", "fake", FakeAws.REGION).withcacheDirectory(
+				cacheDirectory.getPath());
+	}
+
+	@After
+	public void after() {
+		JobMessageRouter.unregister(listener.GetSNSTopicNamePrefix());
+		registry.clear();
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldOnlyReconcileTheJobsItOwns() throws Exception {
+
+		String archiveId = aws.addArchives(VAULT, 1, 16).get(0);
+		registry.putIntoWaitingList(VAULT, "own", completedJob(archiveId,
+				listener.GetSNSTopicNamePrefix()));
+		registry.putIntoWaitingList(VAULT, "foreign", completedJob(archiveId,
+				JobMessageRouter.topicNamePrefix("other")));
+
+		reconciler.reconcile();
+
+		assertFalse(registry.isInWaitingList("own"));
+		assertTrue("The job of another node was reconciled",
+				registry.isInWaitingList("foreign"));
+	}
+
+	@Test
+	public void shouldNotExpireTheJobsOfAnUnknownVault() {
+
+		registry.putIntoWaitingList(VAULT, "expired", "unknownJob");
+		registry.putIntoWaitingList("unknownVault", "unknown", "unknownJob");
+
+		reconciler.reconcile();
+
+		assertFalse(registry.isInWaitingList("expired"));
+		assertTrue(registry.isInWaitingList("unknown"));
+		assertEquals(1, registry.getPendingJobCount());
+	}
+
+	@Test
+	public void shouldDescribeTheJobsOfAVaultUpToTheThreshold()
+			throws Exception {
+
+		for (String archiveId : aws.addArchives(VAULT, 10, 16)) {
+			registry.putIntoWaitingList(VAULT, archiveId, completedJob(
+					archiveId, listener.GetSNSTopicNamePrefix()));
+		}
+
+		reconciler.reconcile();
+
+		assertEquals(10, aws.getCalls("DescribeJob"));
+		assertEquals(0, aws.getCalls("ListJobs"));
+		assertEquals(0, registry.getPendingJobCount());
+	}
+
+	@Test
+	public void shouldListTheJobsOfAVaultBeyondTheThreshold()
+			throws Exception {
+
+		// more jobs than a page of ListJobs
+		for (String archiveId : aws.addArchives(VAULT, 60, 16)) {
+			registry.putIntoWaitingList(VAULT, archiveId, completedJob(
+					archiveId, listener.GetSNSTopicNamePrefix()));
+		}
+		// a job no longer listed has expired
+		registry.putIntoWaitingList(VAULT, "expired", "unknownJob");
+
+		reconciler.reconcile();
+
+		assertEquals(0, aws.getCalls("DescribeJob"));
+		assertEquals(2, aws.getCalls("ListJobs"));
+		assertEquals(0, registry.getPendingJobCount());
+	}
+
+	@Test
+	public void shouldOnlyCheckTheJobsPastTheirCompletionWindow()
+			throws Exception {
+
+		// the first run checks every job
+		reconciler.reconcile();
+
+		String archiveId = aws.addArchives(VAULT, 1, 16).get(0);
+		registry.putIntoWaitingList(VAULT, archiveId, completedJob(archiveId,
+				listener.GetSNSTopicNamePrefix()));
+
+		long delay = reconciler.reconcile();
+
+		assertEquals(0, aws.getCalls("DescribeJob"));
+		assertTrue(registry.isInWaitingList(archiveId));
+		assertTrue(delay > 0
+				&& delay <= reconciler.getCompletionWindow());
+
+		reconciler.withCompletionWindow(0).reconcile();
+
+		assertEquals(1, aws.getCalls("DescribeJob"));
+		assertFalse(registry.isInWaitingList(archiveId));
+	}
+
+	/**
+	 * @return the id of a job notifying a topic of the given prefix, once it
+	 *         completed
+	 */
+	private String completedJob(String archiveId, String topicNamePrefix)
+			throws InterruptedException {
+		FakeAws.Job job = aws.initiateJob(VAULT, archiveId,
+				"ArchiveRetrieval", TOPIC_ARN + topicNamePrefix + "topic");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (job.completionDate == null
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return job.jobId;
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void shouldCountEveryValueInABucketWithinSixPercent() {
+		int previous = -1;
+		for (long value = 0; value < 1L << 43; value = value * 17 / 16 + 1) {
+			int index = LatencyHistogram.index(value);
+			assertTrue("Buckets out of order at " + value, index >= previous);
+			previous = index;
+
+			long bucketValue = LatencyHistogram.value(index);
+			assertTrue("Bucket of " + value + " reports " + bucketValue,
+					Math.abs(bucketValue - value) <= value / 16);
+		}
+	}
+
+	@Test
+	public void shouldCountTheSmallValuesExactly() {
+		for (long value = 0; value < 16; value++) {
+			assertEquals(value,
+					LatencyHistogram.value(LatencyHistogram.index(value)));
+		}
+	}
+
+	@Test
+	public void shouldCountTheHugeValuesInTheLastBucket() {
+		int last = LatencyHistogram.index(Long.MAX_VALUE);
+
+		assertEquals(last, LatencyHistogram.index(1L << 43));
+		assertEquals(last, LatencyHistogram.index((1L << 43) - 1));
+		assertTrue(LatencyHistogram.index(1L << 42) < last);
+	}
+
+	@Test
+	public void shouldReportThePercentilesOfAUniformDistribution() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 1 to 10000 microseconds
+		for (int i = 10000; i >= 1; i--) {
+			histogram.record(i * 1000L);
+		}
+
+		LatencySnapshot snapshot = histogram.snapshot();
+
+		assertEquals(10000, snapshot.getCount());
+		assertEquals(5000, snapshot.getMeanMicros());
+		assertEquals(10000, snapshot.getMaxMicros());
+		assertWithin(5000, snapshot.getP50Micros());
+		assertWithin(9900, snapshot.getP99Micros());
+		assertWithin(9990, snapshot.getP999Micros());
+	}
+
+	@Test
+	public void shouldReportTheTailOfASkewedDistribution() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 990; i++) {
+			histogram.record(200 * 1000L);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(3000 * 1000 * 1000L);
+		}
+
+		LatencySnapshot snapshot = histogram.snapshot();
+
+		assertWithin(200, snapshot.getP50Micros());
+		assertWithin(200, snapshot.getP99Micros());
+		assertWithin(3000 * 1000, snapshot.getP999Micros());
+	}
+
+	@Test
+	public void shouldClearTheCountsOnReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(1000 * 1000L);
+
+		// a negative value counts as zero
+		assertEquals(500, histogram.snapshot().getMeanMicros());
+		histogram.reset();
+
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getMaxMicros());
+		assertEquals(0, snapshot.getP999Micros());
+	}
+
+	@Test
+	public void shouldNotLoseConcurrentValues() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						histogram.record(i);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(400000, histogram.snapshot().getCount());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				Math.abs(actual - expected) <= expected / 16);
+	}
+
+}
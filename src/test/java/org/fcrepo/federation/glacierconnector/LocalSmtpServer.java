@@ -0,0 +1,117 @@
+package org.fcrepo.federation.glacierconnector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal SMTP stand-in for the tests: it accepts every message on a local
+ * port and keeps its data.
+ */
+public class LocalSmtpServer implements Runnable {
+
+	private final ServerSocket serverSocket;
+	private final List<String> messages = new ArrayList<String>();
+	private Thread thread;
+
+	public LocalSmtpServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void start() {
+		thread = new Thread(this, "LocalSmtpServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() throws IOException {
+		serverSocket.close();
+	}
+
+	synchronized public List<String> getMessages() {
+		return new ArrayList<String>(messages);
+	}
+
+	/**
+	 * Wait until the given number of messages were received.
+	 */
+	synchronized public List<String> awaitMessages(int count, long timeout)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (messages.size() < count) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			wait(wait);
+		}
+		return new ArrayList<String>(messages);
+	}
+
+	synchronized private void received(String message) {
+		messages.add(message);
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					session(socket);
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void session(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "US-ASCII"));
+		Writer out = new OutputStreamWriter(socket.getOutputStream(),
+				"US-ASCII");
+
+		reply(out, "220 localhost SMTP stand-in");
+
+		String line;
+		while ((line = in.readLine()) != null) {
+			String command = line.toUpperCase();
+			if (command.startsWith("DATA")) {
+				reply(out, "354 End data with <CR><LF>.<CR><LF>");
+				StringBuilder data = new StringBuilder();
+				while ((line = in.readLine()) != null && !line.equals(".")) {
+					data.append(line).append('\n');
+				}
+				received(data.toString());
+				reply(out, "250 OK");
+			} else if (command.startsWith("QUIT")) {
+				reply(out, "221 Bye");
+				return;
+			} else {
+				reply(out, "250 OK");
+			}
+		}
+	}
+
+	private void reply(Writer out, String reply) throws IOException {
+		out.write(reply);
+		out.write("\r\n");
+		out.flush();
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.model.Message;
+
+public class MessageDeleteBatcherTest {
+
+	private FakeAws aws;
+	private FakeSQSClient sqsClient;
+	private String queueURL;
+	private GlacierMetrics metrics;
+
+	@Before
+	public void before() {
+		aws = new FakeAws();
+		sqsClient = new FakeSQSClient(aws, new BasicAWSCredentials("fake",
+				"fake"));
+		queueURL = aws.createQueue("DeleteQueue").url;
+		metrics = new GlacierMetrics();
+	}
+
+	@After
+	public void after() {
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldDeleteTheMessagesTenAtATime() {
+		MessageDeleteBatcher batcher = new MessageDeleteBatcher(sqsClient,
+				queueURL, 60000).withMetrics(metrics);
+
+		for (String receiptHandle : receive(25)) {
+			batcher.delete(receiptHandle);
+		}
+
+		assertEquals(2, aws.getCalls("DeleteMessageBatch"));
+		assertEquals(5, aws.queueSize(queueURL));
+
+		batcher.flush();
+
+		assertEquals(3, aws.getCalls("DeleteMessageBatch"));
+		assertEquals(0, aws.queueSize(queueURL));
+		assertEquals(25, metrics.getDeletedSqsMessages());
+	}
+
+	@Test
+	public void shouldSendAPartialBatchOnceItIsDue() throws Exception {
+		MessageDeleteBatcher batcher = new MessageDeleteBatcher(sqsClient,
+				queueURL, 100).withMetrics(metrics);
+
+		for (String receiptHandle : receive(3)) {
+			batcher.delete(receiptHandle);
+		}
+		batcher.flushIfDue();
+
+		assertEquals(0, aws.getCalls("DeleteMessageBatch"));
+
+		Thread.sleep(150);
+		batcher.flushIfDue();
+		batcher.flushIfDue();
+
+		assertEquals(1, aws.getCalls("DeleteMessageBatch"));
+		assertEquals(0, aws.queueSize(queueURL));
+	}
+
+	@Test
+	public void shouldCountTheMessagesThatWereNotDeleted() {
+		MessageDeleteBatcher batcher = new MessageDeleteBatcher(sqsClient,
+				queueURL, 60000).withMetrics(metrics);
+
+		batcher.delete(receive(1).get(0));
+		batcher.delete("expired receipt handle");
+		batcher.flush();
+
+		assertEquals(1, metrics.getDeletedSqsMessages());
+		assertEquals(1, metrics.getFailedSqsMessageDeletes());
+	}
+
+	/**
+	 * @return the receipt handles of the given number of new messages
+	 */
+	private List<String> receive(int count) {
+		FakeAws.Queue queue = aws.queue(queueURL);
+		synchronized (queue) {
+			for (int i = 0; i < count; i++) {
+				queue.messages.add(new FakeAws.QueuedMessage("message " + i));
+			}
+		}
+		List<String> receiptHandles = new ArrayList<String>();
+		for (Message message : aws.receive(queueURL, count)) {
+			receiptHandles.add(message.getReceiptHandle());
+		}
+		assertEquals(count, receiptHandles.size());
+		return receiptHandles;
+	}
+
+}
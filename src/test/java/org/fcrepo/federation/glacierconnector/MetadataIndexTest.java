@@ -0,0 +1,107 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataIndexTest {
+
+	private static final long GB = 1024L * 1024 * 1024;
+
+	private final File cacheDirectory = new File("target/metadata-index");
+
+	private final InventoryFixture inventory = new InventoryFixture("vault");
+
+	private final RetrievalRegistry registry = new RetrievalRegistry();
+	private CacheCatalog cacheCatalog;
+	private MetadataIndex index;
+
+	@Before
+	public void before() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			// a new archive every month from 2010, growing by 100 MB
+			inventory.withArchive("a" + i, "/vault/"
+					+ (i % 2 == 0 ? "even" : "odd") + '/' + i, (2010 + i / 12)
+					+ "-" + String.format("%02d", i % 12 + 1)
+					+ "-15T12:00:00Z", i * 100L * 1024 * 1024);
+		}
+		inventory.writeTo(cacheDirectory);
+
+		cacheCatalog = new CacheCatalog(cacheDirectory.getPath());
+		index = new MetadataIndex(new InventoryIndex(cacheDirectory.getPath()),
+				cacheCatalog, registry);
+	}
+
+	@After
+	public void after() {
+		inventory.deleteFrom(cacheDirectory);
+		registry.clear();
+	}
+
+	private static List<String> ids(List<ArchiveMetadata> archives) {
+		List<String> ids = new ArrayList<String>();
+		for (ArchiveMetadata archive : archives) {
+			ids.add(archive.archiveId);
+		}
+		return ids;
+	}
+
+	@Test
+	public void shouldFindTheLargeArchivesOfAYear() {
+
+		List<ArchiveMetadata> archives = index.query("vault",
+				new ArchiveQuery().withSize(GB + 1, Long.MAX_VALUE)
+						.withCreated(MetadataIndex.parseDate("2013-01-01"),
+								MetadataIndex.parseDate("2014-01-01")));
+
+		// 2013 holds a36 to a47, the ones over 1 GB start at a11
+		assertEquals(12, archives.size());
+		assertEquals("a36", archives.get(0).archiveId);
+	}
+
+	@Test
+	public void shouldFindArchivesByDescriptionPrefix() {
+		assertEquals(50,
+				index.query("vault", new ArchiveQuery()
+						.withDescriptionPrefix("/vault/odd/")).size());
+		assertEquals(
+				"[a10]",
+				ids(
+						index.query("vault", new ArchiveQuery()
+								.withDescriptionPrefix("/vault/even/10")))
+						.toString());
+	}
+
+	@Test
+	public void shouldFilterByRetrievalState() {
+
+		cacheCatalog.added("vault", "a3", 10);
+		registry.putIntoWaitingList("vault", "a5", "job5");
+
+		assertEquals("[a3]", ids(index.query("vault",
+				new ArchiveQuery().withState(RetrievalState.CACHED)))
+				.toString());
+		assertEquals("[a5]", ids(index.query("vault",
+				new ArchiveQuery().withState(RetrievalState.REQUESTED)))
+				.toString());
+	}
+
+	@Test
+	public void shouldAnswerTheJmxQuery() {
+
+		List<String> lines = index.query("vault", 0, 0, "2010-01-01",
+				"2010-02-01", "", "none", 10);
+
+		assertEquals(1, lines.size());
+		assertEquals("a0\t0\t2010-01-15T12:00:00Z\tNONE\t/vault/even/0",
+				lines.get(0));
+	}
+
+}
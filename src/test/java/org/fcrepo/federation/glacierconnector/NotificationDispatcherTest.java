@@ -0,0 +1,77 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationDispatcherTest {
+
+	private LocalSmtpServer smtpServer;
+	private NotificationDispatcher dispatcher;
+
+	@Before
+	public void before() throws Exception {
+		smtpServer = new LocalSmtpServer();
+		smtpServer.start();
+
+		dispatcher = new NotificationDispatcher(100).withDigest(500, 50)
+				.withSink(new SmtpNotificationSink().withServer("localhost",
+						smtpServer.getPort(), false).withAddresses(
+						"glacier@localhost", "user@localhost"));
+		dispatcher.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		dispatcher.shutdown();
+		smtpServer.stop();
+	}
+
+	@Test
+	public void shouldSendOneDigestForABurstOfDownloads() throws Exception {
+
+		for (int i = 0; i < 20; i++) {
+			dispatcher.CallBack("archive" + i);
+		}
+
+		List<String> messages = smtpServer.awaitMessages(1, 5000);
+		Thread.sleep(1000);
+
+		assertEquals(1, smtpServer.getMessages().size());
+		assertTrue(messages.get(0).contains(
+				"20 glacier archives are downloaded."));
+		assertTrue(messages.get(0).contains("ArchiveId: archive19"));
+	}
+
+	@Test
+	public void shouldNotBlockTheCallerOnASlowSink() throws Exception {
+
+		NotificationDispatcher slow = new NotificationDispatcher(10).withSink(
+				new NotificationSink() {
+					@Override
+					public void send(List<String> archiveIds)
+							throws InterruptedException {
+						Thread.sleep(60000);
+					}
+				});
+		slow.start();
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			slow.CallBack("archive" + i);
+		}
+
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		// the last digest is abandoned after the flush timeout
+		start = System.currentTimeMillis();
+		slow.shutdown();
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+}
@@ -0,0 +1,118 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingJobStoreTest {
+
+	private final File logFile = new File("target/pending-job-store/"
+			+ PendingJobStore.DEFAULT_FILE_NAME);
+
+	private PendingJobStore store;
+
+	@Before
+	public void before() {
+		logFile.getParentFile().mkdirs();
+		logFile.delete();
+		store = new PendingJobStore(logFile);
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	@Test
+	public void shouldReplayThePendingJobsInRequestOrder() throws IOException {
+		store.load();
+		store.put(new PendingJob("vault", "a1", "j1", 1));
+		store.put(new PendingJob("vault", "a2", "j2", 2));
+		store.put(new PendingJob("other", "a3", "j3", 3));
+		store.remove("a1");
+		store.close();
+
+		Map<String, PendingJob> jobs = new PendingJobStore(logFile).load();
+
+		assertEquals(Arrays.asList("a2", "a3"),
+				new ArrayList<String>(jobs.keySet()));
+		PendingJob job = jobs.get("a3");
+		assertEquals("other", job.vaultName);
+		assertEquals("j3", job.jobId);
+		assertEquals(3, job.requestedAt);
+	}
+
+	@Test
+	public void shouldCompactTheLogToTheLiveJobs() throws IOException {
+		store.load();
+		for (int i = 0; i < 10; i++) {
+			store.put(new PendingJob("vault", "a" + i, "j" + i, i));
+		}
+		for (int i = 0; i < 9; i++) {
+			store.remove("a" + i);
+		}
+		assertEquals(19, lines().size());
+
+		Map<String, PendingJob> jobs = store.load();
+
+		assertEquals(1, jobs.size());
+		assertEquals(Arrays.asList("P\tvault\ta9\tj9\t9"), lines());
+
+		// the compacted log is still appended to
+		store.put(new PendingJob("vault", "a10", "j10", 10));
+		store.close();
+		assertEquals(2, new PendingJobStore(logFile).load().size());
+	}
+
+	@Test
+	public void shouldSkipTheCorruptRecords() throws IOException {
+		Writer out = new FileWriter(logFile);
+		try {
+			out.write("P\tvault\ta1\tj1\t1\n");
+			out.write("P\tvault\ta2\tj2\tnot a date\n");
+			out.write("garbage\n");
+			out.write("R\ta3\textra\n");
+			out.write("P\tvault\ta3\tj3\t3\n");
+			// torn by a crash
+			out.write("P\tvault\ta4\tj");
+		} finally {
+			out.close();
+		}
+
+		Map<String, PendingJob> jobs = store.load();
+
+		assertEquals(Arrays.asList("a1", "a3"),
+				new ArrayList<String>(jobs.keySet()));
+		assertEquals(2, lines().size());
+		assertTrue(new PendingJobStore(logFile).load().containsKey("a3"));
+	}
+
+	private List<String> lines() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(logFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefetchManagerTest {
+
+	/**
+	 * Registers the prefetches in the waiting list instead of initiating
+	 * jobs.
+	 */
+	private class RecordingRequester extends RetrievalRequester {
+
+		final List<String> requested = new ArrayList<String>();
+
+		RecordingRequester() {
+			super(null, null, registry);
+		}
+
+		@Override
+		public boolean request(String vaultName, String archiveId,
+				boolean prefetch) {
+			requested.add(archiveId);
+			registry.putIntoWaitingList(vaultName, archiveId, "job-"
+					+ archiveId, prefetch);
+			return true;
+		}
+	}
+
+	/**
+	 * Records the order the downloads run in; the first one holds the single
+	 * pool thread until released.
+	 */
+	private static class RecordingDownload extends DownloadArchiveThread {
+
+		private final String name;
+		private final List<String> order;
+		private final CountDownLatch release;
+		private final CountDownLatch done;
+
+		RecordingDownload(String name, boolean prefetch, List<String> order,
+				CountDownLatch release, CountDownLatch done) {
+			super(name, null, null);
+			this.name = name;
+			this.order = order;
+			this.release = release;
+			this.done = done;
+			withPrefetch(prefetch);
+		}
+
+		@Override
+		public void run() {
+			order.add(name);
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		}
+	}
+
+	private final List<String> order = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final RetrievalRegistry registry = new RetrievalRegistry();
+	private Pool pool;
+
+	@Before
+	public void before() {
+		pool = new Pool(1, 10);
+	}
+
+	@After
+	public void after() {
+		pool.clear();
+		registry.clear();
+	}
+
+	/**
+	 * An index holding the same inventory of the given number of archives for
+	 * every vault.
+	 */
+	private static InventoryIndex inventory(int count) {
+		final List<ArchiveMetadata> archives = PrefetchPolicyTest
+				.inventory(new String[count]);
+		return new InventoryIndex(null) {
+			@Override
+			public VaultInventory vault(String vaultName) {
+				return new VaultInventory(vaultName, 0, archives);
+			}
+		};
+	}
+
+	private void download(String name, boolean prefetch, CountDownLatch done) {
+		DownloadArchiveThreadInfo info = new DownloadArchiveThreadInfo("job-"
+				+ name, name, new RecordingDownload(name, prefetch, order,
+				name.equals("blocker") ? release : new CountDownLatch(0),
+				done));
+		pool.putItem(name, info);
+		pool.execute(info);
+	}
+
+	@Test
+	public void shouldStopAtTheBudget() {
+		RecordingRequester requester = new RecordingRequester();
+		PrefetchManager manager = new PrefetchManager(10)
+				.withPolicy(new NeighbourPrefetchPolicy().withCount(8))
+				.withBudget(3).withRequester(requester)
+				.withInventoryIndex(inventory(10));
+
+		manager.prefetch("vault", "archive0");
+
+		assertEquals(Arrays.asList("archive1", "archive2", "archive3"),
+				requester.requested);
+		assertEquals(3, registry.getPendingPrefetchCount());
+	}
+
+	@Test
+	public void shouldPrefetchFromThePositionOfTheArchiveRead() {
+		RecordingRequester requester = new RecordingRequester();
+		PrefetchManager manager = new PrefetchManager(10)
+				.withPolicy(new NeighbourPrefetchPolicy().withCount(2))
+				.withRequester(requester).withInventoryIndex(inventory(10));
+
+		manager.prefetch("vault", "archive6");
+		manager.prefetch("vault", "unknown");
+
+		assertEquals(Arrays.asList("archive7", "archive8"), requester.requested);
+	}
+
+	@Test
+	public void shouldKeepPrefetchingAfterAFaultyPolicy()
+			throws InterruptedException {
+		final CountDownLatch evaluated = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		PrefetchManager manager = new PrefetchManager(10).withPolicy(
+				new PrefetchPolicy() {
+					@Override
+					public List<String> related(
+							List<ArchiveMetadata> archives, int index) {
+						if (calls.incrementAndGet() == 1) {
+							throw new NullPointerException("malformed");
+						}
+						evaluated.countDown();
+						return Collections.emptyList();
+					}
+				}).withRequester(new RecordingRequester())
+				.withInventoryIndex(inventory(2));
+		manager.start();
+		try {
+			manager.archiveRead("vault", "archive0");
+			manager.archiveRead("vault", "archive1");
+
+			assertTrue(evaluated.await(5, TimeUnit.SECONDS));
+		} finally {
+			manager.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldQueuePrefetchesAfterTheReads()
+			throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(4);
+		download("blocker", false, done);
+		download("prefetch1", true, done);
+		download("prefetch2", true, done);
+		download("read", false, done);
+		release.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(
+				Arrays.asList("blocker", "read", "prefetch1", "prefetch2"),
+				order);
+	}
+
+	@Test
+	public void shouldMoveAPromotedPrefetchAhead() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(3);
+		download("blocker", false, done);
+		download("prefetch1", true, done);
+		download("prefetch2", true, done);
+
+		assertTrue(pool.promote("prefetch2"));
+		release.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("blocker", "prefetch2", "prefetch1"), order);
+	}
+
+}
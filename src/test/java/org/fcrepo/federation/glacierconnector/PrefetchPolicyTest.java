@@ -0,0 +1,78 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PrefetchPolicyTest {
+
+	static List<ArchiveMetadata> inventory(String... descriptions) {
+		List<ArchiveMetadata> archives = new ArrayList<ArchiveMetadata>();
+		for (int i = 0; i < descriptions.length; i++) {
+			archives.add(new ArchiveMetadata("archive" + i, descriptions[i],
+					-1, -1, null, i));
+		}
+		return archives;
+	}
+
+	@Test
+	public void shouldPrefetchTheFollowingArchives() {
+		List<ArchiveMetadata> archiveList = inventory("a", "b", "c", "d", "e");
+
+		assertEquals(Arrays.asList("archive2", "archive3"),
+				new NeighbourPrefetchPolicy().withCount(2).related(
+						archiveList, 1));
+		assertEquals(Arrays.asList("archive4"), new NeighbourPrefetchPolicy()
+				.withCount(2).related(archiveList, 3));
+		assertTrue(new NeighbourPrefetchPolicy().related(archiveList, 4)
+				.isEmpty());
+	}
+
+	@Test
+	public void shouldPrefetchTheArchivesWithTheSameDescriptionPrefix() {
+		List<ArchiveMetadata> archiveList = inventory("run-42/scan-001.tif",
+				"run-41/scan-001.tif", "run-42/scan-002.tif",
+				"run-42/scan-003.tif", null, "run-42");
+
+		DescriptionPrefetchPolicy policy = new DescriptionPrefetchPolicy();
+		assertEquals(Arrays.asList("archive2", "archive3"),
+				policy.related(archiveList, 0));
+		assertEquals(Arrays.asList("archive2"),
+				policy.withMaxCount(1).related(archiveList, 0));
+		assertTrue(policy.related(archiveList, 4).isEmpty());
+		assertTrue(policy.related(archiveList, 5).isEmpty());
+	}
+
+	@Test
+	public void shouldPrefetchTheOtherArchivesOfTheGroups() throws IOException {
+		File groupsFile = new File("target/prefetch-groups.json");
+		groupsFile.getParentFile().mkdirs();
+		Writer writer = new FileWriter(groupsFile);
+		try {
+			writer.write("{\"groups\" : [ [\"archive0\", \"archive1\"],"
+					+ " [\"archive1\", \"archive2\", \"archive3\"] ]}");
+		} finally {
+			writer.close();
+		}
+
+		List<ArchiveMetadata> archiveList = inventory("a", "b", "c", "d", "e");
+		GroupPrefetchPolicy policy = new GroupPrefetchPolicy()
+				.withGroups(groupsFile);
+		groupsFile.delete();
+
+		assertEquals(Arrays.asList("archive1"), policy.related(archiveList, 0));
+		assertEquals(Arrays.asList("archive0", "archive2", "archive3"),
+				policy.related(archiveList, 1));
+		assertTrue(policy.related(archiveList, 4).isEmpty());
+	}
+
+}
@@ -0,0 +1,248 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.value.BinaryKey;
+
+/**
+ * Many readers racing on the same archives while their notifications arrive
+ * in bursts, through {@link ArchiveBinaryValue#getStream()}, the
+ * {@link RetrievalRegistry} of the {@link GlacierMessageListener}, its
+ * {@link Pool} and the download callbacks, against the {@link FakeAws} stand-in. Every run checks
+ * that each archive is retrieved and downloaded exactly once, that no thread
+ * deadlocks and that the thread count stays bounded; the throughput is
+ * reported for an increasing number of readers.
+ */
+public class RetrievalRegistryStressIT {
+
+	private static final String VAULT = "stressVault";
+	private static final int ARCHIVES = 64;
+	private static final int ARCHIVE_SIZE = 4096;
+	private static final long TIMEOUT = 120 * 1000;
+
+	/**
+	 * The threads of the listener, its download pool and the stand-in, on top
+	 * of the readers.
+	 */
+	private static final int THREAD_ALLOWANCE = 40;
+
+	private final File cacheDirectory = new File("target/stress-archives");
+
+	private FakeAws aws;
+	private RetrievalRegistry registry;
+	private GlacierMessageListener listener;
+	private RetrievalRequester requester;
+	private Thread listenerThread;
+	private List<String> archiveIds;
+
+	@Before
+	public void before() {
+		delete(cacheDirectory);
+		new File(cacheDirectory, VAULT).mkdirs();
+
+		aws = new FakeAws().withJobDelay(200).withDuplicateNotifications(3)
+				.install();
+		aws.createVault(VAULT);
+		archiveIds = aws.addArchives(VAULT, ARCHIVES, ARCHIVE_SIZE);
+
+		registry = new RetrievalRegistry();
+		listener = new GlacierMessageListener().withRegistry(registry)
+				.withSQSClient("fake", "fake", FakeAws.REGION)
+				.withSQS("StressQueue")
+				.withcacheDirectory(cacheDirectory.getPath())
+				.withConsumers(2, 4).withVisibility(60, 1)
+				.withNodeId("stress", 30, 100);
+		GlacierEndpoint endpoint = new GlacierEndpoint("", FakeAws.REGION,
+				"fake", "fake", "StressQueue").withListener(listener, null);
+		requester = new RetrievalRequester(new EndpointRouter(
+				Collections.singletonList(endpoint)), cacheDirectory.getPath(),
+				registry);
+		listenerThread = new Thread(listener, "StressListener");
+		listenerThread.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		listenerThread.interrupt();
+		listenerThread.join(TIMEOUT);
+		registry.clear();
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldRetrieveEveryArchiveOnceUnderContention()
+			throws Exception {
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		long throughput = readAll(cores * 4);
+
+		System.out.println("Stress: " + cores * 4 + " readers, " + throughput
+				+ " reads/s");
+	}
+
+	@Test
+	public void shouldScaleWithTheReaders() throws Exception {
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int readers = 1; readers <= cores * 4; readers *= 2) {
+			after();
+			before();
+			System.out.println("Stress: " + readers + " readers, "
+					+ readAll(readers) + " reads/s");
+		}
+	}
+
+	/**
+	 * Start all the readers at once, each reading every archive in its own
+	 * order until all of them are cached, and check the invariants.
+	 * 
+	 * @return the reads per second
+	 */
+	private long readAll(final int readers) throws Exception {
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baseline = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		final CyclicBarrier start = new CyclicBarrier(readers);
+		final CountDownLatch done = new CountDownLatch(readers);
+		final AtomicLong reads = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final String topicPrefix = listener.GetSNSTopicNamePrefix();
+
+		long begin = System.nanoTime();
+
+		for (int r = 0; r < readers; r++) {
+			final int reader = r;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int cached = 0;
+						long deadline = System.currentTimeMillis() + TIMEOUT;
+						while (cached < ARCHIVES
+								&& System.currentTimeMillis() < deadline) {
+							cached = 0;
+							for (int i = 0; i < ARCHIVES; i++) {
+								// a different order per reader
+								String archiveId = archiveIds.get((i * 31 + reader)
+										% ARCHIVES);
+								reads.incrementAndGet();
+								if (read(archiveId, topicPrefix)) {
+									cached++;
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "StressReader" + r);
+			thread.start();
+		}
+
+		boolean completed = done.await(TIMEOUT * 2, TimeUnit.MILLISECONDS);
+		long elapsed = System.nanoTime() - begin;
+
+		assertNull("Deadlocked threads", threads.findDeadlockedThreads());
+		assertTrue("The readers did not complete", completed);
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		// the last downloads may still be unregistering
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while ((registry.getPendingJobCount() > 0 || registry
+				.getRegisteredCount() > 0)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals("One retrieval per archive", ARCHIVES,
+				aws.getInitiatedJobs());
+		assertEquals("One download per archive", ARCHIVES, aws.getDownloads());
+		assertEquals(0, registry.getPendingJobCount());
+		assertEquals(0, registry.getRegisteredCount());
+		assertTrue("Too many threads: " + threads.getPeakThreadCount(),
+				threads.getPeakThreadCount() <= baseline + readers
+						+ THREAD_ALLOWANCE);
+
+		for (String archiveId : archiveIds) {
+			assertArrayEquals(aws.getArchiveData(VAULT, archiveId),
+					cached(archiveId));
+		}
+
+		return reads.get() * 1000000000L / elapsed;
+	}
+
+	/**
+	 * @return whether the archive was read from the cache
+	 */
+	private boolean read(String archiveId, String topicPrefix)
+			throws Exception {
+		ArchiveBinaryValue binary = new ArchiveBinaryValue(new BinaryKey(
+				archiveId), "stress", "fake", "fake", FakeAws.REGION,
+				topicPrefix, VAULT, archiveId, listener, ARCHIVE_SIZE,
+				archiveId, null).withCacheRootDirectory(
+				cacheDirectory.getPath()).withRequester(requester);
+		try {
+			InputStream in = binary.getStream();
+			in.close();
+			return true;
+		} catch (RuntimeException e) {
+			// requested, or being retrieved
+			return false;
+		}
+	}
+
+	private byte[] cached(String archiveId) throws IOException {
+		File file = new File(new File(cacheDirectory, VAULT), archiveId);
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int off = 0;
+			int n;
+			while (off < data.length
+					&& (n = in.read(data, off, data.length - off)) > 0) {
+				off += n;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetrievalRegistryTest {
+
+	private final File first = new File("target/retrieval-registry/first");
+	private final File second = new File("target/retrieval-registry/second");
+
+	private RetrievalRegistry firstRegistry;
+	private RetrievalRegistry secondRegistry;
+
+	@Before
+	public void before() throws IOException {
+		new File(first, PendingJobStore.DEFAULT_FILE_NAME).delete();
+		new File(second, PendingJobStore.DEFAULT_FILE_NAME).delete();
+
+		firstRegistry = new RetrievalRegistry(1);
+		firstRegistry.loadPendingJobs(new PendingJobStore(first.getPath()));
+		secondRegistry = new RetrievalRegistry(1);
+		secondRegistry.loadPendingJobs(new PendingJobStore(second.getPath()));
+	}
+
+	@After
+	public void after() {
+		firstRegistry.clear();
+		secondRegistry.clear();
+	}
+
+	@Test
+	public void shouldKeepTheRetrievalsOfEachConnectorApart()
+			throws IOException {
+
+		assertTrue(firstRegistry.reserve("vault", "a1"));
+		assertTrue(secondRegistry.reserve("vault", "a1"));
+		firstRegistry.putIntoWaitingList("vault", "a1", "job1");
+		secondRegistry.putIntoWaitingList("vault", "a2", "job2");
+
+		assertEquals(1, firstRegistry.getPendingJobCount());
+		assertNull(firstRegistry.getPendingJob("a2"));
+
+		// one connector shuts down, the other keeps its jobs and its store
+		firstRegistry.clear();
+		assertNotNull(secondRegistry.getPendingJob("a2"));
+		secondRegistry.removeFromWaitingList("a1");
+		secondRegistry.putIntoWaitingList("vault", "a3", "job3");
+
+		Map<String, PendingJob> firstJobs = load(first);
+		assertEquals("job1", firstJobs.get("a1").jobId);
+		assertFalse(firstJobs.containsKey("a3"));
+		assertEquals("job3", load(second).get("a3").jobId);
+	}
+
+	private static Map<String, PendingJob> load(File cacheDirectory)
+			throws IOException {
+		PendingJobStore store = new PendingJobStore(cacheDirectory.getPath());
+		try {
+			return store.load();
+		} finally {
+			store.close();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetrievalTimelineTest {
+
+	private final File logFile = new File("target/retrieval-timeline/log");
+
+	private RetrievalTimeline timeline;
+
+	@Before
+	public void before() {
+		logFile.getParentFile().mkdirs();
+		logFile.delete();
+		new File(logFile.getPath() + ".1").delete();
+	}
+
+	@After
+	public void after() {
+		if (timeline != null) {
+			timeline.close();
+		}
+	}
+
+	@Test
+	public void shouldKeepTheLastEventsInTheRing() {
+		timeline = new RetrievalTimeline(5);
+
+		RetrievalTimeline.Stage[] stages = RetrievalTimeline.Stage.values();
+		for (int i = 0; i < 8; i++) {
+			timeline.record("vault", "a" + i % 2, stages[i]);
+		}
+
+		// the first three events were overwritten
+		List<RetrievalTimeline.Event> events = timeline.get("a1");
+		assertEquals(3, events.size());
+		assertEquals(stages[3], events.get(0).stage);
+		assertEquals(stages[7], events.get(2).stage);
+		assertEquals(2, timeline.get("a0").size());
+		assertTrue(timeline.get("a2").isEmpty());
+	}
+
+	@Test
+	public void shouldDescribeTheTimeSpentBetweenTheStages() {
+		timeline = new RetrievalTimeline(5);
+
+		timeline.record("vault", "a1", RetrievalTimeline.Stage.REQUESTED);
+		timeline.record("vault", "a1", RetrievalTimeline.Stage.JOB_INITIATED);
+
+		List<String> lines = timeline.describe("a1");
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).startsWith("REQUESTED at "));
+		assertTrue(lines.get(1).startsWith("JOB_INITIATED at "));
+		assertTrue(lines.get(1).endsWith(" ms)"));
+	}
+
+	@Test
+	public void shouldOnlyRecordTheFirstReadOfAVerifiedArchive() {
+		timeline = new RetrievalTimeline(10);
+
+		timeline.read("vault", "a1");
+		timeline.record("vault", "a1", RetrievalTimeline.Stage.VERIFIED);
+		timeline.read("vault", "a1");
+		timeline.read("vault", "a1");
+		// requested again, before it was read
+		timeline.record("vault", "a2", RetrievalTimeline.Stage.VERIFIED);
+		timeline.record("vault", "a2", RetrievalTimeline.Stage.REQUESTED);
+		timeline.read("vault", "a2");
+
+		assertEquals(2, timeline.get("a1").size());
+		assertEquals(RetrievalTimeline.Stage.FIRST_READ,
+				timeline.get("a1").get(1).stage);
+		assertEquals(2, timeline.get("a2").size());
+	}
+
+	@Test
+	public void shouldForgetTheOldestArchivesAwaitingTheirFirstRead() {
+		timeline = new RetrievalTimeline(3);
+
+		for (int i = 0; i < 4; i++) {
+			timeline.record("vault", "a" + i,
+					RetrievalTimeline.Stage.VERIFIED);
+		}
+		for (int i = 0; i < 4; i++) {
+			timeline.read("vault", "a" + i);
+		}
+
+		// a0 was evicted by a3, the others are read once
+		assertTrue(timeline.get("a0").isEmpty());
+		for (int i = 1; i < 4; i++) {
+			assertEquals(RetrievalTimeline.Stage.FIRST_READ, timeline
+					.get("a" + i).get(0).stage);
+		}
+		timeline.read("vault", "a3");
+		assertEquals(1, timeline.get("a1").size());
+	}
+
+	@Test
+	public void shouldAppendTheEventsToTheLogInTheBackground()
+			throws IOException {
+		timeline = new RetrievalTimeline(10).withLog(logFile, 1024 * 1024)
+				.start();
+
+		for (int i = 0; i < 100; i++) {
+			timeline.record("vault", "a" + i,
+					RetrievalTimeline.Stage.REQUESTED);
+		}
+		timeline.close();
+
+		List<String> lines = lines(logFile);
+		assertEquals(100, lines.size());
+		assertTrue(lines.get(99).endsWith("\tvault\ta99\tREQUESTED"));
+	}
+
+	@Test
+	public void shouldRollTheLog() throws Exception {
+		timeline = new RetrievalTimeline(10).withLog(logFile, 100).start();
+
+		for (int i = 0; i < 10; i++) {
+			timeline.record("vault", "a" + i,
+					RetrievalTimeline.Stage.REQUESTED);
+			// one batch per event
+			Thread.sleep(20);
+		}
+		timeline.close();
+
+		assertTrue(new File(logFile.getPath() + ".1").exists());
+		assertTrue(logFile.length() < 200);
+	}
+
+	private static List<String> lines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+}
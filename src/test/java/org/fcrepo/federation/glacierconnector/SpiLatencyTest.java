@@ -0,0 +1,96 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+
+public class SpiLatencyTest {
+
+	private static final long MILLI = 1000 * 1000L;
+
+	private final SpiLatency latency = new SpiLatency();
+
+	private FakeAws aws;
+
+	@After
+	public void after() {
+		if (aws != null) {
+			aws.uninstall();
+		}
+	}
+
+	@Test
+	public void shouldStartANewIntervalOnReset() {
+		latency.record(SpiLatency.Method.GET_CHILDREN, null, MILLI);
+		latency.record(SpiLatency.Method.GET_CHILDREN, null, 3 * MILLI);
+
+		LatencySnapshot ended = latency.snapshotAndReset().get("getChildren");
+
+		assertEquals(2, ended.getCount());
+		assertEquals(3000, ended.getMaxMicros());
+		assertEquals(0, latency.snapshot().get("getChildren").getCount());
+
+		// the histogram of the interval before is cleared before its reuse
+		latency.record(SpiLatency.Method.GET_CHILDREN, null, MILLI);
+		latency.snapshotAndReset();
+		latency.record(SpiLatency.Method.GET_CHILDREN, null, MILLI);
+
+		LatencySnapshot current = latency.snapshot().get("getChildren");
+		assertEquals(1, current.getCount());
+		assertEquals(1000, current.getMaxMicros());
+	}
+
+	@Test
+	public void shouldRecordTheNodesPerVault() {
+		latency.recordNode(SpiLatency.Method.GET_DOCUMENT_BY_ID,
+				"/vault/docs/report.pdf", MILLI);
+		latency.recordNode(SpiLatency.Method.GET_DOCUMENT_BY_ID, "vault",
+				MILLI);
+		latency.recordNode(SpiLatency.Method.GET_DOCUMENT_BY_ID, "/", MILLI);
+
+		Map<String, LatencySnapshot> snapshot = latency.snapshot();
+
+		assertEquals(3, snapshot.get("getDocumentById").getCount());
+		assertEquals(2, snapshot.get("getDocumentById@vault").getCount());
+		assertFalse(snapshot.containsKey("getChildren@vault"));
+	}
+
+	@Test
+	public void shouldBoundTheVaultsTracked() {
+		for (int i = 0; i < 100; i++) {
+			latency.record(SpiLatency.Method.GET_CHILDREN, "vault" + i, MILLI);
+		}
+
+		Map<String, LatencySnapshot> snapshot = latency.snapshot();
+
+		assertEquals(100, snapshot.get("getChildren").getCount());
+		assertEquals(SpiLatency.Method.values().length + 64, snapshot.size());
+	}
+
+	@Test
+	public void shouldOnlyTrackTheVaultsOfTheCatalog() {
+		aws = new FakeAws();
+		aws.createVault("vault");
+		latency.withVaultCatalog(new VaultCatalog(new FakeGlacierClient(aws,
+				new BasicAWSCredentials("fake", "fake")), 60 * 1000));
+
+		latency.recordNode(SpiLatency.Method.GET_DOCUMENT_BY_ID,
+				"/vault/report.pdf", MILLI);
+		latency.recordNode(SpiLatency.Method.GET_DOCUMENT_BY_ID,
+				"/mistyped/report.pdf", MILLI);
+
+		Map<String, LatencySnapshot> snapshot = latency.snapshot();
+
+		assertEquals(2, snapshot.get("getDocumentById").getCount());
+		assertTrue(snapshot.containsKey("getDocumentById@vault"));
+		assertFalse(snapshot.containsKey("getDocumentById@mistyped"));
+	}
+
+}
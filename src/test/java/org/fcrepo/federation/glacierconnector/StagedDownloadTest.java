@@ -0,0 +1,125 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StagedDownloadTest {
+
+	private final File cacheDirectory = new File("target/staged-download");
+	private final File archive = new File(cacheDirectory + "/vault", "a1");
+
+	private StagedDownload download;
+
+	@Before
+	public void before() {
+		download = StagedDownload.start(cacheDirectory.getPath(), "vault",
+				"a1");
+	}
+
+	@After
+	public void after() {
+		download.fail();
+		archive.delete();
+	}
+
+	@Test
+	public void shouldPublishTheArchiveOnlyOnceComplete() throws IOException {
+		OutputStream out = download.newOutput();
+		out.write(new byte[] { 1, 2, 3 });
+
+		assertFalse(archive.exists());
+		assertTrue(download.getStagingFile().exists());
+		assertTrue(StagedDownload.isStagingFile(download.getStagingFile()));
+		assertFalse(StagedDownload.isLeftOver(download.getStagingFile()));
+		assertEquals(3, download.getWritten());
+
+		out.close();
+		download.publish();
+
+		assertTrue(archive.exists());
+		assertEquals(3, archive.length());
+		assertFalse(download.getStagingFile().exists());
+		assertNull(StagedDownload.get("vault", "a1"));
+	}
+
+	@Test
+	public void shouldFollowTheDownloadUntilItIsPublished() throws Exception {
+		final OutputStream out = download.newOutput();
+		out.write(new byte[] { 1, 2 });
+
+		InputStream in = StagedDownload.get("vault", "a1").newStream();
+		assertEquals(1, in.read());
+		assertEquals(2, in.read());
+
+		// the reader blocks until the next bytes are written
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+					out.write(new byte[] { 3, 4 });
+					out.close();
+					download.publish();
+				} catch (Exception e) {
+					download.fail();
+				}
+			}
+		};
+		writer.start();
+
+		ByteArrayOutputStream rest = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			rest.write(b);
+		}
+		in.close();
+		writer.join();
+
+		assertArrayEquals(new byte[] { 3, 4 }, rest.toByteArray());
+		assertTrue(archive.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldFailTheReadersOfAFailedDownload() throws IOException {
+		OutputStream out = download.newOutput();
+		out.write(new byte[] { 1 });
+
+		InputStream in = download.newStream();
+		assertEquals(1, in.read());
+
+		out.close();
+		download.fail();
+
+		assertFalse(download.getStagingFile().exists());
+		assertNull(download.newStream());
+		in.read();
+	}
+
+	@Test
+	public void shouldFailAnEarlierDownloadOfTheSameArchive()
+			throws IOException {
+		download.newOutput().close();
+		StagedDownload second = StagedDownload.start(cacheDirectory.getPath(),
+				"vault", "a1");
+		try {
+			assertNull(download.newStream());
+			assertEquals(second, StagedDownload.get("vault", "a1"));
+		} finally {
+			second.fail();
+		}
+	}
+
+}
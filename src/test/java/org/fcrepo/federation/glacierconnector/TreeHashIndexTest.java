@@ -0,0 +1,153 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+public class TreeHashIndexTest {
+
+	private final File cacheDirectory = new File("target/tree-hash-index");
+
+	private final InventoryFixture inventory = new InventoryFixture("vault")
+			.withArchive("a1", "/vault/bags/one/jcr:content",
+					"2013-01-01T00:00:00Z", 10, "h1")
+			.withArchive("a2", "/vault/bags/two/jcr:content",
+					"2013-01-01T00:00:00Z", 20);
+
+	private TreeHashIndex index;
+
+	@Before
+	public void before() throws IOException {
+		inventory.writeTo(cacheDirectory);
+		index = newIndex();
+	}
+
+	@After
+	public void after() {
+		inventory.deleteFrom(cacheDirectory);
+	}
+
+	private TreeHashIndex newIndex() {
+		return new TreeHashIndex(cacheDirectory.getPath(), new InventoryIndex(
+				cacheDirectory.getPath()));
+	}
+
+	@Test
+	public void shouldLinkTheArchivesOfTheInventoryByContent()
+			throws IOException {
+		assertNull(index.link("vault", "h1", 11, null));
+		assertNull(index.link("vault", "h2", 10, null));
+		assertNull(index.link("other", "h1", 10, null));
+		assertEquals(0, index.links("vault", "a1"));
+
+		assertEquals("a1", index.link("vault", "h1", 10, null));
+		assertEquals(1, index.links("vault", "a1"));
+	}
+
+	@Test
+	public void shouldKeepTheUploadsAndLinksAcrossRestarts()
+			throws IOException {
+
+		index.uploaded("vault", "h3", 30, "a3");
+		assertEquals("a3", index.link("vault", "h3", 30, null));
+		assertEquals("a1", index.link("vault", "h1", 10, null));
+
+		TreeHashIndex reopened = newIndex();
+		assertEquals("a3", reopened.link("vault", "h3", 30, "a3"));
+		assertEquals(1, reopened.links("vault", "a3"));
+		assertEquals(1, reopened.links("vault", "a1"));
+	}
+
+	@Test
+	public void shouldDeleteAnArchiveOnlyOnceNoNodeLinksToIt()
+			throws IOException {
+
+		assertEquals("a1", index.link("vault", "h1", 10, null));
+
+		assertTrue(index.release("vault", "a1"));
+		assertEquals("a1", index.link("vault", "h1", 10, "a1"));
+
+		// recorded as deleted before it is, no node is linked to it anymore
+		assertFalse(index.release("vault", "a1"));
+		assertNull(index.link("vault", "h1", 10, null));
+		assertNull(newIndex().link("vault", "h1", 10, null));
+	}
+
+	@Test
+	public void shouldNotResurrectAnArchiveDeletedBeforeTheInventory()
+			throws IOException {
+
+		index.uploaded("vault", "h3", 30, "a3");
+		assertEquals("a3", index.link("vault", "h3", 30, null));
+		assertTrue(index.release("vault", "a3"));
+		assertFalse(index.release("vault", "a3"));
+		assertFalse(index.release("vault", "a1"));
+
+		// every reopening compacts the log
+		for (int i = 0; i < 2; i++) {
+			TreeHashIndex reopened = newIndex();
+			assertNull(reopened.link("vault", "h3", 30, null));
+			assertNull(reopened.link("vault", "h1", 10, null));
+			assertEquals(0, reopened.links("vault", "a3"));
+		}
+	}
+
+	@Test
+	public void shouldLinkOnlyANewNameOfTheContent() throws IOException {
+		assertEquals("a1", index.link("vault", "h1", 10, null));
+		assertEquals(1, index.links("vault", "a1"));
+
+		// saved again with the same content
+		assertEquals("a1", index.link("vault", "h1", 10, "a1"));
+		assertEquals(1, index.links("vault", "a1"));
+
+		assertNull(index.link("vault", "h2", 10, "a1"));
+
+		// saved again with other content, the other node keeps the archive
+		assertTrue(index.replaced("vault", "a1"));
+		assertFalse(index.replaced("vault", "a1"));
+		assertEquals(0, newIndex().links("vault", "a1"));
+		assertEquals("a1", newIndex().link("vault", "h1", 10, "a1"));
+	}
+
+	@Test
+	public void shouldStageTheTreeHashGlacierExpects() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024 + 12345];
+		new Random(1).nextBytes(data);
+
+		StagedUpload staged = StagedUpload.stage(new ByteArrayInputStream(
+				data), cacheDirectory.getPath());
+		try {
+			assertEquals(1, stagingFiles());
+			assertEquals(data.length, staged.getSize());
+			assertEquals(TreeHashGenerator
+					.calculateTreeHash(new ByteArrayInputStream(data)),
+					staged.getTreeHash());
+		} finally {
+			staged.discard();
+		}
+	}
+
+	private int stagingFiles() {
+		int count = 0;
+		for (File file : cacheDirectory.listFiles()) {
+			if (StagedUpload.isStagingFile(file)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
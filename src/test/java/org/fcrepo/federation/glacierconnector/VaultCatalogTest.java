@@ -0,0 +1,101 @@
+package org.fcrepo.federation.glacierconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.glacier.model.ListVaultsRequest;
+import com.amazonaws.services.glacier.model.ListVaultsResult;
+
+public class VaultCatalogTest {
+
+	private FakeAws aws;
+	private final AtomicInteger listVaultsCalls = new AtomicInteger();
+	private VaultCatalog catalog;
+
+	@Before
+	public void before() {
+		aws = new FakeAws();
+		for (int i = 0; i < 25; i++) {
+			aws.createVault(String.format("vault%02d", i));
+		}
+		aws.addArchives("vault03", 4, 100);
+
+		catalog = new VaultCatalog(new FakeGlacierClient(aws,
+				new BasicAWSCredentials("accessKey", "secretKey")) {
+			@Override
+			public ListVaultsResult listVaults(ListVaultsRequest request) {
+				listVaultsCalls.incrementAndGet();
+				return super.listVaults(request);
+			}
+		}, 60 * 1000).withListLimit(10);
+	}
+
+	@After
+	public void after() {
+		aws.uninstall();
+	}
+
+	@Test
+	public void shouldListEveryVaultPageByPage() {
+		assertEquals(25, catalog.size());
+		assertEquals(Arrays.asList("vault20", "vault21", "vault22", "vault23",
+				"vault24"), catalog.names(20, 10));
+		assertEquals(4L, (long) catalog.get("vault03").getNumberOfArchives());
+		assertEquals(400L, (long) catalog.get("vault03").getSizeInBytes());
+		assertTrue(catalog.contains("vault00"));
+		assertFalse(catalog.contains("missing"));
+		assertNull(catalog.get("missing"));
+
+		// 25 vaults, 10 per call
+		assertEquals(3, listVaultsCalls.get());
+	}
+
+	@Test
+	public void shouldListTheVaultsOncePerTtl() {
+		for (int i = 0; i < 100; i++) {
+			catalog.names(0, 20);
+		}
+		aws.createVault("vault99");
+
+		assertFalse(catalog.contains("vault99"));
+		assertEquals(3, listVaultsCalls.get());
+
+		long version = catalog.getVersion();
+		catalog.invalidate();
+
+		assertTrue(catalog.contains("vault99"));
+		assertEquals(version + 1, catalog.getVersion());
+	}
+
+	@Test
+	public void shouldRetryAFailedListingBeforeTheTtl()
+			throws InterruptedException {
+		final AtomicInteger failures = new AtomicInteger(1);
+		VaultCatalog retrying = new VaultCatalog(new FakeGlacierClient(aws,
+				new BasicAWSCredentials("accessKey", "secretKey")) {
+			@Override
+			public ListVaultsResult listVaults(ListVaultsRequest request) {
+				if (failures.getAndDecrement() > 0) {
+					throw new AmazonClientException("unreachable region");
+				}
+				return super.listVaults(request);
+			}
+		}, 60 * 1000).withRetryDelay(50);
+
+		assertEquals(0, retrying.size());
+		Thread.sleep(100);
+		assertEquals(25, retrying.size());
+	}
+
+}